@@ -25,7 +25,7 @@ create table tig_ma_jid (
   -- Automatic record ID
   ma_j_id    bigint unsigned NOT NULL auto_increment,
   -- Buddy JID the chat is with
-  jid     varchar(128) NOT NULL,
+  jid     varchar(255) NOT NULL,
   primary key(ma_j_id),
   unique key jid (jid)
 )
@@ -37,8 +37,8 @@ create table tig_ma_thread (
   ma_t_id    bigint unsigned NOT NULL auto_increment,
   -- Chat thread, if set
   thread     varchar(128),
-  primary key(ma_ts_id),
-  unique key thread (thread),
+  primary key(ma_t_id),
+  unique key thread (thread)
 )
 ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
 
@@ -48,37 +48,58 @@ create table tig_ma_subject (
   ma_s_id    bigint unsigned NOT NULL auto_increment,
 	-- Chat subject if set
 	subject    varchar(255),
-  primary key(ma_ts_id),
+  primary key(ma_s_id),
   unique key subject (subject)
 )
 ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
 
 -- Table keeping actual message body
+-- Each message is stored once, messages of a collection, that is between the
+-- archive owner and the other party, are found by both (from_jid, to_jid)
+-- pairs, ordered by ma_m_id.
 create table tig_ma_message (
   -- Automatic record ID
   ma_m_id    bigint unsigned NOT NULL auto_increment,
-  -- Automaticly generated timestamp and automaticly updated on change
-  utc        timestamp,
+  -- Time the message was archived
+  utc        datetime NOT NULL,
 	-- From address of the message, the vaulue refers to the tig_ma_jid table
 	from_jid 	bigint unsigned NOT NULL,
 	-- To address of the message, the vaulue refers to the tig_ma_jid table
 	to_jid		bigint unsigned NOT NULL,
-	-- Thread and Subject ID reference to the table tig_ma_thread_subject
-	ts_id 		bigint unsigned,
-	-- This field is supposed to lower database storage consumption. The idea is
-	-- to not store the same message 2 times which may happen if 2 users
-	-- on the same server chat with each other. With all the informations in this
-	-- table it should be enough to store such message only once.
-	body_hash  char(32) NOT NULL,
-	body_lang  char(2) NOT NULL,
+	-- Thread ID reference to the table tig_ma_thread
+	thread_id 		bigint unsigned,
+	-- Subject ID reference to the table tig_ma_subject
+	subject_id 		bigint unsigned,
+	body_lang  varchar(35),
 	-- The body of the message
-	body       varchar(4096) NOT NULL,
+	body       mediumtext NOT NULL,
+	-- The whole message stanza if full content archiving is on
+	msg        mediumtext,
   primary key(ma_m_id),
-  key utc (utc),
-	key from_jid (from_jid),
-	key to_jid (to_jid),
-	key ts_id (ts_id),
-	key body_hash (body_hash),
-  key body (body)
+  key from_to_utc (from_jid, to_jid, utc),
+  key to_from_utc (to_jid, from_jid, utc),
+  key utc (utc)
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
+
+-- Dead-letter table keeping messages which could not be stored in the
+-- tables above, because a value does not fit the indexed columns or the
+-- database rejected the row. Values are kept unchanged with the error.
+create table tig_ma_failed (
+  -- Automatic record ID
+  ma_f_id    bigint unsigned NOT NULL auto_increment,
+  -- Time the message was archived
+  utc        datetime NOT NULL,
+	from_jid   text,
+	to_jid     text,
+	thread     text,
+	subject    text,
+	body_lang  text,
+	body       mediumtext,
+	msg        mediumtext,
+	-- Why the message was not stored in the tig_ma_message table
+	error      varchar(255),
+  primary key(ma_f_id),
+  key utc (utc)
 )
 ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
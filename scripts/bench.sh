@@ -0,0 +1,43 @@
+#!/bin/bash
+##
+##  Tigase Jabber/XMPP Server
+##  Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+##
+##  This program is free software: you can redistribute it and/or modify
+##  it under the terms of the GNU Affero General Public License as published by
+##  the Free Software Foundation, either version 3 of the License.
+##
+##  This program is distributed in the hope that it will be useful,
+##  but WITHOUT ANY WARRANTY; without even the implied warranty of
+##  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+##  GNU Affero General Public License for more details.
+##
+##  You should have received a copy of the GNU Affero General Public License
+##  along with this program. Look for COPYING file in the top folder.
+##  If not, see http://www.gnu.org/licenses/.
+##
+##  $Rev: $
+##  Last modified by $Author: $
+##  $Date: $
+##
+
+## Runs the in-process load benchmark against a fresh Derby database:
+##   scripts/bench.sh [-c clients] [-m messages]
+## or the micro-benchmarks:
+##   scripts/bench.sh micro [iterations] [rounds]
+
+CP="jars/tigase-server.jar:libs/derby.jar:libs/tigase-xmltools.jar:libs/tigase-utils.jar"
+
+D="-server -Xms100M -Xmx1500M -Dfile.encoding=UTF-8 -Dsun.jnu.encoding=UTF-8 -Dderby.system.home=`pwd`"
+
+if [ "$1" == "micro" ] ; then
+	shift
+	java $D -cp $CP tigase.bench.MicroBenchmarks $*
+	exit $?
+fi
+
+rm -rf bench-db
+scripts/db-create-derby.sh bench-db > /dev/null
+
+java $D -cp $CP tigase.bench.XMPPBenchmark $* --start-server \
+		--property-file etc/bench.properties
@@ -0,0 +1,499 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.bench;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.xml.Element;
+import tigase.xml.SimpleHandler;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * A simulated XMPP client used by <code>XMPPBenchmark</code>. It opens a plain
+ * <code>jabber:client</code> stream, uses non-SASL authentication and keeps a
+ * reader thread which parses incoming data with the same
+ * <code>SimpleParser</code> the server uses.
+ *
+ * Request/response latencies are measured for <code>iq</code> stanzas matched
+ * by id. Messages sent by other benchmark clients carry the
+ * <code>System.nanoTime()</code> of sending in the body, which gives the one
+ * way delivery latency as all clients run in the same JVM.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class BenchClient implements SimpleHandler, Runnable {
+	private static final Logger log = Logger.getLogger(BenchClient.class.getName());
+	private static final String BODY_PREFIX = "bench:";
+	private static final String ELEM_STREAM_STREAM = "stream:stream";
+	private static final String RESOURCE = "bench";
+
+	//~--- fields ---------------------------------------------------------------
+
+	private String domain = null;
+	private volatile CountDownLatch expectedMessages = null;
+	private final AtomicInteger idCounter = new AtomicInteger();
+	private volatile LatencyHistogram messageHistogram = null;
+	private Writer out = null;
+	private Object parserState = null;
+	private String password = null;
+	private final Map<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+	private Socket socket = null;
+	private ArrayDeque<Element> stack = new ArrayDeque<Element>();
+	private CountDownLatch streamOpened = null;
+	private long timeout = 30000;
+	private String user = null;
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Constructs a new client for the given account.
+	 *
+	 * @param user is the account local part.
+	 * @param domain is the account domain.
+	 * @param password is the account password.
+	 * @param timeout is the maximum time in milliseconds to wait for a response.
+	 */
+	public BenchClient(String user, String domain, String password, long timeout) {
+		this.user = user;
+		this.domain = domain;
+		this.password = password;
+		this.timeout = timeout;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Closes the XMPP stream and the socket.
+	 */
+	public void close() {
+		try {
+			send("</stream:stream>");
+		} catch (IOException e) {
+
+			// Ignore, we are closing anyway
+		}
+
+		try {
+			socket.close();
+		} catch (IOException e) {
+
+			// Ignore, we are closing anyway
+		}
+	}
+
+	/**
+	 * Connects to the server and opens the XMPP stream.
+	 *
+	 * @param host is the server host name.
+	 * @param port is the server c2s port.
+	 *
+	 * @throws IOException if the connection fails or the stream is not opened on
+	 * time.
+	 */
+	public void connect(String host, int port) throws IOException {
+		socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.connect(new InetSocketAddress(host, port), (int) timeout);
+		out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+		stack.clear();
+		streamOpened = new CountDownLatch(1);
+
+		Thread reader = new Thread(this, "bench-client-" + user);
+
+		reader.setDaemon(true);
+		reader.start();
+		send("<stream:stream xmlns='jabber:client' "
+				+ "xmlns:stream='http://etherx.jabber.org/streams' to='" + domain + "'>");
+		await(streamOpened, "stream open");
+	}
+
+	/**
+	 * Sends an <code>iq</code> request and waits for the response.
+	 *
+	 * @param type is the iq type, <code>get</code> or <code>set</code>.
+	 * @param payload is the iq child element.
+	 * @param histogram is where the response latency is recorded, may be
+	 * <code>null</code>.
+	 *
+	 * @return the response element.
+	 *
+	 * @throws IOException if the response does not arrive on time.
+	 */
+	public Element iq(String type, String payload, LatencyHistogram histogram)
+			throws IOException {
+		String id = user + "-" + idCounter.incrementAndGet();
+		Pending req = new Pending(histogram);
+
+		pending.put(id, req);
+		send("<iq type='" + type + "' id='" + id + "'>" + payload + "</iq>");
+		await(req.latch, "iq response " + id);
+
+		return req.response;
+	}
+
+	/**
+	 * Authenticates the client using <code>jabber:iq:auth</code>.
+	 *
+	 * @param histogram is where the login latency is recorded.
+	 *
+	 * @return <code>true</code> if the authentication succeeded.
+	 *
+	 * @throws IOException
+	 */
+	public boolean login(LatencyHistogram histogram) throws IOException {
+		Element result = iq("set", "<query xmlns='jabber:iq:auth'><username>" + user
+				+ "</username><password>" + password + "</password><resource>" + RESOURCE
+				+ "</resource></query>", histogram);
+
+		return "result".equals(result.getAttribute("type"));
+	}
+
+	/**
+	 * Sends a benchmark message which carries the sending time.
+	 *
+	 * @param to is the recipient JID.
+	 *
+	 * @throws IOException
+	 */
+	public void message(String to) throws IOException {
+		send("<message type='chat' to='" + to + "'><body>" + BODY_PREFIX + System.nanoTime()
+				+ "</body></message>");
+	}
+
+	/**
+	 * Sends a subscription related presence.
+	 *
+	 * @param type is the presence type, for example <code>subscribe</code> or
+	 * <code>subscribed</code>.
+	 * @param to is the contact bare JID.
+	 *
+	 * @throws IOException
+	 */
+	public void presence(String type, String to) throws IOException {
+		send("<presence type='" + type + "' to='" + to + "'/>");
+	}
+
+	/**
+	 * Registers the account using <code>jabber:iq:register</code>. An error
+	 * response, for example a conflict for an already existing account, is
+	 * ignored.
+	 *
+	 * @throws IOException
+	 */
+	public void register() throws IOException {
+		iq("set", "<query xmlns='jabber:iq:register'><username>" + user
+				+ "</username><password>" + password + "</password></query>", null);
+	}
+
+	/**
+	 * Reader thread main loop.
+	 */
+	@Override
+	public void run() {
+		SimpleParser parser = SingletonFactory.getParserInstance();
+		char[] buf = new char[16 * 1024];
+
+		try {
+			Reader in = new InputStreamReader(socket.getInputStream(), "UTF-8");
+			int read = 0;
+
+			while ((read = in.read(buf)) != -1) {
+				parser.parse(this, buf, 0, read);
+			}
+		} catch (IOException e) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Connection closed for " + user, e);
+			}
+		}
+	}
+
+	/**
+	 * Sends raw XML data to the server.
+	 *
+	 * @param data is the XML to send.
+	 *
+	 * @throws IOException
+	 */
+	public void send(String data) throws IOException {
+		synchronized (this) {
+			out.write(data);
+			out.flush();
+		}
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Returns the bare JID of the client account.
+	 *
+	 * @return the bare JID as <code>String</code>.
+	 */
+	public String getBareJid() {
+		return user + "@" + domain;
+	}
+
+	/**
+	 * Returns the full JID the client binds after login.
+	 *
+	 * @return the full JID as <code>String</code>.
+	 */
+	public String getJid() {
+		return getBareJid() + "/" + RESOURCE;
+	}
+
+	//~--- set methods ----------------------------------------------------------
+
+	/**
+	 * Sets the number of benchmark messages the client waits for and the
+	 * histogram recording their delivery latency.
+	 *
+	 * @param count is the number of expected messages.
+	 * @param histogram is where the delivery latency is recorded.
+	 */
+	public void expectMessages(int count, LatencyHistogram histogram) {
+		messageHistogram = histogram;
+		expectedMessages = new CountDownLatch(count);
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Waits until all messages set by <code>expectMessages(...)</code> arrive.
+	 *
+	 * @throws IOException if the messages do not arrive on time.
+	 */
+	public void awaitMessages() throws IOException {
+		await(expectedMessages, "messages for " + user);
+	}
+
+	// Implementation of SimpleHandler, called only from the reader thread.
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param cdata
+	 */
+	@Override
+	public void elementCData(StringBuilder cdata) {
+		Element elem = stack.peek();
+
+		if (elem != null) {
+			elem.setCData(cdata.toString());
+		}
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param name
+	 */
+	@Override
+	public void endElement(StringBuilder name) {
+		if (ELEM_STREAM_STREAM.equals(name.toString()) || stack.isEmpty()) {
+			return;
+		}
+
+		Element elem = stack.pop();
+
+		if (stack.isEmpty()) {
+			process(elem);
+		} else {
+			stack.peek().addChild(elem);
+		}
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param errorMessage
+	 */
+	@Override
+	public void error(String errorMessage) {
+		log.log(Level.WARNING, "XML parse error for {0}: {1}", new Object[] { user,
+				errorMessage });
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param other
+	 */
+	@Override
+	public void otherXML(StringBuilder other) {}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	@Override
+	public Object restoreParserState() {
+		return parserState;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param state
+	 */
+	@Override
+	public void saveParserState(Object state) {
+		parserState = state;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param name
+	 * @param attr_names
+	 * @param attr_values
+	 */
+	@Override
+	public void startElement(StringBuilder name, StringBuilder[] attr_names,
+			StringBuilder[] attr_values) {
+		String tmp_name = name.toString();
+
+		if (ELEM_STREAM_STREAM.equals(tmp_name)) {
+			streamOpened.countDown();
+
+			return;
+		}
+
+		int cnt = 0;
+
+		while ((attr_names != null) && (cnt < attr_names.length) && (attr_names[cnt] != null)) {
+			++cnt;
+		}
+
+		String[] names = new String[cnt];
+		String[] values = new String[cnt];
+
+		for (int i = 0; i < cnt; i++) {
+			names[i] = attr_names[i].toString();
+			values[i] = attr_values[i].toString();
+		}
+
+		stack.push(new Element(tmp_name, names, values));
+	}
+
+	private void await(CountDownLatch latch, String what) throws IOException {
+		try {
+			if ( !latch.await(timeout, TimeUnit.MILLISECONDS)) {
+				throw new IOException("Timeout waiting for " + what);
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted waiting for " + what);
+		}
+	}
+
+	private void process(Element elem) {
+		String name = elem.getName();
+
+		if ("iq".equals(name)) {
+			String id = elem.getAttribute("id");
+			Pending req = (id == null) ? null : pending.remove(id);
+
+			if (req != null) {
+				if (req.histogram != null) {
+					req.histogram.recordSince(req.start);
+				}
+
+				req.response = elem;
+				req.latch.countDown();
+			}
+
+			return;
+		}
+
+		if ("message".equals(name)) {
+			Element body = elem.getChild("body");
+			String cdata = (body == null) ? null : body.getCData();
+
+			if ((cdata != null) && cdata.startsWith(BODY_PREFIX)) {
+				LatencyHistogram histogram = messageHistogram;
+
+				if (histogram != null) {
+					histogram.recordSince(Long.parseLong(cdata.substring(BODY_PREFIX.length())));
+				}
+
+				CountDownLatch latch = expectedMessages;
+
+				if (latch != null) {
+					latch.countDown();
+				}
+			}
+		}
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	private static class Pending {
+		private LatencyHistogram histogram = null;
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile Element response = null;
+		private final long start = System.nanoTime();
+
+		//~--- constructors -------------------------------------------------------
+
+		private Pending(LatencyHistogram histogram) {
+			this.histogram = histogram;
+		}
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
@@ -0,0 +1,201 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.bench;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Thread safe latency histogram with log-linear buckets. Each power of two
+ * range is split into 32 buckets, so the reported percentiles are within about
+ * 3% of the recorded values while the histogram takes a few kilobytes
+ * regardless of the number of samples.
+ *
+ * Values are recorded in microseconds.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_EXP = 40;
+
+	//~--- fields ---------------------------------------------------------------
+
+	private final AtomicLongArray buckets = new AtomicLongArray(SUB_BUCKETS + (MAX_EXP
+			- SUB_BITS + 1) * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	private String name = null;
+	private final AtomicLong sum = new AtomicLong();
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Constructs a new empty histogram.
+	 *
+	 * @param name is the histogram name used in reports.
+	 */
+	public LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Records a latency measured from the given <code>System.nanoTime()</code>
+	 * value until now.
+	 *
+	 * @param startNanos is a <code>System.nanoTime()</code> value taken when the
+	 * measured operation started.
+	 */
+	public void recordSince(long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	/**
+	 * Records a single latency value.
+	 *
+	 * @param micros is the latency in microseconds.
+	 */
+	public void record(long micros) {
+		long value = (micros < 0) ? 0 : micros;
+
+		buckets.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long m = max.get();
+
+		while ((value > m) && !max.compareAndSet(m, value)) {
+			m = max.get();
+		}
+	}
+
+	/**
+	 * Returns a single line report with count, mean and percentiles.
+	 *
+	 * @return a <code>String</code> report.
+	 */
+	@Override
+	public String toString() {
+		long cnt = count.get();
+
+		return String.format("%-24s count: %8d, mean: %8dus, p50: %8dus, p90: %8dus, "
+				+ "p99: %8dus, p99.9: %8dus, max: %8dus", name, cnt, (cnt == 0) ? 0 : sum.get() / cnt,
+					getPercentile(50), getPercentile(90), getPercentile(99), getPercentile(99.9),
+						max.get());
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Returns the number of recorded values.
+	 *
+	 * @return number of samples.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the maximal recorded value.
+	 *
+	 * @return the maximum in microseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the histogram name.
+	 *
+	 * @return the name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the value below which the given percent of samples fall.
+	 *
+	 * @param percent is a value between 0 and 100.
+	 *
+	 * @return the percentile in microseconds, upper bound of the bucket.
+	 */
+	public long getPercentile(double percent) {
+		long cnt = count.get();
+
+		if (cnt == 0) {
+			return 0;
+		}
+
+		long target = (long) Math.ceil(cnt * percent / 100);
+		long seen = 0;
+
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+
+			if (seen >= target) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		int exp = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXP);
+		int sub = (int) Math.min((value >>> (exp - SUB_BITS)) - SUB_BUCKETS, SUB_BUCKETS - 1);
+
+		return SUB_BUCKETS + (exp - SUB_BITS) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int idx) {
+		if (idx < SUB_BUCKETS) {
+			return idx;
+		}
+
+		int exp = (idx - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+		int sub = (idx - SUB_BUCKETS) % SUB_BUCKETS;
+
+		return ((long) (SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1;
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
@@ -0,0 +1,211 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.bench;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.server.Packet;
+import tigase.server.Priority;
+
+import tigase.util.NonpriorityQueue;
+import tigase.util.PriorityQueueAbstract;
+import tigase.util.PriorityQueueRelaxed;
+import tigase.util.PriorityQueueStrict;
+
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.ArrayList;
+import java.util.List;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Micro-benchmarks of the hot spots on the packet path: <code>Packet</code>
+ * construction, <code>SimpleParser</code> parsing and the priority queues
+ * used between components. Each benchmark is warmed up first and then run in
+ * a number of timed rounds, the best and the average time per operation are
+ * reported, so the results can be compared before and after a change.
+ *
+ * The benchmarks run with plain JDK timing and do not need any external
+ * framework. <code>SessionManager.walk()</code> needs a fully configured
+ * session manager, it is covered by the end-to-end scenarios of
+ * <code>XMPPBenchmark</code> instead.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class MicroBenchmarks {
+	private static final String STANZA = "<message to='user@example.com/res' "
+			+ "from='other@example.com/res' type='chat' id='abc123'>"
+			+ "<body>Hello, this is a test message with some content.</body>"
+			+ "<active xmlns='http://jabber.org/protocol/chatstates'/></message>";
+
+	//~--- fields ---------------------------------------------------------------
+
+	private int iterations = 100000;
+	private int rounds = 10;
+	private int warmupRounds = 5;
+
+	// Prevents the JIT from removing benchmarked code as dead.
+	private volatile Object sink = null;
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Constructs ...
+	 *
+	 *
+	 * @param iterations
+	 * @param rounds
+	 * @param warmupRounds
+	 */
+	public MicroBenchmarks(int iterations, int rounds, int warmupRounds) {
+		this.iterations = iterations;
+		this.rounds = rounds;
+		this.warmupRounds = warmupRounds;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param args
+	 *
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		MicroBenchmarks bench = new MicroBenchmarks(iterations, rounds, 5);
+
+		for (String line : bench.runAll()) {
+			System.out.println(line);
+		}
+	}
+
+	/**
+	 * Runs all benchmarks.
+	 *
+	 * @return report lines, one per benchmark.
+	 *
+	 * @throws Exception
+	 */
+	public List<String> runAll() throws Exception {
+		List<String> result = new ArrayList<String>();
+		final char[] data = STANZA.toCharArray();
+		final SimpleParser parser = SingletonFactory.getParserInstance();
+
+		result.add(measure("Packet.packetInstance", new Benchmark() {
+			@Override
+			public void run(int count) throws Exception {
+				for (int i = 0; i < count; i++) {
+					Element elem = new Element("message", new String[] { "to", "from", "type",
+							"id" }, new String[] { "user@example.com/res", "other@example.com/res",
+							"chat", "abc123" });
+
+					elem.addChild(new Element("body", "Hello, this is a test message."));
+					sink = Packet.packetInstance(elem);
+				}
+			}
+		}));
+		result.add(measure("SimpleParser.parse", new Benchmark() {
+			@Override
+			public void run(int count) throws Exception {
+				for (int i = 0; i < count; i++) {
+					DomBuilderHandler handler = new DomBuilderHandler();
+
+					parser.parse(handler, data, 0, data.length);
+					sink = handler.getParsedElements();
+				}
+			}
+		}));
+		result.add(measureQueue("PriorityQueueRelaxed", new PriorityQueueRelaxed<Object>()));
+		result.add(measureQueue("PriorityQueueStrict", new PriorityQueueStrict<Object>()));
+		result.add(measureQueue("NonpriorityQueue", new NonpriorityQueue<Object>()));
+
+		return result;
+	}
+
+	private String measure(String name, Benchmark bench) throws Exception {
+		for (int i = 0; i < warmupRounds; i++) {
+			bench.run(iterations);
+		}
+
+		long best = Long.MAX_VALUE;
+		long total = 0;
+
+		for (int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+
+			bench.run(iterations);
+
+			long time = System.nanoTime() - start;
+
+			best = Math.min(best, time);
+			total += time;
+		}
+
+		return String.format("%-28s best: %8.1f ns/op, avg: %8.1f ns/op", name,
+				(double) best / iterations, (double) total / rounds / iterations);
+	}
+
+	private String measureQueue(String name, final PriorityQueueAbstract<Object> queue)
+			throws Exception {
+		final int priorities = Priority.values().length;
+		final Object item = new Object();
+
+		queue.init(priorities, iterations);
+
+		return measure(name + ".offer+take", new Benchmark() {
+			@Override
+			public void run(int count) throws Exception {
+				for (int i = 0; i < count; i++) {
+					queue.offer(item, i % priorities);
+				}
+
+				for (int i = 0; i < count; i++) {
+					sink = queue.take();
+				}
+			}
+		});
+	}
+
+	//~--- inner interfaces -----------------------------------------------------
+
+	private static interface Benchmark {
+		void run(int count) throws Exception;
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
@@ -0,0 +1,488 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.bench;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.server.XMPPServer;
+
+import tigase.xml.Element;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * In-process load generator for the XMPP server. It optionally starts
+ * <code>XMPPServer</code> in the same JVM and then drives a number of simulated
+ * <code>BenchClient</code>s over the loopback interface through the c2s
+ * connection manager. The following scenarios are run one after another:
+ * <ul>
+ * <li><em>login</em> - connect, register the account and authenticate on the
+ * same stream,</li>
+ * <li><em>roster</em> - roster get, before it each client gets up to
+ * <code>-r</code> contacts, its neighbours in the client list, with mutual
+ * (<code>both</code>) subscriptions,</li>
+ * <li><em>presence</em> - initial presence broadcast to the roster contacts
+ * followed by a ping, the latency is measured until the ping response,</li>
+ * <li><em>message</em> - each client sends messages to the next client,</li>
+ * <li><em>offline</em> - every second client disconnects, the others send it
+ * messages, the client reconnects and the latency is measured from its initial
+ * presence until all offline messages are delivered.</li>
+ * </ul>
+ * For each scenario throughput and latency percentiles are reported.
+ *
+ * Sample use with the Derby database created by
+ * <code>scripts/db-create-derby.sh bench-db</code>:
+ * <pre>java -cp ... tigase.bench.XMPPBenchmark -c 1000 -m 10 --start-server \
+ *   --property-file etc/bench.properties</pre>
+ * All parameters after <code>--start-server</code> are passed to the server.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class XMPPBenchmark {
+	private static final String PASSWORD = "bench";
+
+	//~--- fields ---------------------------------------------------------------
+
+	private List<BenchClient> clients = new ArrayList<BenchClient>();
+	private int clientsNo = 100;
+	private String domain = "localhost";
+	private ExecutorService executor = null;
+	private String host = "localhost";
+	private int messages = 10;
+	private int port = 5222;
+	private List<String> report = new ArrayList<String>();
+	private int rosterSize = 10;
+	private String[] serverArgs = null;
+	private int threads = 32;
+	private long timeout = 30000;
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public static String help() {
+		return "\n" + "Parameters:\n" + " -h                this help message\n"
+				+ " -c clients        number of simulated clients, default 100\n"
+				+ " -m messages       messages sent by each client, default 10\n"
+				+ " -t threads        number of threads driving clients, default 32\n"
+				+ " -s host           server host name, default localhost\n"
+				+ " -p port           server c2s port, default 5222\n"
+				+ " -d domain         user domain, default localhost\n"
+				+ " -r roster         roster size of each client, rounded down to\n"
+				+ "                   an even number, default 10\n"
+				+ " -w timeout        response timeout in ms, default 30000\n"
+				+ " --start-server    start the server in-process, all following\n"
+				+ "                   parameters are passed to the server\n";
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param args
+	 *
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		XMPPBenchmark bench = new XMPPBenchmark();
+
+		bench.parseParams(args);
+		bench.run();
+		System.exit(0);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param args
+	 */
+	public void parseParams(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--start-server")) {
+				serverArgs = Arrays.copyOfRange(args, i + 1, args.length);
+
+				break;
+			}
+
+			if (args[i].equals("-h") || (i + 1 == args.length)) {
+				System.out.print(help());
+				System.exit(0);
+			}
+
+			String val = args[++i];
+
+			if (args[i - 1].equals("-c")) {
+				clientsNo = Integer.parseInt(val);
+			} else if (args[i - 1].equals("-m")) {
+				messages = Integer.parseInt(val);
+			} else if (args[i - 1].equals("-t")) {
+				threads = Integer.parseInt(val);
+			} else if (args[i - 1].equals("-s")) {
+				host = val;
+			} else if (args[i - 1].equals("-p")) {
+				port = Integer.parseInt(val);
+			} else if (args[i - 1].equals("-r")) {
+				rosterSize = Integer.parseInt(val);
+			} else if (args[i - 1].equals("-d")) {
+				domain = val;
+			} else if (args[i - 1].equals("-w")) {
+				timeout = Long.parseLong(val);
+			}
+		}
+	}
+
+	/**
+	 * Runs all scenarios and prints the report.
+	 *
+	 * @throws Exception
+	 */
+	public void run() throws Exception {
+		if (serverArgs != null) {
+			XMPPServer.main(serverArgs);
+		}
+
+		waitForServer();
+		executor = Executors.newFixedThreadPool(threads);
+
+		for (int i = 0; i < clientsNo; i++) {
+			clients.add(new BenchClient("bench-" + i, domain, PASSWORD, timeout));
+		}
+
+		try {
+			runLogin();
+			setupRosters();
+			runRoster();
+			runPresence();
+			runMessage();
+			runOffline();
+		} finally {
+			for (BenchClient client : clients) {
+				client.close();
+			}
+
+			executor.shutdownNow();
+		}
+
+		System.out.println();
+		System.out.println("Benchmark results: " + clientsNo + " clients, " + messages
+				+ " messages per client, " + (2 * getContacts()) + " roster items per client");
+
+		for (String line : report) {
+			System.out.println(line);
+		}
+	}
+
+	private void addReport(LatencyHistogram histogram, long operations, long startNanos) {
+		long time = (System.nanoTime() - startNanos) / 1000000;
+		double throughput = (time == 0) ? 0 : operations * 1000.0 / time;
+
+		report.add(histogram.toString());
+		report.add(String.format("%-24s %d operations in %dms, %.1f ops/s", "", operations, time,
+				throughput));
+	}
+
+	private void parallel(List<BenchClient> list, final ClientTask task) throws Exception {
+		List<Future<Object>> results = new ArrayList<Future<Object>>(list.size());
+
+		for (int i = 0; i < list.size(); i++) {
+			final int idx = i;
+			final BenchClient client = list.get(i);
+
+			results.add(executor.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					task.run(idx, client);
+
+					return null;
+				}
+			}));
+		}
+
+		for (Future<Object> result : results) {
+			result.get();
+		}
+	}
+
+	private void runLogin() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram("login");
+		long start = System.nanoTime();
+
+		parallel(clients, new ClientTask() {
+			@Override
+			public void run(int idx, BenchClient client) throws IOException {
+				client.connect(host, port);
+				client.register();
+
+				if ( !client.login(histogram)) {
+					throw new IOException("Authentication failed for " + client.getBareJid());
+				}
+			}
+		});
+		addReport(histogram, clientsNo, start);
+	}
+
+	private void runMessage() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram("message");
+
+		for (BenchClient client : clients) {
+			client.expectMessages(messages, histogram);
+		}
+
+		long start = System.nanoTime();
+
+		parallel(clients, new ClientTask() {
+			@Override
+			public void run(int idx, BenchClient client) throws IOException {
+				BenchClient to = clients.get((idx + 1) % clients.size());
+
+				for (int i = 0; i < messages; i++) {
+					client.message(to.getJid());
+				}
+			}
+		});
+		parallel(clients, new ClientTask() {
+			@Override
+			public void run(int idx, BenchClient client) throws IOException {
+				client.awaitMessages();
+			}
+		});
+		addReport(histogram, (long) clientsNo * messages, start);
+	}
+
+	private void runOffline() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram("offline");
+		final LatencyHistogram delivery = new LatencyHistogram("offline-delivery");
+		List<BenchClient> online = new ArrayList<BenchClient>();
+		List<BenchClient> offline = new ArrayList<BenchClient>();
+
+		for (int i = 0; i + 1 < clients.size(); i += 2) {
+			online.add(clients.get(i));
+			offline.add(clients.get(i + 1));
+		}
+
+		for (BenchClient client : offline) {
+			client.close();
+		}
+
+		// Give the server time to process the stream close before messages are sent.
+		Thread.sleep(2000);
+		parallel(online, new ClientTask() {
+			@Override
+			public void run(int idx, BenchClient client) throws IOException {
+				BenchClient to = clients.get(2 * idx + 1);
+
+				for (int i = 0; i < messages; i++) {
+					client.message(to.getBareJid());
+				}
+			}
+		});
+
+		// Offline storage is asynchronous, make sure all messages are stored.
+		Thread.sleep(2000);
+
+		long start = System.nanoTime();
+
+		parallel(offline, new ClientTask() {
+			@Override
+			public void run(int idx, BenchClient client) throws IOException {
+				client.connect(host, port);
+				client.login(null);
+				client.expectMessages(messages, delivery);
+
+				long presence = System.nanoTime();
+
+				client.send("<presence/>");
+				client.awaitMessages();
+				histogram.recordSince(presence);
+			}
+		});
+		addReport(histogram, offline.size(), start);
+		report.add(delivery.toString());
+	}
+
+	private void runPresence() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram("presence");
+		long start = System.nanoTime();
+
+		parallel(clients, new ClientTask() {
+			@Override
+			public void run(int idx, BenchClient client) throws IOException {
+				long presence = System.nanoTime();
+
+				client.send("<presence/>");
+				client.iq("get", "<ping xmlns='urn:xmpp:ping'/>", null);
+				histogram.recordSince(presence);
+			}
+		});
+		addReport(histogram, clientsNo, start);
+	}
+
+	private void runRoster() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram("roster");
+		long start = System.nanoTime();
+
+		parallel(clients, new ClientTask() {
+			@Override
+			public void run(int idx, BenchClient client) throws IOException {
+				client.iq("get", "<query xmlns='jabber:iq:roster'/>", histogram);
+			}
+		});
+		addReport(histogram, clientsNo, start);
+	}
+
+	private void setupRosters() throws Exception {
+		final int contacts = getContacts();
+
+		if (contacts == 0) {
+			return;
+		}
+
+		// Each client subscribes to the clients following it in the list, they
+		// approve and subscribe back, which is finally approved by the client.
+		// The server must process each step before the next one is sent.
+		parallel(clients, new ClientTask() {
+			@Override
+			public void run(int idx, BenchClient client) throws IOException {
+				for (int i = 1; i <= contacts; i++) {
+					client.presence("subscribe", getContact(idx, i).getBareJid());
+				}
+			}
+		});
+		Thread.sleep(2000);
+		parallel(clients, new ClientTask() {
+			@Override
+			public void run(int idx, BenchClient client) throws IOException {
+				for (int i = 1; i <= contacts; i++) {
+					client.presence("subscribed", getContact(idx, -i).getBareJid());
+					client.presence("subscribe", getContact(idx, -i).getBareJid());
+				}
+			}
+		});
+		Thread.sleep(2000);
+		parallel(clients, new ClientTask() {
+			@Override
+			public void run(int idx, BenchClient client) throws IOException {
+				for (int i = 1; i <= contacts; i++) {
+					client.presence("subscribed", getContact(idx, i).getBareJid());
+				}
+			}
+		});
+		Thread.sleep(2000);
+
+		final AtomicInteger incomplete = new AtomicInteger();
+
+		parallel(clients, new ClientTask() {
+			@Override
+			public void run(int idx, BenchClient client) throws IOException {
+				Element query = client.iq("get", "<query xmlns='jabber:iq:roster'/>", null)
+					.getChild("query");
+				List<Element> items = (query == null) ? null : query.getChildren();
+				int both = 0;
+
+				if (items != null) {
+					for (Element item : items) {
+						if ("both".equals(item.getAttribute("subscription"))) {
+							++both;
+						}
+					}
+				}
+
+				if (both < 2 * contacts) {
+					incomplete.incrementAndGet();
+				}
+			}
+		});
+
+		if (incomplete.get() > 0) {
+			System.out.println("Warning, rosters of " + incomplete.get()
+					+ " clients are not complete");
+		}
+	}
+
+	private void waitForServer() throws Exception {
+		long end = System.currentTimeMillis() + 60 * 1000;
+
+		while (true) {
+			Socket socket = new Socket();
+
+			try {
+				socket.connect(new InetSocketAddress(host, port), 1000);
+
+				return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > end) {
+					throw new IOException("Server is not listening on " + host + ":" + port);
+				}
+
+				Thread.sleep(500);
+			} finally {
+				socket.close();
+			}
+		}
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	private BenchClient getContact(int idx, int offset) {
+		return clients.get((idx + offset + clients.size()) % clients.size());
+	}
+
+	// Number of contacts following (and preceding) each client in the list
+	private int getContacts() {
+		return Math.max(0, Math.min(rosterSize / 2, (clientsNo - 1) / 2));
+	}
+
+	//~--- inner interfaces -----------------------------------------------------
+
+	private static interface ClientTask {
+		void run(int idx, BenchClient client) throws IOException;
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
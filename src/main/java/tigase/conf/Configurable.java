@@ -198,6 +198,9 @@ public interface Configurable extends ServerComponent {
 	/** Field description */
 	public static final String XML_REPO_CLASS_PROP_VAL = "tigase.db.xml.XMLRepository";
 
+	/** Field description */
+	public static final String LOG_REPO_CLASS_PROP_VAL = "tigase.db.log.LogRepository";
+
 	/** Field description */
 	public static final String DUMMY_REPO_CLASS_PROP_VAL = "tigase.db.DummyRepository";
 
@@ -296,6 +299,9 @@ public interface Configurable extends ServerComponent {
 	/** Field description */
 	public static final String DEF_BOSH_NAME = "bosh";
 
+	/** Field description */
+	public static final String DEF_WS_NAME = "ws";
+
 	/** Field description */
 	public static final String DEF_STATS_NAME = "stats";
 
@@ -355,6 +361,10 @@ public interface Configurable extends ServerComponent {
 	/** Field description */
 	public static final String BOSH_CLUST_COMP_CLASS_NAME = "tigase.cluster.BoshConnectionClustered";
 
+	/** Field description */
+	public static final String WS_COMP_CLASS_NAME =
+			"tigase.server.websocket.WebSocketConnectionManager";
+
         /** Field description */
 	public static final String STATS_CLASS_NAME = "tigase.stats.StatisticsCollector";
 
@@ -0,0 +1,464 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.db;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.stats.StatisticsList;
+
+import tigase.xml.Element;
+
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.Date;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Asynchronous facade for the user, authentication and message repositories.
+ * Operations are executed on a dedicated pool of repository threads with a
+ * bounded queue, so threads processing packets do not wait for the database
+ * and their number does not have to grow with the database latency.
+ * <p/>
+ * Every operation returns a <code>Future</code> and, if a callback is given,
+ * calls it with the result on the repository thread. When the queue is full the
+ * operation is not executed, the callback gets a <code>TigaseDBException</code>
+ * right away in the calling thread.
+ * <p/>
+ * Plugins find the instance in their settings under <code>ASYNC_REPO_KEY</code>
+ * and usually use it together with <code>WorkerThread.suspendCurrentItem()</code>
+ * to continue processing of the packet when the data arrives.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class AsyncRepository {
+
+	/** Key of the instance in plugin settings. */
+	public static final String ASYNC_REPO_KEY = "async-repo";
+	private static final Logger log = Logger.getLogger(AsyncRepository.class.getName());
+
+	//~--- fields ---------------------------------------------------------------
+
+	private final AtomicLong completed = new AtomicLong();
+	private ThreadPoolExecutor executor = null;
+	private final AtomicLong failed = new AtomicLong();
+	private String name = null;
+	private final AtomicLong rejected = new AtomicLong();
+	private AuthRepository auth_repo = null;
+	private UserRepository user_repo = null;
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Creates the facade and starts its threads.
+	 *
+	 *
+	 * @param name is the name used for threads and statistics.
+	 * @param user_repo
+	 * @param auth_repo
+	 * @param threads is the number of repository threads, the maximum number of
+	 * concurrently executed operations.
+	 * @param queueSize is the maximum number of operations waiting for execution.
+	 */
+	public AsyncRepository(final String name, UserRepository user_repo,
+			AuthRepository auth_repo, int threads, int queueSize) {
+		this.name = name;
+		this.user_repo = user_repo;
+		this.auth_repo = auth_repo;
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + " Repository Worker " + counter.getAndIncrement());
+
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param props
+	 * @param callback
+	 *
+	 * @return
+	 */
+	public Future<Boolean> otherAuth(final Map<String, Object> props,
+			RepositoryCallback<Boolean> callback) {
+		return submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return auth_repo.otherAuth(props);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Loads messages stored for the recipient.
+	 *
+	 *
+	 * @param msg_repo is the message repository to use.
+	 * @param to
+	 * @param delete
+	 * @param callback
+	 *
+	 * @return
+	 */
+	public Future<Queue<Element>> loadMessagesToJID(final MsgRepositoryIfc msg_repo,
+			final JID to, final boolean delete, RepositoryCallback<Queue<Element>> callback) {
+		return submit(new Callable<Queue<Element>>() {
+			@Override
+			public Queue<Element> call() throws Exception {
+				return msg_repo.loadMessagesToJID(to, delete);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 * @param key
+	 * @param callback
+	 *
+	 * @return
+	 */
+	public Future<Object> removeData(final BareJID user, final String subnode,
+			final String key, RepositoryCallback<Object> callback) {
+		return submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				user_repo.removeData(user, subnode, key);
+
+				return null;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Stops the repository threads, operations waiting in the queue are still
+	 * executed.
+	 *
+	 */
+	public void stop() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Stores a message for the recipient.
+	 *
+	 *
+	 * @param msg_repo is the message repository to use.
+	 * @param from
+	 * @param to
+	 * @param expired
+	 * @param msg
+	 * @param callback
+	 *
+	 * @return
+	 */
+	public Future<Object> storeMessage(final MsgRepositoryIfc msg_repo, final JID from,
+			final JID to, final Date expired, final Element msg,
+			RepositoryCallback<Object> callback) {
+		return submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				msg_repo.storeMessage(from, to, expired, msg);
+
+				return null;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Executes any operation on a repository thread.
+	 *
+	 *
+	 * @param task is the operation.
+	 * @param callback receives the result, may be <code>null</code>.
+	 * @param <T>
+	 *
+	 * @return
+	 */
+	public <T> Future<T> submit(Callable<T> task, RepositoryCallback<T> callback) {
+		CallbackTask<T> future = new CallbackTask<T>(task, callback);
+
+		try {
+			executor.execute(future);
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			future.reject(new TigaseDBException("Repository queue is full, " + name
+					+ " queue size: " + executor.getQueue().size()));
+		}
+
+		return future;
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Loads data of many nodes at once, see <code>UserDataPrefetchIfc</code>.
+	 * The result is <code>null</code> if the user repository does not support it.
+	 *
+	 *
+	 * @param user
+	 * @param subnodes
+	 * @param callback
+	 *
+	 * @return
+	 */
+	public Future<Map<String, Map<String, String[]>>> getAllData(final BareJID user,
+			final String[] subnodes, RepositoryCallback<Map<String, Map<String,
+				String[]>>> callback) {
+		return submit(new Callable<Map<String, Map<String, String[]>>>() {
+			@Override
+			public Map<String, Map<String, String[]>> call() throws Exception {
+				if (user_repo instanceof UserDataPrefetchIfc) {
+					return ((UserDataPrefetchIfc) user_repo).getAllData(user, subnodes);
+				}
+
+				return null;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 * @param key
+	 * @param def
+	 * @param callback
+	 *
+	 * @return
+	 */
+	public Future<String> getData(final BareJID user, final String subnode,
+			final String key, final String def, RepositoryCallback<String> callback) {
+		return submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return user_repo.getData(user, subnode, key, def);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 * @param key
+	 * @param callback
+	 *
+	 * @return
+	 */
+	public Future<String[]> getDataList(final BareJID user, final String subnode,
+			final String key, RepositoryCallback<String[]> callback) {
+		return submit(new Callable<String[]>() {
+			@Override
+			public String[] call() throws Exception {
+				return user_repo.getDataList(user, subnode, key);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, name + " queue", executor.getQueue().size(), Level.INFO);
+		list.add(compName, name + " rejected", rejected.get(), Level.INFO);
+		list.add(compName, name + " failed", failed.get(), Level.FINE);
+		list.add(compName, name + " completed", completed.get(), Level.FINE);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 * @param callback
+	 *
+	 * @return
+	 */
+	public Future<String[]> getSubnodes(final BareJID user, final String subnode,
+			RepositoryCallback<String[]> callback) {
+		return submit(new Callable<String[]>() {
+			@Override
+			public String[] call() throws Exception {
+				return user_repo.getSubnodes(user, subnode);
+			}
+		}, callback);
+	}
+
+	//~--- set methods ----------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 * @param key
+	 * @param value
+	 * @param callback
+	 *
+	 * @return
+	 */
+	public Future<Object> setData(final BareJID user, final String subnode,
+			final String key, final String value, RepositoryCallback<Object> callback) {
+		return submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				user_repo.setData(user, subnode, key, value);
+
+				return null;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 * @param key
+	 * @param list
+	 * @param callback
+	 *
+	 * @return
+	 */
+	public Future<Object> setDataList(final BareJID user, final String subnode,
+			final String key, final String[] list, RepositoryCallback<Object> callback) {
+		return submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				user_repo.setDataList(user, subnode, key, list);
+
+				return null;
+			}
+		}, callback);
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	private class CallbackTask<T> extends FutureTask<T> {
+		private RepositoryCallback<T> callback = null;
+		private boolean notExecuted = false;
+
+		//~--- constructors -------------------------------------------------------
+
+		private CallbackTask(Callable<T> task, RepositoryCallback<T> callback) {
+			super(task);
+			this.callback = callback;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		@Override
+		protected void done() {
+			T result = null;
+			Exception error = null;
+
+			try {
+				result = get();
+				completed.incrementAndGet();
+			} catch (ExecutionException e) {
+				if ( !notExecuted) {
+					failed.incrementAndGet();
+				}
+
+				error = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+			} catch (Exception e) {
+				error = e;
+			}
+
+			if (callback == null) {
+				if (error != null) {
+					log.log(Level.WARNING, "Problem executing repository operation: ", error);
+				}
+
+				return;
+			}
+
+			try {
+				if (error == null) {
+					callback.done(result);
+				} else {
+					callback.failed(error);
+				}
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Exception in repository callback: ", e);
+			}
+		}
+
+		private void reject(Exception e) {
+			notExecuted = true;
+			setException(e);
+		}
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
@@ -0,0 +1,523 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.db;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.stats.StatisticsList;
+
+import tigase.util.Base64;
+import tigase.util.SimpleCache;
+import tigase.util.TigaseStringprepException;
+
+import tigase.xmpp.BareJID;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.nio.charset.Charset;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Caching decorator for an <code>AuthRepository</code>. Successful plain text
+ * password authentications (non-SASL password, SASL PLAIN) are remembered as
+ * salted SHA-256 verifiers, so a client reconnecting often does not hit the
+ * database each time, and the cache never holds passwords. Failed attempts are
+ * remembered for a short time in a negative cache, so a client retrying bad
+ * credentials in a loop gets the answer without a database query either.
+ * Concurrent attempts with the same credentials for the same user are
+ * coalesced into a single repository call.
+ *
+ * Both caches are bounded and entries expire. They are invalidated for a user
+ * on <code>addUser</code>, <code>updatePassword</code> and
+ * <code>removeUser</code> called through the decorator. Password changes made
+ * directly in the database are visible after the cache time expires. Note that
+ * a cached authentication does not reach the repository, so side effects of a
+ * login query, like recording the last login time, are skipped for it.
+ *
+ * Digest and other SASL mechanisms are passed to the repository unchanged.
+ *
+ * The cache is enabled with <code>-Dauth-repo-cache=true</code>, see
+ * <code>RepositoryFactory</code> for the other settings.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class AuthRepositoryCache implements AuthRepository {
+	private static final Logger log = Logger.getLogger(AuthRepositoryCache.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int SALT_SIZE = 16;
+
+	//~--- constant enums -------------------------------------------------------
+
+	private enum Failure { FAILED, NOT_FOUND, NOT_AUTHORIZED; }
+
+	//~--- fields ---------------------------------------------------------------
+
+	private final AtomicLong coalesced = new AtomicLong();
+
+	// Incremented on every invalidation, results of repository calls started
+	// before are not cached.
+	private final AtomicLong generation = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final ConcurrentHashMap<String, FutureTask<Boolean>> inflight =
+		new ConcurrentHashMap<String, FutureTask<Boolean>>();
+	private final AtomicLong misses = new AtomicLong();
+	private Map<BareJID, Verifier> negative = null;
+	private final AtomicLong negativeHits = new AtomicLong();
+	private Map<BareJID, Verifier> positive = null;
+	private SecureRandom random = new SecureRandom();
+	private AuthRepository repo = null;
+
+	// Salt for the in-flight keys, so they do not contain passwords
+	private byte[] secret = new byte[SALT_SIZE];
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Constructs ...
+	 *
+	 *
+	 * @param repo is the repository the calls are passed to.
+	 * @param maxSize is the maximum number of entries in each of the caches.
+	 * @param cacheTime is the time in milliseconds a successful authentication is
+	 * cached.
+	 * @param negativeCacheTime is the time in milliseconds a failed
+	 * authentication is cached.
+	 */
+	public AuthRepositoryCache(AuthRepository repo, int maxSize, long cacheTime,
+			long negativeCacheTime) {
+		this.repo = repo;
+		positive = Collections.synchronizedMap(new SimpleCache<BareJID, Verifier>(maxSize,
+				cacheTime));
+		negative = Collections.synchronizedMap(new SimpleCache<BareJID, Verifier>(maxSize,
+				negativeCacheTime));
+		random.nextBytes(secret);
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	@Override
+	public void addUser(BareJID user, String password)
+			throws UserExistsException, TigaseDBException {
+		invalidate(user);
+		repo.addUser(user, password);
+	}
+
+	@Override
+	@Deprecated
+	public boolean digestAuth(BareJID user, String digest, String id, String alg)
+			throws UserNotFoundException, TigaseDBException, AuthorizationException {
+		return repo.digestAuth(user, digest, id, alg);
+	}
+
+	/**
+	 * Removes all cached entries for the user.
+	 *
+	 * @param user
+	 */
+	public void invalidate(BareJID user) {
+		generation.incrementAndGet();
+		positive.remove(user);
+		negative.remove(user);
+	}
+
+	@Override
+	public void initRepository(String resource_uri, Map<String, String> params)
+			throws DBInitException {}
+
+	@Override
+	public void logout(BareJID user) throws UserNotFoundException, TigaseDBException {
+		repo.logout(user);
+	}
+
+	@Override
+	public boolean otherAuth(final Map<String, Object> authProps)
+			throws UserNotFoundException, TigaseDBException, AuthorizationException {
+		String proto = (String) authProps.get(PROTOCOL_KEY);
+		Callable<Boolean> call = new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return repo.otherAuth(authProps);
+			}
+		};
+
+		if (PROTOCOL_VAL_SASL.equals(proto) && "PLAIN".equals(authProps.get(MACHANISM_KEY))) {
+			String data = (String) authProps.get(DATA_KEY);
+			String[] plain = (data != null) ? parseSaslPlain(Base64.decode(data)) : null;
+
+			if (plain != null) {
+				try {
+					BareJID user = (BareJID.parseJID(plain[0])[0] == null)
+						? BareJID.bareJIDInstance(plain[0], (String) authProps.get(REALM_KEY))
+						: BareJID.bareJIDInstance(plain[0]);
+
+					if (authenticate(user, plain[1], call)) {
+						authProps.put(USER_ID_KEY, user);
+						authProps.put(RESULT_KEY, null);
+
+						return true;
+					}
+
+					return false;
+				} catch (TigaseStringprepException ex) {
+					throw new AuthorizationException("Stringprep failed for: " + plain[0], ex);
+				}
+			}
+		}
+
+		if (PROTOCOL_VAL_NONSASL.equals(proto) && (authProps.get(PASSWORD_KEY) != null)) {
+			return authenticate((BareJID) authProps.get(USER_ID_KEY),
+					(String) authProps.get(PASSWORD_KEY), call);
+		}
+
+		return repo.otherAuth(authProps);
+	}
+
+	@Override
+	@Deprecated
+	public boolean plainAuth(final BareJID user, final String password)
+			throws UserNotFoundException, TigaseDBException, AuthorizationException {
+		return authenticate(user, password, new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return repo.plainAuth(user, password);
+			}
+		});
+	}
+
+	@Override
+	public void queryAuth(Map<String, Object> authProps) {
+		repo.queryAuth(authProps);
+	}
+
+	@Override
+	public void removeUser(BareJID user) throws UserNotFoundException, TigaseDBException {
+		invalidate(user);
+		repo.removeUser(user);
+	}
+
+	@Override
+	public void updatePassword(BareJID user, String password)
+			throws UserNotFoundException, TigaseDBException {
+		invalidate(user);
+		repo.updatePassword(user, password);
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public long getNegativeHits() {
+		return negativeHits.get();
+	}
+
+	/**
+	 * Returns the backing repository.
+	 *
+	 * @return
+	 */
+	public AuthRepository getRepository() {
+		return repo;
+	}
+
+	@Override
+	public String getResourceUri() {
+		return repo.getResourceUri();
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		long hitsCnt = hits.get() + negativeHits.get();
+		long total = hitsCnt + misses.get();
+
+		list.add(compName, "Auth cache hits", hits.get(), Level.FINE);
+		list.add(compName, "Auth cache negative hits", negativeHits.get(), Level.FINE);
+		list.add(compName, "Auth cache misses", misses.get(), Level.FINE);
+		list.add(compName, "Auth cache coalesced", coalesced.get(), Level.FINE);
+		list.add(compName, "Auth cache hit rate [%]", (total == 0) ? 0f : hitsCnt * 100f / total,
+				Level.INFO);
+	}
+
+	@Override
+	public long getUsersCount() {
+		return repo.getUsersCount();
+	}
+
+	@Override
+	public long getUsersCount(String domain) {
+		return repo.getUsersCount(domain);
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	private boolean authenticate(BareJID user, String password, Callable<Boolean> call)
+			throws UserNotFoundException, TigaseDBException, AuthorizationException {
+		if ((user == null) || (password == null)) {
+			return execute(call);
+		}
+
+		Verifier verifier = positive.get(user);
+
+		if ((verifier != null) && verifier.matches(password)) {
+			hits.incrementAndGet();
+
+			return true;
+		}
+
+		verifier = negative.get(user);
+
+		if ((verifier != null)
+				&& ((verifier.failure == Failure.NOT_FOUND) || verifier.matches(password))) {
+			negativeHits.incrementAndGet();
+
+			switch (verifier.failure) {
+				case NOT_FOUND :
+					throw new UserNotFoundException("User does not exist: " + user);
+
+				case NOT_AUTHORIZED :
+					throw new AuthorizationException("Authentication failed.");
+
+				default :
+					return false;
+			}
+		}
+
+		misses.incrementAndGet();
+
+		long gen = generation.get();
+		String key = user.toString() + "/" + Base64.encode(hash(secret, password));
+		FutureTask<Boolean> task = new FutureTask<Boolean>(call);
+		FutureTask<Boolean> running = inflight.putIfAbsent(key, task);
+
+		if (running == null) {
+			try {
+				task.run();
+			} finally {
+				inflight.remove(key, task);
+			}
+
+			running = task;
+		} else {
+			coalesced.incrementAndGet();
+		}
+
+		boolean result = false;
+
+		try {
+			result = running.get();
+		} catch (InterruptedException e) {
+			throw new TigaseDBException("Interrupted while waiting for authentication.", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof UserNotFoundException) {
+				store(task == running, gen, negative, user, password, Failure.NOT_FOUND);
+
+				throw (UserNotFoundException) cause;
+			}
+
+			if (cause instanceof AuthorizationException) {
+				store(task == running, gen, negative, user, password, Failure.NOT_AUTHORIZED);
+
+				throw (AuthorizationException) cause;
+			}
+
+			if (cause instanceof TigaseDBException) {
+				throw (TigaseDBException) cause;
+			}
+
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+
+			throw new TigaseDBException("Authentication problem.", cause);
+		}
+
+		if (result) {
+			negative.remove(user);
+			store(task == running, gen, positive, user, password, null);
+		} else {
+			store(task == running, gen, negative, user, password, Failure.FAILED);
+		}
+
+		return result;
+	}
+
+	private boolean execute(Callable<Boolean> call)
+			throws UserNotFoundException, TigaseDBException, AuthorizationException {
+		try {
+			return call.call();
+		} catch (UserNotFoundException e) {
+			throw e;
+		} catch (TigaseDBException e) {
+			throw e;
+		} catch (AuthorizationException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new TigaseDBException("Authentication problem.", e);
+		}
+	}
+
+	private static byte[] hash(byte[] salt, String password) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+			md.update(salt);
+
+			return md.digest(password.getBytes(UTF8));
+		} catch (NoSuchAlgorithmException e) {
+
+			// SHA-256 is required to be supported by every JVM
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String[] parseSaslPlain(byte[] data) {
+
+		// [authzid] NUL authcid NUL passwd
+		int first = -1;
+		int second = -1;
+
+		for (int i = 0; i < data.length; i++) {
+			if (data[i] == 0) {
+				if (first < 0) {
+					first = i;
+				} else {
+					second = i;
+
+					break;
+				}
+			}
+		}
+
+		if (second < 0) {
+			return null;
+		}
+
+		return new String[] { new String(data, first + 1, second - first - 1, UTF8),
+				new String(data, second + 1, data.length - second - 1, UTF8) };
+	}
+
+	private void store(boolean owner, long gen, Map<BareJID, Verifier> cache, BareJID user,
+			String password, Failure failure) {
+
+		// Only the caller which really asked the repository stores the result,
+		// and only if the user's data has not been changed in the meantime.
+		if (owner && (gen == generation.get())) {
+			byte[] salt = new byte[SALT_SIZE];
+
+			random.nextBytes(salt);
+			cache.put(user, new Verifier(salt, hash(salt, password), failure));
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Cached authentication result for {0}: {1}",
+						new Object[] { user, (failure == null) ? "success" : failure });
+			}
+		}
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	private static class Verifier {
+		private Failure failure = null;
+		private byte[] hash = null;
+		private byte[] salt = null;
+
+		//~--- constructors -------------------------------------------------------
+
+		private Verifier(byte[] salt, byte[] hash, Failure failure) {
+			this.salt = salt;
+			this.hash = hash;
+			this.failure = failure;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		private boolean matches(String password) {
+			return MessageDigest.isEqual(hash, hash(salt, password));
+		}
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
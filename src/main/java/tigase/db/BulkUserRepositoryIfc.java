@@ -0,0 +1,110 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.db;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.xmpp.BareJID;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.Map;
+
+//~--- interfaces -------------------------------------------------------------
+
+/**
+ * Implemented by user repositories which support provisioning and export of
+ * large numbers of accounts. Users are read in pages following a cursor, so
+ * the whole user list never has to be kept in memory and an interrupted export
+ * can continue from the last cursor. Passwords are read and written as they
+ * are stored, so accounts keep their credentials whatever the password
+ * encoding is. All data of a user is read with
+ * <code>getAllData(user, null)</code> and written back with
+ * <code>setDataBulk()</code>.
+ *
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public interface BulkUserRepositoryIfc extends UserDataPrefetchIfc {
+
+	/**
+	 * Adds user accounts in a single transaction. Accounts which already exist
+	 * are skipped, so an interrupted import can be safely repeated.
+	 *
+	 *
+	 * @param users maps IDs of the accounts to add to their passwords, as
+	 * returned by <code>getUsers()</code>, or <code>null</code> for accounts
+	 * without a password.
+	 *
+	 * @return the number of accounts added.
+	 *
+	 * @throws TigaseDBException
+	 */
+	int addUsers(Map<BareJID, String> users) throws TigaseDBException;
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Loads the next page of user IDs with their passwords. Users are returned in
+	 * a stable order, so passing the returned cursor to the next call continues
+	 * where the previous page ended.
+	 *
+	 *
+	 * @param cursor is the value returned by the previous call, 0 for the first
+	 * page.
+	 * @param limit is the maximum number of users loaded.
+	 * @param users is the map the loaded user IDs are added to, in the page
+	 * order, with the stored passwords or <code>null</code> if the password is
+	 * not known.
+	 *
+	 * @return the cursor of the next page or -1 if there are no more users.
+	 *
+	 * @throws TigaseDBException
+	 */
+	long getUsers(long cursor, int limit, Map<BareJID, String> users)
+			throws TigaseDBException;
+
+	//~--- set methods ----------------------------------------------------------
+
+	/**
+	 * Stores data of many nodes of the user account at once, replacing values
+	 * stored with the given keys. Other keys are not changed. Node paths are
+	 * normalized in the same way as for <code>getAllData()</code>.
+	 *
+	 *
+	 * @param user is the user ID.
+	 * @param data is a map of node paths to maps of keys to the values to store.
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException if the user account does not exist.
+	 */
+	void setDataBulk(BareJID user, Map<String, Map<String, String[]>> data)
+			throws UserNotFoundException, TigaseDBException;
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
@@ -0,0 +1,64 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.db;
+
+//~--- interfaces -------------------------------------------------------------
+
+/**
+ * Receives the result of an operation executed by <code>AsyncRepository</code>.
+ * Exactly one of the methods is called, on a repository thread, so the
+ * implementation must not block and should hand the result over to the thread
+ * which continues processing.
+ *
+ *
+ * @param <T> is the type of the operation result.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public interface RepositoryCallback<T> {
+
+	/**
+	 * Called when the operation has completed successfully.
+	 *
+	 *
+	 * @param result is the operation result, <code>null</code> for operations
+	 * without a result.
+	 */
+	void done(T result);
+
+	/**
+	 * Called when the operation has thrown an exception or could not be executed
+	 * because the repository queue is full.
+	 *
+	 *
+	 * @param e
+	 */
+	void failed(Exception e);
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
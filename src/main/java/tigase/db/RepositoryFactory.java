@@ -86,6 +86,28 @@ public abstract class RepositoryFactory {
 	/** Field description */
 	public static final int AUTH_REPO_POOL_SIZE_PROP_VAL = 10;
 
+	/** Field description */
+	public static final String AUTH_REPO_CACHE_PROP_KEY = "auth-repo-cache";
+
+	/** Field description */
+	public static final String AUTH_REPO_CACHE_SIZE_PROP_KEY = "auth-repo-cache-size";
+
+	/** Field description */
+	public static final int AUTH_REPO_CACHE_SIZE_PROP_VAL = 10000;
+
+	/** Field description */
+	public static final String AUTH_REPO_CACHE_TIME_PROP_KEY = "auth-repo-cache-time";
+
+	/** Field description */
+	public static final long AUTH_REPO_CACHE_TIME_PROP_VAL = 15 * 60 * 1000;
+
+	/** Field description */
+	public static final String AUTH_REPO_NEGATIVE_CACHE_TIME_PROP_KEY =
+		"auth-repo-negative-cache-time";
+
+	/** Field description */
+	public static final long AUTH_REPO_NEGATIVE_CACHE_TIME_PROP_VAL = 10 * 1000;
+
 	/** Field description */
 	public static final String USER_REPO_CLASS_PROP_KEY = "user-repo-class";
 
@@ -167,6 +189,13 @@ public abstract class RepositoryFactory {
 				repo.initRepository(resource, params);
 			}
 
+			if (Boolean.getBoolean(AUTH_REPO_CACHE_PROP_KEY)) {
+				repo = new AuthRepositoryCache(repo, Integer.getInteger(AUTH_REPO_CACHE_SIZE_PROP_KEY,
+						AUTH_REPO_CACHE_SIZE_PROP_VAL), Long.getLong(AUTH_REPO_CACHE_TIME_PROP_KEY,
+							AUTH_REPO_CACHE_TIME_PROP_VAL), Long.getLong(AUTH_REPO_NEGATIVE_CACHE_TIME_PROP_KEY,
+								AUTH_REPO_NEGATIVE_CACHE_TIME_PROP_VAL));
+			}
+
 			auth_repos.put(cls + resource, repo);
 		}
 
@@ -246,6 +275,10 @@ public abstract class RepositoryFactory {
 			result = DERBY_REPO_CLASS_PROP_VAL;
 		}
 
+		if (repo_name.equals("log")) {
+			result = LOG_REPO_CLASS_PROP_VAL;
+		}
+
 		if (repo_name.equals("tigase-custom-auth") || repo_name.equals("tigase-custom")
 				|| repo_name.equals("custom-auth")) {
 			result = TIGASE_CUSTOM_AUTH_REPO_CLASS_PROP_VAL;
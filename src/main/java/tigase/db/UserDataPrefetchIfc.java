@@ -0,0 +1,85 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.db;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.xmpp.BareJID;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.Map;
+
+//~--- interfaces -------------------------------------------------------------
+
+/**
+ * Implemented by user repositories which can load data stored in many nodes
+ * of a user account at once, so a new user session can get the data the
+ * plugins need at login in one database round-trip.
+ *
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public interface UserDataPrefetchIfc {
+
+	/**
+	 * Loads all data stored in the given nodes of the user account. Node paths
+	 * are normalized: they have neither leading nor trailing slashes, the root
+	 * node is the empty string. The root node is loaded without its subnodes,
+	 * any other node is loaded with all of its subnodes.
+	 *
+	 *
+	 * @param user is the user ID.
+	 * @param subnodes are node paths to load, the root node is given as an empty
+	 * string. <code>null</code> loads all nodes of the user.
+	 *
+	 * @return a map of normalized node paths to maps of keys to the values
+	 * stored with the key, nodes without data are not included. <code>null</code>
+	 * is returned if the repository can not load the data in bulk.
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException if the user account does not exist.
+	 */
+	Map<String, Map<String, String[]>> getAllData(BareJID user, String[] subnodes)
+			throws UserNotFoundException, TigaseDBException;
+
+	/**
+	 * Checks whether data of the user can be loaded in bulk. Repositories
+	 * delegating to other repositories return <code>false</code> if the
+	 * repository handling the user does not support it, so
+	 * <code>getAllData()</code> would return <code>null</code>.
+	 *
+	 *
+	 * @param user is the user ID.
+	 *
+	 * @return
+	 */
+	boolean isPrefetchSupported(BareJID user);
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
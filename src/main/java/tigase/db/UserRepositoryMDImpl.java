@@ -43,7 +43,7 @@ import java.util.logging.Logger;
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
  * @version $Rev$
  */
-public class UserRepositoryMDImpl implements UserRepository {
+public class UserRepositoryMDImpl implements UserRepository, UserDataPrefetchIfc {
 	private static final Logger log = Logger.getLogger(UserRepositoryMDImpl.class.getName());
 
 	//~--- fields ---------------------------------------------------------------
@@ -202,6 +202,36 @@ public class UserRepositoryMDImpl implements UserRepository {
 		return null;
 	}
 
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnodes
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public Map<String, Map<String, String[]>> getAllData(BareJID user, String[] subnodes)
+			throws UserNotFoundException, TigaseDBException {
+		UserRepository repo = getRepo(user.getDomain());
+
+		if (repo instanceof UserDataPrefetchIfc) {
+			return ((UserDataPrefetchIfc) repo).getAllData(user, subnodes);
+		}
+
+		if (repo == null) {
+			log.log(Level.WARNING,
+					"Couldn't obtain user repository for domain: " + user.getDomain()
+						+ ", not even default one!");
+		}
+
+		return null;
+	}
+
 	/**
 	 * Method description
 	 *
@@ -451,6 +481,22 @@ public class UserRepositoryMDImpl implements UserRepository {
 		return -1;
 	}
 
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 *
+	 * @return
+	 */
+	@Override
+	public boolean isPrefetchSupported(BareJID user) {
+		UserRepository repo = getRepo(user.getDomain());
+
+		return (repo instanceof UserDataPrefetchIfc)
+				&& ((UserDataPrefetchIfc) repo).isPrefetchSupported(user);
+	}
+
 	//~--- methods --------------------------------------------------------------
 
 	/**
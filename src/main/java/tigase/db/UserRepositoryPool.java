@@ -46,7 +46,7 @@ import java.util.logging.Logger;
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
  * @version $Rev$
  */
-public class UserRepositoryPool implements UserRepository {
+public class UserRepositoryPool implements UserRepository, BulkUserRepositoryIfc {
 	private static final Logger log = Logger.getLogger(UserRepositoryPool.class.getName());
 
 	//~--- fields ---------------------------------------------------------------
@@ -119,6 +119,47 @@ public class UserRepositoryPool implements UserRepository {
 		}
 	}
 
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param users
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 */
+	@Override
+	public int addUsers(Map<BareJID, String> users) throws TigaseDBException {
+		UserRepository repo = takeRepo();
+		int added = 0;
+
+		if (repo != null) {
+			try {
+				if (repo instanceof BulkUserRepositoryIfc) {
+					return ((BulkUserRepositoryIfc) repo).addUsers(users);
+				}
+
+				// Stored passwords can not be set through the UserRepository API
+				for (BareJID user : users.keySet()) {
+					try {
+						repo.addUser(user);
+						++added;
+					} catch (UserExistsException e) {
+
+						// Existing accounts are skipped
+					}
+				}
+			} finally {
+				addRepo(repo);
+			}
+		} else {
+			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
+		}
+
+		return added;
+	}
+
 	//~--- get methods ----------------------------------------------------------
 
 	/**
@@ -232,6 +273,38 @@ public class UserRepositoryPool implements UserRepository {
 		return null;
 	}
 
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnodes
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public Map<String, Map<String, String[]>> getAllData(BareJID user, String[] subnodes)
+			throws UserNotFoundException, TigaseDBException {
+		UserRepository repo = takeRepo();
+
+		if (repo != null) {
+			try {
+				if (repo instanceof UserDataPrefetchIfc) {
+					return ((UserDataPrefetchIfc) repo).getAllData(user, subnodes);
+				}
+			} finally {
+				addRepo(repo);
+			}
+		} else {
+			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
+		}
+
+		return null;
+	}
+
 	/**
 	 * Method description
 	 *
@@ -442,6 +515,53 @@ public class UserRepositoryPool implements UserRepository {
 		return null;
 	}
 
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param cursor
+	 * @param limit
+	 * @param users
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 */
+	@Override
+	public long getUsers(long cursor, int limit, Map<BareJID, String> users)
+			throws TigaseDBException {
+		UserRepository repo = takeRepo();
+
+		if (repo != null) {
+			try {
+				if (repo instanceof BulkUserRepositoryIfc) {
+					return ((BulkUserRepositoryIfc) repo).getUsers(cursor, limit, users);
+				}
+
+				// Without cursor support the cursor is an index in the full user list
+				List<BareJID> all = repo.getUsers();
+
+				if ((all == null) || (cursor >= all.size())) {
+					return -1;
+				}
+
+				int end = (int) Math.min(all.size(), cursor + limit);
+
+				for (BareJID user : all.subList((int) cursor, end)) {
+					users.put(user, null);
+				}
+
+				return (end < all.size()) ? end : -1;
+			} finally {
+				addRepo(repo);
+			}
+		} else {
+			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
+		}
+
+		return -1;
+	}
+
 	/**
 	 * Method description
 	 *
@@ -490,6 +610,32 @@ public class UserRepositoryPool implements UserRepository {
 		return 0;
 	}
 
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 *
+	 * @return
+	 */
+	@Override
+	public boolean isPrefetchSupported(BareJID user) {
+		UserRepository repo = takeRepo();
+
+		if (repo != null) {
+			try {
+				return (repo instanceof UserDataPrefetchIfc)
+						&& ((UserDataPrefetchIfc) repo).isPrefetchSupported(user);
+			} finally {
+				addRepo(repo);
+			}
+		} else {
+			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
+		}
+
+		return false;
+	}
+
 	//~--- methods --------------------------------------------------------------
 
 	/**
@@ -710,6 +856,52 @@ public class UserRepositoryPool implements UserRepository {
 		}
 	}
 
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param data
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public void setDataBulk(BareJID user, Map<String, Map<String, String[]>> data)
+			throws UserNotFoundException, TigaseDBException {
+		for (Map.Entry<String, Map<String, String[]>> node : data.entrySet()) {
+			for (String key : node.getValue().keySet()) {
+				cache.remove(user + "/" + node.getKey() + "/" + key);
+
+				if (node.getKey().isEmpty()) {
+					cache.remove(user + "/" + key);
+				}
+			}
+		}
+
+		UserRepository repo = takeRepo();
+
+		if (repo != null) {
+			try {
+				if (repo instanceof BulkUserRepositoryIfc) {
+					((BulkUserRepositoryIfc) repo).setDataBulk(user, data);
+				} else {
+					for (Map.Entry<String, Map<String, String[]>> node : data.entrySet()) {
+						String subnode = node.getKey().isEmpty() ? null : node.getKey();
+
+						for (Map.Entry<String, String[]> pair : node.getValue().entrySet()) {
+							repo.setDataList(user, subnode, pair.getKey(), pair.getValue());
+						}
+					}
+				}
+			} finally {
+				addRepo(repo);
+			}
+		} else {
+			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
+		}
+	}
+
 	//~--- methods --------------------------------------------------------------
 
 	/**
@@ -27,6 +27,7 @@ package tigase.db.jdbc;
 import tigase.db.AuthRepository;
 import tigase.db.AuthRepositoryImpl;
 import tigase.db.AuthorizationException;
+import tigase.db.BulkUserRepositoryIfc;
 import tigase.db.DBInitException;
 import tigase.db.DataRepository;
 import tigase.db.RepositoryFactory;
@@ -50,7 +51,9 @@ import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
@@ -71,7 +74,8 @@ import java.util.logging.Logger;
  * @author <a href="mailto:piras@tiscali.com">Daniele</a>
  * @version $Rev$
  */
-public class JDBCRepository implements AuthRepository, UserRepository {
+public class JDBCRepository implements AuthRepository, UserRepository,
+		BulkUserRepositoryIfc {
 	private static final Logger log = Logger.getLogger(JDBCRepository.class.getName());
 
 	/** Field description */
@@ -95,6 +99,7 @@ public class JDBCRepository implements AuthRepository, UserRepository {
 	private static final String PGSQL_GET_USERS_QUERY = "select TigAllUsers()";
 	private static final String ADD_USER_PLAIN_PW_QUERY =
 			"{ call TigAddUserPlainPw(?, ?) }";
+	private static final String ADD_USER_QUERY = "{ call TigAddUser(?, ?) }";
 	private static final String REMOVE_USER_QUERY = "{ call TigRemoveUser(?) }";
 	private static final String ADD_NODE_QUERY = "{ call TigAddNode(?, ?, ?) }";
 	private static final String COUNT_USERS_FOR_DOMAIN_QUERY =
@@ -110,6 +115,16 @@ public class JDBCRepository implements AuthRepository, UserRepository {
 	private static final String REMOVE_KEY_DATA_QUERY = "delete from " + DEF_PAIRS_TBL
 			+ " where (nid = ?) AND (pkey = ?)";
         private static final String UPDATE_PAIRS_QUERY = "{ call TigUpdatePairs(?, ?, ?, ?) }";
+	private static final String ALL_DATA_FOR_USER_QUERY =
+			"select n.nid, n.parent_nid, n.node, p.pkey, p.pval from " + DEF_NODES_TBL
+					+ " n left outer join " + DEF_PAIRS_TBL + " p on (p.nid = n.nid)"
+					+ " where (n.uid = ?)";
+	private static final String NODES_FOR_USER_QUERY = "select nid, parent_nid, node from "
+			+ DEF_NODES_TBL + " where (uid = ?)";
+	private static final String PAIRS_FOR_NODES_QUERY = "select nid, pkey, pval from "
+			+ DEF_PAIRS_TBL + " where nid in (";
+	private static final String USERS_PAGE_QUERY = "select uid, user_id, user_pw from "
+			+ DEF_USERS_TBL + " where (uid > ?) order by uid";
 
 	public static final String CURRENT_DB_SCHEMA_VER = "5.1";
 	public static final String SCHEMA_UPGRADE_LINK = "http://www.tigase.org/content/tigase-51-database-schema-upgrade";
@@ -255,6 +270,56 @@ public class JDBCRepository implements AuthRepository, UserRepository {
 		auth.addUser(user, password);
 	}
 
+	/**
+	 * Adds all accounts in one transaction on a single connection, accounts
+	 * which already exist are skipped. Passwords are stored as they are, without
+	 * the password encoding.
+	 * 
+	 * @param users
+	 * 
+	 * @return
+	 * 
+	 * @throws TigaseDBException
+	 */
+	@Override
+	public int addUsers(Map<BareJID, String> users) throws TigaseDBException {
+		if (users.isEmpty()) {
+			return 0;
+		}
+
+		List<BareJID> added = new ArrayList<BareJID>(users.size());
+		DataRepository repo = data_repo.takeRepoHandle(users.keySet().iterator().next());
+
+		synchronized (repo) {
+			try {
+				repo.startTransaction();
+
+				for (Map.Entry<BareJID, String> user : users.entrySet()) {
+					if (getUserUID(repo, user.getKey()) <= 0) {
+						addUserRepo(repo, user.getKey(), user.getValue());
+						added.add(user.getKey());
+					}
+				}
+
+				repo.commit();
+			} catch (SQLException e) {
+				rollback(repo);
+
+				// UIDs of the accounts which have not been added are not valid
+				for (BareJID user_id : added) {
+					cache.remove(user_id.toString());
+				}
+
+				throw new TigaseDBException("Problem adding users to repository", e);
+			} finally {
+				endTransaction(repo);
+				data_repo.releaseRepoHandle(repo);
+			}
+		}
+
+		return added.size();
+	}
+
 	/**
 	 * Describe <code>digestAuth</code> method here.
 	 * 
@@ -390,6 +455,125 @@ public class JDBCRepository implements AuthRepository, UserRepository {
 		return getData(user_id, null, key, null);
 	}
 
+	/**
+	 * Loads pairs of the requested nodes of the user account. All data is loaded
+	 * in a single query, otherwise the node tree of the user is loaded first
+	 * and then pairs of the matching nodes only.
+	 * 
+	 * @param user_id
+	 * @param subnodes
+	 * 
+	 * @return
+	 * 
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public Map<String, Map<String, String[]>> getAllData(BareJID user_id,
+			final String[] subnodes) throws UserNotFoundException, TigaseDBException {
+		ResultSet rs = null;
+		Statement stmt = null;
+
+		try {
+			Long cache_res = (Long) cache.get(user_id.toString());
+			long uid = (cache_res != null) ? cache_res.longValue() : getUserUID(null, user_id,
+					autoCreateUser);
+
+			cache.put(user_id.toString(), Long.valueOf(uid));
+
+			Map<Long, Long> parents = new HashMap<Long, Long>();
+			Map<Long, String> nodes = new HashMap<Long, String>();
+			Map<Long, Map<String, List<String>>> pairs =
+					new LinkedHashMap<Long, Map<String, List<String>>>();
+
+			if (subnodes == null) {
+				PreparedStatement all_data_st =
+						data_repo.getPreparedStatement(user_id, ALL_DATA_FOR_USER_QUERY);
+
+				synchronized (all_data_st) {
+					all_data_st.setLong(1, uid);
+					rs = all_data_st.executeQuery();
+
+					while (rs.next()) {
+						Long nid = readNode(rs, parents, nodes);
+
+						readPair(nid, rs.getString(4), rs.getString(5), pairs);
+					}
+				}
+			} else {
+				PreparedStatement user_nodes_st =
+						data_repo.getPreparedStatement(user_id, NODES_FOR_USER_QUERY);
+
+				synchronized (user_nodes_st) {
+					user_nodes_st.setLong(1, uid);
+					rs = user_nodes_st.executeQuery();
+
+					while (rs.next()) {
+						readNode(rs, parents, nodes);
+					}
+				}
+
+				data_repo.release(null, rs);
+				rs = null;
+
+				StringBuilder query = null;
+
+				for (Long nid : nodes.keySet()) {
+					String node_path = buildNodePath(nid, parents, nodes);
+
+					if ((node_path != null) && isNodeInSubnodes(node_path, subnodes)) {
+						query = (query == null) ? new StringBuilder(PAIRS_FOR_NODES_QUERY)
+								: query.append(", ");
+						query.append(nid);
+					}
+				}
+
+				if (query != null) {
+					query.append(')');
+					stmt = data_repo.createStatement(user_id);
+					rs = stmt.executeQuery(query.toString());
+
+					while (rs.next()) {
+						readPair(Long.valueOf(rs.getLong(1)), rs.getString(2), rs.getString(3), pairs);
+					}
+				}
+			}
+
+			Map<String, Map<String, String[]>> result =
+					new HashMap<String, Map<String, String[]>>();
+
+			for (Map.Entry<Long, Map<String, List<String>>> entry : pairs.entrySet()) {
+				String node_path = buildNodePath(entry.getKey(), parents, nodes);
+
+				if ((node_path == null) || !isNodeInSubnodes(node_path, subnodes)) {
+					continue;
+				}
+
+				Map<String, String[]> node_data =
+						new HashMap<String, String[]>(entry.getValue().size());
+
+				for (Map.Entry<String, List<String>> pair : entry.getValue().entrySet()) {
+					List<String> values = pair.getValue();
+
+					node_data.put(pair.getKey(), values.toArray(new String[values.size()]));
+				}
+
+				result.put(node_path, node_data);
+			}
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Loaded data for user: {0}, nodes: {1}", new Object[] {
+						user_id, result.keySet() });
+			}
+
+			return result;
+		} catch (SQLException e) {
+			throw new TigaseDBException("Error getting all data for: " + user_id, e);
+		} finally {
+			data_repo.release(stmt, rs);
+		}
+	}
+
 	/**
 	 * Describe <code>getDataList</code> method here.
 	 * 
@@ -689,6 +873,49 @@ public class JDBCRepository implements AuthRepository, UserRepository {
 		return users;
 	}
 
+	/**
+	 * Loads a page of users ordered by their database UID, which is the cursor,
+	 * with passwords as they are stored in the <code>user_pw</code> column.
+	 * 
+	 * @param cursor
+	 * @param limit
+	 * @param users
+	 * 
+	 * @return
+	 * 
+	 * @throws TigaseDBException
+	 */
+	@Override
+	public long getUsers(long cursor, int limit, Map<BareJID, String> users)
+			throws TigaseDBException {
+		ResultSet rs = null;
+		long last_uid = -1;
+		int count = 0;
+
+		try {
+			PreparedStatement users_page_st =
+					data_repo.getPreparedStatement(null, USERS_PAGE_QUERY);
+
+			synchronized (users_page_st) {
+				users_page_st.setMaxRows(limit);
+				users_page_st.setLong(1, cursor);
+				rs = users_page_st.executeQuery();
+
+				while (rs.next()) {
+					last_uid = rs.getLong(1);
+					users.put(BareJID.bareJIDInstanceNS(rs.getString(2)), rs.getString(3));
+					++count;
+				}
+			}
+		} catch (SQLException e) {
+			throw new TigaseDBException("Problem loading user list from repository", e);
+		} finally {
+			data_repo.release(null, rs);
+		}
+
+		return (count < limit) ? -1 : last_uid;
+	}
+
 	/**
 	 * <code>getUsersCount</code> method is thread safe. It uses local variable
 	 * for storing <code>Statement</code>.
@@ -766,6 +993,19 @@ public class JDBCRepository implements AuthRepository, UserRepository {
 		}
 	}
 
+	/**
+	 * Method description
+	 * 
+	 * 
+	 * @param user
+	 * 
+	 * @return
+	 */
+	@Override
+	public boolean isPrefetchSupported(BareJID user) {
+		return true;
+	}
+
 	// ~--- methods --------------------------------------------------------------
 
 	/**
@@ -808,6 +1048,7 @@ public class JDBCRepository implements AuthRepository, UserRepository {
 			data_repo.initPreparedStatement(get_users_query, get_users_query);
                         
 			data_repo.initPreparedStatement(ADD_USER_PLAIN_PW_QUERY, ADD_USER_PLAIN_PW_QUERY);
+			data_repo.initPreparedStatement(ADD_USER_QUERY, ADD_USER_QUERY);
 			data_repo.initPreparedStatement(REMOVE_USER_QUERY, REMOVE_USER_QUERY);
 			data_repo.initPreparedStatement(ADD_NODE_QUERY, ADD_NODE_QUERY);
 			data_repo.initPreparedStatement(COUNT_USERS_FOR_DOMAIN_QUERY,
@@ -818,6 +1059,9 @@ public class JDBCRepository implements AuthRepository, UserRepository {
 			data_repo.initPreparedStatement(INSERT_KEY_VAL_QUERY, INSERT_KEY_VAL_QUERY);
 			data_repo.initPreparedStatement(REMOVE_KEY_DATA_QUERY, REMOVE_KEY_DATA_QUERY);
                         data_repo.initPreparedStatement(UPDATE_PAIRS_QUERY, UPDATE_PAIRS_QUERY);
+			data_repo.initPreparedStatement(ALL_DATA_FOR_USER_QUERY, ALL_DATA_FOR_USER_QUERY);
+			data_repo.initPreparedStatement(NODES_FOR_USER_QUERY, NODES_FOR_USER_QUERY);
+			data_repo.initPreparedStatement(USERS_PAGE_QUERY, USERS_PAGE_QUERY);
 			auth = new AuthRepositoryImpl(this);
 
 			// initRepo();
@@ -1209,6 +1453,71 @@ public class JDBCRepository implements AuthRepository, UserRepository {
 		// }
 	}
 
+	/**
+	 * Stores the data in one transaction on a single connection, the removal of
+	 * old values and insertion of the new ones are executed as JDBC batches.
+	 * 
+	 * @param user_id
+	 * @param data
+	 * 
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public void setDataBulk(BareJID user_id, Map<String, Map<String, String[]>> data)
+			throws UserNotFoundException, TigaseDBException {
+		DataRepository repo = data_repo.takeRepoHandle(user_id);
+
+		synchronized (repo) {
+			try {
+				long uid = getUserUID(repo, user_id, autoCreateUser);
+
+				repo.startTransaction();
+
+				PreparedStatement remove_key_data_st =
+						repo.getPreparedStatement(user_id, REMOVE_KEY_DATA_QUERY);
+				PreparedStatement insert_key_val_st =
+						repo.getPreparedStatement(user_id, INSERT_KEY_VAL_QUERY);
+
+				synchronized (remove_key_data_st) {
+					synchronized (insert_key_val_st) {
+						for (Map.Entry<String, Map<String, String[]>> node : data.entrySet()) {
+							long nid =
+									createNodePath(repo, user_id, node.getKey().isEmpty() ? null : node
+											.getKey());
+
+							for (Map.Entry<String, String[]> pair : node.getValue().entrySet()) {
+								remove_key_data_st.setLong(1, nid);
+								remove_key_data_st.setString(2, pair.getKey());
+								remove_key_data_st.addBatch();
+
+								for (String val : pair.getValue()) {
+									insert_key_val_st.setLong(1, nid);
+									insert_key_val_st.setLong(2, uid);
+									insert_key_val_st.setString(3, pair.getKey());
+									insert_key_val_st.setString(4, val);
+									insert_key_val_st.addBatch();
+								}
+							}
+						}
+
+						remove_key_data_st.executeBatch();
+						insert_key_val_st.executeBatch();
+					}
+				}
+
+				repo.commit();
+			} catch (SQLException e) {
+				rollback(repo);
+
+				throw new TigaseDBException("Problem storing data of user: " + user_id, e);
+			} finally {
+				endTransaction(repo);
+				data_repo.releaseRepoHandle(repo);
+			}
+		}
+	}
+
 	/**
 	 * Method description
 	 * 
@@ -1293,19 +1602,31 @@ public class JDBCRepository implements AuthRepository, UserRepository {
 	 *              if an error occurs
 	 */
 	private long addUserRepo(DataRepository repo, BareJID user_id) throws SQLException {
+		return addUserRepo(repo, user_id, null);
+	}
+
+	// The password, if given, is stored without encoding
+	private long addUserRepo(DataRepository repo, BareJID user_id, String password)
+			throws SQLException {
 		ResultSet rs = null;
 		long uid = -1;
 		PreparedStatement user_add_sp = null;
+		String query = (password == null) ? ADD_USER_PLAIN_PW_QUERY : ADD_USER_QUERY;
 		if (repo == null) {
-			user_add_sp = data_repo.getPreparedStatement(user_id, ADD_USER_PLAIN_PW_QUERY);
+			user_add_sp = data_repo.getPreparedStatement(user_id, query);
 		} else {
-			user_add_sp = repo.getPreparedStatement(user_id, ADD_USER_PLAIN_PW_QUERY);
+			user_add_sp = repo.getPreparedStatement(user_id, query);
 		}
 
 		synchronized (user_add_sp) {
 			try {
 				user_add_sp.setString(1, user_id.toString());
-				user_add_sp.setNull(2, Types.VARCHAR);
+
+				if (password == null) {
+					user_add_sp.setNull(2, Types.VARCHAR);
+				} else {
+					user_add_sp.setString(2, password);
+				}
 				rs = user_add_sp.executeQuery();
 
 				if (rs.next()) {
@@ -1329,6 +1650,76 @@ public class JDBCRepository implements AuthRepository, UserRepository {
 		return uid;
 	}
 
+	// Reads nid, parent_nid and node from the first three columns
+	private Long readNode(ResultSet rs, Map<Long, Long> parents, Map<Long, String> nodes)
+			throws SQLException {
+		Long nid = Long.valueOf(rs.getLong(1));
+		long parent_nid = rs.getLong(2);
+
+		if (rs.wasNull()) {
+			parent_nid = -1;
+		}
+
+		if ( !nodes.containsKey(nid)) {
+			nodes.put(nid, rs.getString(3));
+			parents.put(nid, Long.valueOf(parent_nid));
+		}
+
+		return nid;
+	}
+
+	private void readPair(Long nid, String key, String value,
+			Map<Long, Map<String, List<String>>> pairs) {
+		if (key == null) {
+			return;
+		}
+
+		Map<String, List<String>> node_pairs = pairs.get(nid);
+
+		if (node_pairs == null) {
+			node_pairs = new LinkedHashMap<String, List<String>>();
+			pairs.put(nid, node_pairs);
+		}
+
+		List<String> values = node_pairs.get(key);
+
+		if (values == null) {
+			values = new ArrayList<String>(1);
+			node_pairs.put(key, values);
+		}
+
+		values.add(value);
+	}
+
+	private String buildNodePath(Long nid, Map<Long, Long> parents, Map<Long, String> nodes) {
+		StringBuilder node_path = new StringBuilder();
+		Long current = nid;
+
+		// The depth check protects against broken parent links
+		for (int depth = 0; depth <= nodes.size(); depth++) {
+			Long parent_nid = parents.get(current);
+
+			if (parent_nid == null) {
+				return null;
+			}
+
+			if (parent_nid.longValue() < 0) {
+
+				// The root node is not a part of the path
+				return DEF_ROOT_NODE.equals(nodes.get(current)) ? node_path.toString() : null;
+			}
+
+			if (node_path.length() > 0) {
+				node_path.insert(0, '/');
+			}
+
+			node_path.insert(0, nodes.get(current));
+			current = parent_nid;
+		}
+
+		return null;
+	}
+
 	private String buildNodeQuery(long uid, String node_path) {
 		String query =
 				"select nid as nid1 from " + DEF_NODES_TBL + " where (uid = " + uid + ")"
@@ -1421,6 +1812,22 @@ public class JDBCRepository implements AuthRepository, UserRepository {
 		return nid;
 	}
 
+	private void endTransaction(DataRepository repo) {
+		try {
+			repo.endTransaction();
+		} catch (SQLException e) {
+			log.log(Level.WARNING, "Problem ending transaction: ", e);
+		}
+	}
+
+	private void rollback(DataRepository repo) {
+		try {
+			repo.rollback();
+		} catch (SQLException e) {
+			log.log(Level.WARNING, "Problem rolling-back transaction: ", e);
+		}
+	}
+
 	private void deleteSubnode(DataRepository repo, long nid) throws SQLException {
 		Statement stmt = null;
 		ResultSet rs = null;
@@ -1511,6 +1918,26 @@ public class JDBCRepository implements AuthRepository, UserRepository {
 		return result;
 	}
 
+	private boolean isNodeInSubnodes(String node_path, String[] subnodes) {
+		if (subnodes == null) {
+			return true;
+		}
+
+		for (String subnode : subnodes) {
+			if (subnode.isEmpty()) {
+				if (node_path.isEmpty()) {
+					return true;
+				}
+			} else if (node_path.startsWith(subnode)
+					&& ((node_path.length() == subnode.length())
+						|| (node_path.charAt(subnode.length()) == '/'))) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
 	private long getUserUID(DataRepository repo, BareJID user_id, boolean autoCreate)
 			throws SQLException, UserNotFoundException {
 		// OK
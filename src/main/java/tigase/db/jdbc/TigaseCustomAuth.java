@@ -53,6 +53,11 @@ import java.sql.SQLException;
 import java.sql.SQLIntegrityConstraintViolationException;
 import java.sql.Statement;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Level;
@@ -195,6 +200,41 @@ public class TigaseCustomAuth implements AuthRepository {
 	 */
 	public static final String DEF_UPDATEPASSWORD_KEY = "update-password-query";
 
+	/**
+	 * Retrieves passwords for many users with a single query. If defined, it is
+	 * used instead of both <code>get-password-query</code> and
+	 * <code>user-login-query</code>. Concurrent password lookups, for example
+	 * from the session manager authentication stage during a login storm, are
+	 * combined and executed as one query, so the database sees a few large
+	 * queries instead of thousands of small ones.
+	 * 
+	 * The query must contain <code>%s</code> which is replaced with
+	 * <code>get-passwords-batch</code> comma separated question marks, each of
+	 * them takes one user_id (JID). Unused arguments are filled with the first
+	 * user_id of the batch. The query must return a result set with user_id and
+	 * password for found users.
+	 * 
+	 * Example query:
+	 * 
+	 * <pre>
+	 * select user_id, user_pw from tig_users where user_id in (%s)
+	 * </pre>
+	 */
+	public static final String DEF_GETPASSWORDS_KEY = "get-passwords-query";
+
+	/**
+	 * Maximum number of users looked up by a single
+	 * <code>get-passwords-query</code>.
+	 */
+	public static final String DEF_GETPASSWORDS_BATCH_KEY = "get-passwords-batch";
+
+	/**
+	 * Maximum number of <code>get-passwords-query</code> queries running at the
+	 * same time. Lookups coming while all of them are busy are combined into the
+	 * next query.
+	 */
+	public static final String DEF_GETPASSWORDS_QUERIES_KEY = "get-passwords-queries";
+
 	/**
 	 * Performs user login. Normally used when there is a special SP used for this
 	 * purpose. This is an alternative way to a method requiring retrieving user
@@ -273,6 +313,12 @@ public class TigaseCustomAuth implements AuthRepository {
 	/** Field description */
 	public static final String DEF_GETPASSWORD_QUERY = "{ call TigGetPassword(?) }";
 
+	/** Field description */
+	public static final int DEF_GETPASSWORDS_BATCH = 20;
+
+	/** Field description */
+	public static final int DEF_GETPASSWORDS_QUERIES = 4;
+
 	/** Field description */
 	public static final String DEF_UPDATEPASSWORD_QUERY =
 			"{ call TigUpdatePasswordPlainPwRev(?, ?) }";
@@ -304,6 +350,14 @@ public class TigaseCustomAuth implements AuthRepository {
 	private DataRepository data_repo = null;
 	private String initdb_query = DEF_INITDB_QUERY;
 	private String getpassword_query = DEF_GETPASSWORD_QUERY;
+	private String getpasswords_query = null;
+	private int getpasswords_batch = DEF_GETPASSWORDS_BATCH;
+
+	// Password lookups waiting for the next get-passwords-query
+	private Map<BareJID, PasswordLookup> pendingLookups =
+			new LinkedHashMap<BareJID, PasswordLookup>();
+	private int getpasswords_queries = DEF_GETPASSWORDS_QUERIES;
+	private int runningLookups = 0;
 	private String deluser_query = DEF_DELUSER_QUERY;
 	private String adduser_query = DEF_ADDUSER_QUERY;
 	private String updatepassword_query = DEF_UPDATEPASSWORD_QUERY;
@@ -390,7 +444,7 @@ public class TigaseCustomAuth implements AuthRepository {
 	public boolean digestAuth(BareJID user, final String digest, final String id,
 			final String alg) throws UserNotFoundException, TigaseDBException,
 			AuthorizationException {
-		if (userlogin_active) {
+		if (userlogin_active && (getpasswords_query == null)) {
 			throw new AuthorizationException("Not supported.");
 		} else {
 			final String db_password = getPassword(user);
@@ -548,6 +602,25 @@ public class TigaseCustomAuth implements AuthRepository {
 				data_repo.initPreparedStatement(getpassword_query, getpassword_query);
 			}
 
+			getpasswords_batch =
+					Integer.parseInt(getParamWithDef(params, DEF_GETPASSWORDS_BATCH_KEY, ""
+							+ DEF_GETPASSWORDS_BATCH));
+			getpasswords_queries =
+					Math.max(1, Integer.parseInt(getParamWithDef(params,
+							DEF_GETPASSWORDS_QUERIES_KEY, "" + DEF_GETPASSWORDS_QUERIES)));
+			getpasswords_query = getParamWithDef(params, DEF_GETPASSWORDS_KEY, null);
+
+			if ((getpasswords_query != null)) {
+				StringBuilder marks = new StringBuilder(getpasswords_batch * 3);
+
+				for (int i = 0; i < getpasswords_batch; i++) {
+					marks.append((i == 0) ? "?" : ", ?");
+				}
+
+				getpasswords_query = getpasswords_query.replace("%s", marks);
+				data_repo.initPreparedStatement(getpasswords_query, getpasswords_query);
+			}
+
 			updatepassword_query =
 					getParamWithDef(params, DEF_UPDATEPASSWORD_KEY, DEF_UPDATEPASSWORD_QUERY);
 
@@ -699,7 +772,7 @@ public class TigaseCustomAuth implements AuthRepository {
 	@Deprecated
 	public boolean plainAuth(BareJID user, final String password)
 			throws UserNotFoundException, TigaseDBException, AuthorizationException {
-		if (userlogin_active) {
+		if (userlogin_active && (getpasswords_query == null)) {
 			return userLoginAuth(user, password);
 		} else {
 			String db_password = getPassword(user);
@@ -820,6 +893,10 @@ public class TigaseCustomAuth implements AuthRepository {
 
 	private String getPassword(BareJID user) throws TigaseDBException,
 			UserNotFoundException {
+		if (getpasswords_query != null) {
+			return getPasswordBatched(user);
+		}
+
 		if (getpassword_query == null) {
 			return null;
 		}
@@ -847,6 +924,113 @@ public class TigaseCustomAuth implements AuthRepository {
 		}
 	}
 
+	private String getPasswordBatched(BareJID user) throws TigaseDBException,
+			UserNotFoundException {
+		PasswordLookup lookup = null;
+		PasswordBatch batch = null;
+
+		synchronized (pendingLookups) {
+			lookup = pendingLookups.get(user);
+
+			if (lookup == null) {
+				lookup = new PasswordLookup(user);
+				pendingLookups.put(user, lookup);
+			}
+
+			// Up to getpasswords_queries queries run at the same time, lookups
+			// coming while all of them are busy are collected for the next query.
+			while ((lookup.batch == null) && (runningLookups >= getpasswords_queries)) {
+				try {
+					pendingLookups.wait();
+				} catch (InterruptedException e) {
+					throw new TigaseDBException("Interrupted while waiting for password.", e);
+				}
+			}
+
+			if (lookup.batch == null) {
+				++runningLookups;
+				batch = new PasswordBatch(getpasswords_batch);
+				pendingLookups.remove(user);
+				batch.add(lookup);
+
+				Iterator<PasswordLookup> it = pendingLookups.values().iterator();
+
+				while (it.hasNext() && (batch.lookups.size() < getpasswords_batch)) {
+					batch.add(it.next());
+					it.remove();
+				}
+
+				// Wake up threads whose lookups were taken to this batch
+				pendingLookups.notifyAll();
+			}
+		}
+
+		if (batch != null) {
+			Map<String, String> passwords = null;
+			TigaseDBException error = null;
+
+			try {
+				passwords = getPasswords(batch.lookups);
+			} catch (TigaseDBException e) {
+				error = e;
+			} finally {
+				synchronized (pendingLookups) {
+					--runningLookups;
+					pendingLookups.notifyAll();
+				}
+
+				batch.complete(passwords, error);
+			}
+		} else {
+			lookup.batch.await();
+		}
+
+		if (lookup.error != null) {
+			throw lookup.error;
+		}
+
+		if ( !lookup.found) {
+			throw new UserNotFoundException("User does not exist: " + user);
+		}
+
+		return lookup.password;
+	}
+
+	private Map<String, String> getPasswords(List<PasswordLookup> batch)
+			throws TigaseDBException {
+		Map<String, String> result = new HashMap<String, String>(batch.size());
+		ResultSet rs = null;
+
+		try {
+			PreparedStatement get_passwords =
+					data_repo.getPreparedStatement(batch.get(0).user, getpasswords_query);
+
+			synchronized (get_passwords) {
+				for (int i = 0; i < getpasswords_batch; i++) {
+					get_passwords.setString(i + 1, batch.get((i < batch.size()) ? i : 0).user
+							.toString());
+				}
+
+				rs = get_passwords.executeQuery();
+
+				while (rs.next()) {
+					result.put(rs.getString(1).toLowerCase(), rs.getString(2));
+				}
+			}
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Retrieved passwords for {0} of {1} users",
+						new Object[] { result.size(), batch.size() });
+			}
+
+			return result;
+		} catch (SQLException e) {
+			throw new TigaseDBException("Problem with retrieving user passwords.", e);
+		} finally {
+			data_repo.release(null, rs);
+		}
+	}
+
 	// ~--- methods --------------------------------------------------------------
 
 	private void initDb() throws SQLException {
@@ -1002,6 +1186,67 @@ public class TigaseCustomAuth implements AuthRepository {
 
 	// ~--- inner classes --------------------------------------------------------
 
+	private static class PasswordBatch {
+		private boolean done = false;
+		private List<PasswordLookup> lookups = null;
+
+		// ~--- constructors -------------------------------------------------------
+
+		private PasswordBatch(int size) {
+			lookups = new ArrayList<PasswordLookup>(size);
+		}
+
+		// ~--- methods ------------------------------------------------------------
+
+		private void add(PasswordLookup lookup) {
+			lookup.batch = this;
+			lookups.add(lookup);
+		}
+
+		private synchronized void await() throws TigaseDBException {
+			while ( !done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new TigaseDBException("Interrupted while waiting for password.", e);
+				}
+			}
+		}
+
+		private synchronized void complete(Map<String, String> passwords,
+				TigaseDBException error) {
+			for (PasswordLookup item : lookups) {
+				if (passwords != null) {
+					String key = item.user.toString().toLowerCase();
+
+					item.found = passwords.containsKey(key);
+					item.password = (item.found ? passwords.get(key) : null);
+				}
+
+				item.error = error;
+			}
+
+			done = true;
+			notifyAll();
+		}
+	}
+
+
+	private static class PasswordLookup {
+		private PasswordBatch batch = null;
+		private TigaseDBException error = null;
+		private boolean found = false;
+		private String password = null;
+		private BareJID user = null;
+
+		// ~--- constructors -------------------------------------------------------
+
+		private PasswordLookup(BareJID user) {
+			this.user = user;
+		}
+	}
+
+
 	private class SaslCallbackHandler implements CallbackHandler {
 		private Map<String, Object> options = null;
 
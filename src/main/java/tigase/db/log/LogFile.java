@@ -0,0 +1,412 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.db.log;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Append-only, memory-mapped record log used by <code>LogRepository</code>.
+ * The file is mapped in fixed size chunks and a record never crosses a chunk
+ * boundary, so every record can be read directly from its chunk mapping
+ * without copying the data through the file channel.
+ *
+ * Each record consists of an <code>int</code> payload length, an
+ * <code>int</code> CRC32 of the payload and the payload itself. The length is
+ * written last, so a record torn by a crash is detected by the CRC check during
+ * recovery and the log is truncated at that point. A zero length marks the end
+ * of the log and <code>PAD</code> length marks unused space at the end of a
+ * chunk.
+ *
+ * Appending is not thread safe, the caller must serialize all
+ * <code>append(...)</code> calls. Reading is thread safe and can be done
+ * concurrently with appending.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class LogFile {
+	private static final Logger log = Logger.getLogger(LogFile.class.getName());
+
+	/** Size of the record header: payload length and payload CRC32. */
+	public static final int HEADER_SIZE = 8;
+	private static final int FILE_HEADER_SIZE = 16;
+	private static final int MAGIC = 0x544c4f47;
+	private static final int PAD = -1;
+	private static final int VERSION = 1;
+
+	//~--- fields ---------------------------------------------------------------
+
+	private FileChannel channel = null;
+	private int chunkSize = 0;
+	private long end = 0;
+	private File file = null;
+	private RandomAccessFile raf = null;
+
+	// Replaced as a whole when a new chunk is mapped, readers always see a
+	// consistent array.
+	private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Opens the log file, creating it if it does not exist yet. The file is not
+	 * scanned, <code>recover(...)</code> must be called before anything is
+	 * appended to an existing log.
+	 *
+	 * @param file is the log file location.
+	 * @param chunkSize is the size of a single mapped region of a new file, an
+	 * existing file is always opened with the chunk size it has been created
+	 * with.
+	 *
+	 * @throws IOException
+	 */
+	public LogFile(File file, int chunkSize) throws IOException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+
+		long length = channel.size();
+
+		if (length >= FILE_HEADER_SIZE) {
+			raf.seek(0);
+
+			if ((raf.readInt() != MAGIC) || (raf.readInt() != VERSION)) {
+				close();
+
+				throw new IOException("Unknown log file format: " + file);
+			}
+
+			this.chunkSize = raf.readInt();
+		} else {
+			this.chunkSize = chunkSize;
+			raf.seek(0);
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeInt(chunkSize);
+			raf.writeInt(0);
+			length = FILE_HEADER_SIZE;
+		}
+
+		end = FILE_HEADER_SIZE;
+
+		int count = (int) ((length + this.chunkSize - 1) / this.chunkSize);
+
+		for (int i = 0; i < count; i++) {
+			mapChunk(i);
+		}
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Appends the payload to the end of the log.
+	 *
+	 * @param payload is the record content.
+	 *
+	 * @return the position of the first payload byte in the log which can later
+	 * be passed to <code>read(...)</code>.
+	 *
+	 * @throws IOException if the record does not fit in a single chunk or the file
+	 * can not be extended.
+	 */
+	public long append(byte[] payload) throws IOException {
+		return append(payload, 0, payload.length);
+	}
+
+	/**
+	 * Appends part of the given array as a single record to the end of the log.
+	 *
+	 * @param payload is an array with the record content.
+	 * @param off is the record content offset in the array.
+	 * @param len is the record content length.
+	 *
+	 * @return the position of the first payload byte in the log.
+	 *
+	 * @throws IOException if the record does not fit in a single chunk or the file
+	 * can not be extended.
+	 */
+	public long append(byte[] payload, int off, int len) throws IOException {
+
+		// Leave room for the end marker after the record.
+		if (len + HEADER_SIZE + 4 + FILE_HEADER_SIZE > chunkSize) {
+			throw new IOException("Record of " + len + " bytes exceeds log chunk size: "
+					+ chunkSize);
+		}
+
+		int idx = (int) (end / chunkSize);
+		int offset = (int) (end % chunkSize);
+
+		if (offset + HEADER_SIZE + len + 4 > chunkSize) {
+			chunk(idx).putInt(offset, PAD);
+			++idx;
+			offset = 0;
+		}
+
+		MappedByteBuffer buf = chunk(idx);
+		CRC32 crc = new CRC32();
+
+		crc.update(payload, off, len);
+
+		ByteBuffer dup = buf.duplicate();
+
+		dup.position(offset + HEADER_SIZE);
+		dup.put(payload, off, len);
+		dup.putInt(0);
+		buf.putInt(offset + 4, (int) crc.getValue());
+		buf.putInt(offset, len);
+		end = (long) idx * chunkSize + offset + HEADER_SIZE + len;
+
+		return (long) idx * chunkSize + offset + HEADER_SIZE;
+	}
+
+	/**
+	 * Closes the underlying file. Already returned record buffers stay valid as
+	 * long as they are referenced.
+	 */
+	public void close() {
+		try {
+			force();
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Problem closing log file: " + file, e);
+		}
+	}
+
+	/**
+	 * Writes all modified chunks to the storage device.
+	 */
+	public void force() {
+		MappedByteBuffer[] bufs = chunks;
+
+		for (MappedByteBuffer buf : bufs) {
+			buf.force();
+		}
+	}
+
+	/**
+	 * Returns a read-only view of the record payload starting at the given
+	 * position. The returned buffer starts at <code>pos</code> and ends at the end
+	 * of the chunk containing the record, the record decoder must know where the
+	 * data ends.
+	 *
+	 * @param pos is a position returned either by <code>append(...)</code> or
+	 * passed to the <code>RecordHandler</code> during recovery.
+	 *
+	 * @return a <code>ByteBuffer</code> with the record data.
+	 */
+	public ByteBuffer read(long pos) {
+		MappedByteBuffer[] bufs = chunks;
+		int idx = (int) (pos / chunkSize);
+		int offset = (int) (pos % chunkSize);
+		ByteBuffer dup = bufs[idx].asReadOnlyBuffer();
+
+		// The position may point inside the record, records never cross the chunk
+		// boundary so the data is always within this chunk.
+		dup.position(offset);
+
+		return dup.slice();
+	}
+
+	/**
+	 * Scans the whole log from the beginning, calls the handler for each valid
+	 * record and sets the append position just after the last valid record.
+	 *
+	 * @param handler is called for every record found in the log.
+	 *
+	 * @return the number of records found in the log.
+	 *
+	 * @throws IOException
+	 */
+	public long recover(RecordHandler handler) throws IOException {
+		return scan(FILE_HEADER_SIZE, handler, true);
+	}
+
+	/**
+	 * Scans records appended after the given position up to the current end of
+	 * the log.
+	 *
+	 * @param from is a log position returned by <code>getEnd()</code>.
+	 * @param handler is called for every record found.
+	 *
+	 * @return the number of records found.
+	 *
+	 * @throws IOException
+	 */
+	public long scan(long from, RecordHandler handler) throws IOException {
+		return scan(from, handler, false);
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Returns the current append position of the log.
+	 *
+	 * @return the log end position.
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * Returns the size of a single mapped region of the file.
+	 *
+	 * @return the chunk size in bytes.
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Returns the log file location.
+	 *
+	 * @return a <code>File</code> instance.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	private MappedByteBuffer chunk(int idx) throws IOException {
+		MappedByteBuffer[] bufs = chunks;
+
+		if (idx < bufs.length) {
+			return bufs[idx];
+		}
+
+		return mapChunk(idx);
+	}
+
+	private MappedByteBuffer mapChunk(int idx) throws IOException {
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE,
+			(long) idx * chunkSize, chunkSize);
+		MappedByteBuffer[] bufs = chunks;
+		MappedByteBuffer[] result = new MappedByteBuffer[idx + 1];
+
+		System.arraycopy(bufs, 0, result, 0, bufs.length);
+		result[idx] = buf;
+		chunks = result;
+
+		return buf;
+	}
+
+	private long scan(long from, RecordHandler handler, boolean truncate)
+			throws IOException {
+		long count = 0;
+		long pos = from;
+		MappedByteBuffer[] bufs = chunks;
+		int idx = (int) (pos / chunkSize);
+		int offset = (int) (pos % chunkSize);
+
+		while (idx < bufs.length) {
+			if (offset + HEADER_SIZE > chunkSize) {
+				++idx;
+				offset = 0;
+
+				continue;
+			}
+
+			MappedByteBuffer buf = bufs[idx];
+			int len = buf.getInt(offset);
+
+			if (len == PAD) {
+				++idx;
+				offset = 0;
+
+				continue;
+			}
+
+			if ((len <= 0) || (offset + HEADER_SIZE + len > chunkSize)) {
+				break;
+			}
+
+			ByteBuffer payload = buf.asReadOnlyBuffer();
+
+			payload.position(offset + HEADER_SIZE);
+			payload.limit(offset + HEADER_SIZE + len);
+
+			CRC32 crc = new CRC32();
+			byte[] data = new byte[len];
+
+			payload.duplicate().get(data);
+			crc.update(data, 0, len);
+
+			if (buf.getInt(offset + 4) != (int) crc.getValue()) {
+				log.log(Level.WARNING, "Corrupted record found in log {0} at position {1}, "
+						+ "ignoring the rest of the log.", new Object[] { file,
+						(long) idx * chunkSize + offset });
+
+				break;
+			}
+
+			handler.record((long) idx * chunkSize + offset + HEADER_SIZE, payload.slice());
+			++count;
+			offset += HEADER_SIZE + len;
+		}
+
+		if (truncate) {
+			end = (long) idx * chunkSize + offset;
+		}
+
+		return count;
+	}
+
+	//~--- inner interfaces -----------------------------------------------------
+
+	/**
+	 * Callback used to iterate over records stored in the log.
+	 */
+	public static interface RecordHandler {
+
+		/**
+		 * Called for each valid record in the log.
+		 *
+		 * @param pos is the position of the first payload byte.
+		 * @param payload is a buffer with the record payload.
+		 *
+		 * @throws IOException
+		 */
+		void record(long pos, ByteBuffer payload) throws IOException;
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
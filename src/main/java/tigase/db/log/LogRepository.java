@@ -0,0 +1,1424 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.db.log;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.db.AuthRepository;
+import tigase.db.AuthRepositoryImpl;
+import tigase.db.AuthorizationException;
+import tigase.db.DBInitException;
+import tigase.db.TigaseDBException;
+import tigase.db.UserExistsException;
+import tigase.db.UserNotFoundException;
+import tigase.db.UserRepository;
+
+import tigase.xmpp.BareJID;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Class <code>LogRepository</code> is an embedded, log-structured
+ * implementation of <code>UserRepository</code> and <code>AuthRepository</code>
+ * which does not require any external database.
+ *
+ * All modifications are appended as records to a memory-mapped
+ * <code>LogFile</code>. The whole user tree (users, node paths and keys) is
+ * kept in an in-memory index which points to the values stored in the log, so
+ * a read is a hash lookup followed by decoding the value directly from the
+ * mapped file. Reads synchronize only on the index entry of the given user.
+ * Writes of a user are serialized by one of striped user locks, writes of
+ * different users run in parallel and only appending the record to the log is
+ * serialized for all of them. Every user gets a unique id from a sequence
+ * which is stored with the user record.
+ *
+ * Overwritten and removed data is left in the log. A background task rewrites
+ * the log with live data only when the ratio of obsolete records exceeds the
+ * configured threshold. Records appended while the compaction runs are
+ * replayed to the new log before it replaces the old one, so the repository
+ * stays available for reads and writes during compaction.
+ *
+ * The repository is configured through the resource URI which is the log file
+ * path optionally followed by parameters:
+ * <pre>/var/lib/tigase/users.log?autoCreateUser=true&amp;compactRatio=0.5</pre>
+ * Supported parameters are: <code>autoCreateUser</code>,
+ * <code>chunkSize</code> - size of a single mapped file region in bytes,
+ * <code>compactRatio</code> - obsolete records ratio triggering compaction,
+ * <code>compactMinRecords</code> - minimal number of obsolete records
+ * triggering compaction, <code>syncInterval</code> - how often in
+ * milliseconds the mapped data is forced to the storage device.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class LogRepository implements AuthRepository, UserRepository {
+	private static final Logger log = Logger.getLogger(LogRepository.class.getName());
+	private static final String USER_STR = "User: ";
+	private static final String NOT_FOUND_STR = " has not been found in repository.";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte OP_ADD_USER = 1;
+	private static final byte OP_REMOVE_USER = 2;
+	private static final byte OP_SET = 3;
+	private static final byte OP_REMOVE_KEY = 4;
+	private static final byte OP_REMOVE_NODE = 5;
+	private static final byte OP_UID_SEQUENCE = 6;
+	private static final int USER_LOCKS = 64;
+
+	/** Field description */
+	public static final String AUTO_CREATE_USER_KEY = "autoCreateUser";
+
+	/** Field description */
+	public static final String CHUNK_SIZE_KEY = "chunkSize";
+
+	/** Field description */
+	public static final int CHUNK_SIZE_VAL = 64 * 1024 * 1024;
+
+	/** Field description */
+	public static final String COMPACT_MIN_RECORDS_KEY = "compactMinRecords";
+
+	/** Field description */
+	public static final long COMPACT_MIN_RECORDS_VAL = 100000;
+
+	/** Field description */
+	public static final String COMPACT_RATIO_KEY = "compactRatio";
+
+	/** Field description */
+	public static final double COMPACT_RATIO_VAL = 0.5;
+
+	/** Field description */
+	public static final String SYNC_INTERVAL_KEY = "syncInterval";
+
+	/** Field description */
+	public static final long SYNC_INTERVAL_VAL = 1000;
+
+	//~--- fields ---------------------------------------------------------------
+
+	private AuthRepository auth = null;
+	private boolean autoCreateUser = false;
+	private int chunkSize = CHUNK_SIZE_VAL;
+	private long compactMinRecords = COMPACT_MIN_RECORDS_VAL;
+	private double compactRatio = COMPACT_RATIO_VAL;
+	private long compactions = 0;
+	private final AtomicBoolean compacting = new AtomicBoolean(false);
+	private String fileName = null;
+	private volatile Store store = null;
+	private long syncInterval = SYNC_INTERVAL_VAL;
+	private Timer tasks = null;
+	private final ReentrantLock[] userLocks = newLocks(USER_LOCKS);
+
+	// Writers hold the read lock, the compaction takes the write lock to replace
+	// the store when no write is in progress.
+	private final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 * @param key
+	 * @param list
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public void addDataList(BareJID user, String subnode, String key, String[] list)
+			throws UserNotFoundException, TigaseDBException {
+
+		// Read and write must be atomic, the merged list is logged as a whole so
+		// the record stays idempotent for the compaction replay.
+		ReentrantLock lock = lockUser(user);
+
+		try {
+			String[] old_data = getDataList(user, subnode, key);
+			String[] all = list;
+
+			if (old_data != null) {
+				all = new String[old_data.length + list.length];
+				System.arraycopy(old_data, 0, all, 0, old_data.length);
+				System.arraycopy(list, 0, all, old_data.length, list.length);
+			}
+
+			write(user, encode(OP_SET, user, nodePath(subnode), key, all));
+		} finally {
+			unlockUser(lock);
+		}
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserExistsException
+	 */
+	@Override
+	public void addUser(BareJID user) throws UserExistsException, TigaseDBException {
+		ReentrantLock lock = lockUser(user);
+
+		try {
+			if (store.users.containsKey(user)) {
+				throw new UserExistsException(USER_STR + user + " already exists.");
+			}
+
+			append(store, encodeAddUser(user, store.lastUid.incrementAndGet()));
+		} finally {
+			unlockUser(lock);
+		}
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param password
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserExistsException
+	 */
+	@Override
+	public void addUser(BareJID user, String password)
+			throws UserExistsException, TigaseDBException {
+		auth.addUser(user, password);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param digest
+	 * @param id
+	 * @param alg
+	 *
+	 * @return
+	 *
+	 * @throws AuthorizationException
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	@Deprecated
+	public boolean digestAuth(BareJID user, String digest, String id, String alg)
+			throws UserNotFoundException, TigaseDBException, AuthorizationException {
+		return auth.digestAuth(user, digest, id, alg);
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 * @param key
+	 * @param def
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public String getData(BareJID user, String subnode, String key, String def)
+			throws UserNotFoundException, TigaseDBException {
+		String[] values = getDataList(user, subnode, key);
+
+		return ((values == null) || (values.length == 0)) ? def : values[0];
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 * @param key
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public String getData(BareJID user, String subnode, String key)
+			throws UserNotFoundException, TigaseDBException {
+		return getData(user, subnode, key, null);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param key
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public String getData(BareJID user, String key)
+			throws UserNotFoundException, TigaseDBException {
+		return getData(user, null, key, null);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 * @param key
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public String[] getDataList(BareJID user, String subnode, String key)
+			throws UserNotFoundException, TigaseDBException {
+		Store s = store;
+		UserEntry entry = getEntry(s, user);
+
+		if (entry == null) {
+			return null;
+		}
+
+		long pos = entry.get(nodePath(subnode), key);
+
+		if (pos < 0) {
+			return null;
+		}
+
+		// The old store log stays mapped until it is garbage collected, so reading
+		// from it is safe even if the compaction has just replaced it.
+		return decodeValues(s.log.read(pos));
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public String[] getKeys(BareJID user, String subnode)
+			throws UserNotFoundException, TigaseDBException {
+		UserEntry entry = getEntry(store, user);
+
+		return (entry == null) ? null : entry.getKeys(nodePath(subnode));
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public String[] getKeys(BareJID user) throws UserNotFoundException, TigaseDBException {
+		return getKeys(user, null);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	@Override
+	public String getResourceUri() {
+		return fileName;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public String[] getSubnodes(BareJID user, String subnode)
+			throws UserNotFoundException, TigaseDBException {
+		UserEntry entry = getEntry(store, user);
+
+		return (entry == null) ? null : entry.getSubnodes(nodePath(subnode));
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public String[] getSubnodes(BareJID user) throws UserNotFoundException, TigaseDBException {
+		return getSubnodes(user, null);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 */
+	@Override
+	public long getUserUID(BareJID user) throws TigaseDBException {
+		UserEntry entry = store.users.get(user);
+
+		return (entry == null) ? -1 : entry.uid;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 */
+	@Override
+	public List<BareJID> getUsers() throws TigaseDBException {
+		return new ArrayList<BareJID>(store.users.keySet());
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	@Override
+	public long getUsersCount() {
+		return store.users.size();
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param domain
+	 *
+	 * @return
+	 */
+	@Override
+	public long getUsersCount(String domain) {
+		long res = 0;
+
+		for (BareJID jid : store.users.keySet()) {
+			if (jid.getDomain().equals(domain)) {
+				++res;
+			}
+		}
+
+		return res;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param resource_uri
+	 * @param params
+	 *
+	 * @throws DBInitException
+	 */
+	@Override
+	public void initRepository(String resource_uri, Map<String, String> params)
+			throws DBInitException {
+		fileName = resource_uri;
+
+		int idx = resource_uri.indexOf('?');
+
+		if (idx > 0) {
+			fileName = resource_uri.substring(0, idx);
+
+			for (String param : resource_uri.substring(idx + 1).split("&")) {
+				String[] pair = param.split("=");
+
+				if (pair.length != 2) {
+					continue;
+				}
+
+				try {
+					if (pair[0].equals(AUTO_CREATE_USER_KEY)) {
+						autoCreateUser = Boolean.parseBoolean(pair[1]);
+					}
+
+					if (pair[0].equals(CHUNK_SIZE_KEY)) {
+						chunkSize = Integer.parseInt(pair[1]);
+					}
+
+					if (pair[0].equals(COMPACT_RATIO_KEY)) {
+						compactRatio = Double.parseDouble(pair[1]);
+					}
+
+					if (pair[0].equals(COMPACT_MIN_RECORDS_KEY)) {
+						compactMinRecords = Long.parseLong(pair[1]);
+					}
+
+					if (pair[0].equals(SYNC_INTERVAL_KEY)) {
+						syncInterval = Long.parseLong(pair[1]);
+					}
+				} catch (NumberFormatException e) {
+					log.log(Level.WARNING, "Incorrect repository parameter value: {0}", param);
+				}
+			}
+		}
+
+		try {
+			new File(fileName + ".compact").delete();
+
+			Store s = new Store(new LogFile(new File(fileName), chunkSize));
+			long start = System.currentTimeMillis();
+			long records = s.log.recover(new ApplyHandler(s));
+
+			store = s;
+			auth = new AuthRepositoryImpl(this);
+			log.log(Level.INFO,
+					"Loaded user repository {0}: {1} records, {2} users in {3}ms",
+						new Object[] { fileName,
+					records, s.users.size(), (System.currentTimeMillis() - start) });
+		} catch (IOException e) {
+			throw new DBInitException("Problem opening user repository log: " + fileName, e);
+		}
+
+		tasks = new Timer("log-repository-tasks", true);
+		tasks.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				store.log.force();
+			}
+		}, syncInterval, syncInterval);
+		tasks.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					if (isCompactionNeeded()) {
+						compact();
+					}
+				} catch (Exception e) {
+					log.log(Level.WARNING, "Problem compacting user repository log: "
+							+ fileName, e);
+				}
+			}
+		}, 60 * 1000, 60 * 1000);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public void logout(BareJID user) throws UserNotFoundException, TigaseDBException {
+		auth.logout(user);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param authProps
+	 *
+	 * @return
+	 *
+	 * @throws AuthorizationException
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public boolean otherAuth(Map<String, Object> authProps)
+			throws UserNotFoundException, TigaseDBException, AuthorizationException {
+		return auth.otherAuth(authProps);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param password
+	 *
+	 * @return
+	 *
+	 * @throws AuthorizationException
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	@Deprecated
+	public boolean plainAuth(BareJID user, String password)
+			throws UserNotFoundException, TigaseDBException, AuthorizationException {
+		return auth.plainAuth(user, password);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param authProps
+	 */
+	@Override
+	public void queryAuth(Map<String, Object> authProps) {
+		auth.queryAuth(authProps);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 * @param key
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public void removeData(BareJID user, String subnode, String key)
+			throws UserNotFoundException, TigaseDBException {
+		ReentrantLock lock = lockUser(user);
+
+		try {
+			if (store.users.containsKey(user)) {
+				append(store, encode(OP_REMOVE_KEY, user, nodePath(subnode), key, null));
+			} else {
+				if ( !autoCreateUser) {
+					throw new UserNotFoundException(USER_STR + user + NOT_FOUND_STR);
+				}
+			}
+		} finally {
+			unlockUser(lock);
+		}
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param key
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public void removeData(BareJID user, String key)
+			throws UserNotFoundException, TigaseDBException {
+		removeData(user, null, key);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public void removeSubnode(BareJID user, String subnode)
+			throws UserNotFoundException, TigaseDBException {
+		ReentrantLock lock = lockUser(user);
+
+		try {
+			if (store.users.containsKey(user)) {
+				append(store, encode(OP_REMOVE_NODE, user, nodePath(subnode), null, null));
+			} else {
+				if ( !autoCreateUser) {
+					throw new UserNotFoundException(USER_STR + user + NOT_FOUND_STR);
+				}
+			}
+		} finally {
+			unlockUser(lock);
+		}
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public void removeUser(BareJID user) throws UserNotFoundException, TigaseDBException {
+		ReentrantLock lock = lockUser(user);
+
+		try {
+			if ( !store.users.containsKey(user)) {
+				throw new UserNotFoundException(USER_STR + user + NOT_FOUND_STR);
+			}
+
+			append(store, encode(OP_REMOVE_USER, user, null, null, null));
+		} finally {
+			unlockUser(lock);
+		}
+	}
+
+	//~--- set methods ----------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 * @param key
+	 * @param value
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public void setData(BareJID user, String subnode, String key, String value)
+			throws UserNotFoundException, TigaseDBException {
+		setDataList(user, subnode, key, new String[] { value });
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param key
+	 * @param value
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public void setData(BareJID user, String key, String value)
+			throws UserNotFoundException, TigaseDBException {
+		setData(user, null, key, value);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param subnode
+	 * @param key
+	 * @param list
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public void setDataList(BareJID user, String subnode, String key, String[] list)
+			throws UserNotFoundException, TigaseDBException {
+		byte[] record = encode(OP_SET, user, nodePath(subnode), key, list);
+
+		ReentrantLock lock = lockUser(user);
+
+		try {
+			write(user, record);
+		} finally {
+			unlockUser(lock);
+		}
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 * @param password
+	 *
+	 * @throws TigaseDBException
+	 * @throws UserNotFoundException
+	 */
+	@Override
+	public void updatePassword(BareJID user, String password)
+			throws UserNotFoundException, TigaseDBException {
+		auth.updatePassword(user, password);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param user
+	 *
+	 * @return
+	 */
+	@Override
+	public boolean userExists(BareJID user) {
+		return store.users.containsKey(user);
+	}
+
+	/**
+	 * Rewrites the log with the live data only. The current data is copied to a
+	 * new log without blocking writers, then records appended to the old log in
+	 * the meantime are replayed to the new one with all writers blocked and the
+	 * new log replaces the old one.
+	 *
+	 * @throws IOException
+	 * @throws TigaseDBException
+	 */
+	public void compact() throws IOException, TigaseDBException {
+		if ( !compacting.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			long start = System.currentTimeMillis();
+			Store old = store;
+			long snapshot;
+
+			// All records up to the snapshot are applied to the index once writers
+			// are out
+			storeLock.writeLock().lock();
+
+			try {
+				snapshot = old.log.getEnd();
+			} finally {
+				storeLock.writeLock().unlock();
+			}
+
+			File tmp = new File(fileName + ".compact");
+
+			tmp.delete();
+
+			final Store fresh = new Store(new LogFile(tmp, old.log.getChunkSize()));
+
+			// Keeps ids of removed users from being assigned again
+			append(fresh, encodeUidSequence(old.lastUid.get()));
+
+			for (Map.Entry<BareJID, UserEntry> user : old.users.entrySet()) {
+				append(fresh, encodeAddUser(user.getKey(), user.getValue().uid));
+
+				Map<String, Map<String, Long>> nodes = user.getValue().copy();
+
+				for (Map.Entry<String, Map<String, Long>> node : nodes.entrySet()) {
+					for (Map.Entry<String, Long> key : node.getValue().entrySet()) {
+						String[] values = decodeValues(old.log.read(key.getValue()));
+
+						append(fresh, encode(OP_SET, user.getKey(), node.getKey(), key.getKey(),
+								values));
+					}
+				}
+			}
+
+			storeLock.writeLock().lock();
+
+			try {
+				old.log.scan(snapshot, new LogFile.RecordHandler() {
+					@Override
+					public void record(long pos, ByteBuffer payload) throws IOException {
+						byte[] data = new byte[payload.remaining()];
+
+						payload.get(data);
+
+						try {
+							append(fresh, data);
+						} catch (TigaseDBException e) {
+							throw new IOException(e);
+						}
+					}
+				});
+				fresh.log.force();
+
+				if ( !tmp.renameTo(new File(fileName))) {
+					fresh.log.close();
+					tmp.delete();
+
+					throw new IOException("Can not replace log " + fileName + " with compacted log "
+							+ tmp);
+				}
+
+				store = fresh;
+				++compactions;
+			} finally {
+				storeLock.writeLock().unlock();
+			}
+
+			old.log.close();
+			log.log(Level.INFO, "Compacted user repository {0}: {1} records left in {2}ms",
+					new Object[] { fileName,
+					fresh.records.get(), (System.currentTimeMillis() - start) });
+		} finally {
+			compacting.set(false);
+		}
+	}
+
+	/**
+	 * Closes the repository log and stops background tasks.
+	 */
+	public void close() {
+		if (tasks != null) {
+			tasks.cancel();
+		}
+
+		storeLock.writeLock().lock();
+
+		try {
+			store.log.close();
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Returns the number of compactions performed since the repository has been
+	 * opened.
+	 *
+	 * @return number of compactions.
+	 */
+	public long getCompactionsCount() {
+		return compactions;
+	}
+
+	/**
+	 * Returns the number of records in the log which are no longer used.
+	 *
+	 * @return number of obsolete records.
+	 */
+	public long getObsoleteRecords() {
+		return store.obsolete.get();
+	}
+
+	/**
+	 * Returns the total number of records in the log.
+	 *
+	 * @return number of records.
+	 */
+	public long getRecords() {
+		return store.records.get();
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	// Must be called with the user lock held, unless the store is not visible
+	// to other threads yet. Records of a user are applied in the log order.
+	private void append(Store s, byte[] record) throws TigaseDBException {
+		try {
+			long pos;
+
+			synchronized (s.log) {
+				pos = s.log.append(record);
+			}
+
+			apply(s, pos, ByteBuffer.wrap(record));
+		} catch (IOException e) {
+			throw new TigaseDBException("Problem writing to user repository log: " + fileName,
+					e);
+		}
+	}
+
+	private static void apply(Store s, long pos, ByteBuffer payload) {
+		byte op = payload.get();
+
+		s.records.incrementAndGet();
+
+		if (op == OP_UID_SEQUENCE) {
+			s.updateUid(payload.getLong());
+
+			return;
+		}
+
+		BareJID user = BareJID.bareJIDInstanceNS(decodeString(payload));
+		UserEntry entry = null;
+
+		switch (op) {
+			case OP_ADD_USER :
+
+				// Records written before user ids were stored get the next id in the
+				// log order, which is the same on every load
+				long uid = (payload.remaining() >= 8)
+						? payload.getLong() : s.lastUid.get() + 1;
+
+				s.updateUid(uid);
+
+				if (s.users.putIfAbsent(user, new UserEntry(uid)) != null) {
+					s.obsolete.incrementAndGet();
+				}
+
+				break;
+
+			case OP_REMOVE_USER :
+				entry = s.users.remove(user);
+
+				// The remove record itself and all the user records are obsolete now.
+				s.obsolete.addAndGet(2 + ((entry == null) ? 0 : entry.size()));
+
+				break;
+
+			case OP_SET :
+				String node = decodeString(payload);
+				String key = decodeString(payload);
+
+				entry = s.users.get(user);
+
+				if ((entry == null) || entry.put(node, key, pos + payload.position())) {
+					s.obsolete.incrementAndGet();
+				}
+
+				break;
+
+			case OP_REMOVE_KEY :
+				entry = s.users.get(user);
+				s.obsolete.addAndGet(1 + ((entry == null) ? 0
+						: entry.remove(decodeString(payload), decodeString(payload))));
+
+				break;
+
+			case OP_REMOVE_NODE :
+				entry = s.users.get(user);
+				s.obsolete.addAndGet(1 + ((entry == null)
+						? 0 : entry.removeNode(decodeString(payload))));
+
+				break;
+
+			default :
+				log.log(Level.WARNING, "Unknown record type {0} at log position {1}",
+						new Object[] { op,
+						pos });
+		}
+	}
+
+	private static String decodeString(ByteBuffer buf) {
+		int len = buf.getInt();
+
+		if (len < 0) {
+			return null;
+		}
+
+		byte[] data = new byte[len];
+
+		buf.get(data);
+
+		return new String(data, UTF8);
+	}
+
+	private static String[] decodeValues(ByteBuffer buf) {
+		String[] result = new String[buf.getInt()];
+
+		for (int i = 0; i < result.length; i++) {
+			result[i] = decodeString(buf);
+		}
+
+		return result;
+	}
+
+	private static byte[] encode(byte op, BareJID user, String node, String key,
+			String[] values) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+
+			out.writeByte(op);
+			encodeString(out, user.toString());
+
+			switch (op) {
+				case OP_SET :
+					encodeString(out, node);
+					encodeString(out, key);
+					out.writeInt(values.length);
+
+					for (String value : values) {
+						encodeString(out, value);
+					}
+
+					break;
+
+				case OP_REMOVE_KEY :
+					encodeString(out, node);
+					encodeString(out, key);
+
+					break;
+
+				case OP_REMOVE_NODE :
+					encodeString(out, node);
+
+					break;
+
+				default :
+
+				// Nothing more to write
+			}
+
+			out.flush();
+
+			return bytes.toByteArray();
+		} catch (IOException e) {
+
+			// Should not happen for in-memory stream
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] encodeAddUser(BareJID user, long uid) {
+		byte[] record = encode(OP_ADD_USER, user, null, null, null);
+
+		return ByteBuffer.allocate(record.length + 8).put(record).putLong(uid).array();
+	}
+
+	private static void encodeString(DataOutputStream out, String str) throws IOException {
+		if (str == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] data = str.getBytes(UTF8);
+
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+
+	private static byte[] encodeUidSequence(long uid) {
+		return ByteBuffer.allocate(9).put(OP_UID_SEQUENCE).putLong(uid).array();
+	}
+
+	private ReentrantLock lockUser(BareJID user) {
+		ReentrantLock lock = userLocks[(user.hashCode() & 0x7fffffff) % userLocks.length];
+
+		storeLock.readLock().lock();
+		lock.lock();
+
+		return lock;
+	}
+
+	private static ReentrantLock[] newLocks(int count) {
+		ReentrantLock[] result = new ReentrantLock[count];
+
+		for (int i = 0; i < count; i++) {
+			result[i] = new ReentrantLock();
+		}
+
+		return result;
+	}
+
+	private static String nodePath(String subnode) {
+		if (subnode == null) {
+			return "";
+		}
+
+		int start = 0;
+		int end = subnode.length();
+
+		while ((start < end) && (subnode.charAt(start) == '/')) {
+			++start;
+		}
+
+		while ((end > start) && (subnode.charAt(end - 1) == '/')) {
+			--end;
+		}
+
+		return subnode.substring(start, end);
+	}
+
+	private void unlockUser(ReentrantLock lock) {
+		lock.unlock();
+		storeLock.readLock().unlock();
+	}
+
+	// Must be called with the user lock held
+	private void write(BareJID user, byte[] record) throws TigaseDBException {
+		if ( !store.users.containsKey(user)) {
+			if (autoCreateUser) {
+				append(store, encodeAddUser(user, store.lastUid.incrementAndGet()));
+			} else {
+				throw new UserNotFoundException(USER_STR + user + NOT_FOUND_STR);
+			}
+		}
+
+		append(store, record);
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	private UserEntry getEntry(Store s, BareJID user) throws TigaseDBException {
+		UserEntry entry = s.users.get(user);
+
+		if (entry == null) {
+			if (autoCreateUser) {
+				ReentrantLock lock = lockUser(user);
+
+				try {
+					if ( !store.users.containsKey(user)) {
+						append(store, encodeAddUser(user, store.lastUid.incrementAndGet()));
+					}
+				} finally {
+					unlockUser(lock);
+				}
+
+				return null;
+			}
+
+			throw new UserNotFoundException(USER_STR + user + NOT_FOUND_STR);
+		}
+
+		return entry;
+	}
+
+	private boolean isCompactionNeeded() {
+		Store s = store;
+
+		long obsolete = s.obsolete.get();
+
+		return (obsolete >= compactMinRecords) && (obsolete >= s.records.get() * compactRatio);
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	private static class ApplyHandler implements LogFile.RecordHandler {
+		private Store store = null;
+
+		//~--- constructors -------------------------------------------------------
+
+		private ApplyHandler(Store store) {
+			this.store = store;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		@Override
+		public void record(long pos, ByteBuffer payload) {
+			apply(store, pos, payload);
+		}
+	}
+
+
+	private static class Store {
+		private final AtomicLong lastUid = new AtomicLong(0);
+		private LogFile log = null;
+		private final AtomicLong obsolete = new AtomicLong(0);
+		private final AtomicLong records = new AtomicLong(0);
+		private ConcurrentHashMap<BareJID, UserEntry> users = new ConcurrentHashMap<BareJID,
+			UserEntry>(10000);
+
+		//~--- constructors -------------------------------------------------------
+
+		private Store(LogFile log) {
+			this.log = log;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		private void updateUid(long uid) {
+			long last = lastUid.get();
+
+			while ((last < uid) &&!lastUid.compareAndSet(last, uid)) {
+				last = lastUid.get();
+			}
+		}
+	}
+
+
+	// Index of the user data, node path -> key -> position of the values in the
+	// log. All access is synchronized on the entry, so the lock is per user.
+	private static class UserEntry {
+		private Map<String, Map<String, Long>> nodes = new HashMap<String, Map<String,
+			Long>>(4);
+		private final long uid;
+
+		//~--- constructors -------------------------------------------------------
+
+		private UserEntry(long uid) {
+			this.uid = uid;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		private synchronized Map<String, Map<String, Long>> copy() {
+			Map<String, Map<String, Long>> result = new HashMap<String, Map<String,
+				Long>>(nodes.size());
+
+			for (Map.Entry<String, Map<String, Long>> node : nodes.entrySet()) {
+				result.put(node.getKey(), new HashMap<String, Long>(node.getValue()));
+			}
+
+			return result;
+		}
+
+		private synchronized boolean put(String node, String key, long pos) {
+			Map<String, Long> keys = nodes.get(node);
+
+			if (keys == null) {
+				keys = new HashMap<String, Long>(4);
+				nodes.put(node, keys);
+			}
+
+			return keys.put(key, pos) != null;
+		}
+
+		private synchronized int remove(String node, String key) {
+			Map<String, Long> keys = nodes.get(node);
+
+			if ((keys == null) || (keys.remove(key) == null)) {
+				return 0;
+			}
+
+			if (keys.isEmpty()) {
+				nodes.remove(node);
+			}
+
+			return 1;
+		}
+
+		private synchronized int removeNode(String node) {
+			int result = 0;
+			String prefix = node + "/";
+
+			for (Iterator<Map.Entry<String, Map<String, Long>>> it =
+					nodes.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<String, Map<String, Long>> entry = it.next();
+
+				if (node.isEmpty() || entry.getKey().equals(node)
+						|| entry.getKey().startsWith(prefix)) {
+					result += entry.getValue().size();
+					it.remove();
+				}
+			}
+
+			return result;
+		}
+
+		private synchronized int size() {
+			int result = 0;
+
+			for (Map<String, Long> keys : nodes.values()) {
+				result += keys.size();
+			}
+
+			return result;
+		}
+
+		//~--- get methods --------------------------------------------------------
+
+		private synchronized long get(String node, String key) {
+			Map<String, Long> keys = nodes.get(node);
+			Long pos = (keys == null) ? null : keys.get(key);
+
+			return (pos == null) ? -1 : pos.longValue();
+		}
+
+		private synchronized String[] getKeys(String node) {
+			Map<String, Long> keys = nodes.get(node);
+
+			return ((keys == null) || keys.isEmpty())
+					? null : keys.keySet().toArray(new String[keys.size()]);
+		}
+
+		private synchronized String[] getSubnodes(String node) {
+			Set<String> result = new LinkedHashSet<String>();
+			String prefix = node.isEmpty() ? "" : node + "/";
+
+			for (String path : nodes.keySet()) {
+				if ((path.length() > prefix.length()) && path.startsWith(prefix)) {
+					int idx = path.indexOf('/', prefix.length());
+
+					result.add((idx < 0)
+							? path.substring(prefix.length()) : path.substring(prefix.length(), idx));
+				}
+			}
+
+			return result.isEmpty() ? null : result.toArray(new String[result.size()]);
+		}
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
@@ -0,0 +1,125 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+package tigase.io;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Pool of heap byte buffers shared by all connections, so encoding and
+ * framing of network data does not allocate a new buffer for each write.
+ * Buffers of the standard size are pooled, larger buffers needed for big
+ * stanzas are allocated and left to the garbage collector.
+ * <p/>
+ * A buffer passed to a socket must not be released while the socket still
+ * keeps it, that is when <code>waitingToSend()</code> returns
+ * <code>true</code> after the write, it is simply not returned to the pool
+ * then.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public abstract class BufferPool {
+
+	/** Field description */
+	public static final int BUFFER_SIZE = 16 * 1024;
+	private static final int POOL_MAX_SIZE = 1024;
+	private static final ConcurrentLinkedQueue<ByteBuffer> pool =
+			new ConcurrentLinkedQueue<ByteBuffer>();
+	private static final AtomicInteger poolSize = new AtomicInteger();
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Returns an empty buffer of at least the given size, taken from the pool if
+	 * the size is not bigger than <code>BUFFER_SIZE</code>.
+	 *
+	 *
+	 * @param size
+	 *
+	 * @return
+	 */
+	public static ByteBuffer allocate(int size) {
+		if (size <= BUFFER_SIZE) {
+			ByteBuffer buf = pool.poll();
+
+			if (buf != null) {
+				poolSize.decrementAndGet();
+
+				return buf;
+			}
+
+			size = BUFFER_SIZE;
+		}
+
+		return ByteBuffer.allocate(size);
+	}
+
+	/**
+	 * Returns a buffer of at least the given size with the data written to the
+	 * given buffer so far, which is released.
+	 *
+	 *
+	 * @param buf is a buffer in write mode.
+	 * @param size
+	 *
+	 * @return the new buffer in write mode.
+	 */
+	public static ByteBuffer grow(ByteBuffer buf, int size) {
+		ByteBuffer result = ByteBuffer.allocate(Math.max(size, buf.capacity() * 2));
+
+		buf.flip();
+		result.put(buf);
+		release(buf);
+
+		return result;
+	}
+
+	/**
+	 * Returns the buffer to the pool if it is of the standard size and the pool
+	 * is not full.
+	 *
+	 *
+	 * @param buf
+	 */
+	public static void release(ByteBuffer buf) {
+		if ((buf.capacity() == BUFFER_SIZE) && (poolSize.get() < POOL_MAX_SIZE)) {
+			buf.clear();
+			pool.offer(buf);
+			poolSize.incrementAndGet();
+		}
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
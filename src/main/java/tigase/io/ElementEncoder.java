@@ -0,0 +1,202 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+package tigase.io;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.xml.Element;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Serializes XML elements straight to UTF-8 bytes, without building the
+ * <code>String</code> returned by <code>Element.toString()</code> and encoding
+ * it afterwards. The output is the same as of <code>toString()</code>:
+ * attribute values and character data are kept in the element already
+ * escaped, so they are written as they are.
+ * <p/>
+ * Character data mixed with child elements, which the element API does not
+ * expose in the document order, is written as returned by
+ * <code>childrenToString()</code>.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public abstract class ElementEncoder {
+
+	/**
+	 * Writes the element to the buffer.
+	 *
+	 *
+	 * @param elem
+	 * @param out is a heap buffer in write mode.
+	 *
+	 * @return the buffer with the element written, which is a new buffer if the
+	 * given one had to be grown.
+	 */
+	public static ByteBuffer encode(Element elem, ByteBuffer out) {
+		String name = elem.getName();
+
+		out = put(out, '<');
+		out = encode(name, out);
+
+		Map<String, String> attributes = elem.getAttributes();
+
+		if (attributes != null) {
+			for (Map.Entry<String, String> attr : attributes.entrySet()) {
+				out = put(out, ' ');
+				out = encode(attr.getKey(), out);
+				out = put(out, '=');
+				out = put(out, '"');
+				out = encode(attr.getValue(), out);
+				out = put(out, '"');
+			}
+		}
+
+		List<Element> children = elem.getChildren();
+		String cdata = elem.getCData();
+		boolean hasChildren = (children != null) &&!children.isEmpty();
+		boolean hasCData = (cdata != null) &&!cdata.isEmpty();
+
+		if ( !hasChildren &&!hasCData) {
+			out = put(out, '/');
+
+			return put(out, '>');
+		}
+
+		out = put(out, '>');
+
+		if (hasChildren && hasCData) {
+			out = encode(elem.childrenToString(), out);
+		} else if (hasChildren) {
+			for (Element child : children) {
+				out = encode(child, out);
+			}
+		} else {
+			out = encode(cdata, out);
+		}
+
+		out = put(out, '<');
+		out = put(out, '/');
+		out = encode(name, out);
+
+		return put(out, '>');
+	}
+
+	/**
+	 * Writes the string to the buffer encoded in UTF-8. Unpaired surrogate
+	 * characters are replaced with '?'.
+	 *
+	 *
+	 * @param str
+	 * @param out is a heap buffer in write mode.
+	 *
+	 * @return the buffer with the string written, which is a new buffer if the
+	 * given one had to be grown.
+	 */
+	public static ByteBuffer encode(String str, ByteBuffer out) {
+		int len = str.length();
+
+		// No character takes more than 3 bytes, a surrogate pair takes 4
+		if (out.remaining() < len * 3) {
+			out = BufferPool.grow(out, out.position() + len * 3);
+		}
+
+		byte[] arr = out.array();
+		int off = out.arrayOffset();
+		int pos = off + out.position();
+
+		for (int i = 0; i < len; i++) {
+			char c = str.charAt(i);
+
+			if (c < 0x80) {
+				arr[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				arr[pos++] = (byte) (0xC0 | (c >> 6));
+				arr[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if ((c < Character.MIN_SURROGATE) || (c > Character.MAX_SURROGATE)) {
+				arr[pos++] = (byte) (0xE0 | (c >> 12));
+				arr[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				arr[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && (i + 1 < len)
+					&& Character.isLowSurrogate(str.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, str.charAt(++i));
+
+				arr[pos++] = (byte) (0xF0 | (cp >> 18));
+				arr[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				arr[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				arr[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else {
+				arr[pos++] = '?';
+			}
+		}
+
+		out.position(pos - off);
+
+		return out;
+	}
+
+	/**
+	 * Returns the element serialized to UTF-8.
+	 *
+	 *
+	 * @param elem
+	 *
+	 * @return
+	 */
+	public static byte[] toBytes(Element elem) {
+		ByteBuffer buf = BufferPool.allocate(0);
+
+		try {
+			buf = encode(elem, buf);
+
+			return Arrays.copyOfRange(buf.array(), buf.arrayOffset(), buf.arrayOffset()
+					+ buf.position());
+		} finally {
+			BufferPool.release(buf);
+		}
+	}
+
+	private static ByteBuffer put(ByteBuffer out, char c) {
+		if ( !out.hasRemaining()) {
+			out = BufferPool.grow(out, out.capacity() + 1);
+		}
+
+		return out.put((byte) c);
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
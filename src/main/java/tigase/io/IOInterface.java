@@ -72,6 +72,18 @@ public interface IOInterface {
 	int waitingToSendSize();
 
 	int write(final ByteBuffer buff) throws IOException;
+
+	/**
+	 * Writes all buffers in the given order, in a single gathering write to the
+	 * socket where the implementation allows it.
+	 *
+	 * @param buffs
+	 *
+	 * @return
+	 *
+	 * @throws IOException
+	 */
+	int writeBuffers(final ByteBuffer[] buffs) throws IOException;
 	
 	void setLogId(String logId);
 	
@@ -362,6 +362,28 @@ public class SocketIO implements IOInterface {
 		return result;
 	}
 
+	/**
+	 * Method description
+	 * 
+	 * 
+	 * @param buffs
+	 * 
+	 * @return
+	 * 
+	 * @throws IOException
+	 */
+	@Override
+	public int writeBuffers(final ByteBuffer[] buffs) throws IOException {
+		for (ByteBuffer buff : buffs) {
+			if (buff.hasRemaining() && !dataToSend.offer(buff)) {
+				++buffOverflow;
+			}
+		}
+
+		// Queued buffers are written with a single gathering write
+		return write(null);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -545,7 +545,38 @@ public class TLSIO implements IOInterface {
 
 		return result;
 	}
-	
+
+	/**
+	 * Method description
+	 * 
+	 * 
+	 * @param buffs
+	 * 
+	 * @return
+	 * 
+	 * @throws IOException
+	 */
+	@Override
+	public int writeBuffers(ByteBuffer[] buffs) throws IOException {
+
+		// Encrypted at once rather than a TLS record for each buffer
+		int size = 0;
+
+		for (ByteBuffer buff : buffs) {
+			size += buff.remaining();
+		}
+
+		ByteBuffer data = ByteBuffer.allocate(size);
+
+		for (ByteBuffer buff : buffs) {
+			data.put(buff);
+		}
+
+		data.flip();
+
+		return write(data);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
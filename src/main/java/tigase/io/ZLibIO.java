@@ -275,6 +275,37 @@ public class ZLibIO implements IOInterface {
 		return io.write(compressed_buff);
 	}
 
+	/**
+	 * Method description
+	 * 
+	 * 
+	 * @param buffs
+	 * 
+	 * @return
+	 * 
+	 * @throws IOException
+	 */
+	@Override
+	public int writeBuffers(ByteBuffer[] buffs) throws IOException {
+
+		// The data is compressed and flushed once
+		int size = 0;
+
+		for (ByteBuffer buff : buffs) {
+			size += buff.remaining();
+		}
+
+		ByteBuffer data = ByteBuffer.allocate(size);
+
+		for (ByteBuffer buff : buffs) {
+			data.put(buff);
+		}
+
+		data.flip();
+
+		return write(data);
+	}
+
 	/* (non-Javadoc)
 	 * @see tigase.io.IOInterface#setLogId(java.lang.String)
 	 */
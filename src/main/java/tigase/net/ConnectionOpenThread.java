@@ -22,6 +22,10 @@
 
 package tigase.net;
 
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.stats.StatisticsList;
+
 //~--- JDK imports ------------------------------------------------------------
 
 import java.io.IOException;
@@ -34,12 +38,13 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,6 +53,16 @@ import java.util.logging.Logger;
 /**
  * Describe class ConnectionOpenThread here.
  *
+ * Listening sockets are served by this thread and by additional acceptor
+ * threads, their number is set by <code>net-acceptor-threads</code> system
+ * property. Every thread has its own selector with all listening sockets
+ * registered, so incoming connections are accepted by whichever thread wakes
+ * up first. All pending connections are accepted on each wakeup.
+ * <p/>
+ * New connections on a port are throttled by a token bucket refilled at the
+ * configured rate. Connections accepted over the rate wait in the port queue
+ * until a token is available, when the queue is full accepting on the port
+ * is suspended and connections wait in the system backlog.
  *
  * Created: Wed Jan 25 23:51:28 2006
  *
@@ -72,6 +87,19 @@ public class ConnectionOpenThread implements Runnable {
 	/** Field description */
 	public static final long def_5269_throttling = 100;
 
+	/** Field description */
+	public static final String ACCEPTOR_THREADS_PROP_KEY = "net-acceptor-threads";
+
+	/** Field description */
+	public static final int ACCEPTOR_THREADS_PROP_VAL = 1;
+
+	/**
+	 * Number of seconds of throttled connections which may wait in the port
+	 * queue.
+	 */
+	private static final int QUEUE_SECONDS = 10;
+	private static final int MAX_ACCEPTS_PER_WAKEUP = 1000;
+
 	/** Field description */
 	public static Map<Integer, PortThrottlingData> throttling = new ConcurrentHashMap<Integer,
 		PortThrottlingData>(10);
@@ -79,9 +107,9 @@ public class ConnectionOpenThread implements Runnable {
 	//~--- fields ---------------------------------------------------------------
 
 	protected long accept_counter = 0;
+	private Acceptor[] acceptors = null;
 	private Selector selector = null;
-	private boolean stopping = false;
-	private Timer timer = null;
+	private volatile boolean stopping = false;
 	private ConcurrentLinkedQueue<ConnectionOpenListener> waiting =
 		new ConcurrentLinkedQueue<ConnectionOpenListener>();
 
@@ -92,18 +120,22 @@ public class ConnectionOpenThread implements Runnable {
 	 *
 	 */
 	private ConnectionOpenThread() {
-		timer = new Timer("Connections open timer", true);
-		timer.scheduleAtFixedRate(new TimerTask() {
-			@Override
-			public void run() {
-				for (PortThrottlingData portData : throttling.values()) {
-					portData.lastSecondConnections = 0;
-				}
-			}
-		}, 1000, 1000);
-
 		try {
 			selector = Selector.open();
+
+			int threads = Integer.getInteger(ACCEPTOR_THREADS_PROP_KEY, ACCEPTOR_THREADS_PROP_VAL);
+
+			acceptors = new Acceptor[Math.max(0, threads - 1)];
+
+			for (int i = 0; i < acceptors.length; i++) {
+				acceptors[i] = new Acceptor();
+
+				Thread thrd = new Thread(acceptors[i]);
+
+				thrd.setName("ConnectionOpenThread-" + (i + 1));
+				thrd.setDaemon(true);
+				thrd.start();
+			}
 		} catch (Exception e) {
 			log.log(Level.SEVERE, "Server I/O error, can't continue my work.", e);
 			stopping = true;
@@ -141,6 +173,33 @@ public class ConnectionOpenThread implements Runnable {
 		return acceptThread;
 	}
 
+	/**
+	 * Adds statistics of new connections on the port.
+	 *
+	 *
+	 * @param comp
+	 * @param port
+	 * @param list
+	 */
+	public void getStatistics(String comp, int port, StatisticsList list) {
+		PortThrottlingData data = throttling.get(port);
+
+		if (data == null) {
+			return;
+		}
+
+		long waited = data.waited.get();
+
+		list.add(comp, "Port " + port + " accepted", data.accepted.get(), Level.FINE);
+		list.add(comp, "Port " + port + " throttled", waited, Level.FINE);
+		list.add(comp, "Port " + port + " accept queue", data.queueSize.get(), Level.INFO);
+		list.add(comp, "Port " + port + " max accept queue", data.maxQueueSize, Level.FINE);
+		list.add(comp, "Port " + port + " average accept wait [ms]", (waited > 0)
+				? (data.waitTime.get() / waited) / 1000000f : 0f, Level.FINE);
+		list.add(comp, "Port " + port + " max accept wait [ms]", data.maxWaitTime / 1000000,
+				Level.FINE);
+	}
+
 	//~--- methods --------------------------------------------------------------
 
 	/**
@@ -166,6 +225,7 @@ public class ConnectionOpenThread implements Runnable {
 				try {
 					key.cancel();
 
+					// Closing the channel cancels its keys in acceptors' selectors too
 					SelectableChannel channel = key.channel();
 
 					channel.close();
@@ -184,9 +244,14 @@ public class ConnectionOpenThread implements Runnable {
 	 */
 	@Override
 	public void run() {
+		ArrayList<SelectionKey> suspended = new ArrayList<SelectionKey>();
+
 		while ( !stopping) {
 			try {
-				selector.select();
+				long timeout = dispatchWaiting();
+
+				resumeAccepting(suspended);
+				selector.select(timeout);
 
 				// Set<SelectionKey> selected_keys = selector.selectedKeys();
 				// for (SelectionKey sk : selected_keys) {
@@ -195,79 +260,29 @@ public class ConnectionOpenThread implements Runnable {
 
 					i.remove();
 
-					SocketChannel sc = null;
+					if ( !sk.isValid()) {
+						continue;
+					}
 
 					if ((sk.readyOps() & SelectionKey.OP_ACCEPT) != 0) {
-						ServerSocketChannel nextReady = (ServerSocketChannel) sk.channel();
-
-						sc = nextReady.accept();
-
 						if (log.isLoggable(Level.FINEST)) {
 							log.finest("OP_ACCEPT");
 						}
 
-						PortThrottlingData port_throttling = throttling.get(nextReady.socket().getLocalPort());
-
-						if (port_throttling != null) {
-							++port_throttling.lastSecondConnections;
-
-							if (port_throttling.lastSecondConnections > port_throttling.throttling) {
-								if (log.isLoggable(Level.FINER)) {
-									log.log(Level.FINER, "New connections throttling level exceeded, closing: {0}",
-											sc);
-								}
-
-								sc.close();
-								sc = null;
-							}
-						} else {
-
-							// Hm, this should not happen actually
-							log.log(Level.WARNING, "Throttling not configured for port: {0}",
-									nextReady.socket().getLocalPort());
-						}
+						acceptAll(sk, suspended);
 					}    // end of if (sk.readyOps() & SelectionKey.OP_ACCEPT)
 
 					if ((sk.readyOps() & SelectionKey.OP_CONNECT) != 0) {
 						sk.cancel();
-						sc = (SocketChannel) sk.channel();
+
+						SocketChannel sc = (SocketChannel) sk.channel();
 
 						if (log.isLoggable(Level.FINEST)) {
 							log.finest("OP_CONNECT");
 						}
-					}    // end of if (sk.readyOps() & SelectionKey.OP_ACCEPT)
-
-					if (sc != null) {
-
-						// We have to catch exception here as sometimes socket is closed
-						// or connection is broken before we start configuring it here
-						// then whatever we do on the socket it throws an exception
-						try {
-							sc.configureBlocking(false);
-							sc.socket().setSoLinger(false, 0);
-							sc.socket().setReuseAddress(true);
-
-							if (log.isLoggable(Level.FINER)) {
-								log.log(Level.FINER, "Registered new client socket: {0}", sc);
-							}
-
-							ConnectionOpenListener al = (ConnectionOpenListener) sk.attachment();
-
-							sc.socket().setTrafficClass(al.getTrafficClass());
-							sc.socket().setReceiveBufferSize(al.getReceiveBufferSize());
-							al.accept(sc);
-						} catch (java.net.SocketException e) {
-							log.log(Level.INFO, "Socket closed instantly after it had been opened?", e);
 
-							ConnectionOpenListener al = (ConnectionOpenListener) sk.attachment();
-
-							al.accept(sc);
-						}
-					} else {
-						log.warning("Can't obtain socket channel from selection key.");
-					}    // end of if (sc != null) else
-
-					++accept_counter;
+						openSocket(sc, (ConnectionOpenListener) sk.attachment());
+					}    // end of if (sk.readyOps() & SelectionKey.OP_ACCEPT)
 				}
 
 				addAllWaiting();
@@ -302,6 +317,70 @@ public class ConnectionOpenThread implements Runnable {
 	public void stop() {
 		stopping = true;
 		selector.wakeup();
+
+		for (Acceptor acceptor : acceptors) {
+			acceptor.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Accepts all connections pending on the listening socket. Connections over
+	 * the port rate are put in the port queue, if the queue is full accepting
+	 * is suspended until it is drained.
+	 *
+	 *
+	 * @param sk
+	 * @param suspended
+	 *
+	 * @throws IOException
+	 */
+	private void acceptAll(SelectionKey sk, ArrayList<SelectionKey> suspended)
+			throws IOException {
+		ServerSocketChannel nextReady = (ServerSocketChannel) sk.channel();
+		ConnectionOpenListener al = (ConnectionOpenListener) sk.attachment();
+		PortThrottlingData port_throttling = throttling.get(nextReady.socket().getLocalPort());
+
+		if (port_throttling == null) {
+
+			// Hm, this should not happen actually
+			log.log(Level.WARNING, "Throttling not configured for port: {0}",
+					nextReady.socket().getLocalPort());
+		}
+
+		for (int i = 0; i < MAX_ACCEPTS_PER_WAKEUP; i++) {
+			if ((port_throttling != null) && port_throttling.isQueueFull()) {
+				if (log.isLoggable(Level.FINER)) {
+					log.log(Level.FINER,
+							"New connections queue full, suspending accepting on port: {0}",
+							nextReady.socket().getLocalPort());
+				}
+
+				sk.interestOps(0);
+				suspended.add(sk);
+
+				break;
+			}
+
+			SocketChannel sc = nextReady.accept();
+
+			if (sc == null) {
+
+				// No more pending connections or another acceptor took them
+				break;
+			}
+
+			if (port_throttling == null) {
+				openSocket(sc, al);
+			} else {
+				port_throttling.accepted.incrementAndGet();
+
+				if (port_throttling.queue.isEmpty() && port_throttling.tryAcquire()) {
+					openSocket(sc, al);
+				} else {
+					port_throttling.offer(new PendingSocket(sc, al));
+				}
+			}
+		}
 	}
 
 	private void addAllWaiting() throws IOException {
@@ -341,6 +420,10 @@ public class ConnectionOpenThread implements Runnable {
 				ssc.socket().bind(isa);
 				ssc.register(selector, SelectionKey.OP_ACCEPT, al);
 
+				for (Acceptor acceptor : acceptors) {
+					acceptor.register(ssc, al);
+				}
+
 				break;
 
 			case connect :
@@ -378,6 +461,92 @@ public class ConnectionOpenThread implements Runnable {
 		}      // end of if (ip == null || ip.equals("")) else
 	}
 
+	/**
+	 * Passes queued connections to listeners as long as ports have tokens.
+	 *
+	 *
+	 * @return milliseconds until the next queued connection may be passed or 0
+	 * if there are no queued connections.
+	 */
+	private long dispatchWaiting() {
+		long timeout = 0;
+
+		for (PortThrottlingData port_throttling : throttling.values()) {
+			if (port_throttling.queue.isEmpty()) {
+				continue;
+			}
+
+			PendingSocket pending = null;
+
+			while (port_throttling.tryAcquire()) {
+				pending = port_throttling.poll();
+
+				if (pending == null) {
+					port_throttling.release();
+
+					break;
+				}
+
+				openSocket(pending.sc, pending.al);
+			}
+
+			if ( !port_throttling.queue.isEmpty()) {
+				long delay = port_throttling.getTokenDelay();
+
+				timeout = (timeout == 0) ? delay : Math.min(timeout, delay);
+			}
+		}
+
+		return timeout;
+	}
+
+	private void openSocket(SocketChannel sc, ConnectionOpenListener al) {
+		++accept_counter;
+
+		// We have to catch exception here as sometimes socket is closed
+		// or connection is broken before we start configuring it here
+		// then whatever we do on the socket it throws an exception
+		try {
+			sc.configureBlocking(false);
+			sc.socket().setSoLinger(false, 0);
+			sc.socket().setReuseAddress(true);
+
+			if (log.isLoggable(Level.FINER)) {
+				log.log(Level.FINER, "Registered new client socket: {0}", sc);
+			}
+
+			sc.socket().setTrafficClass(al.getTrafficClass());
+			sc.socket().setReceiveBufferSize(al.getReceiveBufferSize());
+			al.accept(sc);
+		} catch (java.net.SocketException e) {
+			log.log(Level.INFO, "Socket closed instantly after it had been opened?", e);
+			al.accept(sc);
+		} catch (IOException e) {
+			log.log(Level.INFO, "Problem configuring new socket: " + sc, e);
+			al.accept(sc);
+		}
+	}
+
+	private void resumeAccepting(ArrayList<SelectionKey> suspended) {
+		for (Iterator<SelectionKey> it = suspended.iterator(); it.hasNext(); ) {
+			SelectionKey sk = it.next();
+
+			if ( !sk.isValid()) {
+				it.remove();
+
+				continue;
+			}
+
+			PortThrottlingData port_throttling =
+				throttling.get(((ServerSocketChannel) sk.channel()).socket().getLocalPort());
+
+			if ((port_throttling == null) || !port_throttling.isQueueFull()) {
+				sk.interestOps(SelectionKey.OP_ACCEPT);
+				it.remove();
+			}
+		}
+	}
+
 	//~--- get methods ----------------------------------------------------------
 
 	private long getThrottlingForPort(int port) {
@@ -438,14 +607,112 @@ public class ConnectionOpenThread implements Runnable {
 
 	//~--- inner classes --------------------------------------------------------
 
+	/**
+	 * Additional thread accepting connections on all listening sockets.
+	 */
+	private class Acceptor implements Runnable {
+		private ConcurrentLinkedQueue<Object[]> registrations =
+			new ConcurrentLinkedQueue<Object[]>();
+		private Selector selector = null;
+
+		//~--- constructors -------------------------------------------------------
+
+		private Acceptor() throws IOException {
+			selector = Selector.open();
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		/**
+		 * Method description
+		 *
+		 */
+		@Override
+		public void run() {
+			ArrayList<SelectionKey> suspended = new ArrayList<SelectionKey>();
+
+			while ( !stopping) {
+				try {
+					long timeout = dispatchWaiting();
+
+					resumeAccepting(suspended);
+					selector.select(timeout);
+
+					for (Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+							i.hasNext(); ) {
+						SelectionKey sk = i.next();
+
+						i.remove();
+
+						if (sk.isValid() && sk.isAcceptable()) {
+							acceptAll(sk, suspended);
+						}
+					}
+
+					Object[] reg = null;
+
+					while ((reg = registrations.poll()) != null) {
+						((ServerSocketChannel) reg[0]).register(selector, SelectionKey.OP_ACCEPT,
+								reg[1]);
+					}
+				} catch (Exception e) {
+					log.log(Level.SEVERE, "Other service exception.", e);
+				}
+			}
+		}
+
+		private void register(ServerSocketChannel ssc, ConnectionOpenListener al) {
+
+			// The channel must be registered by the thread using the selector
+			registrations.offer(new Object[] { ssc, al });
+			selector.wakeup();
+		}
+	}
+
+
+	private static class PendingSocket {
+		private ConnectionOpenListener al = null;
+		private SocketChannel sc = null;
+		private long time = System.nanoTime();
+
+		//~--- constructors -------------------------------------------------------
+
+		private PendingSocket(SocketChannel sc, ConnectionOpenListener al) {
+			this.sc = sc;
+			this.al = al;
+		}
+	}
+
+
 	private class PortThrottlingData {
 
 		/** Field description */
-		protected long lastSecondConnections = 0;
+		protected final AtomicLong accepted = new AtomicLong();
+
+		/** Field description */
+		protected volatile int maxQueueSize = 0;
+
+		/** Field description */
+		protected volatile long maxWaitTime = 0;
+
+		/** Field description */
+		protected final ConcurrentLinkedQueue<PendingSocket> queue =
+			new ConcurrentLinkedQueue<PendingSocket>();
+
+		/** Field description */
+		protected final AtomicInteger queueSize = new AtomicInteger();
 
 		/** Field description */
 		protected long throttling;
 
+		/** Field description */
+		protected final AtomicLong waitTime = new AtomicLong();
+
+		/** Field description */
+		protected final AtomicLong waited = new AtomicLong();
+		private long lastRefill = System.nanoTime();
+		private double tokens = 0;
+
 		//~--- constructors -------------------------------------------------------
 
 		/**
@@ -455,7 +722,75 @@ public class ConnectionOpenThread implements Runnable {
 		 * @param throttling_prop
 		 */
 		private PortThrottlingData(long throttling_prop) {
-			throttling = throttling_prop;
+			throttling = Math.max(1, throttling_prop);
+			tokens = throttling;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		private void offer(PendingSocket pending) {
+			queue.offer(pending);
+
+			int size = queueSize.incrementAndGet();
+
+			if (size > maxQueueSize) {
+				maxQueueSize = size;
+			}
+		}
+
+		private PendingSocket poll() {
+			PendingSocket pending = queue.poll();
+
+			if (pending != null) {
+				queueSize.decrementAndGet();
+
+				long wait = System.nanoTime() - pending.time;
+
+				waited.incrementAndGet();
+				waitTime.addAndGet(wait);
+
+				if (wait > maxWaitTime) {
+					maxWaitTime = wait;
+				}
+			}
+
+			return pending;
+		}
+
+		private synchronized void release() {
+			tokens = Math.min(throttling, tokens + 1);
+		}
+
+		private synchronized boolean tryAcquire() {
+			refill();
+
+			if (tokens >= 1) {
+				tokens -= 1;
+
+				return true;
+			}
+
+			return false;
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+
+			// The bucket holds at most one second of connections
+			tokens = Math.min(throttling, tokens + (now - lastRefill) * throttling / 1e9);
+			lastRefill = now;
+		}
+
+		//~--- get methods --------------------------------------------------------
+
+		private boolean isQueueFull() {
+			return queueSize.get() >= throttling * QUEUE_SECONDS;
+		}
+
+		private synchronized long getTokenDelay() {
+			refill();
+
+			return Math.max(1, (long) Math.ceil((1 - tokens) * 1000 / throttling));
 		}
 	}
 }    // ConnectionOpenThread
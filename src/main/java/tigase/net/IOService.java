@@ -931,6 +931,13 @@ public abstract class IOService<RefObject> implements Callable<IOService<?>>,
 				}
 			}
 
+		} catch (BufferUnderflowException ex) {
+
+			// Obtain more inbound network data for src,
+			// then retry the operation.
+			resizeInputBuffer();
+
+			return null;
 		} catch (Exception eof) {
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Socket: " + socketIO + ", Exception reading data", eof);
@@ -1081,6 +1088,42 @@ public abstract class IOService<RefObject> implements Callable<IOService<?>>,
 		}
 	}
 
+	/**
+	 * Writes all the buffers to the socket in the given order, in a single
+	 * gathering write if possible.
+	 * 
+	 * @param data
+	 */
+	protected void writeBytes(ByteBuffer[] data) {
+		writeInProgress.lock();
+
+		try {
+			int length = 0;
+
+			for (ByteBuffer buff : data) {
+				length += buff.remaining();
+			}
+
+			socketIO.writeBuffers(data);
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Socket: {0}, wrote: {1}", new Object[] { socketIO,
+						length });
+			}
+
+			setLastTransferTime();
+			empty_read_call_count = 0;
+		} catch (Exception e) {
+			if (log.isLoggable(Level.FINER)) {
+				log.log(Level.FINER, "Data writing exception " + connectionId, e);
+			}
+
+			forceStop();
+		} finally {
+			writeInProgress.unlock();
+		}
+	}
+
 	private void resizeInputBuffer() throws IOException {
 		int netSize = socketIO.getInputPacketSize();
 
@@ -26,6 +26,7 @@ package tigase.server;
 
 import tigase.annotations.TODO;
 
+import tigase.stats.MetricsRegistry;
 import tigase.stats.StatisticType;
 import tigase.stats.StatisticsContainer;
 import tigase.stats.StatisticsList;
@@ -198,15 +199,35 @@ public abstract class AbstractMessageReceiver extends BasicComponent implements
 	 * Variable <code>statAddedMessagesEr</code> keeps counter of unsuccessfuly
 	 * added messages due to queue overflow.
 	 */
-	private long statReceivedPacketsEr = 0;
+	private final MetricsRegistry.Counter statReceivedPacketsEr =
+			new MetricsRegistry.Counter();
+
+	/** Number of packets waiting in the incoming queues, computed when read. */
+	private final MetricsRegistry.Metric statInQueuesWait = new MetricsRegistry.Metric() {
+		@Override
+		public long get() {
+			return totalSize(in_queues);
+		}
+	};
+
+	/** Number of packets waiting in the outgoing queues, computed when read. */
+	private final MetricsRegistry.Metric statOutQueuesWait = new MetricsRegistry.Metric() {
+		@Override
+		public long get() {
+			return totalSize(out_queues);
+		}
+	};
 
 	/**
 	 * Variable <code>statAddedMessagesOk</code> keeps counter of successfuly
 	 * added messages to queue.
 	 */
-	private long statReceivedPacketsOk = 0;
-	private long statSentPacketsEr = 0;
-	private long statSentPacketsOk = 0;
+	private final MetricsRegistry.Counter statReceivedPacketsOk =
+			new MetricsRegistry.Counter();
+	private final MetricsRegistry.Counter statSentPacketsEr =
+			new MetricsRegistry.Counter();
+	private final MetricsRegistry.Counter statSentPacketsOk =
+			new MetricsRegistry.Counter();
 	private ArrayDeque<QueueListener> threadsQueue = null;
 	private final ConcurrentHashMap<String, PacketReceiverTask> waitingTasks =
 			new ConcurrentHashMap<String, PacketReceiverTask>(16, 0.75f, 4);
@@ -306,9 +327,9 @@ public abstract class AbstractMessageReceiver extends BasicComponent implements
 
 		try {
 			in_queues.get(queueIdx).put(packet, packet.getPriority().ordinal());
-			++statReceivedPacketsOk;
+			statReceivedPacketsOk.inc();
 		} catch (InterruptedException e) {
-			++statReceivedPacketsEr;
+			statReceivedPacketsEr.inc();
 
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Packet dropped for unknown reason: {0}", packet);
@@ -360,11 +381,11 @@ public abstract class AbstractMessageReceiver extends BasicComponent implements
 				in_queues.get(queueIdx).offer(packet, packet.getPriority().ordinal());
 
 		if (result) {
-			++statReceivedPacketsOk;
+			statReceivedPacketsOk.inc();
 		} else {
 
 			// Queue overflow!
-			++statReceivedPacketsEr;
+			statReceivedPacketsEr.inc();
 
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Packet dropped due to queue overflow: {0}", packet);
@@ -491,8 +512,10 @@ public abstract class AbstractMessageReceiver extends BasicComponent implements
 	 * and only then run own code.
 	 */
 	public synchronized void everyHour() {
-		packets_per_hour = statReceivedPacketsOk - last_hour_packets;
-		last_hour_packets = statReceivedPacketsOk;
+		long received = statReceivedPacketsOk.get();
+
+		packets_per_hour = received - last_hour_packets;
+		last_hour_packets = received;
 	}
 
 	/**
@@ -505,8 +528,10 @@ public abstract class AbstractMessageReceiver extends BasicComponent implements
 	 * and only then run own code.
 	 */
 	public synchronized void everyMinute() {
-		packets_per_minute = statReceivedPacketsOk - last_minute_packets;
-		last_minute_packets = statReceivedPacketsOk;
+		long received = statReceivedPacketsOk.get();
+
+		packets_per_minute = received - last_minute_packets;
+		last_minute_packets = received;
 		receiverTasks.purge();
 	}
 
@@ -520,8 +545,10 @@ public abstract class AbstractMessageReceiver extends BasicComponent implements
 	 * and only then run own code.
 	 */
 	public synchronized void everySecond() {
-		packets_per_second = statReceivedPacketsOk - last_second_packets;
-		last_second_packets = statReceivedPacketsOk;
+		long received = statReceivedPacketsOk.get();
+
+		packets_per_second = received - last_second_packets;
+		last_second_packets = received;
 	}
 
 	// ~--- get methods ----------------------------------------------------------
@@ -607,9 +634,9 @@ public abstract class AbstractMessageReceiver extends BasicComponent implements
 		list.add(getName(), "Last hour packets", packets_per_hour, Level.FINE);
 		list.add(getName(), "Processing threads", processingInThreads(), Level.FINER);
 		list.add(getName(), StatisticType.MSG_RECEIVED_OK.getDescription(),
-				statReceivedPacketsOk, Level.FINE);
-		list.add(getName(), StatisticType.MSG_SENT_OK.getDescription(), statSentPacketsOk,
-				Level.FINE);
+				statReceivedPacketsOk.get(), Level.FINE);
+		list.add(getName(), StatisticType.MSG_SENT_OK.getDescription(),
+				statSentPacketsOk.get(), Level.FINE);
 
 		if (list.checkLevel(Level.FINEST)) {
 			int[] in_priority_sizes = in_queues.get(0).size();
@@ -647,29 +674,22 @@ public abstract class AbstractMessageReceiver extends BasicComponent implements
 			}
 		}
 
-		int in_queue_size = 0;
-
-		for (PriorityQueueAbstract<Packet> total_size : in_queues) {
-			in_queue_size += total_size.totalSize();
-		}
-
-		int out_queue_size = 0;
-
-		for (PriorityQueueAbstract<Packet> total_size : out_queues) {
-			out_queue_size += total_size.totalSize();
-		}
+		int in_queue_size = totalSize(in_queues);
+		int out_queue_size = totalSize(out_queues);
 
 		list.add(getName(), "Total In queues wait", in_queue_size, Level.INFO);
 		list.add(getName(), "Total Out queues wait", out_queue_size, Level.INFO);
 		list.add(getName(), "Total queues wait", (in_queue_size + out_queue_size), Level.INFO);
 		list.add(getName(), StatisticType.MAX_QUEUE_SIZE.getDescription(),
 				(maxInQueueSize * processingInThreads()), Level.FINEST);
-		list.add(getName(), StatisticType.IN_QUEUE_OVERFLOW.getDescription(),
-				statReceivedPacketsEr, Level.INFO);
-		list.add(getName(), StatisticType.OUT_QUEUE_OVERFLOW.getDescription(),
-				statSentPacketsEr, Level.INFO);
-		list.add(getName(), "Total queues overflow",
-				(statReceivedPacketsEr + statSentPacketsEr), Level.INFO);
+		long receivedEr = statReceivedPacketsEr.get();
+		long sentEr = statSentPacketsEr.get();
+
+		list.add(getName(), StatisticType.IN_QUEUE_OVERFLOW.getDescription(), receivedEr,
+				Level.INFO);
+		list.add(getName(), StatisticType.OUT_QUEUE_OVERFLOW.getDescription(), sentEr,
+				Level.INFO);
+		list.add(getName(), "Total queues overflow", (receivedEr + sentEr), Level.INFO);
 
 		long res = 0;
 
@@ -825,12 +845,31 @@ public abstract class AbstractMessageReceiver extends BasicComponent implements
 		return 1;
 	}
 
+	private int totalSize(List<PriorityQueueAbstract<Packet>> queues) {
+		int result = 0;
+
+		// Read from statistics threads, queues are only added, never removed
+		for (int i = 0; i < queues.size(); i++) {
+			result += queues.get(i).totalSize();
+		}
+
+		return result;
+	}
+
 	/**
 	 * Method description
 	 * 
 	 */
 	@Override
 	public void release() {
+		MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+		metrics.unregister(statReceivedPacketsOk);
+		metrics.unregister(statReceivedPacketsEr);
+		metrics.unregister(statSentPacketsOk);
+		metrics.unregister(statSentPacketsEr);
+		metrics.unregister(statInQueuesWait);
+		metrics.unregister(statOutQueuesWait);
 		stop();
 	}
 
@@ -904,9 +943,22 @@ public abstract class AbstractMessageReceiver extends BasicComponent implements
 	@Override
 	public void setName(String name) {
 		super.setName(name);
+
+		MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+		metrics.register(statReceivedPacketsOk, name,
+				StatisticType.MSG_RECEIVED_OK.getDescription(), Level.FINE);
+		metrics.register(statSentPacketsOk, name, StatisticType.MSG_SENT_OK.getDescription(),
+				Level.FINE);
+		metrics.register(statReceivedPacketsEr, name,
+				StatisticType.IN_QUEUE_OVERFLOW.getDescription(), Level.INFO);
+		metrics.register(statSentPacketsEr, name,
+				StatisticType.OUT_QUEUE_OVERFLOW.getDescription(), Level.INFO);
 		in_queues_size = processingInThreads();
 		out_queues_size = processingOutThreads();
 		setMaxQueueSize(maxInQueueSize);
+		metrics.register(statInQueuesWait, name, "Total In queues wait", Level.INFO);
+		metrics.register(statOutQueuesWait, name, "Total Out queues wait", Level.INFO);
 	}
 
 	/**
@@ -1014,9 +1066,9 @@ public abstract class AbstractMessageReceiver extends BasicComponent implements
 
 		try {
 			out_queues.get(queueIdx).put(packet, packet.getPriority().ordinal());
-			++statSentPacketsOk;
+			statSentPacketsOk.inc();
 		} catch (InterruptedException e) {
-			++statSentPacketsEr;
+			statSentPacketsEr.inc();
 
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Packet dropped for unknown reason: {0}", packet);
@@ -1048,11 +1100,11 @@ public abstract class AbstractMessageReceiver extends BasicComponent implements
 		result = out_queues.get(queueIdx).offer(packet, packet.getPriority().ordinal());
 
 		if (result) {
-			++statSentPacketsOk;
+			statSentPacketsOk.inc();
 		} else {
 
 			// Queue overflow!
-			++statSentPacketsEr;
+			statSentPacketsEr.inc();
 
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Packet dropped due to queue overflow: {0}", packet);
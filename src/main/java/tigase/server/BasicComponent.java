@@ -879,15 +879,13 @@ public class BasicComponent implements Configurable, XMPPService, VHostListener
 						log.log(Level.FINER, "Processing admin command: {0}", pc);
 					}
 
-					Bindings binds = com.getBindings();
+					List<Element> forms = getBulkForms(iqc);
 
-					if (binds == null) {
-						binds = scriptEngineManager.getBindings();
+					if (forms.size() > 1) {
+						runBulkCommand(com, iqc, forms, results);
+					} else {
+						runScriptCommand(com, iqc, results);
 					}
-
-					// Bindings binds = scriptEngineManager.getBindings();
-					initBindings(binds);
-					com.runCommand(iqc, binds, results);
 				} else {
 					if (log.isLoggable(Level.FINER)) {
 						log.log(Level.FINER, "Command rejected non-admin detected: {0}",
@@ -912,6 +910,98 @@ public class BasicComponent implements Configurable, XMPPService, VHostListener
 		return false;
 	}
 
+	private List<Element> getBulkForms(Iq iqc) {
+		List<Element> forms = new LinkedList<Element>();
+		Element command = iqc.getElement().getChild(Command.COMMAND_EL, Command.XMLNS);
+		List<Element> children = (command == null) ? null : command.getChildren();
+
+		if (children != null) {
+			for (Element child : children) {
+				if ((child.getName() == "x") && "jabber:x:data".equals(child.getXMLNS())) {
+					forms.add(child);
+				}
+			}
+		}
+
+		return forms;
+	}
+
+	/**
+	 * Executes the command once for each submitted data form, which allows to
+	 * run a command over many items, like adding users, with a single request.
+	 * Each execution gets a copy of the request with one of the forms and the
+	 * results of all executions are returned in a single response, in the same
+	 * order as the forms in the request.
+	 */
+	private void runBulkCommand(CommandIfc com, Iq iqc, List<Element> forms,
+			Queue<Packet> results) {
+		Packet result = iqc.commandResult(null);
+		Element resultCommand = result.getElement().getChild(Command.COMMAND_EL);
+		Queue<Packet> itemResults = new LinkedList<Packet>();
+
+		if (log.isLoggable(Level.FINER)) {
+			log.log(Level.FINER, "Bulk execution of command: {0} for {1} items", new Object[] {
+					iqc.getStrCommand(), forms.size() });
+		}
+
+		for (Element form : forms) {
+			Element itemElem = iqc.getElement().clone();
+			Element itemCommand = itemElem.getChild(Command.COMMAND_EL, Command.XMLNS);
+			List<Element> itemChildren = new LinkedList<Element>();
+
+			itemChildren.add(form.clone());
+			itemCommand.setChildren(itemChildren);
+
+			Iq item = new Iq(itemElem, iqc.getStanzaFrom(), iqc.getStanzaTo());
+
+			item.setPacketFrom(iqc.getPacketFrom());
+			item.setPacketTo(iqc.getPacketTo());
+			item.setPermissions(iqc.getPermissions());
+			runScriptCommand(com, item, itemResults);
+
+			Packet res = null;
+
+			while ((res = itemResults.poll()) != null) {
+				if ((res.getElemName() == Iq.ELEM_NAME)
+						&& iqc.getStanzaId().equals(res.getStanzaId())) {
+					Element resCommand = res.getElement().getChild(Command.COMMAND_EL);
+
+					if (resCommand != null) {
+						List<Element> resChildren = resCommand.getChildren();
+
+						if (resChildren != null) {
+							resultCommand.addChildren(resChildren);
+						}
+					} else {
+
+						// Error response, the item result is a note about the error
+						Element error = res.getElement().getChild("error");
+
+						resultCommand.addChild(new Element("note", (error == null) ? null : error
+								.getChildCData("/error/text"), new String[] { "type" },
+								new String[] { "error" }));
+					}
+				} else {
+					results.offer(res);
+				}
+			}
+		}
+
+		Command.setStatus(result, Command.Status.completed);
+		results.offer(result);
+	}
+
+	private void runScriptCommand(CommandIfc com, Iq iqc, Queue<Packet> results) {
+		Bindings binds = com.getBindings();
+
+		if (binds == null) {
+			binds = scriptEngineManager.getBindings();
+		}
+
+		initBindings(binds);
+		com.runCommand(iqc, binds, results);
+	}
+
 	private void loadScripts() {
 
 		log.log(Level.CONFIG, "Loading admin scripts for component: {0}.",
@@ -70,6 +70,13 @@ public enum Command {
 	 */
 	STREAM_CLOSED(Priority.SYSTEM), STREAM_CLOSED_UPDATE(Priority.SYSTEM),
 
+	/**
+	 * Command sent from the session manager to a connection manager when a
+	 * client resumes its previous session on a new connection. The connection
+	 * manager moves the old session state to the new connection.
+	 */
+	STREAM_MOVED(Priority.SYSTEM),
+
 	/**
 	 * Sends a command from SM to the connection holder to confirm whether the
 	 * connection is still active. Expects result for ok, error or timeout if the
@@ -32,6 +32,7 @@ import tigase.net.SocketType;
 
 import tigase.server.script.CommandIfc;
 
+import tigase.stats.MetricsRegistry;
 import tigase.stats.StatisticsList;
 
 import tigase.util.DataTypes;
@@ -111,6 +112,14 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>> extends
 
 	private int services_size = 0;
 	private long socketOverflow = 0;
+
+	/** Number of open connections, computed when read. */
+	private final MetricsRegistry.Metric statOpenConnections = new MetricsRegistry.Metric() {
+		@Override
+		public long get() {
+			return services.size();
+		}
+	};
 	private Thread watchdog = null;
 	private long watchdogRuns = 0;
 	private long watchdogStopped = 0;
@@ -278,7 +287,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>> extends
 	@Override
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
-		list.add(getName(), "Open connections", services_size, Level.INFO);
+		list.add(getName(), "Open connections", (int) statOpenConnections.get(), Level.INFO);
 
 		if (list.checkLevel(Level.FINEST) || services.size() < 1000) {
 			int waitingToSendSize = 0;
@@ -297,6 +306,10 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>> extends
 		list.add(getName(), "Watchdog tests", watchdogTests, Level.FINE);
 		list.add(getName(), "Watchdog stopped", watchdogStopped, Level.FINE);
 
+		for (ConnectionListenerImpl cli : pending_open) {
+			connectThread.getStatistics(getName(), cli.getPort(), list);
+		}
+
 	}
 
 	/**
@@ -404,6 +417,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>> extends
 
 		// delayedTasks.cancel();
 		releaseListeners();
+		MetricsRegistry.getInstance().unregister(statOpenConnections);
 		super.release();
 	}
 
@@ -508,6 +522,8 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>> extends
 	@Override
 	public void setName(String name) {
 		super.setName(name);
+		MetricsRegistry.getInstance().register(statOpenConnections, name, "Open connections",
+				Level.INFO);
 		watchdog = new Thread(new Watchdog(), "Watchdog - " + name);
 		watchdog.setDaemon(true);
 		watchdog.start();
@@ -122,6 +122,7 @@ public class MessageRouterConfig {
 		COMPONENT_CLASSES.put(DEF_SSEND_NAME, SSEND_COMP_CLASS_NAME);
 		COMPONENT_CLASSES.put(DEF_SRECV_NAME, SRECV_COMP_CLASS_NAME);
 		COMPONENT_CLASSES.put(DEF_BOSH_NAME, BOSH_COMP_CLASS_NAME);
+		COMPONENT_CLASSES.put(DEF_WS_NAME, WS_COMP_CLASS_NAME);
 		COMPONENT_CLASSES.put(DEF_STATS_NAME, STATS_CLASS_NAME);
 		COMPONENT_CLASSES.put(DEF_CLUST_CONTR_NAME, CLUSTER_CONTR_CLASS_NAME);
 		COMPONENT_CLASSES.put(DEF_VHOST_MAN_NAME, VHOST_MAN_CLASS_NAME);
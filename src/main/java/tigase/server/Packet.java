@@ -26,6 +26,8 @@ package tigase.server;
 
 //~--- non-JDK imports --------------------------------------------------------
 
+import tigase.io.ElementEncoder;
+
 import tigase.util.TigaseStringprepException;
 
 import tigase.xml.Element;
@@ -137,6 +139,8 @@ public class Packet {
 // *
 // */
 //public static final String OLDTO = "oldto";
+	// UTF-8 serialized element, shared by all connections the packet is written to
+	private volatile byte[] elemBytes = null;
 	private JID packetFrom = null;
 	private JID packetTo = null;
 	private String packetToString = null;
@@ -579,6 +583,26 @@ public class Packet {
 		return elem;
 	}
 
+	/**
+	 * Returns the stanza XML element serialized to UTF-8, the same data as
+	 * <code>getElement().toString()</code> encoded. The data is serialized once
+	 * and reused when the packet is written to more connections or written again,
+	 * so the element must not be modified directly afterwards.
+	 *
+	 *
+	 * @return the serialized stanza, which must not be modified.
+	 */
+	public byte[] getElementBytes() {
+		byte[] result = elemBytes;
+
+		if (result == null) {
+			result = ElementEncoder.toBytes(elem);
+			elemBytes = result;
+		}
+
+		return result;
+	}
+
 	/**
 	 * Method parses the stanza and returns the error condition if there is any.
 	 *
@@ -782,6 +806,7 @@ public class Packet {
 		}
 
 		stanzaId = elem.getAttribute("id");
+		elemBytes = null;
 		packetToString = null;
 		packetToStringSecure = null;
 	}
@@ -821,6 +846,7 @@ public class Packet {
 		}
 
 		stanzaId = elem.getAttribute("id");
+		elemBytes = null;
 		packetToString = null;
 		packetToStringSecure = null;
 	}
@@ -916,6 +942,7 @@ public class Packet {
 	
 	public void setXMLNS(String xmlns) {
 		elem.setXMLNS(xmlns);
+		elemBytes = null;
 		packetToString = null;
 		packetToStringSecure = null;		
 	}
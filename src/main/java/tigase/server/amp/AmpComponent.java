@@ -44,6 +44,7 @@ import tigase.xmpp.JID;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -63,6 +64,7 @@ public class AmpComponent extends AbstractMessageReceiver implements
 	private static final String AMP_XMLNS = AMP_NODE;
 	private static final Element top_feature = new Element("feature",
 			new String[] { "var" }, new String[] { AMP_NODE });
+	private static final int MAX_RULE_SETS_CACHE_SIZE = 1000;
 
 	// ~--- fields ---------------------------------------------------------------
 
@@ -70,6 +72,13 @@ public class AmpComponent extends AbstractMessageReceiver implements
 	private Map<String, ConditionIfc> conditions =
 			new ConcurrentSkipListMap<String, ConditionIfc>();
 
+	/**
+	 * Compiled rule-sets by the rule-set key, most AMP packets carry one of a
+	 * few rule-sets used by applications sending notifications.
+	 */
+	private ConcurrentHashMap<String, AmpRuleSet> ruleSets =
+			new ConcurrentHashMap<String, AmpRuleSet>();
+
 	// ~--- methods --------------------------------------------------------------
 
 	/**
@@ -256,12 +265,11 @@ public class AmpComponent extends AbstractMessageReceiver implements
 			List<Element> rules = amp.getChildren();
 
 			if ((rules != null) && (rules.size() > 0)) {
-				for (Element rule : rules) {
-					if (matchCondition(packet, rule)) {
-						exec_def = executeAction(packet, rule);
+				AmpRuleSet ruleSet = getRuleSet(rules);
+				int idx = ruleSet.match(packet, rules);
 
-						break;
-					}
+				if (idx >= 0) {
+					exec_def = executeAction(packet, ruleSet.getAction(idx), rules.get(idx));
 				}
 			} else {
 				log.warning("AMP packet but empty rule-set! " + packet);
@@ -306,6 +314,9 @@ public class AmpComponent extends AbstractMessageReceiver implements
 			a.setProperties(props, this);
 		}
 
+		// Actions and conditions might have been replaced by getDefaults()
+		ruleSets.clear();
+
 		// for (ConditionIfc c : conditions.values()) {
 		// c.setProperties(props, this);
 		// }
@@ -313,52 +324,38 @@ public class AmpComponent extends AbstractMessageReceiver implements
 
 	// ~--- methods --------------------------------------------------------------
 
-	private boolean executeAction(Packet packet, Element rule) {
-		String act = rule.getAttribute(AmpFeatureIfc.ACTION_ATT);
-
-		if (act != null) {
-			ActionIfc action = actions.get(act);
+	private boolean executeAction(Packet packet, ActionIfc action, Element rule) {
+		if (action != null) {
+			boolean result = action.execute(packet, rule);
 
-			if (action != null) {
-				boolean result = action.execute(packet, rule);
-
-				if (log.isLoggable(Level.FINEST)) {
-					log.finest("Matched action: " + action.getName() + ", result: " + result);
-				}
-
-				return result;
-			} else {
-				log.fine("No action found for act: " + act);
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("Matched action: " + action.getName() + ", result: " + result);
 			}
-		} else {
-			log.fine("No actionset for rule: " + rule);
+
+			return result;
 		}
 
 		return true;
 	}
 
-	private boolean matchCondition(Packet packet, Element rule) {
-		String cond = rule.getAttribute(AmpFeatureIfc.CONDITION_ATT);
+	// ~--- get methods ----------------------------------------------------------
 
-		if (cond != null) {
-			ConditionIfc condition = conditions.get(cond);
+	private AmpRuleSet getRuleSet(List<Element> rules) {
+		String key = AmpRuleSet.getKey(rules);
+		AmpRuleSet ruleSet = ruleSets.get(key);
 
-			if (condition != null) {
-				boolean result = condition.match(packet, rule);;
+		if (ruleSet == null) {
+			ruleSet = AmpRuleSet.compile(rules, conditions, actions);
 
-				if (log.isLoggable(Level.FINEST)) {
-					log.finest("Matched condition: " + condition.getName() + ", result: " + result);
-				}
-
-				return result;
-			} else {
-				log.fine("No condition found for cond: " + cond);
+			// Keeps the cache bounded if clients send many distinct rule-sets
+			if (ruleSets.size() >= MAX_RULE_SETS_CACHE_SIZE) {
+				ruleSets.clear();
 			}
-		} else {
-			log.fine("No condition set for rule: " + rule);
+
+			ruleSets.put(key, ruleSet);
 		}
 
-		return false;
+		return ruleSet;
 	}
 }
 
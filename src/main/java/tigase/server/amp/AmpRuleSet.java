@@ -0,0 +1,294 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+package tigase.server.amp;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.server.Packet;
+import tigase.server.amp.cond.Deliver;
+import tigase.server.amp.cond.ExpireAt;
+import tigase.server.amp.cond.MatchResource;
+
+import tigase.xml.Element;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.text.ParseException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Compiled form of an AMP rule-set. Conditions and actions are looked up and
+ * <code>deliver</code> and <code>match-resource</code> values are parsed once
+ * when the rule-set is compiled, so packets carrying the same rules, which is
+ * the common case for notifications sent by a single application, are matched
+ * without the lookups and without reading the rule elements. Rule-sets are
+ * identified by the key built with <code>getKey()</code>, which leaves out
+ * <code>expire-at</code> values as they are unique for almost every packet,
+ * such a value is parsed from the packet rule when matching.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class AmpRuleSet {
+	private static final Logger log = Logger.getLogger(AmpRuleSet.class.getName());
+
+	//~--- constant enums -------------------------------------------------------
+
+	private enum CondType { deliver, expire_at, match_resource, custom, unknown; }
+
+	//~--- fields ---------------------------------------------------------------
+
+	private Rule[] rules = null;
+
+	//~--- constructors ---------------------------------------------------------
+
+	private AmpRuleSet(Rule[] rules) {
+		this.rules = rules;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Compiles the rule-set.
+	 *
+	 *
+	 * @param rules are rule elements from the <code>amp</code> element.
+	 * @param conditions are available conditions by name.
+	 * @param actions are available actions by name.
+	 *
+	 * @return
+	 */
+	public static AmpRuleSet compile(List<Element> rules,
+			Map<String, ConditionIfc> conditions, Map<String, ActionIfc> actions) {
+		Rule[] result = new Rule[rules.size()];
+		int i = 0;
+
+		for (Element rule : rules) {
+			result[i++] = compileRule(rule, conditions, actions);
+		}
+
+		return new AmpRuleSet(result);
+	}
+
+	/**
+	 * Returns the action of the rule at the given position.
+	 *
+	 *
+	 * @param idx
+	 *
+	 * @return the action or <code>null</code> if the rule has no action or the
+	 * action is not supported.
+	 */
+	public ActionIfc getAction(int idx) {
+		return rules[idx].action;
+	}
+
+	/**
+	 * Builds the key identifying rule-sets with the same rules. Values of the
+	 * <code>deliver</code> and <code>match-resource</code> conditions are a part
+	 * of the key, values of other conditions are not.
+	 *
+	 *
+	 * @param rules
+	 *
+	 * @return
+	 */
+	public static String getKey(List<Element> rules) {
+		StringBuilder sb = new StringBuilder(64 * rules.size());
+
+		for (Element rule : rules) {
+			String cond = rule.getAttribute(AmpFeatureIfc.CONDITION_ATT);
+
+			sb.append(cond).append('\0');
+
+			if (Deliver.NAME.equals(cond) || MatchResource.NAME.equals(cond)) {
+				sb.append(rule.getAttribute("value"));
+			}
+
+			sb.append('\0').append(rule.getAttribute(AmpFeatureIfc.ACTION_ATT)).append('\n');
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Finds the first rule whose condition is met by the packet.
+	 *
+	 *
+	 * @param packet
+	 * @param elems are the packet rule elements the rule-set was compiled from,
+	 * <code>expire-at</code> and conditions not known to the rule-set take
+	 * their values from them.
+	 *
+	 * @return the rule position or -1 if no rule matches.
+	 */
+	public int match(Packet packet, List<Element> elems) {
+		for (int i = 0; i < rules.length; i++) {
+			Rule rule = rules[i];
+			boolean result = false;
+
+			switch (rule.type) {
+				case deliver :
+					result = ((Deliver) rule.condition).match(packet, rule.deliver);
+
+					break;
+
+				case expire_at :
+					result = matchExpireAt(packet, (ExpireAt) rule.condition, elems.get(i));
+
+					break;
+
+				case match_resource :
+					result = ((MatchResource) rule.condition).match(packet, rule.resource);
+
+					break;
+
+				case custom :
+					result = rule.condition.match(packet, elems.get(i));
+
+					break;
+
+				default :
+			}
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Matched condition: {0}, result: {1}", new Object[] {
+						rule.cond,
+						result });
+			}
+
+			if (result) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private static Rule compileRule(Element elem, Map<String, ConditionIfc> conditions,
+			Map<String, ActionIfc> actions) {
+		Rule rule = new Rule();
+		String act = elem.getAttribute(AmpFeatureIfc.ACTION_ATT);
+		String value = elem.getAttribute("value");
+
+		rule.cond = elem.getAttribute(AmpFeatureIfc.CONDITION_ATT);
+
+		if (act != null) {
+			rule.action = actions.get(act);
+
+			if (rule.action == null) {
+				log.fine("No action found for act: " + act);
+			}
+		} else {
+			log.fine("No actionset for rule: " + elem);
+		}
+
+		if (rule.cond == null) {
+			log.fine("No condition set for rule: " + elem);
+
+			return rule;
+		}
+
+		rule.condition = conditions.get(rule.cond);
+
+		if (rule.condition == null) {
+			log.fine("No condition found for cond: " + rule.cond);
+
+			return rule;
+		}
+
+		if (rule.condition instanceof ExpireAt) {
+			rule.type = CondType.expire_at;
+
+			return rule;
+		}
+
+		if ( !(rule.condition instanceof Deliver) && !(rule.condition instanceof MatchResource)) {
+			rule.type = CondType.custom;
+
+			return rule;
+		}
+
+		// Rules with an incorrect value never match, the same as they did when
+		// parsed for each packet
+		if (value == null) {
+			log.info("No value set for rule: " + elem);
+
+			return rule;
+		}
+
+		try {
+			if (rule.condition instanceof Deliver) {
+				rule.deliver = Deliver.MatchValue.valueOf(value);
+				rule.type = CondType.deliver;
+			} else {
+				rule.resource = MatchResource.MatchValue.valueOf(value);
+				rule.type = CondType.match_resource;
+			}
+		} catch (IllegalArgumentException e) {
+			log.info("Incorrect " + rule.cond + " condition value for rule: " + elem);
+		}
+
+		return rule;
+	}
+
+	private static boolean matchExpireAt(Packet packet, ExpireAt condition, Element elem) {
+		String value = elem.getAttribute("value");
+
+		if (value == null) {
+			log.info("No value set for rule: " + elem);
+
+			return false;
+		}
+
+		try {
+			return condition.match(packet, condition.parseValue(value));
+		} catch (ParseException ex) {
+			log.info("Incorrect " + ExpireAt.NAME + " condition value for rule: " + elem);
+
+			return false;
+		}
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	private static class Rule {
+		private ActionIfc action = null;
+		private String cond = null;
+		private ConditionIfc condition = null;
+		private Deliver.MatchValue deliver = null;
+		private MatchResource.MatchValue resource = null;
+		private CondType type = CondType.unknown;
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
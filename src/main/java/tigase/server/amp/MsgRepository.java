@@ -31,14 +31,16 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Iterator;
 import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -59,6 +61,13 @@ import tigase.xmpp.JID;
 //~--- classes ----------------------------------------------------------------
 
 /**
+ * Offline and AMP message store. Messages with an expiration time are kept in
+ * a small in-memory expiry index covering the time window up to
+ * <code>indexedUntil</code>, the index is paged in from the database one
+ * window at a time, at most <code>MAX_QUEUE_SIZE</code> messages per page.
+ * Stored and deleted messages update the index, so the database is only
+ * queried when the window moves.
+ *
  * Created: May 3, 2010 5:28:02 PM
  * 
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
@@ -161,10 +170,9 @@ public class MsgRepository implements MsgRepositoryIfc {
 		"delete from " + MSG_TABLE + " where " + MSG_TO_UID_COLUMN + " = ?";
 	private static final String MSG_DELETE_ID_QUERY = 
 		"delete from " + MSG_TABLE + " where " + MSG_ID_COLUMN + " = ?";
-	private static final String MSG_SELECT_EXPIRED_QUERY = 
-		"select * from " + MSG_TABLE + " where expired is not null order by expired";
-	private static final String MSG_SELECT_EXPIRED_BEFORE_QUERY = 
-		"select * from " + MSG_TABLE + " where expired is not null and expired <= ? order by expired";
+	private static final String MSG_SELECT_EXPIRED_BETWEEN_QUERY = 
+		"select * from " + MSG_TABLE + " where expired is not null and expired > ? and expired <= ?" +
+		" order by expired";
 	private static final String GET_USER_UID_DEF_QUERY = 
 		"select " + 
 		  JID_ID_COLUMN + ", " + 
@@ -185,10 +193,21 @@ public class MsgRepository implements MsgRepositoryIfc {
 			new ConcurrentSkipListMap<String, MsgRepository>();
 	private static final int MAX_QUEUE_SIZE = 1000;
 
+	/** Time span of the database paged in to the expiry index at once. */
+	private static final long EXPIRY_WINDOW = 60 * 1000;
+
+	/**
+	 * Databases may keep expiration time with one second precision only.
+	 */
+	private static final long EXPIRY_PRECISION = 1000;
+	private static final long EXPIRY_RETRY_TIME = 10 * 1000;
+
+	/** Minimum time between loads of a window cut short by new messages. */
+	private static final long EXPIRY_RELOAD_DELAY = 1000;
+
 	// ~--- fields ---------------------------------------------------------------
 
 	private DataRepository data_repo = null;
-	private long earliestOffline = Long.MAX_VALUE;
 	private SimpleParser parser = SingletonFactory.getParserInstance();
 	private String uid_query = GET_USER_UID_DEF_QUERY;
 	private String msg_count_for_limit_query = MSG_COUNT_FOR_TO_AND_FROM_QUERY_DEF;
@@ -197,7 +216,7 @@ public class MsgRepository implements MsgRepositoryIfc {
 	private Map<BareJID, Long> uids_cache = Collections
 			.synchronizedMap(new SimpleCache<BareJID, Long>(MAX_UID_CACHE_SIZE,
 					MAX_UID_CACHE_TIME));
-	private DelayQueue<MsgDBItem> expiredQueue = new DelayQueue<MsgDBItem>();
+	private ExpiryIndex expiryIndex = new ExpiryIndex();
 
 	// ~--- get methods ----------------------------------------------------------
 
@@ -227,36 +246,7 @@ public class MsgRepository implements MsgRepositoryIfc {
 	 */
 	@Override
 	public Element getMessageExpired(long time, boolean delete) {
-		if (expiredQueue.size() == 0) {
-
-			// If the queue is empty load it with some elements
-			loadExpiredQueue(MAX_QUEUE_SIZE);
-		} else {
-
-			// If the queue is not empty, check whether recently saved off-line
-			// message
-			// is due to expire sooner then the head of the queue.
-			MsgDBItem item = expiredQueue.peek();
-
-			if ((item != null) && (earliestOffline < item.expired.getTime())) {
-
-				// There is in fact off-line message due to expire sooner then the head
-				// of the
-				// queue. Load all off-line message due to expire sooner then the first
-				// element
-				// in the queue.
-				loadExpiredQueue(item.expired);
-			}
-		}
-
-		MsgDBItem item = null;
-
-		while (item == null) {
-			try {
-				item = expiredQueue.take();
-			} catch (InterruptedException ex) {
-			}
-		}
+		MsgDBItem item = expiryIndex.take();
 
 		if (delete) {
 			deleteMessage(item.db_id);
@@ -313,9 +303,8 @@ public class MsgRepository implements MsgRepositoryIfc {
 			data_repo.initPreparedStatement(MSG_SELECT_TO_JID_QUERY, MSG_SELECT_TO_JID_QUERY);
 			data_repo.initPreparedStatement(MSG_DELETE_TO_JID_QUERY, MSG_DELETE_TO_JID_QUERY);
 			data_repo.initPreparedStatement(MSG_DELETE_ID_QUERY, MSG_DELETE_ID_QUERY);
-			data_repo.initPreparedStatement(MSG_SELECT_EXPIRED_QUERY, MSG_SELECT_EXPIRED_QUERY);
-			data_repo.initPreparedStatement(MSG_SELECT_EXPIRED_BEFORE_QUERY,
-					MSG_SELECT_EXPIRED_BEFORE_QUERY);
+			data_repo.initPreparedStatement(MSG_SELECT_EXPIRED_BETWEEN_QUERY,
+					MSG_SELECT_EXPIRED_BETWEEN_QUERY);
 			data_repo.initPreparedStatement(msg_count_for_limit_query,
 					msg_count_for_limit_query);
 			data_repo.initPreparedStatement(ADD_USER_JID_ID_QUERY, ADD_USER_JID_ID_QUERY);
@@ -375,6 +364,8 @@ public class MsgRepository implements MsgRepositoryIfc {
 					delete_to_jid_st.setLong(1, to_uid);
 					delete_to_jid_st.executeUpdate();
 				}
+
+				expiryIndex.deleted(to_uid);
 			}
 		} catch (SQLException e) {
 			log.log(Level.WARNING, "Problem getting offline messages for user: " + to, e);
@@ -464,13 +455,7 @@ public class MsgRepository implements MsgRepositoryIfc {
 			}
 
 			if (expired != null) {
-				if (expired.getTime() < earliestOffline) {
-					earliestOffline = expired.getTime();
-				}
-
-				if (expiredQueue.size() == 0) {
-					loadExpiredQueue(1);
-				}
+				expiryIndex.stored(expired.getTime());
 			}
 		} catch (DataTruncation dte) {
 			log.log(Level.FINE, "Data truncated for message from {0} to {1}", new Object[] {
@@ -610,21 +595,45 @@ public class MsgRepository implements MsgRepositoryIfc {
 
 	// ~--- methods --------------------------------------------------------------
 
-	private void loadExpiredQueue(int min_elements) {
+	/**
+	 * Loads messages expiring in the time window (from, to] ordered by the
+	 * expiration time. At most <code>MAX_QUEUE_SIZE</code> messages are loaded,
+	 * plus messages expiring at the same time as the last one, so the window can
+	 * be moved to the expiration time of the last loaded message.
+	 * 
+	 * @param from
+	 * @param to
+	 * @param items receives loaded messages.
+	 * @return the end of the loaded time window or -1 on database error.
+	 */
+	private long loadExpired(long from, long to, Queue<MsgDBItem> items) {
 		ResultSet rs = null;
+		long result = to;
 
 		try {
 			PreparedStatement select_expired_st =
-					data_repo.getPreparedStatement(null, MSG_SELECT_EXPIRED_QUERY);
+					data_repo.getPreparedStatement(null, MSG_SELECT_EXPIRED_BETWEEN_QUERY);
 
 			synchronized (select_expired_st) {
+				select_expired_st.setTimestamp(1, new Timestamp(from));
+				select_expired_st.setTimestamp(2, new Timestamp(to));
 				rs = select_expired_st.executeQuery();
 
 				DomBuilderHandler domHandler = new DomBuilderHandler();
 				int counter = 0;
+				long last = -1;
+
+				while (rs.next()) {
+					Timestamp ts = rs.getTimestamp(MSG_EXPIRED_COLUMN);
+
+					if ((++counter > MAX_QUEUE_SIZE) && (ts.getTime() != last)) {
+						result = last;
+
+						break;
+					}
+
+					last = ts.getTime();
 
-				while (rs.next()
-						&& ((expiredQueue.size() < MAX_QUEUE_SIZE) || (counter++ < min_elements))) {
 					String msg_str = rs.getString(MSG_BODY_COLUMN);
 
 					parser.parse(domHandler, msg_str.toCharArray(), 0, msg_str.length());
@@ -637,75 +646,161 @@ public class MsgRepository implements MsgRepositoryIfc {
 								"Something wrong, loaded offline message from DB but parsed no "
 										+ "XML elements: {0}", msg_str);
 					} else {
-						Timestamp ts = rs.getTimestamp(MSG_EXPIRED_COLUMN);
-						MsgDBItem item = new MsgDBItem(rs.getLong(MSG_ID_COLUMN), msg, ts);
-
-						expiredQueue.offer(item);
+						items.offer(new MsgDBItem(rs.getLong(MSG_ID_COLUMN), rs
+								.getLong(MSG_TO_UID_COLUMN), msg, ts));
 					}
 				}
 			}
 		} catch (SQLException e) {
 			log.log(Level.WARNING, "Problem getting offline messages from db: ", e);
+			result = -1;
 		} finally {
 			data_repo.release(null, rs);
 		}
 
-		earliestOffline = Long.MAX_VALUE;
+		return result;
 	}
 
-	private void loadExpiredQueue(Date expired) {
-		ResultSet rs = null;
+	// ~--- inner classes --------------------------------------------------------
 
-		try {
-			if (expiredQueue.size() > 100 * MAX_QUEUE_SIZE) {
-				expiredQueue.clear();
+	/**
+	 * Messages expiring up to <code>indexedUntil</code>, ordered by the
+	 * expiration time. When the time passes <code>indexedUntil</code> the next
+	 * window is loaded from the database. A message stored with the expiration
+	 * time inside the window moves the window end back before its expiration
+	 * time, so it is loaded with the next page, as its database id is not known
+	 * here. Changes made while a page is loaded are applied to the page, so it
+	 * never has to be thrown away.
+	 */
+	private class ExpiryIndex {
+		private boolean cut = false;
+		private Set<Long> deletedUids = new HashSet<Long>();
+		private long indexedUntil = 0;
+		private long lastLoad = 0;
+		private long loadLimit = 0;
+		private boolean loading = false;
+		private TreeSet<MsgDBItem> items = new TreeSet<MsgDBItem>();
+
+		// ~--- methods ------------------------------------------------------------
+
+		private synchronized void deleted(long to_uid) {
+			boolean removed = false;
+
+			for (Iterator<MsgDBItem> it = items.iterator(); it.hasNext(); ) {
+				if (it.next().to_uid == to_uid) {
+					it.remove();
+					removed = true;
+				}
 			}
 
-			PreparedStatement select_expired_before_st =
-					data_repo.getPreparedStatement(null, MSG_SELECT_EXPIRED_BEFORE_QUERY);
+			// The page being loaded right now might contain deleted messages
+			if (loading) {
+				deletedUids.add(to_uid);
+			}
 
-			synchronized (select_expired_before_st) {
-				select_expired_before_st.setTimestamp(1, new Timestamp(expired.getTime()));
-				rs = select_expired_before_st.executeQuery();
+			if (removed) {
+				notifyAll();
+			}
+		}
 
-				DomBuilderHandler domHandler = new DomBuilderHandler();
-				int counter = 0;
+		private synchronized void stored(long expired) {
+			long time = expired - EXPIRY_PRECISION;
 
-				while (rs.next() && (counter++ < MAX_QUEUE_SIZE)) {
-					String msg_str = rs.getString(MSG_BODY_COLUMN);
+			if (loading && (time < loadLimit)) {
+				loadLimit = time;
+				cut = true;
+			}
 
-					parser.parse(domHandler, msg_str.toCharArray(), 0, msg_str.length());
+			if (time < indexedUntil) {
+				indexedUntil = time;
 
-					Queue<Element> elems = domHandler.getParsedElements();
-					Element msg = elems.poll();
+				while ( !items.isEmpty() && (items.last().expired.getTime() > time)) {
+					items.pollLast();
+				}
 
-					if (msg == null) {
-						log.log(Level.INFO,
-								"Something wrong, loaded offline message from DB but parsed no "
-										+ "XML elements: {0}", msg_str);
+				cut = true;
+				notifyAll();
+			}
+		}
+
+		private MsgDBItem take() {
+			while (true) {
+				long from = 0;
+				long to = 0;
+
+				synchronized (this) {
+					long now = System.currentTimeMillis();
+					MsgDBItem first = items.isEmpty() ? null : items.first();
+
+					if ((first != null) && (first.expired.getTime() <= now)) {
+						return items.pollFirst();
+					}
+
+					if (indexedUntil > now) {
+						long wake = (first != null) ? first.expired.getTime() : indexedUntil + 1;
+
+						try {
+							wait(Math.max(1, wake - now));
+						} catch (InterruptedException ex) {
+						}
+
+						continue;
+					}
+
+					// A stream of messages expiring soon keeps cutting the window, the
+					// database is not loaded again for each of them
+					if (cut && (now - lastLoad < EXPIRY_RELOAD_DELAY)) {
+						try {
+							wait(EXPIRY_RELOAD_DELAY - (now - lastLoad));
+						} catch (InterruptedException ex) {
+						}
+
+						continue;
+					}
+
+					from = indexedUntil;
+					to = now + EXPIRY_WINDOW;
+					loading = true;
+					loadLimit = to;
+					lastLoad = now;
+					cut = false;
+				}
+
+				Queue<MsgDBItem> page = new ArrayDeque<MsgDBItem>();
+				long until = loadExpired(from, to, page);
+
+				synchronized (this) {
+					loading = false;
+
+					if (until < 0) {
+						try {
+							wait(EXPIRY_RETRY_TIME);
+						} catch (InterruptedException ex) {
+						}
 					} else {
-						Timestamp ts = rs.getTimestamp(MSG_EXPIRED_COLUMN);
-						MsgDBItem item = new MsgDBItem(rs.getLong(MSG_ID_COLUMN), msg, ts);
+						long limit = Math.min(until, loadLimit);
+
+						for (MsgDBItem item : page) {
+							if ((item.expired.getTime() <= limit) &&!deletedUids.contains(item.to_uid)) {
+								items.add(item);
+							}
+						}
 
-						expiredQueue.offer(item);
+						indexedUntil = limit;
 					}
+
+					deletedUids.clear();
 				}
 			}
-		} catch (SQLException e) {
-			log.log(Level.WARNING, "Problem getting offline messages from db: ", e);
-		} finally {
-			data_repo.release(null, rs);
 		}
-
-		earliestOffline = Long.MAX_VALUE;
 	}
 
-	// ~--- inner classes --------------------------------------------------------
 
-	private class MsgDBItem implements Delayed {
+	private class MsgDBItem implements Comparable<MsgDBItem> {
 		private long db_id = -1;
 		private Date expired = null;
 		private Element msg = null;
+		private long to_uid = -1;
 
 		// ~--- constructors -------------------------------------------------------
 
@@ -713,11 +808,13 @@ public class MsgRepository implements MsgRepositoryIfc {
 		 * Constructs ...
 		 * 
 		 * @param db_id
+		 * @param to_uid
 		 * @param msg
 		 * @param expired
 		 */
-		public MsgDBItem(long db_id, Element msg, Date expired) {
+		public MsgDBItem(long db_id, long to_uid, Element msg, Date expired) {
 			this.db_id = db_id;
+			this.to_uid = to_uid;
 			this.msg = msg;
 			this.expired = expired;
 		}
@@ -731,22 +828,14 @@ public class MsgRepository implements MsgRepositoryIfc {
 		 * @return
 		 */
 		@Override
-		public int compareTo(Delayed o) {
-			return (int) (getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS));
-		}
+		public int compareTo(MsgDBItem o) {
+			int result = expired.compareTo(o.expired);
 
-		// ~--- get methods --------------------------------------------------------
+			if (result == 0) {
+				result = (db_id < o.db_id) ? -1 : ((db_id == o.db_id) ? 0 : 1);
+			}
 
-		/**
-		 * Method description
-		 * 
-		 * @param unit
-		 * @return
-		 */
-		@Override
-		public long getDelay(TimeUnit unit) {
-			return unit.convert(expired.getTime() - System.currentTimeMillis(),
-					TimeUnit.MILLISECONDS);
+			return result;
 		}
 	}
 }
@@ -48,11 +48,16 @@ public class Deliver implements ConditionIfc {
 	 * Private logger for class instances.
 	 */
 	private static Logger log = Logger.getLogger(Deliver.class.getName());
-	private static final String name = "deliver";
+
+	/** Field description */
+	public static final String NAME = "deliver";
 
 	//~--- constant enums -------------------------------------------------------
 
-	private enum MatchValue {
+	/**
+	 * Values of the <code>deliver</code> condition.
+	 */
+	public enum MatchValue {
 		direct, forward, gateway, none, stored;
 	}
 
@@ -82,7 +87,7 @@ public class Deliver implements ConditionIfc {
 	 */
 	@Override
 	public String getName() {
-		return name;
+		return NAME;
 	}
 
 	//~--- methods --------------------------------------------------------------
@@ -104,40 +109,55 @@ public class Deliver implements ConditionIfc {
 
 		if (value != null) {
 			try {
-				MatchValue m_val = MatchValue.valueOf(value);
+				result = match(packet, MatchValue.valueOf(value));
+			} catch (Exception e) {
+				log.info("Incorrect " + NAME + " condition value for rule: " + rule);
+			}
+		} else {
+			log.info("No value set for rule: " + rule);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Matches the packet against an already parsed condition value.
+	 *
+	 *
+	 * @param packet
+	 * @param m_val
+	 *
+	 * @return
+	 */
+	public boolean match(Packet packet, MatchValue m_val) {
+		boolean result = false;
 
-				switch (m_val) {
-					case direct :
-						result = (packet.getAttribute(OFFLINE) == null)
-								&& (packet.getAttribute(FROM_CONN_ID) == null);
+		switch (m_val) {
+			case direct :
+				result = (packet.getAttribute(OFFLINE) == null)
+						&& (packet.getAttribute(FROM_CONN_ID) == null);
 
-						break;
+				break;
 
-					case forward :
+			case forward :
 
-						// Forwarding not supported in Tigase yet
-						break;
+				// Forwarding not supported in Tigase yet
+				break;
 
-					case gateway :
+			case gateway :
 
-						// This can be only determined by the gateway itself
-						break;
+				// This can be only determined by the gateway itself
+				break;
 
-					case none :
-						result = (packet.getAttribute(OFFLINE) != null) &&!offline_storage;
+			case none :
+				result = (packet.getAttribute(OFFLINE) != null) &&!offline_storage;
 
-						break;
+				break;
 
-					case stored :
-						result = (packet.getAttribute(OFFLINE) != null) && offline_storage;
+			case stored :
+				result = (packet.getAttribute(OFFLINE) != null) && offline_storage;
 
-						break;
-				}
-			} catch (Exception e) {
-				log.info("Incorrect " + name + " condition value for rule: " + rule);
-			}
-		} else {
-			log.info("No value set for rule: " + rule);
+				break;
 		}
 
 		return result;
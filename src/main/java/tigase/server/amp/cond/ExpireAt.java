@@ -34,7 +34,6 @@ import tigase.xml.Element;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 
-import java.util.Date;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -58,7 +57,14 @@ public class ExpireAt implements ConditionIfc {
 
 	//~--- fields ---------------------------------------------------------------
 
-	private final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+	// SimpleDateFormat is not thread safe, each processing thread gets its own
+	private final ThreadLocal<SimpleDateFormat> formatters =
+			new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		}
+	};
 
 	//~--- get methods ----------------------------------------------------------
 
@@ -91,13 +97,7 @@ public class ExpireAt implements ConditionIfc {
 
 		if (value != null) {
 			try {
-				Date val_date = null;
-
-				synchronized (formatter) {
-					val_date = formatter.parse(value);
-				}
-
-				return val_date.before(new Date());
+				return match(packet, parseValue(value));
 			} catch (ParseException ex) {
 				log.info("Incorrect " + NAME + " condition value for rule: " + rule);
 			}
@@ -107,6 +107,33 @@ public class ExpireAt implements ConditionIfc {
 
 		return false;
 	}
+
+	/**
+	 * Matches the packet against an already parsed expiration time.
+	 *
+	 *
+	 * @param packet
+	 * @param expireAt is the expiration time in milliseconds.
+	 *
+	 * @return
+	 */
+	public boolean match(Packet packet, long expireAt) {
+		return expireAt < System.currentTimeMillis();
+	}
+
+	/**
+	 * Parses the <code>expire-at</code> condition value.
+	 *
+	 *
+	 * @param value
+	 *
+	 * @return the expiration time in milliseconds.
+	 *
+	 * @throws ParseException
+	 */
+	public long parseValue(String value) throws ParseException {
+		return formatters.get().parse(value).getTime();
+	}
 }
 
 
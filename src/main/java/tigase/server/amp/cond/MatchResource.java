@@ -48,11 +48,16 @@ public class MatchResource implements ConditionIfc {
 	 * Private logger for class instances.
 	 */
 	private static Logger log = Logger.getLogger(MatchResource.class.getName());
-	private static final String name = "match-resource";
+
+	/** Field description */
+	public static final String NAME = "match-resource";
 
 	//~--- constant enums -------------------------------------------------------
 
-	private enum MatchValue { any, exact, other; }
+	/**
+	 * Values of the <code>match-resource</code> condition.
+	 */
+	public enum MatchValue { any, exact, other; }
 
 	//~--- get methods ----------------------------------------------------------
 
@@ -64,7 +69,7 @@ public class MatchResource implements ConditionIfc {
 	 */
 	@Override
 	public String getName() {
-		return name;
+		return NAME;
 	}
 
 	//~--- methods --------------------------------------------------------------
@@ -86,33 +91,48 @@ public class MatchResource implements ConditionIfc {
 
 		if (value != null) {
 			try {
-				MatchValue m_val = MatchValue.valueOf(value);
-				String jid_resource = (packet.getStanzaTo() != null)
-					? packet.getStanzaTo().getResource() : null;
-				String target_resource = packet.getAttribute(TO_RES);
+				result = match(packet, MatchValue.valueOf(value));
+			} catch (Exception e) {
+				log.info("Incorrect " + NAME + " condition value for rule: " + rule);
+			}
+		} else {
+			log.info("No value set for rule: " + rule);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Matches the packet against an already parsed condition value.
+	 *
+	 *
+	 * @param packet
+	 * @param m_val
+	 *
+	 * @return
+	 */
+	public boolean match(Packet packet, MatchValue m_val) {
+		boolean result = false;
+		String jid_resource = (packet.getStanzaTo() != null)
+			? packet.getStanzaTo().getResource() : null;
+		String target_resource = packet.getAttribute(TO_RES);
 
-				switch (m_val) {
-					case any :
-						result = true;
+		switch (m_val) {
+			case any :
+				result = true;
 
-						break;
+				break;
 
-					case other :
-						result = (jid_resource != null) && (target_resource != null)
-								&&!jid_resource.equals(target_resource);
+			case other :
+				result = (jid_resource != null) && (target_resource != null)
+						&&!jid_resource.equals(target_resource);
 
-						break;
+				break;
 
-					case exact :
-						result = (jid_resource != null) && jid_resource.equals(target_resource);
+			case exact :
+				result = (jid_resource != null) && jid_resource.equals(target_resource);
 
-						break;
-				}
-			} catch (Exception e) {
-				log.info("Incorrect " + name + " condition value for rule: " + rule);
-			}
-		} else {
-			log.info("No value set for rule: " + rule);
+				break;
 		}
 
 		return result;
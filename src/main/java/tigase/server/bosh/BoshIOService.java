@@ -36,7 +36,15 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,6 +52,13 @@ import java.util.logging.Logger;
 
 /**
  * Describe class BoshIOService here.
+ * <p/>
+ * HTTP requests are read with <code>HttpRequestParser</code>, only bodies of
+ * the POST requests are passed to the XML parser. Connections are kept open
+ * as long as the client wants, pipelined requests are processed in order and
+ * the responses are written in the same order by the BOSH session. Static part
+ * of the response headers is encoded once for each content type and every
+ * response is written to the socket with a single gathering write.
  * 
  * 
  * Created: Tue Jun 5 22:33:18 2007
@@ -68,6 +83,24 @@ public class BoshIOService extends XMPPIOService<Object> {
 	private static final String CONNECTION = "Connection: ";
 	private static final String SERVER = "Server: Tigase Bosh/"
 			+ tigase.server.XMPPServer.getImplementationVersion();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] CONTENT_LENGTH_BYTES = CONTENT_TYPE_LENGTH.getBytes(UTF8);
+	private static final byte[] CONNECTION_CLOSE_BYTES = (CONNECTION + "close" + EOL)
+			.getBytes(UTF8);
+	private static final byte[] CONNECTION_KEEP_ALIVE_BYTES = (CONNECTION + "keep-alive"
+			+ EOL).getBytes(UTF8);
+	private static final int INPUT_BUFFER_SIZE = 4 * 1024;
+
+	// Static part of response headers for each content type
+	private static final ConcurrentHashMap<String, byte[]> headers =
+			new ConcurrentHashMap<String, byte[]>(4);
+	private static final ThreadLocal<CharsetDecoder> decoders =
+			new ThreadLocal<CharsetDecoder>() {
+		@Override
+		protected CharsetDecoder initialValue() {
+			return UTF8.newDecoder();
+		}
+	};
 
 	// ~--- fields ---------------------------------------------------------------
 
@@ -78,6 +111,15 @@ public class BoshIOService extends XMPPIOService<Object> {
 
 	private static Boolean closeConnections;
 
+	// Close after responses to all received requests are sent
+	private volatile boolean closeRequested = false;
+	private ByteBuffer input = null;
+
+	// HTTP/1.0 client asked for persistent connection
+	private volatile boolean keepAliveHeader = false;
+	private final HttpRequestParser parser = new HttpRequestParser();
+	private final AtomicInteger pendingResponses = new AtomicInteger();
+
 	public BoshIOService() {
 		super();
 		if (closeConnections == null) {
@@ -160,7 +202,7 @@ public class BoshIOService extends XMPPIOService<Object> {
 		sb.append("HTTP/1.1 ").append(errorCode.getErrorCode()).append(" ");
 		sb.append(errorMsg).append(EOL);
 		sb.append(CONTENT_TYPE_HEADER).append(content_type).append(EOL);
-		sb.append(CONTENT_TYPE_LENGTH).append(code.getBytes().length).append(EOL);
+		sb.append(CONTENT_TYPE_LENGTH).append(code.getBytes(UTF8).length).append(EOL);
 		if (extra_headers != null) {
 			sb.append(extra_headers);
 		}
@@ -210,23 +252,6 @@ public class BoshIOService extends XMPPIOService<Object> {
 		this.sid = sid;
 	}
 
-	public StringBuilder prepareHeaders(String data) {
-		StringBuilder sb = new StringBuilder(200);
-
-		sb.append(HTTP_OK_RESPONSE);
-		sb.append(CONTENT_TYPE_HEADER).append(content_type).append(EOL);
-		if (data != null) {
-			sb.append(CONTENT_TYPE_LENGTH).append(data.getBytes().length).append(EOL);
-		}
-		if (extra_headers != null) {
-			sb.append(extra_headers);
-		}
-		sb.append(SERVER).append(EOL);
-		sb.append(EOL);
-
-		return sb;
-	}
-
 	/**
 	 * Method description
 	 * 
@@ -238,33 +263,288 @@ public class BoshIOService extends XMPPIOService<Object> {
 	@Override
 	public void writeRawData(String data) throws IOException {
 		if ((data != null) && data.startsWith("<body")) {
-			StringBuilder sb = prepareHeaders(data);
-			sb.append(data);
-
 			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "Writing to socket:\n{0}", sb.toString());
+				log.log(Level.FINEST, "Writing to socket:\n{0}", data);
 			}
 
-			super.writeRawData(sb.toString());
+			int pending = pendingResponses.decrementAndGet();
+			boolean close = closeConnections || (closeRequested && (pending <= 0));
+
+			writeResponse(data.getBytes(UTF8), close);
+
+			if (close) {
+				stop();
+			}
 		} else {
 			super.writeRawData(data);
+
+			if (closeConnections) {
+				stop();
+			}
 		}
-		if (closeConnections)
-			stop();
 	}
 
+	/**
+	 * The XML data is taken out of the received data and decoded by
+	 * <code>readData()</code>.
+	 *
+	 *
+	 * @return
+	 */
+	@Override
+	protected boolean parsesBytes() {
+		return false;
+	}
+
+	/**
+	 * Reads HTTP requests from the socket and returns bodies of all complete
+	 * POST requests. Other requests are responded to here.
+	 * 
+	 * 
+	 * @return
+	 * 
+	 * @throws IOException
+	 */
 	@Override
-	public boolean checkData(char[] data) throws IOException {
-		if (data != null && data.length > 7 && data[0] == 'O') {
-			if (data[1] == 'P' && data[2] == 'T' && data[3] == 'I' && data[4] == 'O'
-					&& data[5] == 'N' && data[6] == 'S') {
+	protected char[] readData() throws IOException {
+		ByteBuffer buf = readBytes();
+
+		if ((buf == null) || !buf.hasRemaining()) {
+			return null;
+		}
+
+		if (input == null) {
+			input = ByteBuffer.allocate(Math.max(INPUT_BUFFER_SIZE, buf.remaining()));
+		} else if (input.remaining() < buf.remaining()) {
+			input = grow(input, input.position() + buf.remaining());
+		}
+
+		input.put(buf);
+		buf.clear();
+		input.flip();
 
-				// responding with headers - needed for Chrome browser
-				this.writeRawData(prepareHeaders(null).toString());
+		CharBuffer result = null;
+
+		while (isConnected() && parser.parse(input)) {
+			if (parser.getError() != 0) {
+				writeErrorAndStop(parser.getError());
+
+				break;
+			}
+
+			int len = parser.getContentLength();
+
+			if ( !parser.isKeepAlive()) {
+				closeRequested = true;
 			}
+
+			keepAliveHeader = !parser.isHttp11() && parser.isKeepAlive();
+
+			switch (parser.getMethod()) {
+				case POST :
+					pendingResponses.incrementAndGet();
+					result = decode(input, len, result);
+
+					if (result == null) {
+						writeErrorAndStop(400);
+
+						return null;
+					}
+
+					break;
+
+				case OPTIONS :
+
+					// responding with headers - needed for Chrome browser
+					input.position(input.position() + len);
+
+					boolean close = closeConnections
+							|| (closeRequested && (pendingResponses.get() <= 0));
+
+					writeResponse(null, close);
+
+					if (close) {
+						stop();
+					}
+
+					break;
+
+				default :
+					writeErrorAndStop(405);
+
+					break;
+			}
+
+			parser.reset();
 		}
-		// by default do nothing and return false
-		return false;
+
+		if (input.hasRemaining()) {
+			input.compact();
+
+			// Make room for the whole body of the request
+			if (parser.getContentLength() > input.capacity()) {
+				input = grow(input, parser.getContentLength());
+			}
+		} else if (input.capacity() > INPUT_BUFFER_SIZE) {
+			input = null;
+		} else {
+			input.clear();
+		}
+
+		if (result == null) {
+			return null;
+		}
+
+		result.flip();
+
+		char[] chars = new char[result.remaining()];
+
+		result.get(chars);
+
+		return chars;
+	}
+
+	private static byte[] getHeaders(String content_type) {
+		byte[] result = headers.get(content_type);
+
+		if (result == null) {
+			StringBuilder sb = new StringBuilder(200);
+
+			sb.append(HTTP_OK_RESPONSE);
+			sb.append(CONTENT_TYPE_HEADER).append(content_type).append(EOL);
+			if (extra_headers != null) {
+				sb.append(extra_headers);
+			}
+			sb.append(SERVER).append(EOL);
+			result = sb.toString().getBytes(UTF8);
+			headers.put(content_type, result);
+		}
+
+		return result;
+	}
+
+	private static ByteBuffer grow(ByteBuffer buf, int size) {
+		ByteBuffer result = ByteBuffer.allocate(Math.max(size, buf.capacity() * 2));
+
+		buf.flip();
+		result.put(buf);
+
+		return result;
+	}
+
+	private CharBuffer decode(ByteBuffer buf, int len, CharBuffer result) {
+		int limit = buf.limit();
+		int end = buf.position() + len;
+		CharsetDecoder decoder = decoders.get();
+
+		if (result == null) {
+			result = CharBuffer.allocate(len);
+		} else if (result.remaining() < len) {
+			CharBuffer tmp = CharBuffer.allocate(result.position() + len);
+
+			result.flip();
+			tmp.put(result);
+			result = tmp;
+		}
+
+		buf.limit(end);
+		decoder.reset();
+
+		CoderResult cr = decoder.decode(buf, result, true);
+
+		if ( !cr.isError()) {
+			cr = decoder.flush(result);
+		}
+
+		buf.limit(limit);
+
+		// Incomplete character at the end of the body is an error as well
+		if (cr.isError() || (buf.position() != end)) {
+			return null;
+		}
+
+		return result;
+	}
+
+	private void writeErrorAndStop(int code) {
+		String reason;
+
+		switch (code) {
+			case 405 :
+				reason = "Method Not Allowed";
+
+				break;
+
+			case 411 :
+				reason = "Length Required";
+
+				break;
+
+			case 413 :
+				reason = "Request Entity Too Large";
+
+				break;
+
+			default :
+				reason = "Bad Request";
+		}
+
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "{0}, Incorrect HTTP request: {1} {2}", new Object[] {
+					toString(), code, reason });
+		}
+
+		String response = "HTTP/1.1 " + code + " " + reason + EOL + CONTENT_TYPE_LENGTH + "0"
+				+ EOL + CONNECTION + "close" + EOL + SERVER + EOL + EOL;
+
+		writeBytes(ByteBuffer.wrap(response.getBytes(UTF8)));
+		stop();
+	}
+
+	private void writeResponse(byte[] data, boolean close) {
+		int length = (data == null) ? 0 : data.length;
+		byte[] tail = new byte[CONTENT_LENGTH_BYTES.length + 10 + EOL.length()
+				+ CONNECTION_KEEP_ALIVE_BYTES.length + EOL.length()];
+		int pos = CONTENT_LENGTH_BYTES.length;
+
+		System.arraycopy(CONTENT_LENGTH_BYTES, 0, tail, 0, pos);
+
+		// Digits of the length are written from the end
+		int digits = 1;
+
+		for (int val = length / 10; val > 0; val /= 10) {
+			++digits;
+		}
+
+		for (int i = pos + digits - 1, val = length; i >= pos; i--, val /= 10) {
+			tail[i] = (byte) ('0' + (val % 10));
+		}
+
+		pos += digits;
+		tail[pos++] = '\r';
+		tail[pos++] = '\n';
+
+		byte[] connection = close ? CONNECTION_CLOSE_BYTES : keepAliveHeader
+				? CONNECTION_KEEP_ALIVE_BYTES : null;
+
+		if (connection != null) {
+			System.arraycopy(connection, 0, tail, pos, connection.length);
+			pos += connection.length;
+		}
+
+		tail[pos++] = '\r';
+		tail[pos++] = '\n';
+
+		ByteBuffer[] buffs = (data == null) ? new ByteBuffer[2] : new ByteBuffer[3];
+
+		buffs[0] = ByteBuffer.wrap(getHeaders(content_type));
+		buffs[1] = ByteBuffer.wrap(tail, 0, pos);
+
+		if (data != null) {
+			buffs[2] = ByteBuffer.wrap(data);
+		}
+
+		writeBytes(buffs);
 	}
 
 }
@@ -0,0 +1,414 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.server.bosh;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.nio.ByteBuffer;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Incremental parser of HTTP/1.1 requests. Request and header lines are
+ * consumed from the buffer as soon as they are complete, an incomplete line
+ * stays in the buffer until more data arrives, so nothing is scanned twice and
+ * no strings are created for the headers. Only the headers needed for BOSH are
+ * interpreted: <code>Content-Length</code>, <code>Connection</code> and
+ * <code>Transfer-Encoding</code>, which is not supported.
+ * <p/>
+ * The parser works on heap buffers. After <code>parse()</code> returns
+ * <code>true</code> the caller checks <code>getError()</code>, takes
+ * <code>getContentLength()</code> bytes of the body from the buffer position
+ * and calls <code>reset()</code> before parsing the next, pipelined, request.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class HttpRequestParser {
+
+	/** Field description */
+	public static final int MAX_CONTENT_LENGTH = 1024 * 1024;
+
+	/** Field description */
+	public static final int MAX_LINE_LENGTH = 8 * 1024;
+	private static final byte[] CLOSE = bytes("close");
+	private static final byte[] CONNECTION = bytes("connection");
+	private static final byte[] CONTENT_LENGTH = bytes("content-length");
+	private static final byte[] HTTP_1_1 = bytes("HTTP/1.1");
+	private static final byte[] KEEP_ALIVE = bytes("keep-alive");
+	private static final byte[] TRANSFER_ENCODING = bytes("transfer-encoding");
+
+	//~--- constant enums -------------------------------------------------------
+
+	/**
+	 * Request methods recognized by the parser.
+	 */
+	public enum Method {
+		GET, HEAD, OPTIONS, POST, OTHER;
+
+		private final byte[] token = bytes(name());
+	}
+
+	private enum State { REQUEST_LINE, HEADERS, BODY }
+
+	//~--- fields ---------------------------------------------------------------
+
+	private boolean closeToken = false;
+	private int contentLength = -1;
+	private int error = 0;
+	private boolean http11 = false;
+	private boolean keepAliveToken = false;
+	private Method method = null;
+	private State state = State.REQUEST_LINE;
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Parses the request from the buffer position, consuming the request line
+	 * and headers.
+	 *
+	 *
+	 * @param buf is a heap buffer with received data, in read mode.
+	 *
+	 * @return <code>true</code> if the whole request, including the body, is
+	 * available or the request is invalid, <code>false</code> if more data is
+	 * needed.
+	 */
+	public boolean parse(ByteBuffer buf) {
+		if (error != 0) {
+			return true;
+		}
+
+		byte[] arr = buf.array();
+		int off = buf.arrayOffset();
+
+		while (state != State.BODY) {
+			int start = off + buf.position();
+			int end = off + buf.limit();
+			int eol = -1;
+
+			for (int i = start; i < end; i++) {
+				if (arr[i] == '\n') {
+					eol = i;
+
+					break;
+				}
+			}
+
+			if (eol < 0) {
+				if (end - start > MAX_LINE_LENGTH) {
+					error = 400;
+
+					return true;
+				}
+
+				return false;
+			}
+
+			buf.position(eol + 1 - off);
+
+			int len = eol - start;
+
+			if ((len > 0) && (arr[eol - 1] == '\r')) {
+				--len;
+			}
+
+			if (state == State.REQUEST_LINE) {
+
+				// Empty lines before the request line are ignored
+				if (len > 0) {
+					parseRequestLine(arr, start, len);
+					state = State.HEADERS;
+				}
+			} else if (len > 0) {
+				parseHeader(arr, start, len);
+			} else {
+				headersCompleted();
+			}
+
+			if (error != 0) {
+				return true;
+			}
+		}
+
+		return buf.remaining() >= contentLength;
+	}
+
+	/**
+	 * Prepares the parser for the next request on the connection.
+	 *
+	 */
+	public void reset() {
+		closeToken = false;
+		contentLength = -1;
+		error = 0;
+		http11 = false;
+		keepAliveToken = false;
+		method = null;
+		state = State.REQUEST_LINE;
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Returns the length of the request body, valid after the request has been
+	 * parsed.
+	 *
+	 *
+	 * @return
+	 */
+	public int getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * Returns the HTTP status code to respond with if the request is invalid.
+	 *
+	 *
+	 * @return the status code or 0 if the request is correct.
+	 */
+	public int getError() {
+		return error;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public Method getMethod() {
+		return method;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public boolean isHttp11() {
+		return http11;
+	}
+
+	/**
+	 * Returns whether the client wants to keep the connection open after the
+	 * response, which is the default for HTTP/1.1 requests.
+	 *
+	 *
+	 * @return
+	 */
+	public boolean isKeepAlive() {
+		return http11 ? !closeToken : keepAliveToken;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	private static byte[] bytes(String str) {
+		byte[] result = new byte[str.length()];
+
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (byte) str.charAt(i);
+		}
+
+		return result;
+	}
+
+	private static boolean equalsIgnoreCase(byte[] arr, int start, int len, byte[] str) {
+		if (len != str.length) {
+			return false;
+		}
+
+		for (int i = 0; i < len; i++) {
+			if ((arr[start + i] | 0x20) != (str[i] | 0x20)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void headersCompleted() {
+		if (contentLength < 0) {
+			if (method == Method.POST) {
+				error = 411;
+
+				return;
+			}
+
+			contentLength = 0;
+		}
+
+		state = State.BODY;
+	}
+
+	private void parseConnection(byte[] arr, int start, int end) {
+
+		// Comma separated list of tokens
+		int idx = start;
+
+		while (idx < end) {
+			int tokenEnd = idx;
+
+			while ((tokenEnd < end) && (arr[tokenEnd] != ',')) {
+				++tokenEnd;
+			}
+
+			int tokenStart = idx;
+			int tokenLast = tokenEnd;
+
+			while ((tokenStart < tokenLast) && (arr[tokenStart] == ' ')) {
+				++tokenStart;
+			}
+
+			while ((tokenLast > tokenStart) && (arr[tokenLast - 1] == ' ')) {
+				--tokenLast;
+			}
+
+			if (equalsIgnoreCase(arr, tokenStart, tokenLast - tokenStart, CLOSE)) {
+				closeToken = true;
+			} else if (equalsIgnoreCase(arr, tokenStart, tokenLast - tokenStart, KEEP_ALIVE)) {
+				keepAliveToken = true;
+			}
+
+			idx = tokenEnd + 1;
+		}
+	}
+
+	private void parseHeader(byte[] arr, int start, int len) {
+		int end = start + len;
+		int colon = start;
+
+		while ((colon < end) && (arr[colon] != ':')) {
+			++colon;
+		}
+
+		if (colon == end) {
+			error = 400;
+
+			return;
+		}
+
+		int valStart = colon + 1;
+
+		while ((valStart < end) && ((arr[valStart] == ' ') || (arr[valStart] == '\t'))) {
+			++valStart;
+		}
+
+		int valEnd = end;
+
+		while ((valEnd > valStart) && ((arr[valEnd - 1] == ' ') || (arr[valEnd - 1] == '\t'))) {
+			--valEnd;
+		}
+
+		int nameLen = colon - start;
+
+		if (equalsIgnoreCase(arr, start, nameLen, CONTENT_LENGTH)) {
+			long val = 0;
+
+			if (valStart == valEnd) {
+				error = 400;
+
+				return;
+			}
+
+			for (int i = valStart; i < valEnd; i++) {
+				int digit = arr[i] - '0';
+
+				if ((digit < 0) || (digit > 9)) {
+					error = 400;
+
+					return;
+				}
+
+				val = val * 10 + digit;
+
+				if (val > MAX_CONTENT_LENGTH) {
+					error = 413;
+
+					return;
+				}
+			}
+
+			contentLength = (int) val;
+		} else if (equalsIgnoreCase(arr, start, nameLen, CONNECTION)) {
+			parseConnection(arr, valStart, valEnd);
+		} else if (equalsIgnoreCase(arr, start, nameLen, TRANSFER_ENCODING)) {
+
+			// Chunked requests are not sent by BOSH clients
+			error = 411;
+		}
+	}
+
+	private void parseRequestLine(byte[] arr, int start, int len) {
+		int end = start + len;
+		int sp = start;
+
+		while ((sp < end) && (arr[sp] != ' ')) {
+			++sp;
+		}
+
+		method = Method.OTHER;
+
+		for (Method m : Method.values()) {
+			if ((m != Method.OTHER) && (sp - start == m.token.length)) {
+				boolean match = true;
+
+				for (int i = 0; match && (i < m.token.length); i++) {
+					match = arr[start + i] == m.token[i];
+				}
+
+				if (match) {
+					method = m;
+
+					break;
+				}
+			}
+		}
+
+		int lastSp = end;
+
+		while ((lastSp > sp) && (arr[lastSp - 1] != ' ')) {
+			--lastSp;
+		}
+
+		if (lastSp <= sp) {
+			error = 400;
+
+			return;
+		}
+
+		// Anything else than HTTP/1.1 is handled as HTTP/1.0
+		http11 = (end - lastSp == HTTP_1_1.length);
+
+		for (int i = 0; http11 && (i < HTTP_1_1.length); i++) {
+			http11 = arr[lastSp + i] == HTTP_1_1[i];
+		}
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
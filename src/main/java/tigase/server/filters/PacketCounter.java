@@ -29,6 +29,7 @@ import tigase.server.Packet;
 import tigase.server.PacketFilterIfc;
 import tigase.server.QueueType;
 
+import tigase.stats.MetricsRegistry;
 import tigase.stats.StatisticsList;
 
 //~--- JDK imports ------------------------------------------------------------
@@ -48,14 +49,14 @@ import java.util.logging.Logger;
  * @version $Rev$
  */
 public class PacketCounter implements PacketFilterIfc {
-	private long clusterCounter = 0;
+	private final MetricsRegistry.Counter clusterCounter = new MetricsRegistry.Counter();
 	private long[] iqCounters = new long[1];
 	private int lastNodeNo = -1;
 	private Logger log = Logger.getLogger(this.getClass().getName());
-	private long msgCounter = 0;
+	private final MetricsRegistry.Counter msgCounter = new MetricsRegistry.Counter();
 	private String name = null;
-	private long presCounter = 0;
-	private long otherCounter = 0;
+	private final MetricsRegistry.Counter presCounter = new MetricsRegistry.Counter();
+	private final MetricsRegistry.Counter otherCounter = new MetricsRegistry.Counter();
 	private QueueType qType = null;
 	private ConcurrentHashMap<String, Integer> iqCounterIdx =
 			new ConcurrentHashMap<String, Integer>();
@@ -73,24 +74,24 @@ public class PacketCounter implements PacketFilterIfc {
 	@Override
 	public Packet filter(Packet packet) {
 		if (packet.getElemName() == "message") {
-			++msgCounter;
+			msgCounter.inc();
 
 			return packet;
 		}
 
 		if (packet.getElemName() == "presence") {
-			++presCounter;
+			presCounter.inc();
 
 			return packet;
 		}
 
 		if (packet.getElemName() == "cluster") {
-			++clusterCounter;
+			clusterCounter.inc();
 
 			return packet;
 		}
 		
-		++otherCounter;
+		otherCounter.inc();
 
 		if (packet.getElemName() == "iq") {
 			String xmlns = ((Iq) packet).getIQXMLNS();
@@ -110,10 +111,10 @@ public class PacketCounter implements PacketFilterIfc {
 	 */
 	@Override
 	public void getStatistics(StatisticsList list) {
-		list.add(name, qType.name() + " messages", msgCounter, Level.FINER);
-		list.add(name, qType.name() + " presences", presCounter, Level.FINER);
-		list.add(name, qType.name() + " cluster", clusterCounter, Level.FINER);
-		list.add(name, qType.name() + " other", otherCounter, Level.FINER);
+		list.add(name, qType.name() + " messages", msgCounter.get(), Level.FINER);
+		list.add(name, qType.name() + " presences", presCounter.get(), Level.FINER);
+		list.add(name, qType.name() + " cluster", clusterCounter.get(), Level.FINER);
+		list.add(name, qType.name() + " other", otherCounter.get(), Level.FINER);
 		list.add(name, qType.name() + " IQ no XMLNS", iqCounters[0], Level.FINER);
 
 		long iqs = iqCounters[0];
@@ -140,6 +141,14 @@ public class PacketCounter implements PacketFilterIfc {
 	public void init(String name, QueueType qType) {
 		this.name = name;
 		this.qType = qType;
+
+		MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+		// A filter loaded again on reconfiguration replaces the metrics
+		metrics.register(msgCounter, name, qType.name() + " messages", Level.FINER);
+		metrics.register(presCounter, name, qType.name() + " presences", Level.FINER);
+		metrics.register(clusterCounter, name, qType.name() + " cluster", Level.FINER);
+		metrics.register(otherCounter, name, qType.name() + " other", Level.FINER);
 	}
 
 	private synchronized void incIQCounter(String xmlns) {
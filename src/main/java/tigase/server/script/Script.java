@@ -28,12 +28,21 @@ import tigase.server.Command;
 import tigase.server.Iq;
 import tigase.server.Packet;
 
+import tigase.util.Algorithms;
+import tigase.util.SizedCache;
+
 //~--- JDK imports ------------------------------------------------------------
 
 import java.io.StringWriter;
 
+import java.security.NoSuchAlgorithmException;
+
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,12 +51,22 @@ import javax.script.Compilable;
 import javax.script.CompiledScript;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import javax.script.SimpleScriptContext;
 
 //~--- classes ----------------------------------------------------------------
 
 /**
+ * Script based ad-hoc command. Script engines are not thread safe, so each
+ * command execution takes an engine with the compiled script from a pool and
+ * runs it in its own context. Engines are pooled by the script language and
+ * hash of the script text, so the same script loaded by several components or
+ * added again is compiled only once per engine. Bindings for the executions
+ * are pooled as well.
+ *
  * Created: Jan 2, 2009 1:21:55 PM
  *
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
@@ -56,13 +75,22 @@ import javax.script.ScriptException;
 public class Script extends AbstractScriptCommand {
 	private static final Logger log = Logger.getLogger(Script.class.getName());
 
+	// Idle engines or bindings kept in a pool, more may exist while in use
+	private static final int MAX_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+	// Pools of compiled scripts by the language and hash of the script text
+	private static final Map<String, EnginePool> enginePools =
+		Collections.synchronizedMap(new SizedCache<String, EnginePool>(256));
+
 	//~--- fields ---------------------------------------------------------------
 
-	private CompiledScript compiledScript = null;
+	private final ConcurrentLinkedQueue<Bindings> bindingsPool =
+		new ConcurrentLinkedQueue<Bindings>();
+	private final AtomicInteger bindingsPoolSize = new AtomicInteger();
+	private EnginePool enginePool = null;
 	private String ext = null;
 	private String language = null;
 	private String script = null;
-	private ScriptEngine scriptEngine = null;
 
 	//~--- get methods ----------------------------------------------------------
 
@@ -74,7 +102,15 @@ public class Script extends AbstractScriptCommand {
 	 */
 	@Override
 	public Bindings getBindings() {
-		return scriptEngine.createBindings();
+		Bindings binds = bindingsPool.poll();
+
+		if (binds == null) {
+			return new PooledBindings();
+		}
+
+		bindingsPoolSize.decrementAndGet();
+
+		return binds;
 	}
 
 	/**
@@ -121,6 +157,7 @@ public class Script extends AbstractScriptCommand {
 		this.ext = ext;
 
 		ScriptEngineManager scriptEngineManager = (ScriptEngineManager) binds.get(SCRI_MANA);
+		ScriptEngine scriptEngine = null;
 
 		if (language != null) {
 			scriptEngine = scriptEngineManager.getEngineByName(language);
@@ -130,16 +167,38 @@ public class Script extends AbstractScriptCommand {
 			scriptEngine = scriptEngineManager.getEngineByExtension(ext);
 		}
 
-		if ( !Packet.FULL_DEBUG && (scriptEngine instanceof Compilable)) {
-			compiledScript = ((Compilable) scriptEngine).compile(script);
+		if (scriptEngine == null) {
+			throw new ScriptException("No script engine found for lang: " + lang + ", ext: "
+					+ ext);
 		}
 
+		ScriptEngineFactory factory = scriptEngine.getFactory();
+
 		if (this.language == null) {
-			this.language = scriptEngine.getFactory().getLanguageName();
+			this.language = factory.getLanguageName();
 		}
 
 		if (this.ext == null) {
-			this.ext = scriptEngine.getFactory().getExtensions().get(0);
+			this.ext = factory.getExtensions().get(0);
+		}
+
+		String key = null;
+
+		try {
+			key = factory.getLanguageName() + ":"
+					+ Algorithms.hexDigest(factory.getLanguageName(), script, "SHA");
+		} catch (NoSuchAlgorithmException e) {
+			key = factory.getLanguageName() + ":" + script;
+		}
+
+		enginePool = enginePools.get(key);
+
+		if (enginePool == null) {
+
+			// Compiles the script now, so errors are reported when it is added
+			enginePool = new EnginePool(factory, script);
+			enginePool.release(enginePool.createEngine(scriptEngine));
+			enginePools.put(key, enginePool);
 		}
 
 		log.log(Level.INFO, "Initialized script command, lang: {0}, ext: {1}",
@@ -160,12 +219,11 @@ public class Script extends AbstractScriptCommand {
 	@Override
 	@SuppressWarnings({ "unchecked" })
 	public void runCommand(Iq packet, Bindings binds, Queue<Packet> results) {
-		ScriptContext context = null;
 		StringWriter writer = null;
+		PooledEngine engine = null;
 
 		try {
-
-			// Bindings localBinds = scriptEngine.createBindings();
+			engine = enginePool.acquire();
 			binds.put(PACKET, packet);
 
 			// Workaround for Python which doesn't return values and can overwrite
@@ -173,16 +231,14 @@ public class Script extends AbstractScriptCommand {
 			Object res = "";
 
 			binds.put("result", res);
-			context = scriptEngine.getContext();
+
+			// Own context, so concurrent executions do not share bindings
+			ScriptContext context = new SimpleScriptContext();
+
 			context.setBindings(binds, ScriptContext.ENGINE_SCOPE);
 			writer = new StringWriter();
 			context.setErrorWriter(writer);
-
-			if (compiledScript != null) {
-				res = compiledScript.eval(context);
-			} else {
-				res = scriptEngine.eval(script, context);
-			}
+			res = engine.eval(context);
 
 			if (res == null) {
 
@@ -254,6 +310,106 @@ public class Script extends AbstractScriptCommand {
 
 			Command.addFieldMultiValue(result, "Debug info", Arrays.asList(error));
 			results.offer(result);
+		} finally {
+			if (engine != null) {
+				enginePool.release(engine);
+			}
+
+			releaseBindings(binds);
+		}
+	}
+
+	private void releaseBindings(Bindings binds) {
+
+		// Bindings not created by getBindings() may be shared, they are left alone
+		if (binds instanceof PooledBindings) {
+			binds.clear();
+
+			if (bindingsPoolSize.incrementAndGet() <= MAX_POOL_SIZE) {
+				bindingsPool.offer(binds);
+			} else {
+				bindingsPoolSize.decrementAndGet();
+			}
+		}
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	private static class EnginePool {
+		private final ConcurrentLinkedQueue<PooledEngine> engines =
+			new ConcurrentLinkedQueue<PooledEngine>();
+		private final AtomicInteger enginesSize = new AtomicInteger();
+		private ScriptEngineFactory factory = null;
+		private String script = null;
+
+		//~--- constructors -------------------------------------------------------
+
+		private EnginePool(ScriptEngineFactory factory, String script) {
+			this.factory = factory;
+			this.script = script;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		private PooledEngine acquire() throws ScriptException {
+			PooledEngine engine = engines.poll();
+
+			if (engine == null) {
+				return createEngine(factory.getScriptEngine());
+			}
+
+			enginesSize.decrementAndGet();
+
+			return engine;
+		}
+
+		private PooledEngine createEngine(ScriptEngine scriptEngine) throws ScriptException {
+			CompiledScript compiledScript = null;
+
+			if ( !Packet.FULL_DEBUG && (scriptEngine instanceof Compilable)) {
+				compiledScript = ((Compilable) scriptEngine).compile(script);
+			}
+
+			return new PooledEngine(scriptEngine, compiledScript, script);
+		}
+
+		private void release(PooledEngine engine) {
+			if (enginesSize.incrementAndGet() <= MAX_POOL_SIZE) {
+				engines.offer(engine);
+			} else {
+				enginesSize.decrementAndGet();
+			}
+		}
+	}
+
+
+	private static class PooledBindings extends SimpleBindings {}
+
+
+	private static class PooledEngine {
+		private CompiledScript compiledScript = null;
+		private String script = null;
+		private ScriptEngine scriptEngine = null;
+
+		//~--- constructors -------------------------------------------------------
+
+		private PooledEngine(ScriptEngine scriptEngine, CompiledScript compiledScript,
+				String script) {
+			this.scriptEngine = scriptEngine;
+			this.compiledScript = compiledScript;
+			this.script = script;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		private Object eval(ScriptContext context) throws ScriptException {
+
+			// Engines which can not compile scripts evaluate the source
+			if (compiledScript != null) {
+				return compiledScript.eval(context);
+			} else {
+				return scriptEngine.eval(script, context);
+			}
 		}
 	}
 }
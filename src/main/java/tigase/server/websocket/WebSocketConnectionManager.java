@@ -0,0 +1,97 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.server.websocket;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.server.Command;
+import tigase.server.Packet;
+import tigase.server.xmppclient.ClientConnectionManager;
+
+import tigase.xmpp.XMPPIOService;
+import tigase.xmpp.XMPPResourceConnection;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Client connection manager for XMPP over WebSocket (RFC 7395). Each
+ * WebSocket connection carries one persistent XMPP stream, so apart from the
+ * transport it works exactly like the standard client connection manager,
+ * except that StartTLS and stream compression are not offered, TLS and
+ * compression are left to the WebSocket layer.
+ * It is not loaded by default, to enable it add a component with the
+ * <code>ws</code> name, for example:
+ * <code>--comp-name-1=ws</code> and
+ * <code>--comp-class-1=tigase.server.websocket.WebSocketConnectionManager</code>.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class WebSocketConnectionManager extends ClientConnectionManager {
+	private static final int[] PLAIN_PORTS = { 5290 };
+	private static final int[] SSL_PORTS = { 5291 };
+
+	/** Transport name passed to the session manager */
+	public static final String TRANSPORT = "websocket";
+
+	//~--- methods --------------------------------------------------------------
+
+	@Override
+	protected void addStreamOpenedFields(Packet streamOpen, XMPPIOService<Object> serv) {
+		Command.addFieldValue(streamOpen, XMPPResourceConnection.TRANSPORT_KEY, TRANSPORT);
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	@Override
+	public String getDiscoDescription() {
+		return "WebSocket connection manager";
+	}
+
+	@Override
+	protected int[] getDefPlainPorts() {
+		return PLAIN_PORTS;
+	}
+
+	@Override
+	protected int[] getDefSSLPorts() {
+		return SSL_PORTS;
+	}
+
+	@Override
+	protected XMPPIOService<Object> getXMPPIOServiceInstance() {
+		return new WebSocketXMPPIOService<Object>();
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
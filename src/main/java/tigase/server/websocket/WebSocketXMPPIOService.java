@@ -0,0 +1,719 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.server.websocket;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.io.BufferPool;
+
+import tigase.server.Packet;
+
+import tigase.util.Base64;
+
+import tigase.xml.Element;
+
+import tigase.xmpp.XMPPIOService;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * XMPP over WebSocket (RFC 7395) connection. After the HTTP upgrade handshake
+ * the connection carries a single full-duplex XMPP stream, every WebSocket
+ * text message contains a single XML element. The framing <code>open</code>
+ * and <code>close</code> elements are translated to and from the usual stream
+ * header and footer, so the rest of the server sees a normal client stream.
+ * <p/>
+ * Incoming frames are unmasked straight into a buffer taken from a shared
+ * pool for the time a message is being received, outgoing stanzas are framed
+ * from their serialized data directly into pooled buffers, all waiting
+ * stanzas in a single socket write. Whitespace keep-alives are sent as
+ * WebSocket pings.
+ *
+ * @param <RefObject>
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class WebSocketXMPPIOService<RefObject> extends XMPPIOService<RefObject> {
+
+	/**
+	 * Variable <code>log</code> is a class logger.
+	 */
+	private static final Logger log = Logger.getLogger(WebSocketXMPPIOService.class
+			.getName());
+	private static final String EOL = "\r\n";
+	private static final String FRAMING_XMLNS = "urn:ietf:params:xml:ns:xmpp-framing";
+	private static final String STREAM_XMLNS = "http://etherx.jabber.org/streams";
+	private static final String WS_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final String PROTOCOL = "xmpp";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int OPCODE_CONTINUATION = 0x0;
+	private static final int OPCODE_TEXT = 0x1;
+	private static final int OPCODE_BINARY = 0x2;
+	private static final int OPCODE_CLOSE = 0x8;
+	private static final int OPCODE_PING = 0x9;
+	private static final int OPCODE_PONG = 0xA;
+	private static final int STATUS_NORMAL = 1000;
+	private static final int STATUS_PROTOCOL_ERROR = 1002;
+	private static final int STATUS_UNSUPPORTED_DATA = 1003;
+	private static final int STATUS_TOO_BIG = 1009;
+
+	// Longest server frame header, unmasked frame with 64 bit length
+	private static final int MAX_HEADER_SIZE = 10;
+	private static final int MAX_HANDSHAKE_SIZE = 8 * 1024;
+	private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+	private static final ThreadLocal<CharsetEncoder> encoders =
+			new ThreadLocal<CharsetEncoder>() {
+		@Override
+		protected CharsetEncoder initialValue() {
+			return UTF8.newEncoder();
+		}
+	};
+
+	//~--- fields ---------------------------------------------------------------
+
+	private boolean closeSent = false;
+	private boolean handshakeCompleted = false;
+
+	// Received bytes which do not make a complete frame yet
+	private ByteBuffer input = null;
+
+	// Unmasked payload of fragmented message being received
+	private ByteBuffer message = null;
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Writes waiting packets, each of them in a separate WebSocket message.
+	 *
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void processWaitingPackets() throws IOException {
+		if ( !handshakeCompleted) {
+			return;
+		}
+
+		ByteBuffer out = null;
+		Packet packet = null;
+
+		while ((packet = pollWaitingPacket()) != null) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0}, Sending packet: {1}", new Object[] { toString(),
+						packet });
+			}
+
+			Element elem = packet.getElement();
+
+			if (elem.getName().startsWith("stream:")) {
+				out = writeFrame(out, OPCODE_TEXT, declareStreamPrefix(elem.toString()));
+			} else {
+				out = writeFrame(out, OPCODE_TEXT, ByteBuffer.wrap(packet.getElementBytes()));
+			}
+		}
+
+		flush(out);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param data
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void writeRawData(String data) throws IOException {
+		if ( !handshakeCompleted || (data == null)) {
+			super.writeRawData(data);
+
+			return;
+		}
+
+		ByteBuffer out = null;
+
+		// Whitespace keep-alives are not allowed in WebSocket messages, a ping
+		// keeps the connection alive instead
+		if (data.trim().length() == 0) {
+			if (data.length() > 0) {
+				flush(writeFrame(out, OPCODE_PING, ByteBuffer.allocate(0)));
+			}
+
+			return;
+		}
+
+		for (String elem : toFraming(data)) {
+			if (elem == null) {
+				out = writeClose(out, STATUS_NORMAL);
+			} else {
+				out = writeFrame(out, OPCODE_TEXT, elem);
+			}
+		}
+
+		flush(out);
+	}
+
+	/**
+	 * The XML data is taken out of the received data and decoded by
+	 * <code>readData()</code>.
+	 *
+	 *
+	 * @return
+	 */
+	@Override
+	protected boolean parsesBytes() {
+		return false;
+	}
+
+	/**
+	 * Reads data from the socket and returns the XML data of all complete
+	 * WebSocket messages received.
+	 *
+	 *
+	 * @return
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	protected char[] readData() throws IOException {
+		ByteBuffer buf = readBytes();
+
+		if ((buf == null) ||!buf.hasRemaining()) {
+			return null;
+		}
+
+		if (input == null) {
+			input = BufferPool.allocate(buf.remaining());
+		} else if (input.remaining() < buf.remaining()) {
+			input = BufferPool.grow(input, input.position() + buf.remaining());
+		}
+
+		input.put(buf);
+		buf.clear();
+		input.flip();
+
+		StringBuilder result = null;
+
+		try {
+			if ( !handshakeCompleted) {
+				processHandshake();
+			}
+
+			while (handshakeCompleted && isConnected()) {
+				String msg = readMessage();
+
+				if (msg == null) {
+					break;
+				}
+
+				if (result == null) {
+					result = new StringBuilder(msg.length());
+				}
+
+				result.append(fromFraming(msg));
+			}
+		} finally {
+			if (input != null) {
+				if (input.hasRemaining()) {
+					input.compact();
+				} else {
+					BufferPool.release(input);
+					input = null;
+				}
+			}
+		}
+
+		return (result == null) ? null : result.toString().toCharArray();
+	}
+
+	private String declareStreamPrefix(String elem) {
+		if (elem.startsWith("<stream:") && (elem.indexOf("xmlns:stream=") < 0)) {
+			int idx = 8;
+
+			while ((idx < elem.length()) && (elem.charAt(idx) != ' ') && (elem.charAt(idx) != '>')
+					&& (elem.charAt(idx) != '/')) {
+				++idx;
+			}
+
+			return elem.substring(0, idx) + " xmlns:stream='" + STREAM_XMLNS + "'"
+					+ elem.substring(idx);
+		}
+
+		return elem;
+	}
+
+	private void flush(ByteBuffer out) {
+		if ((out == null) || (out.position() == 0)) {
+			return;
+		}
+
+		out.flip();
+		writeBytes(out);
+
+		// The socket keeps the buffer if it could not write all of it
+		if ( !waitingToSend()) {
+			BufferPool.release(out);
+		}
+	}
+
+	private String fromFraming(String msg) {
+		String elem = msg.trim();
+
+		if (elem.startsWith("<open")) {
+			int end = elem.lastIndexOf("/>");
+
+			if (end < 0) {
+				end = elem.lastIndexOf('>');
+			}
+
+			String attrs = elem.substring(5, end).replaceAll("\\s+xmlns=(['\"])" + FRAMING_XMLNS
+					+ "\\1", "");
+
+			return "<stream:stream xmlns='jabber:client' xmlns:stream='" + STREAM_XMLNS + "'"
+					+ attrs + ">";
+		}
+
+		if (elem.startsWith("<close")) {
+			return "</stream:stream>";
+		}
+
+		return elem;
+	}
+
+	private void processHandshake() throws IOException {
+		int end = -1;
+
+		for (int i = input.position(); i + 3 < input.limit(); i++) {
+			if ((input.get(i) == '\r') && (input.get(i + 1) == '\n') && (input.get(i + 2) == '\r')
+					&& (input.get(i + 3) == '\n')) {
+				end = i + 4;
+
+				break;
+			}
+		}
+
+		if (end < 0) {
+			if (input.remaining() > MAX_HANDSHAKE_SIZE) {
+				log.log(Level.FINE, "{0}, WebSocket handshake too long", toString());
+				forceStop();
+			}
+
+			return;
+		}
+
+		byte[] req = new byte[end - input.position()];
+
+		input.get(req);
+
+		String[] lines = new String(req, "ISO-8859-1").split(EOL);
+		String key = null;
+		String protocols = null;
+		boolean upgrade = false;
+
+		for (int i = 1; i < lines.length; i++) {
+			int idx = lines[i].indexOf(':');
+
+			if (idx <= 0) {
+				continue;
+			}
+
+			String name = lines[i].substring(0, idx).trim();
+			String value = lines[i].substring(idx + 1).trim();
+
+			if (name.equalsIgnoreCase("Upgrade")) {
+				upgrade = value.equalsIgnoreCase("websocket");
+			} else if (name.equalsIgnoreCase("Sec-WebSocket-Key")) {
+				key = value;
+			} else if (name.equalsIgnoreCase("Sec-WebSocket-Protocol")) {
+				protocols = value;
+			}
+		}
+
+		boolean xmpp = false;
+
+		if (protocols != null) {
+			for (String protocol : protocols.split(",")) {
+				xmpp |= PROTOCOL.equals(protocol.trim());
+			}
+		}
+
+		if ( !lines[0].startsWith("GET ") ||!upgrade || (key == null) ||!xmpp) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "{0}, Incorrect WebSocket handshake: {1}",
+						new Object[] { toString(), lines[0] });
+			}
+
+			writeBytes(ByteBuffer.wrap(("HTTP/1.1 400 Bad Request" + EOL + "Connection: close"
+					+ EOL + EOL).getBytes("ISO-8859-1")));
+			forceStop();
+
+			return;
+		}
+
+		String response = "HTTP/1.1 101 Switching Protocols" + EOL + "Upgrade: websocket" + EOL
+				+ "Connection: Upgrade" + EOL + "Sec-WebSocket-Accept: " + acceptKey(key) + EOL
+				+ "Sec-WebSocket-Protocol: " + PROTOCOL + EOL + EOL;
+
+		writeBytes(ByteBuffer.wrap(response.getBytes("ISO-8859-1")));
+		handshakeCompleted = true;
+	}
+
+	private String readMessage() throws IOException {
+		while (input.remaining() >= 2) {
+			int pos = input.position();
+			int b0 = input.get(pos) & 0xFF;
+			int b1 = input.get(pos + 1) & 0xFF;
+			boolean fin = (b0 & 0x80) != 0;
+			int opcode = b0 & 0x0F;
+			long len = b1 & 0x7F;
+			int hdr = 2;
+
+			if (len == 126) {
+				if (input.remaining() < 4) {
+					return null;
+				}
+
+				len = input.getShort(pos + 2) & 0xFFFF;
+				hdr = 4;
+			} else if (len == 127) {
+				if (input.remaining() < 10) {
+					return null;
+				}
+
+				len = input.getLong(pos + 2);
+				hdr = 10;
+			}
+
+			// Frames from clients must be masked
+			if ((b1 & 0x80) == 0) {
+				closeWithError(STATUS_PROTOCOL_ERROR);
+
+				return null;
+			}
+
+			// Control frames must not be fragmented or longer than 125 bytes
+			if (((opcode & 0x08) != 0) && ( !fin || (len > 125))) {
+				closeWithError(STATUS_PROTOCOL_ERROR);
+
+				return null;
+			}
+
+			int msgLen = (message == null) ? 0 : message.position();
+
+			if ((len < 0) || (len + msgLen > MAX_MESSAGE_SIZE)) {
+				closeWithError(STATUS_TOO_BIG);
+
+				return null;
+			}
+
+			hdr += 4;
+
+			if (input.remaining() < hdr + len) {
+				if (input.capacity() < hdr + len) {
+					input.compact();
+					input = BufferPool.grow(input, (int) (hdr + len));
+					input.flip();
+				}
+
+				return null;
+			}
+
+			int mask = pos + hdr - 4;
+			int start = pos + hdr;
+			int size = (int) len;
+
+			input.position(start + size);
+
+			switch (opcode) {
+				case OPCODE_CONTINUATION :
+				case OPCODE_TEXT :
+					if ((opcode == OPCODE_TEXT) == (message != null)) {
+						closeWithError(STATUS_PROTOCOL_ERROR);
+
+						return null;
+					}
+
+					if (message == null) {
+						message = BufferPool.allocate(size);
+					} else if (message.remaining() < size) {
+						message = BufferPool.grow(message, message.position() + size);
+					}
+
+					unmask(mask, start, size, message);
+
+					if (fin) {
+						String result = new String(message.array(), message.arrayOffset(),
+								message.position(), "UTF-8");
+
+						BufferPool.release(message);
+						message = null;
+
+						return result;
+					}
+
+					break;
+
+				case OPCODE_PING :
+					ByteBuffer payload = ByteBuffer.allocate(size);
+
+					unmask(mask, start, size, payload);
+					payload.flip();
+
+					ByteBuffer out = BufferPool.allocate(size + MAX_HEADER_SIZE);
+
+					out = writeFrame(out, OPCODE_PONG, payload);
+					flush(out);
+
+					break;
+
+				case OPCODE_PONG :
+					break;
+
+				case OPCODE_CLOSE :
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "{0}, WebSocket close received", toString());
+					}
+
+					flush(writeClose(null, STATUS_NORMAL));
+					forceStop();
+
+					return null;
+
+				case OPCODE_BINARY :
+					closeWithError(STATUS_UNSUPPORTED_DATA);
+
+					return null;
+
+				default :
+					closeWithError(STATUS_PROTOCOL_ERROR);
+
+					return null;
+			}
+		}
+
+		return null;
+	}
+
+	private List<String> toFraming(String data) {
+		List<String> result = new ArrayList<String>(3);
+		String rest = data;
+
+		if (rest.startsWith("<?xml")) {
+			rest = rest.substring(rest.indexOf("?>") + 2);
+		}
+
+		if (rest.startsWith("<stream:stream")) {
+			int end = rest.indexOf('>');
+			String attrs = rest.substring(14, end).replace(" xmlns='jabber:client'", "").replace(
+					" xmlns:stream='" + STREAM_XMLNS + "'", "");
+
+			result.add("<open xmlns='" + FRAMING_XMLNS + "'" + attrs + "/>");
+			rest = rest.substring(end + 1);
+		}
+
+		boolean close = rest.endsWith("</stream:stream>");
+
+		if (close) {
+			rest = rest.substring(0, rest.length() - 16);
+		}
+
+		// Whitespace between elements is not allowed in WebSocket messages
+		if (rest.trim().length() > 0) {
+			result.add(declareStreamPrefix(rest));
+		}
+
+		if (close) {
+			result.add("<close xmlns='" + FRAMING_XMLNS + "'/>");
+
+			// Followed by the WebSocket close frame
+			result.add(null);
+		}
+
+		return result;
+	}
+
+	private void unmask(int mask, int start, int size, ByteBuffer dest) {
+		byte[] src = input.array();
+		int off = input.arrayOffset();
+		byte[] dst = dest.array();
+		int dstPos = dest.arrayOffset() + dest.position();
+
+		for (int i = 0; i < size; i++) {
+			dst[dstPos + i] = (byte) (src[off + start + i] ^ src[off + mask + (i & 3)]);
+		}
+
+		dest.position(dest.position() + size);
+	}
+
+	private ByteBuffer writeClose(ByteBuffer out, int status) {
+		if (closeSent) {
+			return out;
+		}
+
+		closeSent = true;
+
+		ByteBuffer payload = ByteBuffer.allocate(2);
+
+		payload.putShort((short) status);
+		payload.flip();
+
+		return writeFrame(out, OPCODE_CLOSE, payload);
+	}
+
+	private void closeWithError(int status) {
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "{0}, Closing WebSocket connection, status: {1}",
+					new Object[] { toString(), status });
+		}
+
+		flush(writeClose(null, status));
+		forceStop();
+	}
+
+	private ByteBuffer writeFrame(ByteBuffer out, int opcode, String data) {
+		CharsetEncoder encoder = encoders.get();
+		CharBuffer chars = CharBuffer.wrap(data);
+		int maxSize = (int) (data.length() * encoder.maxBytesPerChar()) + MAX_HEADER_SIZE;
+
+		if ((out != null) && (out.remaining() < maxSize)) {
+			flush(out);
+			out = null;
+		}
+
+		if (out == null) {
+			out = BufferPool.allocate(maxSize);
+		}
+
+		// The payload is encoded after the space for the longest header, the header
+		// is written when the payload size is known
+		int start = out.position();
+
+		out.position(start + MAX_HEADER_SIZE);
+		encoder.reset();
+
+		CoderResult cr = encoder.encode(chars, out, true);
+
+		if (cr.isError()) {
+			log.log(Level.WARNING, "{0}, Can not encode data: {1}", new Object[] { toString(),
+					cr });
+			out.position(start);
+
+			return out;
+		}
+
+		encoder.flush(out);
+
+		int size = out.position() - start - MAX_HEADER_SIZE;
+		int hdr = headerSize(size);
+		byte[] arr = out.array();
+		int off = out.arrayOffset();
+
+		if (hdr < MAX_HEADER_SIZE) {
+			System.arraycopy(arr, off + start + MAX_HEADER_SIZE, arr, off + start + hdr, size);
+		}
+
+		out.position(start);
+		putHeader(out, opcode, size);
+		out.position(start + hdr + size);
+
+		return out;
+	}
+
+	private ByteBuffer writeFrame(ByteBuffer out, int opcode, ByteBuffer payload) {
+		int maxSize = payload.remaining() + MAX_HEADER_SIZE;
+
+		if ((out != null) && (out.remaining() < maxSize)) {
+			flush(out);
+			out = null;
+		}
+
+		if (out == null) {
+			out = BufferPool.allocate(maxSize);
+		}
+
+		putHeader(out, opcode, payload.remaining());
+		out.put(payload);
+
+		return out;
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	private String acceptKey(String key) throws IOException {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+
+			return Base64.encode(md.digest((key + WS_GUID).getBytes("ISO-8859-1")));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 is not available: " + e.getMessage());
+		} catch (UnsupportedEncodingException e) {
+			throw new IOException("ISO-8859-1 is not available: " + e.getMessage());
+		}
+	}
+
+	private int headerSize(int size) {
+		return (size < 126) ? 2 : (size <= 0xFFFF) ? 4 : 10;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	private void putHeader(ByteBuffer out, int opcode, int size) {
+		out.put((byte) (0x80 | opcode));
+
+		if (size < 126) {
+			out.put((byte) size);
+		} else if (size <= 0xFFFF) {
+			out.put((byte) 126);
+			out.putShort((short) size);
+		} else {
+			out.put((byte) 127);
+			out.putLong(size);
+		}
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
@@ -28,6 +28,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.TimerTask;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
@@ -79,6 +80,10 @@ public class ClientConnectionManager extends ConnectionManager<XMPPIOService<Obj
 	private static final boolean XMPP_ACK_PROP_VAL = false;
 	private static final String SOCKET_CLOSE_WAIT_PROP_KEY = "socket-close-wait";
 	private static final long SOCKET_CLOSE_WAIT_PROP_DEF = 1;
+	private static final String SM_BUFFER_SIZE_PROP_KEY = "sm-buffer-size";
+	private static final int SM_BUFFER_SIZE_PROP_DEF = 256;
+	private static final String SM_XMLNS = "urn:xmpp:sm:3";
+	private static final String SM_KEY = "stream-management";
 
 	protected SeeOtherHostIfc see_other_host_strategy = null;
 
@@ -90,6 +95,21 @@ public class ClientConnectionManager extends ConnectionManager<XMPPIOService<Obj
 	private boolean white_char_ack = WHITE_CHAR_ACK_PROP_VAL;
 	private boolean xmpp_ack = XMPP_ACK_PROP_VAL;
 	private long socket_close_wait_time = SOCKET_CLOSE_WAIT_PROP_DEF;
+	private int sm_buffer_size = SM_BUFFER_SIZE_PROP_DEF;
+
+	/**
+	 * Stream management state of broken client connections waiting for the
+	 * client to resume the session, the key is the old connection service id.
+	 */
+	private final ConcurrentHashMap<String, ResumableSession> detached =
+		new ConcurrentHashMap<String, ResumableSession>();
+
+	/**
+	 * Connections which resumed a session, the key is the service id of the
+	 * connection the session was originally bound to.
+	 */
+	private final ConcurrentHashMap<String, XMPPIOService<Object>> resumed =
+		new ConcurrentHashMap<String, XMPPIOService<Object>>();
 
 	/**
 	 * This is mostly for testing purpose. We want to investigate massive (10k per
@@ -159,6 +179,7 @@ public class ClientConnectionManager extends ConnectionManager<XMPPIOService<Obj
 		props.put(WHITE_CHAR_ACK_PROP_KEY, white_char_ack);
 		props.put(XMPP_ACK_PROP_KEY, xmpp_ack);
 		props.put(SOCKET_CLOSE_WAIT_PROP_KEY, SOCKET_CLOSE_WAIT_PROP_DEF);
+		props.put(SM_BUFFER_SIZE_PROP_KEY, SM_BUFFER_SIZE_PROP_DEF);
 
 		return props;
 	}
@@ -237,7 +258,7 @@ public class ClientConnectionManager extends ConnectionManager<XMPPIOService<Obj
 		if (packet.isCommand() && (packet.getCommand() != Command.OTHER)) {
 			processCommand(packet);
 		} else {
-			if (!writePacketToSocket(packet)) {
+			if (!writeStreamPacket(packet)) {
 
 				// Connection closed or broken, send message back to the SM
 				// if this is not IQ result...
@@ -340,6 +361,10 @@ public class ClientConnectionManager extends ConnectionManager<XMPPIOService<Obj
 				}
 			}
 
+			if (processStreamManagement(serv, p)) {
+				continue;
+			}
+
 			// p.setPacketFrom(getFromAddress(id));
 			p.setPacketFrom(id);
 
@@ -384,6 +409,24 @@ public class ClientConnectionManager extends ConnectionManager<XMPPIOService<Obj
 	@Override
 	public boolean serviceStopped(XMPPIOService<Object> service) {
 		boolean result = super.serviceStopped(service);
+		ResumableSession rs = (ResumableSession) service.getSessionData().get(SM_KEY);
+
+		if (rs != null) {
+			String id = getServiceId(service.getConnectionId());
+
+			// The connection broke without closing the stream, keep the user session
+			// for the client to resume it. The session is detached before the
+			// connection is forgotten, so stanzas always find one of them.
+			if (rs.isResumable() && (service.getSessionData().get("stream-closed") == null)
+					&& (service.getDataReceiver() != null)) {
+				detach(id, service, rs);
+				resumed.remove(id, service);
+
+				return result;
+			}
+
+			resumed.remove(id, service);
+		}
 
 		xmppStreamClosed(service);
 
@@ -418,6 +461,10 @@ public class ClientConnectionManager extends ConnectionManager<XMPPIOService<Obj
 			socket_close_wait_time = (Long) props.get(SOCKET_CLOSE_WAIT_PROP_KEY);
 		}
 
+		if (props.get(SM_BUFFER_SIZE_PROP_KEY) != null) {
+			sm_buffer_size = (Integer) props.get(SM_BUFFER_SIZE_PROP_KEY);
+		}
+
 		if (props.size() == 1) {
 			// If props.size() == 1, it means this is a single property update
 			// and this component does not support single property change for the rest
@@ -627,6 +674,7 @@ public class ClientConnectionManager extends ConnectionManager<XMPPIOService<Obj
 			Command.addFieldValue(streamOpen, "session-id", id);
 			Command.addFieldValue(streamOpen, "hostname", hostname);
 			Command.addFieldValue(streamOpen, "xml:lang", lang);
+			addStreamOpenedFields(streamOpen, serv);
 			if (log.isLoggable(Level.FINER)) {
 				log.log(Level.FINER, "Sending a system command to SM: {0}", streamOpen);
 			}
@@ -646,6 +694,15 @@ public class ClientConnectionManager extends ConnectionManager<XMPPIOService<Obj
 		return null;
 	}
 
+	/**
+	 * Adds fields describing the connection to the command opening the user
+	 * session. Nothing is added for standard client connections.
+	 *
+	 * @param streamOpen is the <code>STREAM_OPENED</code> command.
+	 * @param serv is the connection the stream was opened on.
+	 */
+	protected void addStreamOpenedFields(Packet streamOpen, XMPPIOService<Object> serv) {}
+
 	protected JID changeDataReceiver(Packet packet, JID newAddress,
 			String command_sessionId, XMPPIOService<Object> serv) {
 		if (serv != null) {
@@ -703,6 +760,22 @@ public class ClientConnectionManager extends ConnectionManager<XMPPIOService<Obj
 		return result;
 	}
 
+	@Override
+	protected XMPPIOService<Object> getXMPPIOService(String serviceId) {
+		XMPPIOService<Object> serv = super.getXMPPIOService(serviceId);
+
+		if ((serv == null) && (serviceId != null) &&!resumed.isEmpty()) {
+			serv = resumed.get(serviceId);
+		}
+
+		return serv;
+	}
+
+	@Override
+	protected XMPPIOService<Object> getXMPPIOService(Packet p) {
+		return getXMPPIOService(getServiceId(p));
+	}
+
 	protected ReceiverTimeoutHandler newStartedHandler() {
 		return new StartedHandler();
 	}
@@ -834,6 +907,11 @@ public class ClientConnectionManager extends ConnectionManager<XMPPIOService<Obj
 			case STREAM_CLOSED:
 				break;
 
+			case STREAM_MOVED:
+				resumeStream(iqc, serv);
+
+				break;
+
 			case GETDISCO:
 				break;
 
@@ -864,8 +942,18 @@ public class ClientConnectionManager extends ConnectionManager<XMPPIOService<Obj
 					} catch (Exception e) {
 					}
 
+					// Session closed by the server can not be resumed
+					serv.getSessionData().remove(SM_KEY);
 					serv.stop();
 				} else {
+					String id = getServiceId(iqc);
+					ResumableSession rs = (id == null) ? null : detached.get(id);
+
+					if ((rs != null) && removeDetached(id, rs)) {
+						rs.cancelExpiry();
+						closeDetached(rs);
+					}
+
 					if (log.isLoggable(Level.FINE)) {
 						log.log(
 								Level.FINE,
@@ -877,7 +965,7 @@ public class ClientConnectionManager extends ConnectionManager<XMPPIOService<Obj
 				break;
 
 			case CHECK_USER_CONNECTION:
-				if (serv != null) {
+				if ((serv != null) || detached.containsKey(getServiceId(iqc))) {
 
 					// It's ok, the session has been found, respond with OK.
 					addOutPacket(iqc.okResult((String) null, 0));
@@ -904,6 +992,303 @@ public class ClientConnectionManager extends ConnectionManager<XMPPIOService<Obj
 		} // end of switch (pc.getCommand())
 	}
 
+	private void closeDetached(final ResumableSession rs) {
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Closing session not resumed in time: {0}",
+					rs.getConnectionId());
+		}
+
+		Packet command = Command.STREAM_CLOSED.getPacket(rs.getConnectionId(),
+				rs.getDataReceiver(), StanzaType.set, UUID.randomUUID().toString());
+
+		addOutPacketWithTimeout(command, new StoppedHandler() {
+			@Override
+			public void responseReceived(Packet packet, Packet response) {
+				super.responseReceived(packet, response);
+
+				// The user session is gone now, messages not acknowledged by the client
+				// are routed again to be delivered to other resources or stored offline.
+				for (Packet p : rs.getUnacked()) {
+					if ((p.getElemName() == "message") && (p.getType() != StanzaType.error)) {
+						addOutPacket(Packet.packetInstance(p.getElement().clone(), p.getStanzaFrom(),
+								p.getStanzaTo()));
+					}
+				}
+			}
+			@Override
+			public void timeOutExpired(Packet packet) {
+				log.log(Level.INFO, "No response within time limit received for a packet: {0}",
+						packet.toStringSecure());
+				addOutPacketWithTimeout(packet, this, 60l, TimeUnit.SECONDS);
+			}
+		}, 120l, TimeUnit.SECONDS);
+	}
+
+	private void detach(final String id, XMPPIOService<Object> service,
+			final ResumableSession rs) {
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Connection broken, session waiting for resumption: {0}",
+					service.getConnectionId());
+		}
+
+		rs.setConnectionId(service.getConnectionId());
+		rs.setDataReceiver(service.getDataReceiver());
+		detached.put(id, rs);
+
+		TimerTask task = new TimerTask() {
+			@Override
+			public void run() {
+				if (removeDetached(id, rs)) {
+					closeDetached(rs);
+				}
+			}
+		};
+
+		rs.setExpiry(task);
+		addTimerTask(task, rs.getTimeout());
+	}
+
+	// Detached sessions are removed only with the session lock held, so the
+	// resumption can hand the session over to the new connection atomically.
+	private boolean removeDetached(String id, ResumableSession rs) {
+		synchronized (rs) {
+			return detached.remove(id, rs);
+		}
+	}
+
+	private Packet newSMElement(String name, String attr, String value) {
+		Element elem = new Element(name, new String[] { "xmlns" }, new String[] { SM_XMLNS });
+
+		if (attr != null) {
+			elem.setAttribute(attr, value);
+		}
+
+		return Packet.packetInstance(elem, null, null);
+	}
+
+	/**
+	 * Handles stream management elements sent by the client and counts received
+	 * stanzas.
+	 *
+	 * @return <code>true</code> if the packet has been handled and must not be
+	 * passed to the session manager.
+	 */
+	private boolean processStreamManagement(XMPPIOService<Object> serv, Packet p) {
+		ResumableSession rs = (ResumableSession) serv.getSessionData().get(SM_KEY);
+
+		if (rs == null) {
+			if (p.isElement("enable", SM_XMLNS) && (serv.getXMLNS() == XMLNS)) {
+				serv.getSessionData().put(SM_KEY, new ResumableSession(sm_buffer_size));
+			}
+
+			return false;
+		}
+
+		if (ResumableSession.isStanza(p)) {
+			rs.received();
+
+			return false;
+		}
+
+		if (p.isElement("r", SM_XMLNS)) {
+			writePacketToSocket(serv, newSMElement("a", "h", String.valueOf(rs.getInCount())));
+
+			return true;
+		}
+
+		if (p.isElement("a", SM_XMLNS)) {
+			try {
+				rs.acked(Long.parseLong(p.getElement().getAttribute("h")));
+			} catch (NumberFormatException e) {
+				log.log(Level.FINE, "Incorrect ack received: {0}", p);
+			}
+
+			return true;
+		}
+
+		return false;
+	}
+
+	private void resumeStream(Iq iqc, XMPPIOService<Object> serv) {
+		if (serv == null) {
+			log.log(Level.FINE, "Can't find sevice for STREAM_MOVED command: {0}", iqc);
+
+			return;
+		}
+
+		String old_conn_id = Command.getFieldValue(iqc, "old-conn-id");
+		JID connectionId = (old_conn_id == null) ? null : JID.jidInstanceNS(old_conn_id);
+		String id = (connectionId == null) ? null : getServiceId(connectionId);
+		ResumableSession rs = (id == null) ? null : detached.get(id);
+		XMPPIOService<Object> old = null;
+
+		if ((rs == null) && (id != null)) {
+
+			// The client might notice the broken connection before the server
+			old = getXMPPIOService(id);
+
+			if ((old != null) && (old != serv)) {
+				rs = (ResumableSession) old.getSessionData().remove(SM_KEY);
+
+				if (rs != null) {
+					rs.setConnectionId(old.getConnectionId());
+					rs.setDataReceiver(old.getDataReceiver());
+					old.getSessionData().put("stream-closed", "stream-closed");
+				}
+			}
+		}
+
+		if ((rs == null) ||!rs.isResumable()) {
+			writeResumeFailed(serv);
+
+			return;
+		}
+
+		// The new connection is published before the detached session is removed,
+		// all under the session lock, so stanzas for the session are either
+		// buffered in time for the resumed element or written after it.
+		synchronized (rs) {
+			if ((old == null) && (detached.get(id) != rs)) {
+
+				// Expired or closed in the meantime
+				writeResumeFailed(serv);
+
+				return;
+			}
+
+			rs.cancelExpiry();
+
+			try {
+				rs.acked(Long.parseLong(Command.getFieldValue(iqc, "h")));
+			} catch (NumberFormatException e) {
+				log.log(Level.FINE, "Incorrect h value in: {0}", iqc);
+			}
+
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Session {0} resumed on connection: {1}", new Object[] {
+						rs.getConnectionId(),
+						serv.getConnectionId() });
+			}
+
+			// The new stream has been only authenticated, its own session is no
+			// longer needed, the connection takes over the address of the resumed
+			// session.
+			Packet command = Command.STREAM_CLOSED.getPacket(serv.getConnectionId(),
+					serv.getDataReceiver(), StanzaType.set, UUID.randomUUID().toString());
+
+			serv.setConnectionId(rs.getConnectionId());
+			serv.setDataReceiver(rs.getDataReceiver());
+			serv.getSessionData().put(SM_KEY, rs);
+			resumed.put(id, serv);
+			detached.remove(id, rs);
+			addOutPacketWithTimeout(command, stoppedHandler, 120l, TimeUnit.SECONDS);
+
+			Queue<Packet> packets = new LinkedList<Packet>();
+			Packet result = newSMElement("resumed", "previd", rs.getId());
+
+			result.getElement().setAttribute("h", String.valueOf(rs.getInCount()));
+			packets.offer(result);
+			packets.addAll(rs.getUnacked());
+			writePacketsToSocket(serv, packets);
+		}
+
+		if (old != null) {
+			old.forceStop();
+		}
+	}
+
+	private void writeResumeFailed(XMPPIOService<Object> serv) {
+		Packet failed = newSMElement("failed", null, null);
+
+		failed.getElement().addChild(new Element("item-not-found", new String[] { "xmlns" },
+				new String[] { "urn:ietf:params:xml:ns:xmpp-stanzas" }));
+		writePacketToSocket(serv, failed);
+	}
+
+	/**
+	 * Writes a packet to the client connection and keeps it for possible
+	 * retransmission if stream management is enabled. Stanzas for a broken
+	 * connection waiting for resumption are buffered.
+	 *
+	 * @return <code>false</code> if the connection does not exist.
+	 */
+	private boolean writeStreamPacket(Packet packet) {
+		XMPPIOService<Object> serv = getXMPPIOService(packet);
+
+		if ((serv == null) &&!detached.isEmpty()) {
+			String id = getServiceId(packet);
+			ResumableSession rs = (id == null) ? null : detached.get(id);
+
+			if (rs == null) {
+				return false;
+			}
+
+			synchronized (rs) {
+				if (detached.get(id) == rs) {
+					bufferDetached(id, rs, packet);
+
+					return true;
+				}
+			}
+
+			// Resumed in the meantime
+			serv = getXMPPIOService(packet);
+		}
+
+		ResumableSession rs = (serv == null)
+				? null
+				: (ResumableSession) serv.getSessionData().get(SM_KEY);
+
+		if (rs == null) {
+			return writePacketToSocket(packet);
+		}
+
+		if (packet.isElement("enabled", SM_XMLNS)) {
+			String max = packet.getElement().getAttribute("max");
+
+			rs.enable(packet.getElement().getAttribute("id"), (max == null)
+					? 0
+					: Long.parseLong(max) * 1000);
+
+			return writePacketToSocket(serv, packet);
+		}
+
+		if (packet.isElement("failed", SM_XMLNS) &&!rs.isEnabled()) {
+			serv.getSessionData().remove(SM_KEY);
+
+			return writePacketToSocket(serv, packet);
+		}
+
+		if ( !rs.isEnabled() ||!ResumableSession.isStanza(packet)) {
+			return writePacketToSocket(serv, packet);
+		}
+
+		// Stanzas must not get ahead of the resumed element
+		synchronized (rs) {
+			boolean request = rs.sent(packet);
+			boolean result = writePacketToSocket(serv, packet);
+
+			if (request) {
+				writePacketToSocket(serv, newSMElement("r", null, null));
+			}
+
+			return result;
+		}
+	}
+
+	// Must be called with the session lock held
+	private void bufferDetached(String id, ResumableSession rs, Packet packet) {
+		if (ResumableSession.isStanza(packet)) {
+			rs.sent(packet);
+
+			// Too many stanzas for the detached session, it can't be resumed anymore
+			if (rs.isOverflow() && detached.remove(id, rs)) {
+				rs.cancelExpiry();
+				closeDetached(rs);
+			}
+		}
+	}
+
 	private List<Element> getFeatures(XMPPResourceConnection session) {
 		List<Element> results = new LinkedList<Element>();
 
@@ -0,0 +1,309 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.server.xmppclient;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.server.Packet;
+
+import tigase.xmpp.JID;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Stream management state of a single client stream: counters of handled
+ * stanzas in both directions and a bounded buffer of stanzas sent to the
+ * client but not acknowledged yet. While the client is connected the state is
+ * kept in the connection session data. When the connection breaks the state is
+ * detached from the connection and keeps buffering stanzas sent to the user
+ * session until the client resumes the stream or the resumption timeout
+ * expires.
+ *
+ * Counters are handled modulo 2^32 as required by XEP-0198.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class ResumableSession {
+	private static final long MASK = 0xFFFFFFFFL;
+
+	//~--- fields ---------------------------------------------------------------
+
+	private JID connectionId = null;
+	private JID dataReceiver = null;
+	private boolean enabled = false;
+	private TimerTask expiry = null;
+	private String id = null;
+	private long inCount = 0;
+	private int maxSize = 0;
+	private long outCount = 0;
+	private boolean overflow = false;
+	private long timeout = 0;
+	private ArrayDeque<Packet> unacked = null;
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Constructs the state when the client requests stream management, stanzas
+	 * received from the client are counted from this point.
+	 *
+	 * @param maxSize is the maximum number of unacknowledged stanzas kept.
+	 */
+	public ResumableSession(int maxSize) {
+		this.maxSize = Math.max(1, maxSize);
+		unacked = new ArrayDeque<Packet>(Math.min(this.maxSize, 64));
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param packet
+	 *
+	 * @return
+	 */
+	public static boolean isStanza(Packet packet) {
+		String name = packet.getElemName();
+
+		return (name == "message") || (name == "presence") || (name == "iq");
+	}
+
+	/**
+	 * Removes stanzas acknowledged by the client from the buffer. Once the
+	 * client acknowledged all stanzas dropped from a full buffer, the session
+	 * can be resumed again.
+	 *
+	 * @param h is the number of stanzas handled by the client.
+	 */
+	public synchronized void acked(long h) {
+		long first = (outCount - unacked.size()) & MASK;
+		long count = (h - first) & MASK;
+
+		// An older acknowledgement, which does not cover the dropped stanzas
+		if (count > unacked.size()) {
+			return;
+		}
+
+		for (long i = 0; i < count; i++) {
+			unacked.poll();
+		}
+
+		overflow = false;
+	}
+
+	/**
+	 * Cancels the resumption timeout of a detached session.
+	 *
+	 */
+	public synchronized void cancelExpiry() {
+		if (expiry != null) {
+			expiry.cancel();
+			expiry = null;
+		}
+	}
+
+	/**
+	 * Called when the session manager confirmed stream management, stanzas sent
+	 * to the client are counted from this point.
+	 *
+	 * @param id is the resumption id assigned by the session manager or
+	 * <code>null</code> if the stream is not resumable.
+	 * @param timeout is the resumption timeout in milliseconds.
+	 */
+	public synchronized void enable(String id, long timeout) {
+		this.id = id;
+		this.timeout = timeout;
+		enabled = true;
+	}
+
+	/**
+	 * Counts a stanza received from the client.
+	 *
+	 */
+	public synchronized void received() {
+		inCount = (inCount + 1) & MASK;
+	}
+
+	/**
+	 * Counts a stanza sent to the client and keeps it until it is
+	 * acknowledged. When the buffer is full the oldest stanza is dropped and the
+	 * session can not be resumed until the client acknowledges the dropped
+	 * stanza.
+	 *
+	 * @param packet is the stanza sent to the client.
+	 *
+	 * @return <code>true</code> if the buffer is half full and an
+	 * acknowledgement should be requested from the client.
+	 */
+	public synchronized boolean sent(Packet packet) {
+		outCount = (outCount + 1) & MASK;
+
+		if (unacked.size() >= maxSize) {
+			unacked.poll();
+			overflow = true;
+		}
+
+		unacked.offer(packet);
+
+		return unacked.size() == maxSize / 2;
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public JID getConnectionId() {
+		return connectionId;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public JID getDataReceiver() {
+		return dataReceiver;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public synchronized String getId() {
+		return id;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public synchronized long getInCount() {
+		return inCount;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public synchronized long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Returns a copy of stanzas not acknowledged by the client yet, in the
+	 * order they were sent.
+	 *
+	 * @return
+	 */
+	public synchronized List<Packet> getUnacked() {
+		return new ArrayList<Packet>(unacked);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public synchronized boolean isOverflow() {
+		return overflow;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public synchronized boolean isResumable() {
+		return enabled && (id != null) && (timeout > 0) &&!overflow;
+	}
+
+	//~--- set methods ----------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param connectionId
+	 */
+	public void setConnectionId(JID connectionId) {
+		this.connectionId = connectionId;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param dataReceiver
+	 */
+	public void setDataReceiver(JID dataReceiver) {
+		this.dataReceiver = dataReceiver;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param expiry
+	 */
+	public synchronized void setExpiry(TimerTask expiry) {
+		this.expiry = expiry;
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
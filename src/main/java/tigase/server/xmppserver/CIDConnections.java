@@ -28,17 +28,20 @@ import tigase.net.SocketType;
 
 import tigase.server.Packet;
 
-import tigase.util.DNSEntry;
-import tigase.util.DNSResolver;
+import tigase.util.AsyncDNSResolver;
 
 import tigase.xmpp.Authorization;
+import tigase.xmpp.JID;
 import tigase.xmpp.PacketErrorTypeException;
 
 //~--- JDK imports ------------------------------------------------------------
 
 import java.net.UnknownHostException;
 
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -47,6 +50,8 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -54,6 +59,18 @@ import java.util.logging.Logger;
 //~--- classes ----------------------------------------------------------------
 
 /**
+ * Outgoing and incoming connections for a single pair of local and remote
+ * domains.
+ *
+ * Packets to the remote domain are spread over a number of send lanes by
+ * their (from, to) addresses. Each lane is bound to one of the authenticated
+ * outgoing connections, lanes are distributed evenly among connections, so
+ * all connections are used while the order of packets between two addresses
+ * is preserved. A lane is drained by one thread at a time which writes
+ * waiting packets in batches, a single socket write for each batch. The total
+ * number of packets waiting for the remote domain is limited, packets over
+ * the limit are not accepted.
+ *
  * Created: Jun 14, 2010 12:32:49 PM
  * 
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
@@ -63,6 +80,7 @@ public class CIDConnections {
 	private static final Logger log = Logger.getLogger(CIDConnections.class.getName());
 	private static final Timer outgoingOpenTasks = new Timer("S2S outgoing open tasks",
 			true);
+	private static final int SEND_BATCH_SIZE = 100;
 
 	// ~--- fields ---------------------------------------------------------------
 
@@ -70,12 +88,20 @@ public class CIDConnections {
 	private S2SConnectionSelector connectionSelector = null;
 	private long firstWaitingTime = 0;
 	private S2SConnectionHandlerIfc<S2SIOService> handler = null;
+	private AsyncDNSResolver resolver = null;
 	private int max_in_conns = 4;
 	private int max_out_conns = 4;
 	private int max_out_conns_per_ip = 2;
+	private int max_waiting_packets = 10000;
 	private long max_waiting_time = 15 * 60 * 1000;
 	private AtomicBoolean outgoingOpenInProgress = new AtomicBoolean(false);
-	private ReentrantLock sendInProgress = new ReentrantLock();
+	private OutgoingLane[] lanes = null;
+	private AtomicInteger waiting = new AtomicInteger();
+	private AtomicLong sent = new AtomicLong();
+	private AtomicLong rejected = new AtomicLong();
+	private long lastSampleTime = System.currentTimeMillis();
+	private long lastSampleSent = 0;
+	private float throughput = 0;
 	private Set<S2SConnection> outgoing_handshaking =
 			new ConcurrentSkipListSet<S2SConnection>();
 	private Set<S2SConnection> outgoing = new ConcurrentSkipListSet<S2SConnection>();
@@ -85,8 +111,6 @@ public class CIDConnections {
 	 * (SessionID, dbKey) pairs
 	 */
 	private Map<String, String> dbKeys = new ConcurrentSkipListMap<String, String>();
-	private ConcurrentLinkedQueue<Packet> waitingPackets =
-			new ConcurrentLinkedQueue<Packet>();
 
 	// ~--- constructors ---------------------------------------------------------
 	
@@ -109,17 +133,30 @@ public class CIDConnections {
 	 * @param maxOutConns
 	 * @param maxOutConnsPerIP
 	 * @param max_waiting_time
+	 * @param maxWaitingPackets
+	 * @param resolver
 	 */
 	public CIDConnections(CID cid, S2SConnectionHandlerIfc<S2SIOService> handler,
 			S2SConnectionSelector selector, int maxInConns, int maxOutConns,
-			int maxOutConnsPerIP, long max_waiting_time) {
+			int maxOutConnsPerIP, long max_waiting_time, int maxWaitingPackets,
+			AsyncDNSResolver resolver) {
 		this.cid = cid;
 		this.handler = handler;
+		this.resolver = resolver;
 		this.connectionSelector = selector;
 		this.max_in_conns = maxInConns;
 		this.max_out_conns = maxOutConns;
 		this.max_out_conns_per_ip = maxOutConnsPerIP;
 		this.max_waiting_time = max_waiting_time;
+		this.max_waiting_packets = maxWaitingPackets;
+
+		// Twice as many lanes as connections, so packets are spread evenly
+		// among connections even if the address pairs are not.
+		lanes = new OutgoingLane[Math.max(1, maxOutConns) * 2];
+
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new OutgoingLane();
+		}
 	}
 
 	// ~--- methods --------------------------------------------------------------
@@ -222,8 +259,9 @@ public class CIDConnections {
 				outgoing.remove(s2s_conn);
 				outgoing_handshaking.remove(s2s_conn);
 
-				if (!waitingPackets.isEmpty()) {
-					checkOpenConnections();
+				// Packets of lanes bound to the connection go over remaining ones
+				if (waiting.get() > 0) {
+					sendPacket(null);
 				}
 
 				break;
@@ -453,7 +491,49 @@ public class CIDConnections {
 	 * @return
 	 */
 	public int getWaitingCount() {
-		return waitingPackets.size();
+		return waiting.get();
+	}
+
+	/**
+	 * Returns the number of packets not accepted for sending because too many
+	 * packets were waiting for the remote domain.
+	 *
+	 *
+	 * @return
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	/**
+	 * Returns the number of packets per second sent to the remote domain,
+	 * measured over the period since the previous call, at least a second.
+	 *
+	 *
+	 * @return
+	 */
+	public synchronized float getThroughput() {
+		long now = System.currentTimeMillis();
+
+		if (now - lastSampleTime >= 1000) {
+			long sentNow = sent.get();
+
+			throughput = (sentNow - lastSampleSent) * 1000f / (now - lastSampleTime);
+			lastSampleTime = now;
+			lastSampleSent = sentNow;
+		}
+
+		return throughput;
 	}
 
 	// ~--- methods --------------------------------------------------------------
@@ -485,7 +565,7 @@ public class CIDConnections {
 					outgoing.remove(s2s_conn);
 					outgoing_handshaking.remove(s2s_conn);
 
-					if (!this.waitingPackets.isEmpty()) {
+					if (waiting.get() > 0) {
 						checkOpenConnections();
 					}
 
@@ -545,97 +625,103 @@ public class CIDConnections {
 		outgoingOpenTasks.schedule(new TimerTask() {
 			@Override
 			public void run() {
-				try {
-					DNSEntry dns_entry = DNSResolver.getHostSRV_Entry(cid.getRemoteHost());
-					S2SConnection s2s_conn = new S2SConnection(handler, dns_entry.getIp());
+				resolver.resolve(cid.getRemoteHost(), new AsyncDNSResolver.ResultHandler() {
+					@Override
+					public void resolved(String domain, AsyncDNSResolver.Entry[] entries) {
+						AsyncDNSResolver.Entry dns_entry = entries[0];
+						S2SConnection s2s_conn = new S2SConnection(handler, dns_entry.getIp());
 
-					s2s_conn.addControlPacket(verify_req);
+						s2s_conn.addControlPacket(verify_req);
 
-					Map<String, Object> port_props = new TreeMap<String, Object>();
+						Map<String, Object> port_props = new TreeMap<String, Object>();
 
-					port_props.put(S2SIOService.HANDSHAKING_ONLY_KEY,
-							S2SIOService.HANDSHAKING_ONLY_KEY);
-                                       
-                                        // it looks like we are sending verify requests only on handshaking-only connection
-                                        // so there is only one domain for verification
-                                        port_props.put(S2SIOService.HANDSHAKING_DOMAIN_KEY, verify_req.getStanzaTo().toString());
-                                        
-					initNewConnection(dns_entry.getIp(), dns_entry.getPort(), s2s_conn, port_props);
-				} catch (UnknownHostException ex) {
-					log.log(Level.INFO, "Remote host not found: " + cid.getRemoteHost(), ex);
-				}
+						port_props.put(S2SIOService.HANDSHAKING_ONLY_KEY,
+								S2SIOService.HANDSHAKING_ONLY_KEY);
+
+						// it looks like we are sending verify requests only on handshaking-only connection
+						// so there is only one domain for verification
+						port_props.put(S2SIOService.HANDSHAKING_DOMAIN_KEY,
+								verify_req.getStanzaTo().toString());
+						initNewConnection(dns_entry.getIp(), dns_entry.getPort(), s2s_conn,
+								port_props);
+					}
+
+					@Override
+					public void failed(String domain, UnknownHostException ex) {
+						log.log(Level.INFO, "Remote host not found: " + cid.getRemoteHost(), ex);
+					}
+				});
 			}
 		}, 0);
 	}
 
 	/**
-	 * Method description
-	 * 
-	 * 
+	 * Queues the packet for sending to the remote domain and sends waiting
+	 * packets if there is an outgoing connection available. Called with
+	 * <code>null</code> sends all waiting packets.
+	 *
+	 *
 	 * @param packet
+	 *
+	 * @return <code>false</code> if the packet has not been accepted because too
+	 * many packets are waiting for the remote domain.
 	 */
-	public void sendPacket(Packet packet) {
+	public boolean sendPacket(Packet packet) {
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Sending packets.");
 		}
 
+		boolean packetSent = false;
+		boolean noConnection = false;
+
 		if (packet != null) {
-			if ((firstWaitingTime == 0) || waitingPackets.isEmpty()) {
-				firstWaitingTime = System.currentTimeMillis();
+			if (waiting.get() >= max_waiting_packets) {
+				rejected.incrementAndGet();
+
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "Too many packets waiting for: {0}, rejecting: {1}",
+							new Object[] { cid, packet });
+				}
+
+				return false;
 			}
 
-			waitingPackets.offer(packet);
-		}
+			if (waiting.getAndIncrement() == 0) {
+				firstWaitingTime = System.currentTimeMillis();
+			}
 
-		if (sendInProgress.tryLock()) {
-			try {
-				boolean packetSent = false;
-				Packet waiting = null;
+			OutgoingLane lane = lanes[getLaneIdx(packet)];
 
-				while ((waiting = waitingPackets.peek()) != null) {
-					S2SConnection s2s_conn = getOutgoingConnection(waiting);
+			lane.queue.offer(packet);
 
-					if (s2s_conn != null) {
-						try {
-							packetSent = s2s_conn.sendPacket(waiting);
-							waitingPackets.poll();
+			int result = lane.send();
 
-							if (log.isLoggable(Level.FINEST)) {
-								log.log(Level.FINEST, "Packet: {0} sent over connection: {1}",
-										new Object[] { waiting, s2s_conn.getS2SIOService() });
-							}
-						} catch (Exception ex) {
-							log.log(Level.FINE,
-									"A problem sending packet, connection broken? Retrying later. {0}",
-									waiting);
-						}
-					} else {
-						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST,
-									"There is no connection available to send the packet: {0}", waiting);
-						}
+			packetSent = result > 0;
+			noConnection = result < 0;
+		} else {
+			for (OutgoingLane lane : lanes) {
+				int result = lane.send();
 
-						break;
-					}
-				}
+				packetSent |= result > 0;
+				noConnection |= result < 0;
+			}
+		}
 
-				if (!packetSent) {
-					if (log.isLoggable(Level.FINEST)) {
-						log.log(Level.FINEST,
-								"No packet could be sent, trying to open more connections: {0}", cid);
-					}
+		if (noConnection || ((packet == null) &&!packetSent)) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST,
+						"No packet could be sent, trying to open more connections: {0}", cid);
+			}
 
-					checkOpenConnections();
-				} else {
-					if (log.isLoggable(Level.FINEST)) {
-						log.log(Level.FINEST,
-								"Some packets were sent, not trying to open more connections: {0}", cid);
-					}
-				}
-			} finally {
-				sendInProgress.unlock();
+			checkOpenConnections();
+		} else {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST,
+						"Some packets were sent, not trying to open more connections: {0}", cid);
 			}
 		}
+
+		return true;
 	}
 
 	private void checkOpenConnections() {
@@ -693,8 +779,45 @@ public class CIDConnections {
 		return result;
 	}
 
+	private int getLaneIdx(Packet packet) {
+		JID from = packet.getStanzaFrom();
+		JID to = packet.getStanzaTo();
+		int hash = 31 * ((from == null) ? 0 : from.hashCode())
+				+ ((to == null) ? 0 : to.hashCode());
+
+		return Math.abs(hash % lanes.length);
+	}
+
 	private S2SConnection getOutgoingConnection(Packet packet) {
-		return connectionSelector.selectConnection(packet, outgoing);
+
+		// The selector chooses among connections with the least lanes bound
+		Set<S2SConnection> candidates = new LinkedHashSet<S2SConnection>();
+		int min = Integer.MAX_VALUE;
+
+		for (S2SConnection s2s_conn : outgoing) {
+			if ( !s2s_conn.isConnected()) {
+				continue;
+			}
+
+			int bound = 0;
+
+			for (OutgoingLane lane : lanes) {
+				if (lane.conn == s2s_conn) {
+					++bound;
+				}
+			}
+
+			if (bound < min) {
+				min = bound;
+				candidates.clear();
+			}
+
+			if (bound == min) {
+				candidates.add(s2s_conn);
+			}
+		}
+
+		return connectionSelector.selectConnection(packet, candidates);
 	}
 
 	// ~--- methods --------------------------------------------------------------
@@ -722,53 +845,91 @@ public class CIDConnections {
 	}
 
 	private boolean openOutgoingConnections() {
-		boolean result = false;
-		try {
 
-			// Check whether all active connections are still active
-			for (S2SConnection out_conn : outgoing) {
-				if (!out_conn.isConnected()) {
-					outgoing.remove(out_conn);
+		// Check whether all active connections are still active
+		for (S2SConnection out_conn : outgoing) {
+			if (!out_conn.isConnected()) {
+				outgoing.remove(out_conn);
 
-					if (log.isLoggable(Level.FINEST)) {
-						log.log(Level.FINEST, "Removing inactive connection: {0}", out_conn);
-					}
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Removing inactive connection: {0}", out_conn);
 				}
 			}
+		}
 
-			if (firstWaitingTime + max_waiting_time <= System.currentTimeMillis()) {
-				sendPacketsBack();
-				firstWaitingTime = 0;
+		if (firstWaitingTime + max_waiting_time <= System.currentTimeMillis()) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "S2S Timeout expired, sending back: {0} packets for: {1}",
+						new Object[] { waiting.get(), cid });
+			}
 
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "S2S Timeout expired, sending back: {0}", waitingPackets);
-				}
+			sendPacketsBack();
+			firstWaitingTime = 0;
 
-				return result;
+			return false;
+		}
+
+		int all_outgoing = outgoing.size() + outgoing_handshaking.size();
+
+		if (all_outgoing >= max_out_conns) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST,
+						"Exceeded max number of outgoing connections, not doing anything: {0}",
+						all_outgoing);
 			}
 
-			int all_outgoing = outgoing.size() + outgoing_handshaking.size();
+			return false;
+		}
 
-			if (all_outgoing >= max_out_conns) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST,
-							"Exceeded max number of outgoing connections, not doing anything: {0}",
-							all_outgoing);
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Checking DNS for host: {0} for: {1}",
+					new Object[] { cid.getRemoteHost(), cid });
+		}
+
+		// Check DNS entries, connections are opened when the lookup completes so
+		// the timer thread is not blocked by slow DNS servers
+		resolver.resolve(cid.getRemoteHost(), new AsyncDNSResolver.ResultHandler() {
+			@Override
+			public void resolved(String domain, AsyncDNSResolver.Entry[] entries) {
+				boolean result = false;
+
+				try {
+					result = openOutgoingConnections(entries);
+				} catch (Exception e) {
+					log.log(Level.WARNING, "uncaughtException in the connection opening thread: ",
+							e);
 				}
 
-				return result;
+				if (!result) {
+					outgoingOpenInProgress.set(false);
+				}
 			}
 
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "Checking DNS for host: {0} for: {1}",
-						new Object[] { cid.getRemoteHost(), cid });
+			@Override
+			public void failed(String domain, UnknownHostException ex) {
+				log.log(Level.INFO, "Remote host not found: " + cid.getRemoteHost() + ", for: "
+						+ cid, ex);
+				sendPacketsBack();
+				outgoingOpenInProgress.set(false);
 			}
+		});
+
+		return true;
+	}
+
+	private boolean openOutgoingConnections(AsyncDNSResolver.Entry[] dns_entries) {
+		boolean result = false;
+		try {
+
+			// Connections might have been opened while waiting for DNS
+			int all_outgoing = outgoing.size() + outgoing_handshaking.size();
 
-			// Check DNS entries
-			DNSEntry[] dns_entries = DNSResolver.getHostSRV_Entries(cid.getRemoteHost());
+			if (all_outgoing >= max_out_conns) {
+				return result;
+			}
 
 			// Activate 'missing' connections
-			for (DNSEntry dNSEntry : dns_entries) {
+			for (AsyncDNSResolver.Entry dNSEntry : dns_entries) {
 				int openForIP = getOpenForIP(dNSEntry.getIp());
 
 				for (int i = openForIP; i < max_out_conns_per_ip; i++) {
@@ -810,16 +971,96 @@ public class CIDConnections {
 	private void sendPacketsBack() {
 		Packet p = null;
 
-		while ((p = waitingPackets.poll()) != null) {
-			try {
-				handler.addOutPacket(Authorization.REMOTE_SERVER_NOT_FOUND.getResponseMessage(p,
-						"S2S - destination host not found", true));
-			} catch (PacketErrorTypeException e) {
-				log.log(Level.WARNING, "Packet: {0} processing exception: {1}",
-						new Object[] { p.toString(), e });
+		for (OutgoingLane lane : lanes) {
+			while ((p = lane.queue.poll()) != null) {
+				waiting.decrementAndGet();
+
+				try {
+					handler.addOutPacket(Authorization.REMOTE_SERVER_NOT_FOUND.getResponseMessage(p,
+							"S2S - destination host not found", true));
+				} catch (PacketErrorTypeException e) {
+					log.log(Level.WARNING, "Packet: {0} processing exception: {1}",
+							new Object[] { p.toString(), e });
+				}
 			}
 		}
 	}
+
+	// ~--- inner classes --------------------------------------------------------
+
+	private class OutgoingLane {
+		private Queue<Packet> batch = new ArrayDeque<Packet>(SEND_BATCH_SIZE);
+		private volatile S2SConnection conn = null;
+		private ConcurrentLinkedQueue<Packet> queue = new ConcurrentLinkedQueue<Packet>();
+		private ReentrantLock sendInProgress = new ReentrantLock();
+
+		// ~--- methods ----------------------------------------------------------
+
+		/**
+		 * Sends waiting packets unless another thread is already doing it.
+		 *
+		 * @return the number of packets sent or -1 if there is no connection
+		 * available.
+		 */
+		private int send() {
+			int result = 0;
+
+			// The queue is checked again after unlocking, a packet might have been
+			// added by a thread which could not get the lock.
+			while ( !queue.isEmpty() && sendInProgress.tryLock()) {
+				try {
+					while ( !queue.isEmpty()) {
+						S2SConnection s2s_conn = getConnection(queue.peek());
+
+						if (s2s_conn == null) {
+							if (log.isLoggable(Level.FINEST)) {
+								log.log(Level.FINEST, "There is no connection available to send packets: {0}",
+										cid);
+							}
+
+							return (result > 0) ? result : -1;
+						}
+
+						Packet p = null;
+						int cnt = 0;
+
+						while ((cnt < SEND_BATCH_SIZE) && ((p = queue.poll()) != null)) {
+							batch.offer(p);
+							++cnt;
+						}
+
+						s2s_conn.sendPackets(batch);
+						batch.clear();
+						waiting.addAndGet(-cnt);
+						sent.addAndGet(cnt);
+						result += cnt;
+
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "{0} packets sent over connection: {1}",
+									new Object[] { cnt, s2s_conn.getS2SIOService() });
+						}
+					}
+				} finally {
+					sendInProgress.unlock();
+				}
+			}
+
+			return result;
+		}
+
+		// ~--- get methods ------------------------------------------------------
+
+		private S2SConnection getConnection(Packet packet) {
+			S2SConnection result = conn;
+
+			if ((result == null) ||!result.isConnected() ||!outgoing.contains(result)) {
+				result = getOutgoingConnection(packet);
+				conn = result;
+			}
+
+			return result;
+		}
+	}
 }
 
 // ~ Formatted in Sun Code Convention
@@ -30,6 +30,7 @@ import tigase.server.Packet;
 
 import java.io.IOException;
 
+import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -166,10 +167,22 @@ public class S2SConnection implements Comparable<S2SConnection> {
 	 *
 	 * @throws IOException
 	 */
-	public boolean sendPacket(Packet packet) throws IOException {
+	public synchronized boolean sendPacket(Packet packet) throws IOException {
 		return handler.writePacketToSocket(service, packet);
 	}
 
+	/**
+	 * Writes all packets to the connection in a single socket write. Packets
+	 * sent by concurrent callers over the same connection are not interleaved,
+	 * so the order of packets from a single caller is preserved.
+	 *
+	 *
+	 * @param packets
+	 */
+	public synchronized void sendPackets(Queue<Packet> packets) {
+		handler.writePacketsToSocket(service, packets);
+	}
+
 	//~--- set methods ----------------------------------------------------------
 
 	/**
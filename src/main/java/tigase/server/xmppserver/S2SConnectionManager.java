@@ -36,6 +36,8 @@ import tigase.server.xmppserver.proc.StreamOpen;
 
 import tigase.stats.StatisticsList;
 
+import tigase.util.AsyncDNSResolver;
+
 import tigase.xml.Element;
 
 import tigase.xmpp.Authorization;
@@ -95,6 +97,21 @@ public class S2SConnectionManager extends ConnectionManager<S2SIOService> implem
 	/** Field description */
 	public static final String MAX_OUT_PER_IP_CONNECTIONS_PROP_KEY = "max-out-per-ip-conns";
 
+	/** Field description */
+	public static final String MAX_WAITING_PACKETS_PROP_KEY = "max-waiting-packets";
+
+	/** Field description */
+	public static final String DNS_SERVERS_PROP_KEY = "dns-servers";
+
+	/** Field description */
+	public static final String DNS_THREADS_PROP_KEY = "dns-threads";
+
+	/** Field description */
+	public static final String DNS_TIMEOUT_PROP_KEY = "dns-timeout";
+
+	/** Field description */
+	public static final String DNS_NEGATIVE_TTL_PROP_KEY = "dns-negative-ttl";
+
 	/** Field description */
 	public static final String S2S_CONNECTION_SELECTOR_PROP_KEY = "s2s-conn-selector";
 
@@ -111,6 +128,21 @@ public class S2SConnectionManager extends ConnectionManager<S2SIOService> implem
 	/** Field description */
 	public static final int MAX_OUT_PER_IP_CONNECTIONS_PROP_VAL = 1;
 
+	/** Field description */
+	public static final int MAX_WAITING_PACKETS_PROP_VAL = 10000;
+
+	/** Field description */
+	public static final String DNS_SERVERS_PROP_VAL = "";
+
+	/** Field description */
+	public static final int DNS_THREADS_PROP_VAL = 4;
+
+	/** Field description */
+	public static final int DNS_TIMEOUT_PROP_VAL = 5000;
+
+	/** Field description */
+	public static final long DNS_NEGATIVE_TTL_PROP_VAL = 60;
+
 	/** Field description */
 	public static final long MAX_PACKET_WAITING_TIME_PROP_VAL = 7 * MINUTE;
 
@@ -140,6 +172,18 @@ public class S2SConnectionManager extends ConnectionManager<S2SIOService> implem
 	private long maxInactivityTime = MAX_CONNECTION_INACTIVITY_TIME_PROP_VAL;
 	private int maxINConnections = MAX_INCOMING_CONNECTIONS_PROP_VAL;
 
+	/**
+	 * Maximum number of packets waiting for sending to a single remote domain,
+	 * packets over the limit are returned with an error.
+	 */
+	private int maxWaitingPackets = MAX_WAITING_PACKETS_PROP_VAL;
+
+	/**
+	 * Resolves remote domains to server addresses off the connection opening
+	 * thread, shared by all remote domains.
+	 */
+	private AsyncDNSResolver resolver = null;
+
 	/**
 	 * Outgoing and incoming connections for a given domains pair (localdomain,
 	 * remotedomain)
@@ -242,7 +286,12 @@ public class S2SConnectionManager extends ConnectionManager<S2SIOService> implem
 		props.put(MAX_INCOMING_CONNECTIONS_PROP_KEY, MAX_INCOMING_CONNECTIONS_PROP_VAL);
 		props.put(MAX_OUT_TOTAL_CONNECTIONS_PROP_KEY, MAX_OUT_TOTAL_CONNECTIONS_PROP_VAL);
 		props.put(MAX_OUT_PER_IP_CONNECTIONS_PROP_KEY, MAX_OUT_PER_IP_CONNECTIONS_PROP_VAL);
+		props.put(MAX_WAITING_PACKETS_PROP_KEY, MAX_WAITING_PACKETS_PROP_VAL);
 		props.put(S2S_CONNECTION_SELECTOR_PROP_KEY, S2S_CONNECTION_SELECTOR_PROP_VAL);
+		props.put(DNS_SERVERS_PROP_KEY, DNS_SERVERS_PROP_VAL);
+		props.put(DNS_THREADS_PROP_KEY, DNS_THREADS_PROP_VAL);
+		props.put(DNS_TIMEOUT_PROP_KEY, DNS_TIMEOUT_PROP_VAL);
+		props.put(DNS_NEGATIVE_TTL_PROP_KEY, DNS_NEGATIVE_TTL_PROP_VAL);
 
 		return props;
 	}
@@ -307,6 +356,10 @@ public class S2SConnectionManager extends ConnectionManager<S2SIOService> implem
 		super.getStatistics(list);
 		list.add(getName(), "CIDs number", cidConnections.size(), Level.INFO);
 
+		if (resolver != null) {
+			resolver.getStatistics(getName(), list);
+		}
+
 		if (list.checkLevel(Level.FINEST)) {
 			long total_outgoing = 0;
 			long total_outgoing_tls = 0;
@@ -316,6 +369,8 @@ public class S2SConnectionManager extends ConnectionManager<S2SIOService> implem
 			long total_dbKeys = 0;
 			long total_waiting = 0;
 			long total_waiting_control = 0;
+			long total_sent = 0;
+			long total_rejected = 0;
 
 			for (Map.Entry<CID, CIDConnections> cid_conn : cidConnections.entrySet()) {
 				int outgoing = cid_conn.getValue().getOutgoingCount();
@@ -326,6 +381,13 @@ public class S2SConnectionManager extends ConnectionManager<S2SIOService> implem
 				int dbKeys = cid_conn.getValue().getDBKeysCount();
 				int waiting = cid_conn.getValue().getWaitingCount();
 				int waiting_control = cid_conn.getValue().getWaitingControlCount();
+				float throughput = cid_conn.getValue().getThroughput();
+
+				// Per remote domain data only for domains with some traffic
+				if ((waiting > 0) || (throughput > 0)) {
+					list.add(getName(), cid_conn.getKey() + " waiting", waiting, Level.FINEST);
+					list.add(getName(), cid_conn.getKey() + " sent/sec", throughput, Level.FINEST);
+				}
 
 				if (log.isLoggable(Level.FINEST)) {
 
@@ -348,6 +410,8 @@ public class S2SConnectionManager extends ConnectionManager<S2SIOService> implem
 				total_dbKeys += dbKeys;
 				total_waiting += waiting;
 				total_waiting_control += waiting_control;
+				total_sent += cid_conn.getValue().getSentCount();
+				total_rejected += cid_conn.getValue().getRejectedCount();
 			}
 
 			list.add(getName(), "Total outgoing", total_outgoing, Level.FINEST);
@@ -359,6 +423,8 @@ public class S2SConnectionManager extends ConnectionManager<S2SIOService> implem
 			list.add(getName(), "Total DB keys", total_dbKeys, Level.FINEST);
 			list.add(getName(), "Total waiting", total_waiting, Level.FINEST);
 			list.add(getName(), "Total control waiting", total_waiting_control, Level.FINEST);
+			list.add(getName(), "Total sent", total_sent, Level.FINEST);
+			list.add(getName(), "Total rejected", total_rejected, Level.FINEST);
 		}
 	}
 
@@ -511,7 +577,10 @@ public class S2SConnectionManager extends ConnectionManager<S2SIOService> implem
 				Packet server_packet = packet.copyElementOnly();
 
 				server_packet.getElement().removeAttribute("xmlns");
-				cid_conns.sendPacket(server_packet);
+				if ( !cid_conns.sendPacket(server_packet)) {
+					addOutPacket(Authorization.RESOURCE_CONSTRAINT.getResponseMessage(packet,
+							"S2S - too many packets waiting for the remote server", true));
+				}
 			} catch (NotLocalhostException e) {
 				addOutPacket(Authorization.NOT_ACCEPTABLE
 						.getResponseMessage(
@@ -607,6 +676,19 @@ public class S2SConnectionManager extends ConnectionManager<S2SIOService> implem
 		return null;
 	}
 
+	/**
+	 * Method description
+	 * 
+	 */
+	@Override
+	public void release() {
+		if (resolver != null) {
+			resolver.stop();
+		}
+
+		super.release();
+	}
+
 	/**
 	 * Method description
 	 * 
@@ -762,6 +844,33 @@ public class S2SConnectionManager extends ConnectionManager<S2SIOService> implem
 		maxOUTPerIPConnections = (Integer) props.get(MAX_OUT_PER_IP_CONNECTIONS_PROP_KEY);
 		maxINConnections = (Integer) props.get(MAX_INCOMING_CONNECTIONS_PROP_KEY);
 
+		if (props.get(MAX_WAITING_PACKETS_PROP_KEY) != null) {
+			maxWaitingPackets = (Integer) props.get(MAX_WAITING_PACKETS_PROP_KEY);
+		}
+
+		String dns_servers = (String) props.get(DNS_SERVERS_PROP_KEY);
+		int dns_threads = (props.get(DNS_THREADS_PROP_KEY) != null)
+				? (Integer) props.get(DNS_THREADS_PROP_KEY)
+				: DNS_THREADS_PROP_VAL;
+		int dns_timeout = (props.get(DNS_TIMEOUT_PROP_KEY) != null)
+				? (Integer) props.get(DNS_TIMEOUT_PROP_KEY)
+				: DNS_TIMEOUT_PROP_VAL;
+		long dns_negative_ttl = (props.get(DNS_NEGATIVE_TTL_PROP_KEY) != null)
+				? (Long) props.get(DNS_NEGATIVE_TTL_PROP_KEY)
+				: DNS_NEGATIVE_TTL_PROP_VAL;
+
+		String[] dns_servers_arr = ((dns_servers == null) || dns_servers.isEmpty())
+				? null
+				: dns_servers.split(",");
+
+		// Existing connections keep the resolver, so it is reconfigured in place
+		if (resolver != null) {
+			resolver.configure(dns_servers_arr, dns_threads, dns_timeout, dns_negative_ttl);
+		} else {
+			resolver = new AsyncDNSResolver(dns_servers_arr, dns_threads, dns_timeout,
+					dns_negative_ttl);
+		}
+
 		String selector_str = (String) props.get(S2S_CONNECTION_SELECTOR_PROP_KEY);
 
 		try {
@@ -887,7 +996,8 @@ public class S2SConnectionManager extends ConnectionManager<S2SIOService> implem
 
 		CIDConnections cid_conns =
 				new CIDConnections(cid, this, connSelector, maxINConnections,
-						maxOUTTotalConnections, maxOUTPerIPConnections, maxPacketWaitingTime);
+						maxOUTTotalConnections, maxOUTPerIPConnections, maxPacketWaitingTime,
+						maxWaitingPackets, resolver);
 
 		cidConnections.put(cid, cid_conns);
 
@@ -0,0 +1,312 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.server.xmppsession;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.server.Packet;
+
+import tigase.stats.StatisticsList;
+
+import tigase.util.QueueItem;
+
+import tigase.xmpp.JID;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Separate processing stage for authentication requests. Authentication
+ * usually blocks on the authentication repository, so during a login storm it
+ * would occupy plugin worker threads needed by the ordinary traffic. The stage
+ * has its own, bounded queues and a fixed number of threads which limits the
+ * number of concurrent calls to the repository.
+ *
+ * Requests are queued per connection, so a multi-step SASL exchange is always
+ * processed in order. A worker drains up to <code>batchSize</code> requests
+ * from its queue at once, to save on queue operations, and authenticates them
+ * one after another. Repositories supporting it (see
+ * <code>TigaseCustomAuth</code>) combine the credential lookups of
+ * concurrently running workers into a single query.
+ *
+ * When a queue is full the request is not accepted and the caller is supposed
+ * to respond with a temporary failure. Requests which waited in the queue
+ * longer than <code>maxWait</code> are not processed either, the client has
+ * most likely given up already, they are passed to <code>expired()</code>.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public abstract class AuthStage {
+	private static final Logger log = Logger.getLogger(AuthStage.class.getName());
+
+	//~--- fields ---------------------------------------------------------------
+
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private int batchSize = 50;
+	private final AtomicLong expired = new AtomicLong();
+	private long maxWait = 30000;
+	private String name = null;
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private AuthWorker[] workers = null;
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Creates and starts the stage.
+	 *
+	 * @param name is the stage name used for threads and statistics.
+	 * @param threads is the number of worker threads, the maximum number of
+	 * concurrently processed requests.
+	 * @param queueSize is the total number of requests which may wait for
+	 * processing.
+	 * @param batchSize is the maximum number of requests taken by a worker at
+	 * once.
+	 * @param maxWait is the maximum time in milliseconds a request may wait in
+	 * the queue.
+	 */
+	public AuthStage(String name, int threads, int queueSize, int batchSize, long maxWait) {
+		this.name = name;
+		this.batchSize = Math.max(1, batchSize);
+		this.maxWait = maxWait;
+		workers = new AuthWorker[threads];
+
+		int workerQueueSize = Math.max(1, queueSize / threads);
+
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new AuthWorker(workerQueueSize);
+			workers[i].setName(name + " Auth Worker " + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Adds the request to the stage.
+	 *
+	 * @param item is the request to process.
+	 *
+	 * @return <code>false</code> if the queue is full and the request has been
+	 * rejected.
+	 */
+	public boolean offer(QueueItem item) {
+		Packet packet = item.getPacket();
+		JID from = (packet.getPacketFrom() != null) ? packet.getPacketFrom() : packet.getFrom();
+		int idx = (from != null) ? Math.abs(from.hashCode() % workers.length) : 0;
+
+		if (workers[idx].queue.offer(new StageItem(item))) {
+			accepted.incrementAndGet();
+
+			return true;
+		}
+
+		rejected.incrementAndGet();
+
+		return false;
+	}
+
+	/**
+	 * Stops all worker threads, requests still waiting in the queues are
+	 * discarded.
+	 */
+	public void stop() {
+		for (AuthWorker worker : workers) {
+			worker.stopped = true;
+			worker.interrupt();
+		}
+	}
+
+	/**
+	 * Called for requests which waited in the queue longer than allowed.
+	 *
+	 * @param item is the request which has not been processed.
+	 */
+	protected abstract void expired(QueueItem item);
+
+	/**
+	 * Processes a single authentication request.
+	 *
+	 * @param item is the request to process.
+	 */
+	protected abstract void process(QueueItem item);
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public long getExpired() {
+		return expired.get();
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		long batchesCnt = batches.get();
+
+		list.add(compName, name + " queue", getTotalQueueSize(), Level.INFO);
+		list.add(compName, name + " rejected", rejected.get(), Level.INFO);
+		list.add(compName, name + " expired", expired.get(), Level.INFO);
+		list.add(compName, name + " processed", processed.get(), Level.FINE);
+		list.add(compName, name + " average batch", (batchesCnt == 0) ? 0 : (processed.get()
+				+ expired.get()) / batchesCnt, Level.FINE);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public int getTotalQueueSize() {
+		int result = 0;
+
+		for (AuthWorker worker : workers) {
+			result += worker.queue.size();
+		}
+
+		return result;
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	private class AuthWorker extends Thread {
+		private List<StageItem> batch = null;
+		private ArrayBlockingQueue<StageItem> queue = null;
+		private volatile boolean stopped = false;
+
+		//~--- constructors -------------------------------------------------------
+
+		private AuthWorker(int queueSize) {
+			queue = new ArrayBlockingQueue<StageItem>(queueSize);
+			batch = new ArrayList<StageItem>(batchSize);
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		/**
+		 * Method description
+		 *
+		 */
+		@Override
+		public void run() {
+			while ( !stopped) {
+				try {
+					batch.add(queue.take());
+					queue.drainTo(batch, batchSize - 1);
+					batches.incrementAndGet();
+
+					for (StageItem stageItem : batch) {
+						try {
+
+							// Items wait also for those processed before them in the batch
+							if (System.currentTimeMillis() - stageItem.time > maxWait) {
+								expired.incrementAndGet();
+								expired(stageItem.item);
+							} else {
+								process(stageItem.item);
+								processed.incrementAndGet();
+							}
+						} catch (Exception e) {
+							log.log(Level.SEVERE, getName() + ", exception during authentication: "
+									+ stageItem.item.getPacket().toStringSecure(), e);
+						}
+					}
+				} catch (InterruptedException e) {
+
+					// Stopped or spurious interrupt, check the flag and continue
+				} finally {
+					batch.clear();
+				}
+			}
+		}
+	}
+
+
+	private static class StageItem {
+		private QueueItem item = null;
+		private long time = System.currentTimeMillis();
+
+		//~--- constructors -------------------------------------------------------
+
+		private StageItem(QueueItem item) {
+			this.item = item;
+		}
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
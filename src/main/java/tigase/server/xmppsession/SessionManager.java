@@ -26,7 +26,9 @@ import tigase.auth.TigaseSaslProvider;
 
 import tigase.conf.Configurable;
 
+import tigase.db.AsyncRepository;
 import tigase.db.AuthRepository;
+import tigase.db.AuthRepositoryCache;
 import tigase.db.NonAuthUserRepository;
 import tigase.db.NonAuthUserRepositoryImpl;
 import tigase.db.RepositoryFactory;
@@ -41,11 +43,13 @@ import tigase.server.Iq;
 import tigase.server.Message;
 import tigase.server.Packet;
 import tigase.server.Permissions;
+import tigase.server.Priority;
 import tigase.server.ReceiverTimeoutHandler;
 import tigase.server.XMPPServer;
 
 import tigase.server.script.CommandIfc;
 
+import tigase.stats.MetricsRegistry;
 import tigase.stats.StatisticsList;
 
 import tigase.sys.OnlineJidsReporter;
@@ -67,7 +71,9 @@ import tigase.xmpp.NoConnectionIdException;
 import tigase.xmpp.NotAuthorizedException;
 import tigase.xmpp.PacketErrorTypeException;
 import tigase.xmpp.ProcessorFactory;
+import tigase.xmpp.SessionManagerAwareIfc;
 import tigase.xmpp.StanzaType;
+import tigase.xmpp.UserDataCache;
 import tigase.xmpp.XMPPException;
 import tigase.xmpp.XMPPImplIfc;
 import tigase.xmpp.XMPPPacketFilterIfc;
@@ -86,6 +92,8 @@ import java.security.Security;
 import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -122,6 +130,14 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 	 */
 	private static final Logger log = Logger.getLogger(SessionManager.class.getName());
 
+	private static final String SASL_XMLNS = "urn:ietf:params:xml:ns:xmpp-sasl";
+
+	// Interval of checks for resource connections left in user sessions
+	private static final long RECONCILE_INTERVAL = 5;
+
+	private Set<String> authPlugins = new ConcurrentSkipListSet<String>();
+	private AsyncRepository asyncRepository = null;
+	private AuthStage authStage = null;
 	private long authTimeouts = 0;
 	private AuthRepository auth_repository = null;
 	private long closedConnections = 0;
@@ -139,6 +155,8 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 	private long totalUserConnections = 0;
 	private long totalUserSessions = 0;
 	private UserRepository user_repository = null;
+	private String[] userDataPrefetch = new String[0];
+	private long userDataPrefetchTtl = USER_DATA_PREFETCH_TTL_PROP_VAL;
 
 	private Set<String> trusted = new ConcurrentSkipListSet<String>();
 	private boolean skipPrivacy = false;
@@ -153,6 +171,33 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 	 */
 	private ConcurrentHashMap<BareJID, XMPPSession> sessionsByNodeId =
 			new ConcurrentHashMap<BareJID, XMPPSession>(100000);
+
+	/**
+	 * A Map with connectionID as a key and the user session owning the
+	 * connection as a value, maintained by <code>XMPPSession</code>.
+	 */
+	private ConcurrentHashMap<JID, XMPPSession> sessionsByConnId =
+			new ConcurrentHashMap<JID, XMPPSession>(100000);
+	private final MetricsRegistry.Counter staleConnections = new MetricsRegistry.Counter();
+	private final MetricsRegistry.Counter orphanConnections =
+			new MetricsRegistry.Counter();
+
+	/** Number of open user connections, computed when read. */
+	private final MetricsRegistry.Metric openConnections = new MetricsRegistry.Metric() {
+		@Override
+		public long get() {
+			return connectionsByFrom.size();
+		}
+	};
+
+	/** Number of open user sessions, computed when read. */
+	private final MetricsRegistry.Metric openSessions = new MetricsRegistry.Metric() {
+		@Override
+		public long get() {
+			return sessionsByNodeId.size();
+		}
+	};
+	private Set<JID> orphanSuspects = new HashSet<JID>();
 	private Map<String, ProcessingThreads<ProcessorWorkerThread>> workerThreads =
 			new ConcurrentHashMap<String, ProcessingThreads<ProcessorWorkerThread>>(32);
 	private Map<String, XMPPProcessorIfc> processors =
@@ -384,6 +429,21 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 		list.add(getName(), "Maximum user sessions", maxUserSessions, Level.FINE);
 		list.add(getName(), "Total user sessions", totalUserSessions, Level.FINER);
 		list.add(getName(), "Authentication timouts", authTimeouts, Level.INFO);
+		list.add(getName(), "Stale connections removed", staleConnections.get(), Level.FINE);
+		list.add(getName(), "Orphan connections reconciled", orphanConnections.get(),
+				Level.FINE);
+
+		if (authStage != null) {
+			authStage.getStatistics(getName(), list);
+		}
+
+		if (asyncRepository != null) {
+			asyncRepository.getStatistics(getName(), list);
+		}
+
+		if (auth_repository instanceof AuthRepositoryCache) {
+			((AuthRepositoryCache) auth_repository).getStatistics(getName(), list);
+		}
 
 		int totalQueuesWait = list.getValue(getName(), "Total queues wait", 0);
 		long totalQueuesOverflow = list.getValue(getName(), "Total queues overflow", 0l);
@@ -450,6 +510,18 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 
 		registerNewSession(userId, conn);
 
+		// Loads the data the plugins need for the session start in one query,
+		// handleLogin is called from the authentication processing so it does not
+		// hold up the session manager threads
+		if (userDataPrefetch.length > 0) {
+			try {
+				conn.prefetchData(userDataPrefetch, userDataPrefetchTtl);
+			} catch (NotAuthorizedException e) {
+				log.log(Level.FINEST, "Session closed before user data prefetch: {0}", conn);
+			} catch (TigaseDBException e) {
+				log.log(Level.WARNING, "Problem prefetching data for user: " + userId, e);
+			}
+		}
 	}
 
 	/**
@@ -613,6 +685,44 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 	public void setName(String name) {
 		super.setName(name);
 		TigaseRuntime.getTigaseRuntime().addOnlineJidsReporter(this);
+
+		MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+		metrics.register(staleConnections, name, "Stale connections removed", Level.FINE);
+		metrics.register(orphanConnections, name, "Orphan connections reconciled",
+				Level.FINE);
+		metrics.register(openConnections, name, "Open user connections", Level.INFO);
+		metrics.register(openSessions, name, "Open user sessions", Level.INFO);
+	}
+
+	/**
+	 * Method description
+	 * 
+	 */
+	@Override
+	public void start() {
+		super.start();
+		addTimerTask(new SessionReconciler(), RECONCILE_INTERVAL, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Method description
+	 * 
+	 */
+	@Override
+	public void release() {
+		MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+		metrics.unregister(staleConnections);
+		metrics.unregister(orphanConnections);
+		metrics.unregister(openConnections);
+		metrics.unregister(openSessions);
+
+		if (asyncRepository != null) {
+			asyncRepository.stop();
+		}
+
+		super.release();
 	}
 
 	/**
@@ -629,6 +739,21 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 			skipPrivacy = (Boolean) props.get(SKIP_PRIVACY_PROP_KEY);
 		}
 
+		if (props.get(USER_DATA_PREFETCH_PROP_KEY) != null) {
+			String[] subnodes = (String[]) props.get(USER_DATA_PREFETCH_PROP_KEY);
+			String[] normalized = new String[subnodes.length];
+
+			for (int i = 0; i < subnodes.length; i++) {
+				normalized[i] = UserDataCache.normalizeNode(subnodes[i]);
+			}
+
+			userDataPrefetch = normalized;
+		}
+
+		if (props.get(USER_DATA_PREFETCH_TTL_PROP_KEY) != null) {
+			userDataPrefetchTtl = (Long) props.get(USER_DATA_PREFETCH_TTL_PROP_KEY);
+		}
+
 		if (props.get(TRUSTED_PROP_KEY) != null) {
 			String[] trusted_tmp = (String[]) props.get(TRUSTED_PROP_KEY);
 
@@ -720,6 +845,7 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 		naUserRepository =
 				new NonAuthUserRepositoryImpl(user_repository, getDefHostName(),
 						Boolean.parseBoolean((String) props.get(AUTO_CREATE_OFFLINE_USER_PROP_KEY)));
+		initAsyncRepository(props);
 
 		LinkedHashMap<String, Integer> plugins_concurrency =
 				new LinkedHashMap<String, Integer>(20);
@@ -788,9 +914,21 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 
 				XMPPImplIfc plugin = addPlugin(plug_id, plugins_concurrency.get(plug_id));
 				if (plugin != null) {
+					if (plugin instanceof SessionManagerAwareIfc) {
+						((SessionManagerAwareIfc) plugin).setSessionManagerHandler(this);
+					}
 
 					Map<String, Object> plugin_settings = getPluginSettings(plug_id, props);
 
+					if (asyncRepository != null) {
+						plugin_settings.put(AsyncRepository.ASYNC_REPO_KEY, asyncRepository);
+					}
+
+					// Plugins loading user data on demand keep it as long as the login does
+					if ( !plugin_settings.containsKey(USER_DATA_PREFETCH_TTL_PROP_KEY)) {
+						plugin_settings.put(USER_DATA_PREFETCH_TTL_PROP_KEY, userDataPrefetchTtl);
+					}
+
 					if (plugin_settings.size() > 0) {
 						if (log.isLoggable(Level.CONFIG)) {
 							log.log(Level.CONFIG, "Plugin configuration: {0}", plugin_settings);
@@ -811,6 +949,7 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 			log.log(Level.SEVERE, "Problem with component initialization: " + getName(), e);
 		}
 
+		initAuthStage(props);
 		smResourceConnection =
 				new SMResourceConnection(null, user_repository, auth_repository, this);
 		registerNewSession(getComponentId().getBareJID(), smResourceConnection);
@@ -860,16 +999,18 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 			// Let's make sure there is no stale XMPPResourceConnection in some
 			// XMPPSession
 			// object which may cause problems and packets sent to nowhere.
-			// This might an expensive operation though....
-			log.log(Level.INFO, "Trying to find and remove stale XMPPResourceConnection: {0}",
-					connectionId);
-			for (XMPPSession session : sessionsByNodeId.values()) {
+			XMPPSession session = sessionsByConnId.get(connectionId);
+
+			if (session != null) {
 				connection = session.getResourceForConnectionId(connectionId);
+
 				if (connection != null) {
 					log.log(Level.WARNING, "Found stale XMPPResourceConnection: {0}, removing...",
 							connection);
 					session.removeResourceConnection(connection);
-					break;
+					staleConnections.inc();
+				} else {
+					sessionsByConnId.remove(connectionId, session);
 				}
 			}
 		} // end of if (conn != null) else
@@ -1674,7 +1815,7 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 			XMPPSession session = sessionsByNodeId.get(userId);
 
 			if (session == null) {
-				session = new XMPPSession(userId.getLocalpart());
+				session = new XMPPSession(userId.getLocalpart(), sessionsByConnId);
 				sessionsByNodeId.put(userId, session);
 
 				int currSize = sessionsByNodeId.size();
@@ -1932,6 +2073,110 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 		}
 	}
 
+	private void initAsyncRepository(Map<String, Object> props) {
+		if (asyncRepository != null) {
+			asyncRepository.stop();
+			asyncRepository = null;
+		}
+
+		int threads = (Integer) props.get(ASYNC_REPO_THREADS_PROP_KEY);
+
+		if (threads <= 0) {
+			log.log(Level.CONFIG, "Asynchronous repository disabled");
+
+			return;
+		}
+
+		asyncRepository =
+				new AsyncRepository("Async repository", user_repository, auth_repository,
+						threads, (Integer) props.get(ASYNC_REPO_QUEUE_SIZE_PROP_KEY));
+		log.log(Level.CONFIG, "Created asynchronous repository: {0} threads", threads);
+	}
+
+	private void initAuthStage(Map<String, Object> props) {
+		if (authStage != null) {
+			authStage.stop();
+			authStage = null;
+		}
+
+		authPlugins.clear();
+
+		int threads = (Integer) props.get(AUTH_THREADS_PROP_KEY);
+
+		if (threads <= 0) {
+			log.log(Level.CONFIG, "Authentication stage disabled");
+
+			return;
+		}
+
+		Collections.addAll(authPlugins, (String[]) props.get(AUTH_PLUGINS_PROP_KEY));
+		authStage =
+				new AuthStage("Authentication", threads,
+						(Integer) props.get(AUTH_QUEUE_SIZE_PROP_KEY), (Integer) props
+								.get(AUTH_BATCH_SIZE_PROP_KEY), (Long) props.get(AUTH_MAX_WAIT_PROP_KEY)) {
+					@Override
+					protected void expired(QueueItem item) {
+						rejectAuthRequest(item.getPacket(), item.getConn());
+					}
+
+					@Override
+					protected void process(QueueItem item) {
+						XMPPProcessorIfc processor = item.getProcessor();
+						Queue<Packet> results = new ArrayDeque<Packet>(4);
+
+						try {
+							processor.process(item.getPacket(), item.getConn(), naUserRepository,
+									results, plugin_config.get(processor.id()));
+							setPermissions(item.getConn(), results);
+							addOutPackets(item.getPacket(), item.getConn(), results);
+						} catch (XMPPException e) {
+							log.log(Level.WARNING, "Exception during authentication: "
+									+ item.getPacket().toStringSecure(), e);
+						}
+					}
+				};
+		log.log(Level.CONFIG, "Created authentication stage: {0} threads for plugins: {1}",
+				new Object[] { threads, authPlugins });
+	}
+
+	/**
+	 * Sends a temporary failure for an authentication request which could not be
+	 * processed because the authentication stage is overloaded. The client is
+	 * expected to retry later.
+	 */
+	private void rejectAuthRequest(Packet packet, XMPPResourceConnection conn) {
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Authentication stage overloaded, rejecting: {0}", packet
+					.toStringSecure());
+		}
+
+		Packet result = null;
+
+		if (packet.getElemName() == Iq.ELEM_NAME) {
+			try {
+				result =
+						Authorization.RESOURCE_CONSTRAINT.getResponseMessage(packet,
+								"Server is busy, try again later.", false);
+			} catch (PacketErrorTypeException e) {
+				log.log(Level.FINEST, "Packet is error type already: {0}", packet
+						.toStringSecure());
+			}
+		} else if (packet.getElemName() != "abort") {
+
+			// Any pending SASL exchange must start from scratch on the next attempt
+			conn.removeSessionData(SASL_XMLNS + "-authProps");
+			result =
+					packet.swapFromTo(new Element("failure",
+							new Element[] { new Element("temporary-auth-failure") },
+							new String[] { "xmlns" }, new String[] { SASL_XMLNS }), null, null);
+			result.setPriority(Priority.SYSTEM);
+		}
+
+		if (result != null) {
+			fastAddOutPacket(result);
+		}
+	}
+
 	private void walk(final Packet packet, final XMPPResourceConnection connection,
 			final Element elem, final Queue<Packet> results) {
 		for (XMPPProcessorIfc proc_t : processors.values()) {
@@ -1956,7 +2201,14 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 					pt = workerThreads.get(defPluginsThreadsPool);
 				}
 
-				if (pt.addItem(processor, packet, connection)) {
+				if ((authStage != null) && (connection != null) && !connection.isAuthorized()
+						&& authPlugins.contains(processor.id())) {
+					if ( !authStage.offer(new QueueItem(processor, packet, connection))) {
+						rejectAuthRequest(packet, connection);
+					}
+
+					packet.processedBy(processor.id());
+				} else if (pt.addItem(processor, packet, connection)) {
 					packet.processedBy(processor.id());
 				} else {
 
@@ -2012,6 +2264,67 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 		}
 	}
 
+	/**
+	 * Removes resource connections left in user sessions after their
+	 * connections have been closed. A connection is removed when it has been
+	 * found missing in two subsequent checks, so connections being closed just
+	 * now are left to <code>closeConnection()</code>.
+	 */
+	private class SessionReconciler extends TimerTask {
+
+		/**
+		 * Method description
+		 * 
+		 */
+		@Override
+		public void run() {
+			Set<JID> suspects = new HashSet<JID>();
+
+			try {
+				for (XMPPSession session : sessionsByNodeId.values()) {
+					for (XMPPResourceConnection conn : session.getActiveResources()) {
+						try {
+							JID connId = conn.getConnectionId();
+
+							if (connectionsByFrom.containsKey(connId)) {
+								continue;
+							}
+
+							if (orphanSuspects.contains(connId)) {
+								log.log(Level.INFO, "Removing orphan XMPPResourceConnection: {0}", conn);
+								session.removeResourceConnection(conn);
+								orphanConnections.inc();
+							} else {
+								suspects.add(connId);
+							}
+						} catch (NoConnectionIdException ex) {
+
+							// Connections without connectionId are not routed anyway
+						}
+					}
+				}
+
+				for (Map.Entry<JID, XMPPSession> entry : sessionsByConnId.entrySet()) {
+					if (entry.getValue().getResourceForConnectionId(entry.getKey()) == null) {
+						sessionsByConnId.remove(entry.getKey(), entry.getValue());
+					}
+				}
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Problem checking user sessions: ", e);
+			}
+
+			orphanSuspects = suspects;
+
+			try {
+				addTimerTask(new SessionReconciler(), RECONCILE_INTERVAL, TimeUnit.MINUTES);
+			} catch (IllegalStateException e) {
+
+				// The component has been stopped
+			}
+		}
+	}
+
+
 	private class ConnectionCheckCommandHandler implements ReceiverTimeoutHandler {
 
 		/**
@@ -2132,8 +2445,14 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 			XMPPProcessorIfc processor = item.getProcessor();
 
 			try {
-				processor.process(item.getPacket(), item.getConn(), naUserRepository,
-						local_results, plugin_config.get(processor.id()));
+				if (item.getResumeHandler() != null) {
+
+					// Data the plugin has been waiting for has arrived
+					item.getResumeHandler().resume(local_results);
+				} else {
+					processor.process(item.getPacket(), item.getConn(), naUserRepository,
+							local_results, plugin_config.get(processor.id()));
+				}
 
 				if (item.getConn() != null) {
 					setPermissions(item.getConn(), local_results);
@@ -2269,6 +2588,12 @@ public class SessionManager extends AbstractMessageReceiver implements Configura
 			conn.setSessionId(Command.getFieldValue(packet, "session-id"));
 			conn.setDefLang(Command.getFieldValue(packet, "xml:lang"));
 
+			String transport = Command.getFieldValue(packet, XMPPResourceConnection.TRANSPORT_KEY);
+
+			if (transport != null) {
+				conn.putSessionData(XMPPResourceConnection.TRANSPORT_KEY, transport);
+			}
+
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Setting session-id {0} for connection: {1}", new Object[] {
 						conn.getSessionId(), conn });
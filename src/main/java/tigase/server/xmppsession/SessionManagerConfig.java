@@ -80,7 +80,7 @@ public abstract class SessionManagerConfig {
 
 		// "basic-filter",
 		"domain-filter", "disco", "pep",
-		"amp"
+		"amp", "urn:xmpp:sm:3"
 	};
 
 	/**
@@ -96,7 +96,7 @@ public abstract class SessionManagerConfig {
 
 		// "basic-filter",
 		"domain-filter", "disco", "pep",
-		"amp"
+		"amp", "urn:xmpp:sm:3"
 	};
 	private static final String[] PLUGINS_FULL_PROP_VAL = {
 		sessionCloseProcId, sessionOpenProcId, defaultHandlerProcId, "jabber:iq:register",
@@ -107,7 +107,7 @@ public abstract class SessionManagerConfig {
 
 		// "basic-filter",
 		"domain-filter", "disco", "pep",
-		"amp"
+		"amp", "urn:xmpp:sm:3"
 	};
 	private static String[] HOSTNAMES_PROP_VAL = { "localhost", "hostname" };
 	private static String[] ANONYMOUS_DOMAINS_PROP_VAL = { "localhost", "hostname" };
@@ -123,6 +123,30 @@ public abstract class SessionManagerConfig {
 	protected static final String SM_THREADS_POOL_PROP_KEY = "sm-threads-pool";
 	protected static final String SM_THREADS_POOL_PROP_VAL = "default";
 	protected static final String SM_THREADS_POOL_CUSTOM_PROP_VAL = "custom";
+	protected static final String AUTH_THREADS_PROP_KEY = "auth-threads";
+	// The stage is off by default, it pays off only with a slow authentication
+	// repository during login storms
+	protected static final int AUTH_THREADS_PROP_VAL = 0;
+	protected static final String AUTH_QUEUE_SIZE_PROP_KEY = "auth-queue-size";
+	protected static final int AUTH_QUEUE_SIZE_PROP_VAL = 10000;
+	protected static final String AUTH_BATCH_SIZE_PROP_KEY = "auth-batch-size";
+	protected static final int AUTH_BATCH_SIZE_PROP_VAL = 50;
+	protected static final String AUTH_MAX_WAIT_PROP_KEY = "auth-max-wait";
+	protected static final long AUTH_MAX_WAIT_PROP_VAL = 30000;
+	protected static final String AUTH_PLUGINS_PROP_KEY = "auth-plugins";
+	protected static final String[] AUTH_PLUGINS_PROP_VAL = { "jabber:iq:auth",
+		"urn:ietf:params:xml:ns:xmpp-sasl" };
+	protected static final String USER_DATA_PREFETCH_PROP_KEY = "user-data-prefetch";
+	protected static final String[] USER_DATA_PREFETCH_PROP_VAL = { "/", "privacy",
+		"public", "jabber:iq:private" };
+	protected static final String USER_DATA_PREFETCH_TTL_PROP_KEY =
+		"user-data-prefetch-ttl";
+	protected static final long USER_DATA_PREFETCH_TTL_PROP_VAL = 120000;
+	protected static final String ASYNC_REPO_THREADS_PROP_KEY = "async-repo-threads";
+	protected static final int ASYNC_REPO_THREADS_PROP_VAL = Runtime.getRuntime()
+		.availableProcessors() * 4;
+	protected static final String ASYNC_REPO_QUEUE_SIZE_PROP_KEY = "async-repo-queue-size";
+	protected static final int ASYNC_REPO_QUEUE_SIZE_PROP_VAL = 10000;
 
 	//~--- get methods ----------------------------------------------------------
 
@@ -140,6 +164,7 @@ public abstract class SessionManagerConfig {
 			|| params.get(GEN_AUTH_DB).toString().equals("mysql")
 			|| params.get(GEN_AUTH_DB).toString().equals("pgsql")
 			|| params.get(GEN_AUTH_DB).toString().equals("derby")
+			|| params.get(GEN_AUTH_DB).toString().equals("log")
 			|| params.get(GEN_AUTH_DB).toString().equals("tigase-auth");
 		LinkedHashSet<String> plugins = new LinkedHashSet<String>(32);
 
@@ -232,6 +257,31 @@ public abstract class SessionManagerConfig {
 		}
 
 		props.put(SM_THREADS_POOL_PROP_KEY, sm_threads_pool);
+
+		// Authentication stage, 0 threads disables it and authentication
+		// requests are processed by the plugins thread pools
+		int auth_threads = AUTH_THREADS_PROP_VAL;
+
+		if (params.get("--" + AUTH_THREADS_PROP_KEY) != null) {
+			auth_threads = Integer.parseInt((String) params.get("--" + AUTH_THREADS_PROP_KEY));
+		}
+
+		props.put(AUTH_THREADS_PROP_KEY, auth_threads);
+		props.put(AUTH_QUEUE_SIZE_PROP_KEY, AUTH_QUEUE_SIZE_PROP_VAL);
+		props.put(AUTH_BATCH_SIZE_PROP_KEY, AUTH_BATCH_SIZE_PROP_VAL);
+		props.put(AUTH_MAX_WAIT_PROP_KEY, AUTH_MAX_WAIT_PROP_VAL);
+		props.put(AUTH_PLUGINS_PROP_KEY, AUTH_PLUGINS_PROP_VAL);
+
+
+		// User data nodes loaded in one query at login, the root node is "/" and
+		// any other node is loaded with all its subnodes. Empty list disables it.
+		props.put(USER_DATA_PREFETCH_PROP_KEY, USER_DATA_PREFETCH_PROP_VAL);
+		props.put(USER_DATA_PREFETCH_TTL_PROP_KEY, USER_DATA_PREFETCH_TTL_PROP_VAL);
+
+		// Threads executing repository operations for plugins which do not wait
+		// for the database, 0 disables it and plugins access the repository directly
+		props.put(ASYNC_REPO_THREADS_PROP_KEY, ASYNC_REPO_THREADS_PROP_VAL);
+		props.put(ASYNC_REPO_QUEUE_SIZE_PROP_KEY, ASYNC_REPO_QUEUE_SIZE_PROP_VAL);
 	}
 
 	//~--- methods --------------------------------------------------------------
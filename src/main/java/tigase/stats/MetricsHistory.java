@@ -0,0 +1,244 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.stats;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.Arrays;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * History of numeric statistics kept in columns, one primitive ring buffer
+ * per metric id from <code>MetricsRegistry</code>. All columns share the same
+ * sample positions so values recorded in a single sample can be correlated.
+ * Metrics which were not recorded in a sample have <code>NaN</code> value in
+ * it.
+ * <p/>
+ * There must be a single writer thread which calls <code>startSample()</code>,
+ * <code>record()</code>, <code>clear()</code> and <code>commit()</code>,
+ * readers do not take any locks. A reader copies the values and afterwards
+ * drops those which the writer could have overwritten in the meantime.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class MetricsHistory {
+	private static final double[] EMPTY = new double[0];
+
+	//~--- fields ---------------------------------------------------------------
+
+	private final int capacity;
+
+	// Ring buffers have one spare slot for the sample being written while readers
+	// copy the rest
+	private final int slots;
+	private volatile double[][] columns = new double[0][];
+	private int slot = 0;
+	private final long[] timestamps;
+
+	// Number of committed samples, written by the writer thread only
+	private volatile long written = 0;
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Constructs ...
+	 *
+	 *
+	 * @param capacity is the number of samples kept for each metric.
+	 */
+	public MetricsHistory(int capacity) {
+		this.capacity = capacity;
+		slots = capacity + 1;
+		timestamps = new long[slots];
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Drops the history of the metric, called when its id is released.
+	 *
+	 *
+	 * @param id is the metric id from <code>MetricsRegistry</code>.
+	 */
+	public void clear(int id) {
+		double[][] cols = columns;
+
+		if (id < cols.length) {
+			cols[id] = null;
+			columns = cols;
+		}
+	}
+
+	/**
+	 * Publishes values recorded since <code>startSample()</code> to readers.
+	 *
+	 */
+	public void commit() {
+		written = written + 1;
+	}
+
+	/**
+	 * Records a value of the metric in the current sample.
+	 *
+	 *
+	 * @param id is the metric id from <code>MetricsRegistry</code>.
+	 * @param value
+	 */
+	public void record(int id, double value) {
+		double[][] cols = columns;
+
+		if (id >= cols.length) {
+			cols = Arrays.copyOf(cols, Math.max(id + 1, cols.length * 2));
+			columns = cols;
+		}
+
+		double[] col = cols[id];
+
+		if (col == null) {
+			col = new double[slots];
+			Arrays.fill(col, Double.NaN);
+			cols[id] = col;
+			columns = cols;
+		}
+
+		col[slot] = value;
+	}
+
+	/**
+	 * Starts a new sample overwriting the oldest one if the history is full.
+	 *
+	 *
+	 * @param timestamp
+	 */
+	public void startSample(long timestamp) {
+		slot = (int) (written % slots);
+		timestamps[slot] = timestamp;
+
+		for (double[] col : columns) {
+			if (col != null) {
+				col[slot] = Double.NaN;
+			}
+		}
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Returns the number of samples kept for each metric.
+	 *
+	 *
+	 * @return
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns values of the metric from the oldest to the most recent sample.
+	 *
+	 *
+	 * @param id is the metric id from <code>MetricsRegistry</code>.
+	 *
+	 * @return
+	 */
+	public double[] getHistory(int id) {
+		double[][] cols = columns;
+		double[] col = (id >= 0) && (id < cols.length) ? cols[id] : null;
+
+		if (col == null) {
+			return EMPTY;
+		}
+
+		long end = written;
+		int count = (int) Math.min(end, capacity);
+		double[] result = new double[count];
+
+		for (int i = 0; i < count; i++) {
+			result[i] = col[(int) ((end - count + i) % slots)];
+		}
+
+		return trim(result, end);
+	}
+
+	/**
+	 * Returns the value of the metric in the most recent sample.
+	 *
+	 *
+	 * @param id is the metric id from <code>MetricsRegistry</code>.
+	 *
+	 * @return the value or <code>NaN</code> if the metric was not recorded in
+	 * the sample.
+	 */
+	public double getLast(int id) {
+		double[][] cols = columns;
+		double[] col = (id >= 0) && (id < cols.length) ? cols[id] : null;
+		long end = written;
+
+		if ((col == null) || (end == 0)) {
+			return Double.NaN;
+		}
+
+		return col[(int) ((end - 1) % slots)];
+	}
+
+	/**
+	 * Returns timestamps of samples from the oldest to the most recent one.
+	 *
+	 *
+	 * @return
+	 */
+	public long[] getTimestamps() {
+		long end = written;
+		int count = (int) Math.min(end, capacity);
+		long[] result = new long[count];
+
+		for (int i = 0; i < count; i++) {
+			result[i] = timestamps[(int) ((end - count + i) % slots)];
+		}
+
+		int stale = stale(end, count);
+
+		return (stale == 0) ? result : Arrays.copyOfRange(result, stale, count);
+	}
+
+	private int stale(long end, int count) {
+
+		// Samples committed while the values were copied may have overwritten the
+		// oldest ones
+		return (int) Math.max(0, Math.min(count, written - end + count - capacity));
+	}
+
+	private double[] trim(double[] result, long end) {
+		int stale = stale(end, result.length);
+
+		return (stale == 0) ? result : Arrays.copyOfRange(result, stale, result.length);
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
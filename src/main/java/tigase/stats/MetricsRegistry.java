@@ -0,0 +1,543 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.stats;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Registry of metrics which are updated on the packet processing path.
+ * Components register typed counters and gauges once and update them without
+ * any locking, the statistics code reads current values when it needs them
+ * instead of components building records for every statistics call.
+ * <p/>
+ * Every metric key, <code>component/description</code>, is interned to a
+ * small integer id the first time it is seen. The ids are dense so they can be
+ * used as indexes in arrays, <code>MetricsHistory</code> keeps history columns
+ * by them. Ids are assigned also to keys of statistics which are not
+ * registered as metrics here. An id released with <code>release()</code> may
+ * be assigned to another key later, so code keeping state by ids should check
+ * the key of the id with <code>getKey()</code>.
+ * <p/>
+ * Besides counters and gauges components may register their own
+ * <code>Metric</code> subclasses which compute the value when it is read, like
+ * a queue size.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class MetricsRegistry {
+	private static final MetricsRegistry instance = new MetricsRegistry();
+
+	//~--- fields ---------------------------------------------------------------
+
+	// Free ids are kept in a stack, released ids are assigned again first
+	private int[] free = new int[16];
+	private int freeSize = 0;
+
+	// Ids by component and description, so no key has to be built for a lookup
+	private final ConcurrentHashMap<String, ConcurrentMap<String, Integer>> ids =
+			new ConcurrentHashMap<String, ConcurrentMap<String, Integer>>(64, 0.75f, 4);
+	private volatile String[] keys = new String[64];
+	private volatile int[] levels = new int[64];
+	private volatile Metric[] metrics = new Metric[64];
+	private volatile int size = 0;
+
+	//~--- constructors ---------------------------------------------------------
+
+	private MetricsRegistry() {}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public static MetricsRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Returns the interned id of the metric key, assigning a new one if the key
+	 * has not been seen before.
+	 *
+	 *
+	 * @param comp
+	 * @param description
+	 *
+	 * @return
+	 */
+	public int getId(String comp, String description) {
+		int id = findId(comp, description);
+
+		if (id >= 0) {
+			return id;
+		}
+
+		synchronized (this) {
+			ConcurrentMap<String, Integer> descs = ids.get(comp);
+
+			if (descs == null) {
+				descs = new ConcurrentHashMap<String, Integer>(64, 0.75f, 4);
+				ids.put(comp, descs);
+			}
+
+			Integer found = descs.get(description);
+
+			if (found != null) {
+				return found;
+			}
+
+			if (freeSize > 0) {
+				id = free[--freeSize];
+			} else {
+				id = size;
+
+				if (id == keys.length) {
+					metrics = Arrays.copyOf(metrics, id * 2);
+					levels = Arrays.copyOf(levels, id * 2);
+					keys = Arrays.copyOf(keys, id * 2);
+				}
+
+				size = id + 1;
+			}
+
+			levels[id] = Level.FINEST.intValue();
+			keys[id] = comp + "/" + description;
+			descs.put(description, id);
+		}
+
+		return id;
+	}
+
+	/**
+	 * Returns the interned id of the metric key, assigning a new one if the key
+	 * has not been seen before.
+	 *
+	 *
+	 * @param key is the metric key in form of <code>component/description</code>.
+	 *
+	 * @return
+	 */
+	public int getId(String key) {
+		int idx = key.indexOf('/');
+
+		return getId(key.substring(0, Math.max(0, idx)), key.substring(idx + 1));
+	}
+
+	/**
+	 * Returns the interned id of the metric key without assigning a new one.
+	 *
+	 *
+	 * @param comp
+	 * @param description
+	 *
+	 * @return the id or -1 if the key has not been seen yet.
+	 */
+	public int findId(String comp, String description) {
+		ConcurrentMap<String, Integer> descs = ids.get(comp);
+		Integer id = (descs != null) ? descs.get(description) : null;
+
+		return (id != null) ? id : -1;
+	}
+
+	/**
+	 * Returns the interned id of the metric key without assigning a new one.
+	 *
+	 *
+	 * @param key is the metric key in form of <code>component/description</code>.
+	 *
+	 * @return the id or -1 if the key has not been seen yet.
+	 */
+	public int findId(String key) {
+		int idx = key.indexOf('/');
+
+		return findId(key.substring(0, Math.max(0, idx)), key.substring(idx + 1));
+	}
+
+	/**
+	 * Returns the metric key for the given id.
+	 *
+	 *
+	 * @param id
+	 *
+	 * @return the key or <code>null</code> if the id is not assigned.
+	 */
+	public String getKey(int id) {
+		return keys[id];
+	}
+
+	/**
+	 * Returns the level of the statistic with the given id, as the level
+	 * <code>intValue()</code>. It is the level of the registered metric or the
+	 * level of the statistic record last seen with the key.
+	 *
+	 *
+	 * @param id
+	 *
+	 * @return
+	 */
+	public int getLevel(int id) {
+		return levels[id];
+	}
+
+	/**
+	 * Returns the metric registered under the given id.
+	 *
+	 *
+	 * @param id
+	 *
+	 * @return the metric or <code>null</code> if the id belongs to a statistic
+	 * which is not registered as a metric.
+	 */
+	public Metric getMetric(int id) {
+		Metric[] arr = metrics;
+
+		return ((id >= 0) && (id < arr.length)) ? arr[id] : null;
+	}
+
+	/**
+	 * Returns the number of ids assigned so far, all ids are lower than this
+	 * number.
+	 *
+	 *
+	 * @return
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Adds all metrics registered for the component to the statistics list.
+	 *
+	 *
+	 * @param comp
+	 * @param list
+	 */
+	public void getStatistics(String comp, StatisticsList list) {
+		int cnt = size;
+		Metric[] arr = metrics;
+
+		for (int i = 0; i < cnt; i++) {
+			Metric metric = arr[i];
+
+			if ((metric != null) && metric.comp.equals(comp)) {
+				list.add(metric.comp, metric.description, metric.get(), metric.level);
+			}
+		}
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Registers a new counter. If there is a metric registered with the same key
+	 * already it is replaced.
+	 *
+	 *
+	 * @param comp
+	 * @param description
+	 * @param level
+	 *
+	 * @return
+	 */
+	public Counter counter(String comp, String description, Level level) {
+		return register(new Counter(), comp, description, level);
+	}
+
+	/**
+	 * Registers a new gauge. If there is a metric registered with the same key
+	 * already it is replaced.
+	 *
+	 *
+	 * @param comp
+	 * @param description
+	 * @param level
+	 *
+	 * @return
+	 */
+	public Gauge gauge(String comp, String description, Level level) {
+		return register(new Gauge(), comp, description, level);
+	}
+
+	/**
+	 * Registers the metric under the given key, which is useful for metrics
+	 * created before the component knows its name. The metric keeps its value.
+	 * If there is a metric registered with the same key already it is replaced.
+	 *
+	 *
+	 * @param metric
+	 * @param comp
+	 * @param description
+	 * @param level
+	 * @param <T>
+	 *
+	 * @return the registered metric.
+	 */
+	public synchronized <T extends Metric> T register(T metric, String comp,
+			String description, Level level) {
+		int id = getId(comp, description);
+		Metric m = metric;
+
+		m.id = id;
+		m.comp = comp;
+		m.description = description;
+		m.level = level;
+		levels[id] = level.intValue();
+		metrics[id] = m;
+
+		// Publishes the metric to lock-free readers
+		metrics = metrics;
+
+		return metric;
+	}
+
+	/**
+	 * Releases the id of a statistic which is not reported anymore, so it can
+	 * be assigned to another key. Ids of registered metrics are not released.
+	 *
+	 *
+	 * @param id
+	 *
+	 * @return <code>true</code> if the id has been released.
+	 */
+	public synchronized boolean release(int id) {
+		String key = keys[id];
+
+		if ((key == null) || (metrics[id] != null)) {
+			return false;
+		}
+
+		int idx = key.indexOf('/');
+		ConcurrentMap<String, Integer> descs = ids.get(key.substring(0, idx));
+
+		if (descs != null) {
+			descs.remove(key.substring(idx + 1));
+		}
+
+		keys[id] = null;
+
+		if (freeSize == free.length) {
+			free = Arrays.copyOf(free, freeSize * 2);
+		}
+
+		free[freeSize++] = id;
+
+		return true;
+	}
+
+	/**
+	 * Sets the level of the statistic with the given id.
+	 *
+	 *
+	 * @param id
+	 * @param level
+	 */
+	public void setLevel(int id, Level level) {
+		levels[id] = level.intValue();
+	}
+
+	/**
+	 * Removes the metric from the registry, its id remains assigned to the key
+	 * until it is released.
+	 *
+	 *
+	 * @param metric
+	 */
+	public synchronized void unregister(Metric metric) {
+		if ((metric.id >= 0) && (metrics[metric.id] == metric)) {
+			metrics[metric.id] = null;
+			metrics = metrics;
+		}
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	/**
+	 * Base class of registered metrics.
+	 */
+	public static abstract class Metric {
+		private String comp = null;
+		private String description = null;
+		private int id = -1;
+		private Level level = Level.FINEST;
+
+		//~--- get methods --------------------------------------------------------
+
+		/**
+		 * Returns the current value of the metric.
+		 *
+		 *
+		 * @return
+		 */
+		public abstract long get();
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		public String getComponent() {
+			return comp;
+		}
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		public String getDescription() {
+			return description;
+		}
+
+		/**
+		 * Returns the interned id of the metric or -1 if the metric has not been
+		 * registered.
+		 *
+		 *
+		 * @return
+		 */
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		public Level getLevel() {
+			return level;
+		}
+	}
+
+
+	/**
+	 * Counter which can be updated concurrently from many threads. Updates are
+	 * spread over several cells, each on a separate cache line, so threads do
+	 * not contend on a single variable. The value is the sum of all cells.
+	 */
+	public static class Counter extends Metric {
+
+		// Cells are 8 longs apart to keep them on separate cache lines
+		private static final int PAD = 8;
+		private static final int STRIPES =
+				Integer.highestOneBit(Math.max(1,
+					Runtime.getRuntime().availableProcessors() - 1)) << 1;
+
+		//~--- fields -------------------------------------------------------------
+
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+		//~--- methods ------------------------------------------------------------
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @param delta
+		 */
+		public void add(long delta) {
+			int idx = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+
+			cells.addAndGet(idx, delta);
+		}
+
+		/**
+		 * Method description
+		 *
+		 */
+		public void inc() {
+			add(1);
+		}
+
+		//~--- get methods --------------------------------------------------------
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		@Override
+		public long get() {
+			long result = 0;
+
+			for (int i = 0; i < STRIPES; i++) {
+				result += cells.get(i * PAD);
+			}
+
+			return result;
+		}
+	}
+
+
+	/**
+	 * Gauge holding the last value set.
+	 */
+	public static class Gauge extends Metric {
+		private volatile long value = 0;
+
+		//~--- get methods --------------------------------------------------------
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		@Override
+		public long get() {
+			return value;
+		}
+
+		//~--- set methods --------------------------------------------------------
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @param value
+		 */
+		public void set(long value) {
+			this.value = value;
+		}
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
@@ -49,6 +49,8 @@ import tigase.xmpp.StanzaType;
 
 //~--- JDK imports ------------------------------------------------------------
 
+import java.io.IOException;
+
 import java.lang.management.ManagementFactory;
 
 import java.util.ArrayList;
@@ -93,6 +95,14 @@ public class StatisticsCollector extends
 	public static final int STATS_HISTORY_SIZE_PROP_VAL = 8640;
 	public static final String STATS_UPDATE_INTERVAL_PROP_KEY = "stats-update-interval";
 	public static final long STATS_UPDATE_INTERVAL_PROP_VAL = 10l;
+	public static final String STATS_EXPORT_PORT_PROP_KEY = "stats-export-port";
+	public static final int STATS_EXPORT_PORT_PROP_VAL = 0;
+	public static final String STATS_EXPORT_ADDRESS_PROP_KEY = "stats-export-address";
+	public static final String STATS_EXPORT_ADDRESS_PROP_VAL = "127.0.0.1";
+	public static final String STATS_EXPORT_LEVEL_PROP_KEY = "stats-export-level";
+	public static final String STATS_EXPORT_LEVEL_PROP_VAL = "INFO";
+	public static final String STATS_EXPORT_INTERVAL_PROP_KEY = "stats-export-interval";
+	public static final long STATS_EXPORT_INTERVAL_PROP_VAL = 1000l;
 
 	/** Field description */
 	public static final String STATISTICS_MBEAN_NAME =
@@ -114,6 +124,11 @@ public class StatisticsCollector extends
 	private TimerTask initializationCompletedTask = null;
 	private int historySize = 0;
 	private long updateInterval = 10;
+	private StatisticsExporter exporter = null;
+	private String exportAddress = STATS_EXPORT_ADDRESS_PROP_VAL;
+	private long exportInterval = STATS_EXPORT_INTERVAL_PROP_VAL;
+	private Level exportLevel = Level.INFO;
+	private int exportPort = STATS_EXPORT_PORT_PROP_VAL;
 
 	// ~--- methods --------------------------------------------------------------
 
@@ -247,6 +262,10 @@ public class StatisticsCollector extends
 		}
 		defs.put(STATS_HISTORY_SIZE_PROP_KEY, hSize);
 		defs.put(STATS_UPDATE_INTERVAL_PROP_KEY, updateInt);
+		defs.put(STATS_EXPORT_PORT_PROP_KEY, STATS_EXPORT_PORT_PROP_VAL);
+		defs.put(STATS_EXPORT_ADDRESS_PROP_KEY, STATS_EXPORT_ADDRESS_PROP_VAL);
+		defs.put(STATS_EXPORT_LEVEL_PROP_KEY, STATS_EXPORT_LEVEL_PROP_VAL);
+		defs.put(STATS_EXPORT_INTERVAL_PROP_KEY, STATS_EXPORT_INTERVAL_PROP_VAL);
 
 		return defs;
 	}
@@ -553,6 +572,26 @@ public class StatisticsCollector extends
 		if (props.get(STATS_UPDATE_INTERVAL_PROP_KEY) != null) {
 			updateInterval = (Long) props.get(STATS_UPDATE_INTERVAL_PROP_KEY);
 		}
+		if (props.get(STATS_EXPORT_PORT_PROP_KEY) != null) {
+			exportPort = (Integer) props.get(STATS_EXPORT_PORT_PROP_KEY);
+		}
+		if (props.get(STATS_EXPORT_ADDRESS_PROP_KEY) != null) {
+			exportAddress = (String) props.get(STATS_EXPORT_ADDRESS_PROP_KEY);
+		}
+		if (props.get(STATS_EXPORT_LEVEL_PROP_KEY) != null) {
+			try {
+				exportLevel = Level.parse((String) props.get(STATS_EXPORT_LEVEL_PROP_KEY));
+			} catch (IllegalArgumentException e) {
+				log.log(Level.WARNING, "Invalid statistics export level: {0}",
+						props.get(STATS_EXPORT_LEVEL_PROP_KEY));
+			}
+		}
+		if (props.get(STATS_EXPORT_INTERVAL_PROP_KEY) != null) {
+			exportInterval = (Long) props.get(STATS_EXPORT_INTERVAL_PROP_KEY);
+		}
+		if (sp != null) {
+			startExporter();
+		}
 
 	}
 
@@ -617,12 +656,34 @@ public class StatisticsCollector extends
 		}
 
 		TigaseRuntime.getTigaseRuntime().addShutdownHook(this);
+		startExporter();
 
 		if (initializationCompletedTask != null) {
 			initializationCompletedTask.run();
 		}
 	}
 
+	private void startExporter() {
+		if (exporter != null) {
+			exporter.stop();
+			exporter = null;
+		}
+
+		if ((exportPort > 0) && (sp != null)) {
+			StatisticsExporter exp =
+					new StatisticsExporter(sp, exportAddress, exportPort, exportLevel,
+						exportInterval);
+
+			try {
+				exp.start();
+				exporter = exp;
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Can not start statistics export on port: " + exportPort,
+						e);
+			}
+		}
+	}
+
 	private void initStatsArchivizers(final String[] archivs,
 			final Map<String, Object> props) {
 		for (String stat_arch_key : archivizers.keySet()) {
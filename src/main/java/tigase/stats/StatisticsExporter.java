@@ -0,0 +1,379 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.stats;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Streams statistics to monitoring tools connected to a local TCP port. The
+ * values are read from <code>MetricsRegistry</code> metrics, which cover the
+ * main component statistics, packet counters, queue sizes and connection
+ * numbers, and are read when a frame is written. Other statistics come from
+ * the most recent sample in <code>MetricsHistory</code>, which is kept also
+ * when the statistics history is off and is refreshed with every full
+ * statistics update. No <code>StatisticsList</code> is built for the export.
+ * <p/>
+ * The stream is binary, all numbers are unsigned variable length integers
+ * (7 bits per byte, least significant first) unless stated otherwise. After
+ * the connection is established the server sends a header: bytes
+ * <code>'T' 'S' 'X' 1</code>, the level filter as <code>Level.intValue()</code>
+ * and the interval between frames in milliseconds. Then frames follow, each
+ * of them starting with <code>'F'</code> and the number of milliseconds since
+ * the previous frame, and ending with <code>'E'</code>. A frame contains
+ * records:
+ * <ul>
+ * <li><code>'D'</code> id, key in modified UTF-8 as written by
+ * <code>DataOutput.writeUTF()</code> - defines the key of a metric, sent once
+ * before the first value of the metric. The initial value of a metric is 0.
+ * An id may be defined again with another key, when the statistic of the old
+ * key is not reported anymore, its value starts from 0 again.</li>
+ * <li><code>'V'</code> id gap, zig-zag encoded delta - an integer value which
+ * is the previous value of the metric plus the delta.</li>
+ * <li><code>'R'</code> id gap, 8 bytes IEEE 754 double - a fractional value.
+ * </li>
+ * </ul>
+ * Value records are ordered by id, the id gap is the difference to the id of
+ * the previous value record in the frame, or to -1 for the first one. Only
+ * values which have changed since the previous frame are sent. The delta of
+ * an integer value following a fractional one is counted from 0.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class StatisticsExporter {
+	private static final Logger log = Logger.getLogger(StatisticsExporter.class.getName());
+	private static final byte[] MAGIC = { 'T', 'S', 'X', 1 };
+	private static final int DEFINE = 'D';
+	private static final int END = 'E';
+	private static final int FRAME = 'F';
+	private static final int REAL = 'R';
+	private static final int VALUE = 'V';
+
+	// Doubles up to 2^53 represent integers exactly
+	private static final double MAX_INTEGRAL = 9007199254740992d;
+
+	//~--- fields ---------------------------------------------------------------
+
+	private Acceptor acceptor = null;
+	private String address = null;
+	private final CopyOnWriteArrayList<ExportTask> clients =
+			new CopyOnWriteArrayList<ExportTask>();
+	private long interval = 1000;
+	private Level level = Level.INFO;
+	private int port = 0;
+	private StatisticsProvider sp = null;
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Constructs ...
+	 *
+	 *
+	 * @param sp
+	 * @param address is the address to bind to, a local one should be used as
+	 * there is no authentication.
+	 * @param port
+	 * @param level is the lowest level of exported statistics.
+	 * @param interval is the time between frames in milliseconds.
+	 */
+	public StatisticsExporter(StatisticsProvider sp, String address, int port,
+			Level level, long interval) {
+		this.sp = sp;
+		this.address = address;
+		this.port = port;
+		this.level = level;
+		this.interval = Math.max(100, interval);
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Opens the listening socket and starts accepting monitoring connections.
+	 *
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		ServerSocket server = new ServerSocket();
+
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(InetAddress.getByName(address), port));
+		acceptor = new Acceptor(server);
+		acceptor.start();
+		log.log(Level.CONFIG, "Statistics export listening on {0}:{1}", new Object[] {
+				address,
+				port });
+	}
+
+	/**
+	 * Closes the listening socket and all monitoring connections.
+	 *
+	 */
+	public void stop() {
+		if (acceptor != null) {
+			acceptor.close();
+			acceptor = null;
+		}
+
+		for (ExportTask client : clients) {
+			client.close();
+		}
+	}
+
+	/**
+	 * Writes statistics changed since the previous frame.
+	 *
+	 *
+	 * @param out
+	 * @param state
+	 *
+	 * @throws IOException
+	 */
+	private void writeFrame(DataOutputStream out, ExportTask state) throws IOException {
+		MetricsRegistry registry = MetricsRegistry.getInstance();
+		MetricsHistory history = sp.getMetricsHistory();
+		int size = registry.getSize();
+		int minLevel = level.intValue();
+		long now = System.currentTimeMillis();
+		int prevId = -1;
+
+		if (state.values.length < size) {
+			state.values = Arrays.copyOf(state.values, Math.max(size, state.values.length * 2));
+			state.keys = Arrays.copyOf(state.keys, state.values.length);
+		}
+
+		out.writeByte(FRAME);
+		writeVarLong(out, Math.max(0, now - state.lastFrame));
+		state.lastFrame = now;
+
+		for (int id = 0; id < size; id++) {
+			if (registry.getLevel(id) < minLevel) {
+				continue;
+			}
+
+			String key = registry.getKey(id);
+
+			if (key == null) {
+				continue;
+			}
+
+			// The id has been released and assigned to another key
+			if (state.defined.get(id) &&!key.equals(state.keys[id])) {
+				state.defined.clear(id);
+				state.values[id] = 0;
+			}
+
+			MetricsRegistry.Metric metric = registry.getMetric(id);
+			double val = (metric != null) ? metric.get() : (history != null)
+					? history.getLast(id) : Double.NaN;
+
+			if (Double.isNaN(val) || (val == state.values[id])) {
+				continue;
+			}
+
+			if ( !state.defined.get(id)) {
+				out.writeByte(DEFINE);
+				writeVarLong(out, id);
+				out.writeUTF(key);
+				state.defined.set(id);
+				state.keys[id] = key;
+
+				if (val == 0) {
+					continue;
+				}
+			}
+
+			double prev = state.values[id];
+
+			if (isIntegral(val)) {
+				long base = isIntegral(prev) ? (long) prev : 0;
+				long delta = (long) val - base;
+
+				out.writeByte(VALUE);
+				writeVarLong(out, id - prevId);
+				writeVarLong(out, (delta << 1) ^ (delta >> 63));
+			} else {
+				out.writeByte(REAL);
+				writeVarLong(out, id - prevId);
+				out.writeDouble(val);
+			}
+
+			state.values[id] = val;
+			prevId = id;
+		}
+
+		out.writeByte(END);
+		out.flush();
+	}
+
+	private void writeVarLong(DataOutputStream out, long val) throws IOException {
+		while ((val & ~0x7FL) != 0) {
+			out.writeByte((int) ((val & 0x7F) | 0x80));
+			val >>>= 7;
+		}
+
+		out.writeByte((int) val);
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	private boolean isIntegral(double val) {
+		return (val == Math.rint(val)) && (Math.abs(val) < MAX_INTEGRAL);
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	private class Acceptor extends Thread {
+		private ServerSocket server = null;
+
+		//~--- constructors -------------------------------------------------------
+
+		private Acceptor(ServerSocket server) {
+			super("stats-exporter");
+			this.server = server;
+			setDaemon(true);
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		/**
+		 * Method description
+		 *
+		 */
+		@Override
+		public void run() {
+			while ( !server.isClosed()) {
+				try {
+					Socket socket = server.accept();
+					ExportTask client = new ExportTask(socket);
+
+					clients.add(client);
+					client.start();
+				} catch (SocketException e) {
+
+					// The socket has been closed
+				} catch (IOException e) {
+					log.log(Level.WARNING, "Problem accepting statistics export connection: ", e);
+				}
+			}
+		}
+
+		private void close() {
+			try {
+				server.close();
+			} catch (IOException e) {
+
+				// Ignore, we are closing anyway
+			}
+		}
+	}
+
+
+	private class ExportTask extends Thread {
+		private BitSet defined = new BitSet();
+		private String[] keys = new String[256];
+		private long lastFrame = System.currentTimeMillis();
+		private Socket socket = null;
+		private double[] values = new double[256];
+
+		//~--- constructors -------------------------------------------------------
+
+		private ExportTask(Socket socket) {
+			super("stats-export-" + socket.getRemoteSocketAddress());
+			this.socket = socket;
+			setDaemon(true);
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		/**
+		 * Method description
+		 *
+		 */
+		@Override
+		public void run() {
+			try {
+				socket.setTcpNoDelay(true);
+				socket.shutdownInput();
+
+				DataOutputStream out =
+						new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+							8192));
+
+				out.write(MAGIC);
+				writeVarLong(out, level.intValue());
+				writeVarLong(out, interval);
+
+				while ( !socket.isClosed()) {
+					writeFrame(out, this);
+					Thread.sleep(interval);
+				}
+			} catch (InterruptedException e) {
+
+				// Exporter stopped
+			} catch (IOException e) {
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "Statistics export connection closed: {0}, {1}",
+							new Object[] { socket.getRemoteSocketAddress(),
+							e.getMessage() });
+				}
+			} finally {
+				clients.remove(this);
+				close();
+			}
+		}
+
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+
+				// Ignore, we are closing anyway
+			}
+		}
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
@@ -24,15 +24,18 @@ package tigase.stats;
 
 //~--- non-JDK imports --------------------------------------------------------
 
+import tigase.server.QueueType;
+
 import tigase.sys.TigaseRuntime;
 
-import tigase.util.AllHistoryCache;
+import tigase.util.DataTypes;
 import tigase.util.FloatHistoryCache;
 import tigase.util.IntHistoryCache;
 
 //~--- JDK imports ------------------------------------------------------------
 
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -249,7 +252,7 @@ public class StatisticsProvider extends StandardMBean implements StatisticsProvi
 	 * @return
 	 */
 	public int getCompConnections(String comp) {
-		return cache.allStats.getCompConnections(comp);
+		return (int) cache.getValue(comp, "Open connections", 0L);
 	}
 
 	/**
@@ -273,7 +276,8 @@ public class StatisticsProvider extends StandardMBean implements StatisticsProvi
 	 * @return
 	 */
 	public long getCompMessages(String comp) {
-		return cache.allStats.getCompMsg(comp);
+		return cache.getValue(comp, QueueType.IN_QUEUE.name() + " messages", 0L)
+				+ cache.getValue(comp, QueueType.OUT_QUEUE.name() + " messages", 0L);
 	}
 
 	/**
@@ -285,7 +289,8 @@ public class StatisticsProvider extends StandardMBean implements StatisticsProvi
 	 * @return
 	 */
 	public long getCompPackets(String comp) {
-		return cache.allStats.getCompPackets(comp);
+		return cache.getValue(comp, StatisticType.MSG_RECEIVED_OK.getDescription(), 0L)
+				+ cache.getValue(comp, StatisticType.MSG_SENT_OK.getDescription(), 0L);
 	}
 
 	/**
@@ -297,7 +302,8 @@ public class StatisticsProvider extends StandardMBean implements StatisticsProvi
 	 * @return
 	 */
 	public long getCompPresences(String comp) {
-		return cache.allStats.getCompPres(comp);
+		return cache.getValue(comp, QueueType.IN_QUEUE.name() + " presences", 0L)
+				+ cache.getValue(comp, QueueType.OUT_QUEUE.name() + " presences", 0L);
 	}
 
 	/**
@@ -641,7 +647,7 @@ public class StatisticsProvider extends StandardMBean implements StatisticsProvi
 	 * @return
 	 */
 	public long getStats(String cmp_name, String stat, long def) {
-		return cache.allStats.getValue(cmp_name, stat, def);
+		return cache.getValue(cmp_name, stat, def);
 	}
 
 	/**
@@ -894,17 +900,26 @@ public class StatisticsProvider extends StandardMBean implements StatisticsProvi
 	public Map<String, LinkedList<Object>> getStatsHistory(String[] statsKeys) {
 		log.log(Level.INFO, "Generating history for metrics: {0}", Arrays.toString(statsKeys));
 		Map<String, LinkedList<Object>> result = null;
-		if (cache.allHistory != null) {
+		if (cache.keepHistory) {
+			MetricsRegistry registry = MetricsRegistry.getInstance();
+			int samples = cache.allHistory.getTimestamps().length;
 			result = new LinkedHashMap<String, LinkedList<Object>>();
-			for (StatisticsList stHist : cache.allHistory.getCurrentHistory()) {
-				for (String key : statsKeys) {
-					LinkedList<Object> statsForKey = result.get(key);
-					if (statsForKey == null) {
-						statsForKey = new LinkedList<Object>();
-						result.put(key, statsForKey);
-					}
-					statsForKey.add(stHist.getValue(key));
+			for (String key : statsKeys) {
+				char dataType = DataTypes.decodeTypeIdFromName(key);
+				double[] hist =
+						cache.allHistory.getHistory(registry.findId(DataTypes
+								.stripNameFromTypeId(key)));
+				LinkedList<Object> statsForKey = new LinkedList<Object>();
+
+				// Values the metric did not have, from before it was first seen
+				// or of a non-numeric type, are reported as the type default
+				for (int i = hist.length; i < samples; i++) {
+					statsForKey.add(getHistoryValue(dataType, Double.NaN));
 				}
+				for (double val : hist) {
+					statsForKey.add(getHistoryValue(dataType, val));
+				}
+				result.put(key, statsForKey);
 			}
 		} else {
 			log.log(Level.INFO, "The server does not keep metrics history.");
@@ -913,10 +928,31 @@ public class StatisticsProvider extends StandardMBean implements StatisticsProvi
 		return result;
 	}
 
+	private Object getHistoryValue(char dataType, double val) {
+		boolean none = Double.isNaN(val);
+
+		switch (dataType) {
+			case 'L':
+				return none ? 0L : (long) val;
+			case 'I':
+				return none ? 0 : (int) val;
+			case 'F':
+				return none ? 0f : (float) val;
+			default:
+				return none ? " " : String.valueOf((long) val);
+		}
+	}
+
+	MetricsHistory getMetricsHistory() {
+		return cache.allHistory;
+	}
+
 	public Map<String, Object> getCurStats(String[] statsKeys) {
+		MetricsRegistry registry = MetricsRegistry.getInstance();
 		Map<String, Object> result = new LinkedHashMap<String, Object>();
 		for (String key : statsKeys) {
-			result.put(key, cache.allStats.getValue(key));
+			MetricsRegistry.Metric metric = registry.getMetric(registry.findId(key));
+			result.put(key, (metric != null) ? metric.get() : cache.allStats.getValue(key));
 		}
 		return result;
 	}
@@ -935,6 +971,13 @@ public class StatisticsProvider extends StandardMBean implements StatisticsProvi
 		private static final long MINUTE = 60 * SECOND;
 		private static final long HOUR = 60 * MINUTE;
 
+		// Registered metrics are sampled on every update, the full statistics
+		// list is built only every FULL_UPDATE_RUNS updates
+		private static final int FULL_UPDATE_RUNS = 6;
+
+		// Ids of statistics not reported in so many full updates are released
+		private static final int RELEASE_AFTER_RUNS = 10;
+
 		// ~--- fields -------------------------------------------------------------
 
 		private int clIOQueue = 0;
@@ -980,6 +1023,7 @@ public class StatisticsProvider extends StandardMBean implements StatisticsProvi
 		private long queueOverflow = 0;
 		private int queueSize = 0;
 		private long registered = 0;
+		private int full_runs = FULL_UPDATE_RUNS;
 		private int runs_counter = 100;
 		private int serverConnections = 0;
 		private long smPackets = 0;
@@ -993,7 +1037,14 @@ public class StatisticsProvider extends StandardMBean implements StatisticsProvi
 		private FloatHistoryCache cpu_usage_history = null;
 		private IntHistoryCache conns_history = null;
 		private FloatHistoryCache clpacks_history = null;
-		private AllHistoryCache allHistory = null;
+		private MetricsHistory allHistory = null;
+		private boolean keepHistory = false;
+
+		// Last values and the number of full updates missing them, of statistics
+		// which are not registered metrics
+		private double[] listValues = new double[0];
+		private int[] listMissed = new int[0];
+		private BitSet listSeen = new BitSet();
 
 		// private long lastUpdate = 0;
 		private StatisticsList allStats = new StatisticsList(Level.FINER);
@@ -1008,9 +1059,12 @@ public class StatisticsProvider extends StandardMBean implements StatisticsProvi
 				cpu_usage_history = new FloatHistoryCache(historySize);
 				conns_history = new IntHistoryCache(historySize);
 				clpacks_history = new FloatHistoryCache(historySize);
-				allHistory = new AllHistoryCache(historySize);
 			}
 
+			// The last sample is always kept, the statistics export reads it
+			keepHistory = historySize > 0;
+			allHistory = new MetricsHistory(Math.max(1, historySize));
+
 			updateTimer = new Timer("stats-cache", true);
 			updateTimer.scheduleAtFixedRate(new TimerTask() {
 				@Override
@@ -1039,30 +1093,30 @@ public class StatisticsProvider extends StandardMBean implements StatisticsProvi
 				heap_usage_history.addItem(getHeapMemUsage());
 			}
 
-			if (++runs_counter >= 100) {
-				allStats = new StatisticsList(Level.FINEST);
-				runs_counter = 0;
-			} else {
-				allStats = new StatisticsList(Level.FINER);
-			}
+			boolean full = ++full_runs >= FULL_UPDATE_RUNS;
+			Level level = Level.FINER;
 
-			theRef.getAllStats(allStats);
-			if (allHistory != null) {
-				allHistory.addItem(allStats);
-			}
+			if (full) {
+				full_runs = 0;
 
-			long tmp_reg = allStats.getValue(SM_COMP, "Registered accounts", -1L);
+				if (++runs_counter >= 100 / FULL_UPDATE_RUNS) {
+					level = Level.FINEST;
+					runs_counter = 0;
+				}
 
-			if (tmp_reg > 0) {
-				registered = tmp_reg;
+				StatisticsList list = new StatisticsList(level);
+
+				theRef.getAllStats(list);
+				allStats = list;
 			}
 
-			// System.out.println(allStats.toString());
-			clusterCompressionRatio =
-					(allStats.getValue(CL_COMP, "Average compression ratio", -1f) + allStats
-							.getValue(CL_COMP, "Average decompression ratio", -1f)) / 2f;
-			clusterPacketsReceived = allStats.getCompReceivedPackets(CL_COMP);
-			clusterPacketsSent = allStats.getCompSentPackets(CL_COMP);
+			record(full ? allStats : null, level);
+
+			// Values of components, which are registered metrics, are current on
+			// every update, the rest comes from the last full statistics list
+			clusterPacketsReceived =
+					getValue(CL_COMP, StatisticType.MSG_RECEIVED_OK.getDescription(), 0L);
+			clusterPacketsSent = getValue(CL_COMP, StatisticType.MSG_SENT_OK.getDescription(), 0L);
 			clusterPackets = clusterPacketsSent + clusterPacketsReceived;
 			temp = clusterPacketsPerSec;
 			clusterPacketsPerSec =
@@ -1072,7 +1126,8 @@ public class StatisticsProvider extends StandardMBean implements StatisticsProvi
 			}
 			prevClusterPacketsPerSec = temp;
 			prevClusterPackets = clusterPackets;
-			smPackets = allStats.getCompPackets(SM_COMP);
+			smPackets = getValue(SM_COMP, StatisticType.MSG_RECEIVED_OK.getDescription(), 0L)
+					+ getValue(SM_COMP, StatisticType.MSG_SENT_OK.getDescription(), 0L);
 			temp = smPacketsPerSec;
 			smPacketsPerSec =
 					(prevSmPacketsPerSec + (temp * 2f) + (smPackets - prevSmPackets)) / 4f;
@@ -1082,33 +1137,28 @@ public class StatisticsProvider extends StandardMBean implements StatisticsProvi
 			prevSmPacketsPerSec = temp;
 			prevSmPackets = smPackets;
 			clientConnections =
-					allStats.getCompConnections(C2S_COMP) + allStats.getCompConnections(BOSH_COMP);
+					(int) (getValue(C2S_COMP, "Open connections", 0L) + getValue(BOSH_COMP,
+							"Open connections", 0L));
 			if (conns_history != null) {
 				conns_history.addItem(clientConnections);
 			}
-			serverConnections = allStats.getCompConnections(S2S_COMP);
+			serverConnections = (int) getValue(S2S_COMP, "Open connections", 0L);
 			if (server_conns_history != null) {
 				server_conns_history.addItem(serverConnections);
 			}
-			clIOQueue = allStats.getValue(CL_COMP, "Waiting to send", 0);
-			clusterCache = allStats.getValue("cl-caching-strat", "Cached JIDs", 0);
-			messagesNumber = allStats.getCompMsg(SM_COMP);
+			messagesNumber =
+					getValue(SM_COMP, QueueType.IN_QUEUE.name() + " messages", 0L)
+							+ getValue(SM_COMP, QueueType.OUT_QUEUE.name() + " messages", 0L);
 			temp = messagesPerSec;
 			messagesPerSec =
 					(prevMessagesPerSec + (temp * 2f) + (messagesNumber - prevMessagesNumber)) / 4f;
 			prevMessagesPerSec = temp;
 			prevMessagesNumber = messagesNumber;
-			clusterNetworkBytesSent = allStats.getValue(CL_COMP, "Bytes sent", 0L);
-			clusterNetworkBytesReceived = allStats.getValue(CL_COMP, "Bytes received", 0L);
-			clusterNetworkBytes = clusterNetworkBytesSent + clusterNetworkBytesReceived;
-			temp = clusterNetworkBytesPerSecond;
-			clusterNetworkBytesPerSecond =
-					(prevClusterNetworkBytesPerSecond + (temp * 2f) + (clusterNetworkBytes - prevClusterNetworkBytes)) / 4f;
-			prevClusterNetworkBytesPerSecond = temp;
-			prevClusterNetworkBytes = clusterNetworkBytes;
 
-			long currPresencesReceived = allStats.getCompPresReceived(SM_COMP);
-			long currPresencesSent = allStats.getCompPresSent(SM_COMP);
+			long currPresencesReceived =
+					getValue(SM_COMP, QueueType.IN_QUEUE.name() + " presences", 0L);
+			long currPresencesSent =
+					getValue(SM_COMP, QueueType.OUT_QUEUE.name() + " presences", 0L);
 
 			presencesNumber = currPresencesReceived + currPresencesSent;
 			temp = presencesPerSec;
@@ -1126,40 +1176,169 @@ public class StatisticsProvider extends StandardMBean implements StatisticsProvi
 				cnt = 0;
 			}
 
+			updateQueues();
+
+			if (full) {
+				updateFromList();
+			}
+
+			// System.out.println("clusterPackets: " + clusterPackets +
+			// ", smPackets: " + smPackets +
+			// ", clientConnections: " + clientConnections);
+		}
+
+		/**
+		 * Updates values which are available only in the full statistics list,
+		 * rates are per update as the others.
+		 */
+		private void updateFromList() {
+			long tmp_reg = allStats.getValue(SM_COMP, "Registered accounts", -1L);
+
+			if (tmp_reg > 0) {
+				registered = tmp_reg;
+			}
+
+			// System.out.println(allStats.toString());
+			clusterCompressionRatio =
+					(allStats.getValue(CL_COMP, "Average compression ratio", -1f) + allStats
+							.getValue(CL_COMP, "Average decompression ratio", -1f)) / 2f;
+			clIOQueue = allStats.getValue(CL_COMP, "Waiting to send", 0);
+			clusterCache = allStats.getValue("cl-caching-strat", "Cached JIDs", 0);
+			clusterNetworkBytesSent = allStats.getValue(CL_COMP, "Bytes sent", 0L);
+			clusterNetworkBytesReceived = allStats.getValue(CL_COMP, "Bytes received", 0L);
+			clusterNetworkBytes = clusterNetworkBytesSent + clusterNetworkBytesReceived;
+
+			float temp = clusterNetworkBytesPerSecond;
+
+			clusterNetworkBytesPerSecond =
+					(prevClusterNetworkBytesPerSecond + (temp * 2f) + (clusterNetworkBytes
+							- prevClusterNetworkBytes) / (float) FULL_UPDATE_RUNS) / 4f;
+			prevClusterNetworkBytesPerSecond = temp;
+			prevClusterNetworkBytes = clusterNetworkBytes;
+		}
+
+		private void updateQueues() {
+			MetricsRegistry registry = MetricsRegistry.getInstance();
+			int size = registry.getSize();
+			String inOverflow = StatisticType.IN_QUEUE_OVERFLOW.getDescription();
+			String outOverflow = StatisticType.OUT_QUEUE_OVERFLOW.getDescription();
+
 			queueSize = 0;
 			queueOverflow = 0;
 			smQueue = 0;
 			clQueue = 0;
 			largeQueues = "";
 
-			for (StatRecord rec : allStats) {
-				if ((rec.getDescription() == StatisticType.IN_QUEUE_OVERFLOW.getDescription())
-						|| (rec.getDescription() == StatisticType.OUT_QUEUE_OVERFLOW.getDescription())) {
-					queueOverflow += rec.getLongValue();
+			for (int id = 0; id < size; id++) {
+				MetricsRegistry.Metric metric = registry.getMetric(id);
+
+				if (metric == null) {
+					continue;
+				}
+
+				String desc = metric.getDescription();
+
+				if (desc.equals(inOverflow) || desc.equals(outOverflow)) {
+					queueOverflow += metric.get();
 				}
 
-				if ((rec.getDescription() == "Total In queues wait")
-						|| (rec.getDescription() == "Total Out queues wait")) {
-					queueSize += rec.getIntValue();
+				if (desc.equals("Total In queues wait") || desc.equals("Total Out queues wait")) {
+					int val = (int) metric.get();
+
+					queueSize += val;
 
-					if (rec.getComponent().equals(SM_COMP)) {
-						smQueue += rec.getIntValue();
+					if (metric.getComponent().equals(SM_COMP)) {
+						smQueue += val;
 					}
 
-					if (rec.getComponent().equals(CL_COMP)) {
-						clQueue += rec.getIntValue();
+					if (metric.getComponent().equals(CL_COMP)) {
+						clQueue += val;
 					}
 
-					if (rec.getIntValue() > 10000) {
-						largeQueues +=
-								rec.getComponent() + " - queue size: " + rec.getIntValue() + "\n";
+					if (val > 10000) {
+						largeQueues += metric.getComponent() + " - queue size: " + val + "\n";
 					}
 				}
 			}
+		}
 
-			// System.out.println("clusterPackets: " + clusterPackets +
-			// ", smPackets: " + smPackets +
-			// ", clientConnections: " + clientConnections);
+		/**
+		 * Records a sample of all registered metrics and of numeric statistics
+		 * from the full statistics list if it has been built in this update.
+		 * Statistics from the list keep their last value until the next full
+		 * update, ids of those which have not been reported for a while are
+		 * released.
+		 */
+		private void record(StatisticsList list, Level level) {
+			MetricsRegistry registry = MetricsRegistry.getInstance();
+
+			if (list != null) {
+				listSeen.clear();
+				for (StatRecord rec : list) {
+					double val;
+
+					// Only numeric records are kept in the history
+					if (rec.getUnit() == "long") {
+						val = rec.getLongValue();
+					} else if (rec.getUnit() == "int") {
+						val = rec.getIntValue();
+					} else if (rec.getUnit() == "float") {
+						val = rec.getFloatValue();
+					} else {
+						continue;
+					}
+					int id = registry.getId(rec.getComponent(), rec.getDescription());
+					if (id >= listValues.length) {
+						int len = Math.max(id + 1, listValues.length * 2);
+						int old = listValues.length;
+						listValues = Arrays.copyOf(listValues, len);
+						listMissed = Arrays.copyOf(listMissed, len);
+						Arrays.fill(listValues, old, len, Double.NaN);
+					}
+					registry.setLevel(id, rec.getLevel());
+					listValues[id] = val;
+					listMissed[id] = 0;
+					listSeen.set(id);
+				}
+			}
+
+			int size = registry.getSize();
+
+			allHistory.startSample(System.currentTimeMillis());
+			for (int id = 0; id < size; id++) {
+				MetricsRegistry.Metric metric = registry.getMetric(id);
+
+				if (metric != null) {
+					allHistory.record(id, metric.get());
+				} else if ((id < listValues.length) && !Double.isNaN(listValues[id])) {
+
+					// Statistics below the list level are not expected in the list
+					if ((list != null) && !listSeen.get(id)
+							&& (registry.getLevel(id) >= level.intValue())
+							&& (++listMissed[id] >= RELEASE_AFTER_RUNS)
+							&& registry.release(id)) {
+						listValues[id] = Double.NaN;
+						allHistory.clear(id);
+					} else {
+						allHistory.record(id, listValues[id]);
+					}
+				}
+			}
+			allHistory.commit();
+		}
+
+		/**
+		 * Returns the current value of a registered metric or the value from the
+		 * last full statistics list.
+		 */
+		private long getValue(String comp, String description, long def) {
+			MetricsRegistry registry = MetricsRegistry.getInstance();
+			MetricsRegistry.Metric metric =
+					registry.getMetric(registry.findId(comp, description));
+
+			return (metric != null)
+					? metric.get()
+					: allStats.getValue(comp, description, def);
 		}
 
 		private void updateSystemDetails() {
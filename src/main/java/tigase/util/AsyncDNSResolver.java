@@ -0,0 +1,1022 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.util;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.stats.StatisticsList;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.IDN;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import java.security.SecureRandom;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Asynchronous resolver of XMPP server addresses. A domain is resolved with
+ * the <code>_xmpp-server._tcp</code> SRV record and the A records of its
+ * targets, or with the A record of the domain itself if there is no SRV
+ * record. Lookups run on a fixed number of threads, so a slow or dead DNS
+ * server of one domain does not hold up the others, and concurrent requests
+ * for the same domain are served by a single lookup.
+ *
+ * Results are cached for the shortest TTL of the records used. Failed lookups
+ * are cached as well, for the negative TTL from the SOA record of the answer
+ * or for the configured negative TTL if the answer has no SOA record or the
+ * DNS servers did not respond. The cache keeps at most
+ * <code>MAX_CACHE_SIZE</code> domains, the least recently used are evicted.
+ *
+ * Queries are sent over UDP from a random source port with a random id, a
+ * truncated response is queried again over TCP.
+ *
+ * The resolver talks to the DNS servers given in the constructor directly, so
+ * it can be pointed to a local stub server. If no servers are given, the ones
+ * from <code>/etc/resolv.conf</code> are used. If none can be found there,
+ * lookups are passed to the blocking <code>DNSResolver</code>. The resolver
+ * can be reconfigured with <code>configure()</code> while in use.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class AsyncDNSResolver {
+	private static final Logger log = Logger.getLogger(AsyncDNSResolver.class.getName());
+
+	/** Field description */
+	public static final int DEF_XMPP_SERVER_PORT = 5269;
+	private static final int CLASS_IN = 1;
+	private static final int DNS_PORT = 53;
+	private static final int FLAG_TC = 0x0200;
+	private static final int MAX_CACHE_SIZE = 10000;
+	private static final int MIN_SOURCE_PORT = 1024;
+	private static final int SOURCE_PORT_TRIES = 8;
+	private static final long MAX_TTL = 24 * 60 * 60;
+	private static final long MIN_TTL = 1;
+	private static final int RCODE_NXDOMAIN = 3;
+	private static final String RESOLV_CONF = "/etc/resolv.conf";
+	private static final int RETRIES = 2;
+	private static final String SRV_PREFIX = "_xmpp-server._tcp.";
+	private static final int TYPE_A = 1;
+	private static final int TYPE_SOA = 6;
+	private static final int TYPE_SRV = 33;
+
+	/**
+	 * Used for results of the blocking <code>DNSResolver</code> which does not
+	 * provide TTLs.
+	 */
+	private static final long FALLBACK_TTL = 5 * 60;
+
+	//~--- fields ---------------------------------------------------------------
+
+	private final Map<String, CacheItem> cache = Collections.synchronizedMap(
+			new LinkedHashMap<String, CacheItem>(1024, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CacheItem> eldest) {
+			return size() > MAX_CACHE_SIZE;
+		}
+	});
+	private final AtomicLong cacheHits = new AtomicLong();
+	private ThreadPoolExecutor executor = null;
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong lookups = new AtomicLong();
+	private volatile long negativeTtl = 60;
+	private final Map<String, List<ResultHandler>> pending = new HashMap<String,
+			List<ResultHandler>>();
+	private final SecureRandom random = new SecureRandom();
+	private volatile InetSocketAddress[] servers = null;
+	private volatile int timeout = 5000;
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Constructs ...
+	 *
+	 *
+	 * @param servers is a list of DNS servers in <code>host[:port]</code>
+	 * form, if <code>null</code> or empty servers from the system
+	 * configuration are used.
+	 * @param threads is the maximum number of concurrent lookups.
+	 * @param timeout is the time in milliseconds to wait for a DNS server
+	 * response.
+	 * @param negativeTtl is the time in seconds to cache failed lookups if the
+	 * answer does not provide its own negative TTL.
+	 */
+	public AsyncDNSResolver(String[] servers, int threads, int timeout, long negativeTtl) {
+		final AtomicInteger counter = new AtomicInteger();
+
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "dns-resolver-" + counter.incrementAndGet());
+
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+		configure(servers, threads, timeout, negativeTtl);
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Changes the resolver configuration. Lookups in progress complete with the
+	 * old settings, cached results are dropped.
+	 *
+	 *
+	 * @param servers is a list of DNS servers in <code>host[:port]</code>
+	 * form, if <code>null</code> or empty servers from the system
+	 * configuration are used.
+	 * @param threads is the maximum number of concurrent lookups.
+	 * @param timeout is the time in milliseconds to wait for a DNS server
+	 * response.
+	 * @param negativeTtl is the time in seconds to cache failed lookups if the
+	 * answer does not provide its own negative TTL.
+	 */
+	public void configure(String[] servers, int threads, int timeout, long negativeTtl) {
+		InetSocketAddress[] addresses = parseServers(((servers == null)
+				|| (servers.length == 0))
+				? readSystemServers()
+				: servers);
+
+		if (addresses.length == 0) {
+			log.log(Level.WARNING, "No DNS servers found, using blocking DNS lookups.");
+			addresses = null;
+		}
+
+		this.timeout = timeout;
+		this.negativeTtl = negativeTtl;
+		this.servers = addresses;
+
+		synchronized (executor) {
+
+			// The core size must never exceed the maximum size
+			if (threads > executor.getMaximumPoolSize()) {
+				executor.setMaximumPoolSize(threads);
+				executor.setCorePoolSize(threads);
+			} else {
+				executor.setCorePoolSize(threads);
+				executor.setMaximumPoolSize(threads);
+			}
+		}
+
+		cache.clear();
+	}
+
+	/**
+	 * Resolves addresses of the XMPP server for the domain. The handler is
+	 * called from the caller thread if the result is cached, otherwise from one
+	 * of the resolver threads when the lookup completes.
+	 *
+	 * @param domain is the domain to resolve.
+	 * @param handler receives the result.
+	 */
+	public void resolve(final String domain, ResultHandler handler) {
+		final String key = domain.toLowerCase();
+		CacheItem item = cache.get(key);
+
+		if ((item != null) && (item.expires > System.currentTimeMillis())) {
+			cacheHits.incrementAndGet();
+			item.deliver(domain, handler);
+
+			return;
+		}
+
+		synchronized (pending) {
+			List<ResultHandler> handlers = pending.get(key);
+
+			if (handlers != null) {
+				handlers.add(handler);
+
+				return;
+			}
+
+			handlers = new ArrayList<ResultHandler>(2);
+			handlers.add(handler);
+			pending.put(key, handlers);
+		}
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					CacheItem result = lookup(key);
+
+					cache.put(key, result);
+					deliver(domain, key, result);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			deliver(domain, key, new CacheItem(new UnknownHostException("DNS resolver stopped"),
+					0));
+		}
+	}
+
+	/**
+	 * Stops resolver threads, lookups in progress are not interrupted.
+	 *
+	 */
+	public void stop() {
+		executor.shutdown();
+	}
+
+	private void deliver(String domain, String key, CacheItem result) {
+		List<ResultHandler> handlers = null;
+
+		synchronized (pending) {
+			handlers = pending.remove(key);
+		}
+
+		if (handlers != null) {
+			for (ResultHandler handler : handlers) {
+				try {
+					result.deliver(domain, handler);
+				} catch (Exception e) {
+					log.log(Level.WARNING, "Exception processing DNS result for: " + domain, e);
+				}
+			}
+		}
+	}
+
+	private CacheItem lookup(String domain) {
+		lookups.incrementAndGet();
+
+		CacheItem result = null;
+		InetSocketAddress[] dns_servers = servers;
+
+		try {
+			result = (dns_servers == null)
+					? lookupBlocking(domain)
+					: lookupSRV(domain, dns_servers);
+		} catch (UnknownHostException e) {
+			result = new CacheItem(e, negativeTtl);
+		} catch (IOException e) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "DNS lookup problem for: {0}, {1}", new Object[] { domain,
+						e });
+			}
+
+			UnknownHostException ex = new UnknownHostException(domain + ": " + e.getMessage());
+
+			ex.initCause(e);
+			result = new CacheItem(ex, negativeTtl);
+		}
+
+		if (result.error != null) {
+			failures.incrementAndGet();
+		}
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "DNS lookup result for: {0}, {1}", new Object[] { domain,
+					result });
+		}
+
+		return result;
+	}
+
+	private CacheItem lookupBlocking(String domain) throws UnknownHostException {
+		DNSEntry[] dns_entries = DNSResolver.getHostSRV_Entries(domain);
+		Entry[] entries = new Entry[dns_entries.length];
+
+		for (int i = 0; i < dns_entries.length; i++) {
+			entries[i] = new Entry(domain, domain, dns_entries[i].getIp(),
+					dns_entries[i].getPort(), 0, 0);
+		}
+
+		return new CacheItem(entries, FALLBACK_TTL);
+	}
+
+	private CacheItem lookupSRV(String domain, InetSocketAddress[] dns_servers)
+			throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		long ttl = MAX_TTL;
+		Answer srv = query(SRV_PREFIX + domain, TYPE_SRV, dns_servers);
+		List<Record> srvs = srv.getAnswers(TYPE_SRV);
+
+		if ( !srvs.isEmpty()) {
+			Collections.sort(srvs, new Comparator<Record>() {
+				@Override
+				public int compare(Record r1, Record r2) {
+					return (r1.priority != r2.priority)
+							? r1.priority - r2.priority
+							: r2.weight - r1.weight;
+				}
+			});
+
+			for (Record rec : srvs) {
+				ttl = Math.min(ttl, rec.ttl);
+
+				// Target "." means the service is not available for the domain
+				if (rec.target.length() == 0) {
+					continue;
+				}
+
+				List<Record> addresses = srv.getAdditional(rec.target, TYPE_A);
+
+				if (addresses.isEmpty()) {
+					try {
+						addresses = query(rec.target, TYPE_A, dns_servers).getAnswers(TYPE_A);
+					} catch (IOException e) {
+						log.log(Level.FINE, "Can't resolve SRV target: {0}, {1}", new Object[] {
+								rec.target,
+								e });
+					}
+				}
+
+				for (Record address : addresses) {
+					ttl = Math.min(ttl, address.ttl);
+					entries.add(new Entry(domain, rec.target, address.address, rec.port,
+							rec.priority, rec.weight));
+				}
+			}
+
+			if (entries.isEmpty()) {
+				return new CacheItem(new UnknownHostException("No address for SRV targets of: "
+						+ domain), Math.min(ttl, negativeTtl));
+			}
+		} else {
+			Answer a = query(domain, TYPE_A, dns_servers);
+
+			for (Record address : a.getAnswers(TYPE_A)) {
+				ttl = Math.min(ttl, address.ttl);
+				entries.add(new Entry(domain, domain, address.address, DEF_XMPP_SERVER_PORT, 0, 0));
+			}
+
+			if (entries.isEmpty()) {
+				return new CacheItem(new UnknownHostException(domain), (a.negativeTtl >= 0)
+						? a.negativeTtl
+						: negativeTtl);
+			}
+		}
+
+		return new CacheItem(entries.toArray(new Entry[entries.size()]), ttl);
+	}
+
+	private InetSocketAddress[] parseServers(String[] servers) {
+		List<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+
+		for (String server : servers) {
+			server = server.trim();
+
+			if (server.isEmpty()) {
+				continue;
+			}
+
+			int idx = server.lastIndexOf(':');
+
+			// IPv6 addresses without port contain ':' too
+			if ((idx > 0) && (server.indexOf(':') == idx)) {
+				result.add(new InetSocketAddress(server.substring(0, idx),
+						Integer.parseInt(server.substring(idx + 1))));
+			} else {
+				result.add(new InetSocketAddress(server, DNS_PORT));
+			}
+		}
+
+		return result.toArray(new InetSocketAddress[result.size()]);
+	}
+
+	private DatagramSocket openSocket() throws SocketException {
+
+		// A random source port makes spoofing responses harder, the port may be
+		// taken already, then another one is tried
+		for (int i = 0; i < SOURCE_PORT_TRIES; i++) {
+			try {
+				return new DatagramSocket(MIN_SOURCE_PORT
+						+ random.nextInt(0x10000 - MIN_SOURCE_PORT));
+			} catch (SocketException e) {}
+		}
+
+		return new DatagramSocket();
+	}
+
+	private Answer query(String name, int type, InetSocketAddress[] dns_servers)
+			throws IOException {
+		byte[] query = createQuery(name, type);
+		int id = ((query[0] & 0xFF) << 8) | (query[1] & 0xFF);
+		DatagramSocket socket = openSocket();
+		byte[] buffer = new byte[4096];
+		IOException error = null;
+
+		try {
+			socket.setSoTimeout(timeout);
+
+			for (int i = 0; i < RETRIES; i++) {
+				for (InetSocketAddress server : dns_servers) {
+					try {
+						socket.send(new DatagramPacket(query, query.length, server));
+
+						while (true) {
+							DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+
+							socket.receive(response);
+
+							// Ignore responses from other hosts and to other or older queries
+							if ( !server.equals(response.getSocketAddress())
+									|| (response.getLength() < 12)
+									|| (((buffer[0] & 0xFF) << 8) | (buffer[1] & 0xFF)) != id) {
+								continue;
+							}
+
+							if ((((buffer[2] & 0xFF) << 8) & FLAG_TC) != 0) {
+								return queryTCP(query, id, server);
+							}
+
+							return new Answer(buffer, response.getLength());
+						}
+					} catch (SocketTimeoutException e) {
+						error = e;
+					} catch (IOException e) {
+						error = e;
+					}
+				}
+			}
+		} finally {
+			socket.close();
+		}
+
+		throw (error != null) ? error : new IOException("No DNS server to query");
+	}
+
+	private Answer queryTCP(byte[] query, int id, InetSocketAddress server)
+			throws IOException {
+		Socket socket = new Socket();
+
+		try {
+			socket.connect(server, timeout);
+			socket.setSoTimeout(timeout);
+
+			OutputStream out = socket.getOutputStream();
+			byte[] request = new byte[query.length + 2];
+
+			// Messages over TCP are prefixed with the two bytes long length
+			request[0] = (byte) (query.length >> 8);
+			request[1] = (byte) query.length;
+			System.arraycopy(query, 0, request, 2, query.length);
+			out.write(request);
+			out.flush();
+
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			int length = in.readUnsignedShort();
+			byte[] buffer = new byte[length];
+
+			in.readFully(buffer);
+
+			if ((length < 12) || (((buffer[0] & 0xFF) << 8) | (buffer[1] & 0xFF)) != id) {
+				throw new IOException("Incorrect DNS response over TCP from: " + server);
+			}
+
+			return new Answer(buffer, length);
+		} finally {
+			socket.close();
+		}
+	}
+
+	private String[] readSystemServers() {
+		List<String> result = new ArrayList<String>();
+		BufferedReader reader = null;
+
+		try {
+			reader = new BufferedReader(new FileReader(RESOLV_CONF));
+
+			String line = null;
+
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.trim().split("\\s+");
+
+				if ((parts.length > 1) && parts[0].equals("nameserver")) {
+					result.add(parts[1]);
+				}
+			}
+		} catch (IOException e) {
+			log.log(Level.CONFIG, "Can't read DNS servers from: {0}", RESOLV_CONF);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {}
+			}
+		}
+
+		return result.toArray(new String[result.size()]);
+	}
+
+	private byte[] createQuery(String name, int type) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+		int id = random.nextInt(0x10000);
+
+		// Header: id, recursion desired, one question
+		out.write(id >> 8);
+		out.write(id);
+		out.write(0x01);
+		out.write(0x00);
+		out.write(0);
+		out.write(1);
+
+		for (int i = 0; i < 6; i++) {
+			out.write(0);
+		}
+
+		for (String label : IDN.toASCII(name).split("\\.")) {
+			if (label.length() == 0) {
+				continue;
+			}
+
+			if (label.length() > 63) {
+				throw new UnknownHostException("Incorrect domain name: " + name);
+			}
+
+			out.write(label.length());
+			out.write(label.getBytes("US-ASCII"));
+		}
+
+		out.write(0);
+		out.write(type >> 8);
+		out.write(type);
+		out.write(CLASS_IN >> 8);
+		out.write(CLASS_IN);
+
+		return out.toByteArray();
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		int pendingSize = 0;
+
+		synchronized (pending) {
+			pendingSize = pending.size();
+		}
+
+		list.add(compName, "DNS lookups", lookups.get(), Level.FINE);
+		list.add(compName, "DNS cache hits", cacheHits.get(), Level.FINE);
+		list.add(compName, "DNS failures", failures.get(), Level.FINE);
+		list.add(compName, "DNS cache size", cache.size(), Level.FINE);
+		list.add(compName, "DNS pending lookups", pendingSize, Level.FINE);
+	}
+
+	//~--- inner interfaces -----------------------------------------------------
+
+	/**
+	 * Receives results of asynchronous lookups.
+	 */
+	public static interface ResultHandler {
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @param domain
+		 * @param error
+		 */
+		void failed(String domain, UnknownHostException error);
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @param domain
+		 * @param entries are addresses of the domain XMPP servers ordered by SRV
+		 * priority, never empty.
+		 */
+		void resolved(String domain, Entry[] entries);
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	/**
+	 * Address of an XMPP server for a domain.
+	 */
+	public static class Entry {
+		private String hostname = null;
+		private String ip = null;
+		private int port = DEF_XMPP_SERVER_PORT;
+		private int priority = 0;
+		private String target = null;
+		private int weight = 0;
+
+		//~--- constructors -------------------------------------------------------
+
+		/**
+		 * Constructs ...
+		 *
+		 *
+		 * @param hostname
+		 * @param target
+		 * @param ip
+		 * @param port
+		 * @param priority
+		 * @param weight
+		 */
+		public Entry(String hostname, String target, String ip, int port, int priority,
+				int weight) {
+			this.hostname = hostname;
+			this.target = target;
+			this.ip = ip;
+			this.port = port;
+			this.priority = priority;
+			this.weight = weight;
+		}
+
+		//~--- get methods --------------------------------------------------------
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		public String getHostname() {
+			return hostname;
+		}
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		public String getIp() {
+			return ip;
+		}
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		public int getPort() {
+			return port;
+		}
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		public int getPriority() {
+			return priority;
+		}
+
+		/**
+		 * Returns the host name of the SRV target.
+		 *
+		 * @return
+		 */
+		public String getTarget() {
+			return target;
+		}
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		public int getWeight() {
+			return weight;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		@Override
+		public String toString() {
+			return hostname + " -> " + target + "[" + ip + ":" + port + "]";
+		}
+	}
+
+
+	private static class Answer {
+		private List<Record> additional = new ArrayList<Record>();
+		private List<Record> answers = new ArrayList<Record>();
+		private byte[] buf = null;
+		private long negativeTtl = -1;
+		private int pos = 0;
+		private int rcode = 0;
+
+		//~--- constructors -------------------------------------------------------
+
+		private Answer(byte[] data, int length) throws IOException {
+			buf = new byte[length];
+			System.arraycopy(data, 0, buf, 0, length);
+			pos = 2;
+
+			int flags = readShort();
+
+			rcode = flags & 0x0F;
+
+			int qdcount = readShort();
+			int ancount = readShort();
+			int nscount = readShort();
+			int arcount = readShort();
+
+			if ((rcode != 0) && (rcode != RCODE_NXDOMAIN)) {
+				throw new IOException("DNS server error, rcode: " + rcode);
+			}
+
+			for (int i = 0; i < qdcount; i++) {
+				readName();
+				pos += 4;
+			}
+
+			for (int i = 0; i < ancount; i++) {
+				answers.add(readRecord());
+			}
+
+			for (int i = 0; i < nscount; i++) {
+				Record rec = readRecord();
+
+				// RFC 2308: negative answers are cached for the SOA minimum
+				if (rec.type == TYPE_SOA) {
+					negativeTtl = Math.min(rec.ttl, rec.minimum);
+				}
+			}
+
+			for (int i = 0; i < arcount; i++) {
+				additional.add(readRecord());
+			}
+
+			buf = null;
+		}
+
+		//~--- get methods --------------------------------------------------------
+
+		private List<Record> getAdditional(String name, int type) {
+			List<Record> result = new ArrayList<Record>();
+
+			for (Record rec : additional) {
+				if ((rec.type == type) && rec.name.equalsIgnoreCase(name)) {
+					result.add(rec);
+				}
+			}
+
+			return result;
+		}
+
+		private List<Record> getAnswers(int type) {
+			List<Record> result = new ArrayList<Record>();
+
+			for (Record rec : answers) {
+				if (rec.type == type) {
+					result.add(rec);
+				}
+			}
+
+			return result;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		private void check(int bytes) throws IOException {
+			if (pos + bytes > buf.length) {
+				throw new IOException("Malformed DNS response");
+			}
+		}
+
+		private String readName() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int p = pos;
+			int jumps = 0;
+			boolean jumped = false;
+
+			while (true) {
+				if (p >= buf.length) {
+					throw new IOException("Malformed DNS response");
+				}
+
+				int len = buf[p] & 0xFF;
+
+				if ((len & 0xC0) == 0xC0) {
+
+					// Compression pointer
+					if ((p + 1 >= buf.length) || (++jumps > 64)) {
+						throw new IOException("Malformed DNS response");
+					}
+
+					if ( !jumped) {
+						pos = p + 2;
+						jumped = true;
+					}
+
+					p = ((len & 0x3F) << 8) | (buf[p + 1] & 0xFF);
+				} else if (len == 0) {
+					if ( !jumped) {
+						pos = p + 1;
+					}
+
+					break;
+				} else {
+					if (p + 1 + len > buf.length) {
+						throw new IOException("Malformed DNS response");
+					}
+
+					if (sb.length() > 0) {
+						sb.append('.');
+					}
+
+					sb.append(new String(buf, p + 1, len, "US-ASCII"));
+					p += len + 1;
+				}
+			}
+
+			return sb.toString();
+		}
+
+		private long readInt() throws IOException {
+			check(4);
+
+			long result = ((long) (buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16)
+					| ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+
+			pos += 4;
+
+			return result;
+		}
+
+		private Record readRecord() throws IOException {
+			Record rec = new Record();
+
+			rec.name = readName();
+			rec.type = readShort();
+			readShort();
+			rec.ttl = Math.max(MIN_TTL, Math.min(MAX_TTL, readInt()));
+
+			int rdlength = readShort();
+
+			check(rdlength);
+
+			int end = pos + rdlength;
+
+			switch (rec.type) {
+				case TYPE_A :
+					if (rdlength == 4) {
+						rec.address = (buf[pos] & 0xFF) + "." + (buf[pos + 1] & 0xFF) + "."
+								+ (buf[pos + 2] & 0xFF) + "." + (buf[pos + 3] & 0xFF);
+					}
+
+					break;
+
+				case TYPE_SRV :
+					rec.priority = readShort();
+					rec.weight = readShort();
+					rec.port = readShort();
+					rec.target = readName();
+
+					break;
+
+				case TYPE_SOA :
+					readName();
+					readName();
+					pos += 16;
+					rec.minimum = readInt();
+
+					break;
+
+				default :
+			}
+
+			pos = end;
+
+			return rec;
+		}
+
+		private int readShort() throws IOException {
+			check(2);
+
+			int result = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+
+			pos += 2;
+
+			return result;
+		}
+	}
+
+
+	private static class CacheItem {
+		private Entry[] entries = null;
+		private UnknownHostException error = null;
+		private long expires = 0;
+
+		//~--- constructors -------------------------------------------------------
+
+		private CacheItem(Entry[] entries, long ttl) {
+			this.entries = entries;
+			this.expires = System.currentTimeMillis() + ttl * 1000;
+		}
+
+		private CacheItem(UnknownHostException error, long ttl) {
+			this.error = error;
+			this.expires = System.currentTimeMillis() + ttl * 1000;
+		}
+
+		//~--- methods ------------------------------------------------------------
+
+		private void deliver(String domain, ResultHandler handler) {
+			if (error != null) {
+				handler.failed(domain, error);
+			} else {
+				handler.resolved(domain, entries);
+			}
+		}
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		@Override
+		public String toString() {
+			return (error != null) ? error.toString() : java.util.Arrays.toString(entries);
+		}
+	}
+
+
+	private static class Record {
+		private String address = null;
+		private long minimum = 0;
+		private String name = null;
+		private int port = 0;
+		private int priority = 0;
+		private String target = null;
+		private long ttl = 0;
+		private int type = 0;
+		private int weight = 0;
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
@@ -0,0 +1,159 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.util;
+
+import java.util.Arrays;
+
+/**
+ * Thread safe map for a few entries, like data of a single user session. Keys
+ * and values are kept in a single array, readers do not take any locks and
+ * writers copy the array when a key is added or removed. Compared to a
+ * <code>ConcurrentHashMap</code> it creates 2 objects instead of several
+ * segments with their locks and tables, which matters when there are millions
+ * of sessions. Lookups are linear so the map should not be used for more than
+ * a few tens of entries. Neither keys nor values may be <code>null</code>.
+ *
+ * @param <K>
+ * @param <V>
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class CompactMap<K, V> {
+
+	private static final Object[] EMPTY = new Object[0];
+
+	// Keys at even and values at odd indexes
+	private volatile Object[] entries = EMPTY;
+
+	public void clear() {
+		synchronized (this) {
+			entries = EMPTY;
+		}
+	}
+
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		Object[] arr = entries;
+
+		for (int i = 0; i < arr.length; i += 2) {
+			if ((arr[i] == key) || arr[i].equals(key)) {
+				return (V) arr[i + 1];
+			}
+		}
+
+		return null;
+	}
+
+	public boolean isEmpty() {
+		return entries.length == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V put(K key, V value) {
+		if ((key == null) || (value == null)) {
+			throw new NullPointerException();
+		}
+
+		synchronized (this) {
+			Object[] arr = entries;
+			int idx = indexOf(arr, key);
+
+			if (idx >= 0) {
+				V old = (V) arr[idx + 1];
+
+				arr[idx + 1] = value;
+
+				// Publishes the new value to readers
+				entries = arr;
+
+				return old;
+			}
+
+			arr = Arrays.copyOf(arr, arr.length + 2);
+			arr[arr.length - 2] = key;
+			arr[arr.length - 1] = value;
+			entries = arr;
+
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(Object key) {
+		synchronized (this) {
+			Object[] arr = entries;
+			int idx = indexOf(arr, key);
+
+			if (idx < 0) {
+				return null;
+			}
+
+			V old = (V) arr[idx + 1];
+			Object[] result = EMPTY;
+
+			if (arr.length > 2) {
+				result = new Object[arr.length - 2];
+				System.arraycopy(arr, 0, result, 0, idx);
+				System.arraycopy(arr, idx + 2, result, idx, arr.length - idx - 2);
+			}
+
+			entries = result;
+
+			return old;
+		}
+	}
+
+	public int size() {
+		return entries.length / 2;
+	}
+
+	@Override
+	public String toString() {
+		Object[] arr = entries;
+		StringBuilder sb = new StringBuilder("{");
+
+		for (int i = 0; i < arr.length; i += 2) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+
+			sb.append(arr[i]).append('=').append(arr[i + 1]);
+		}
+
+		return sb.append('}').toString();
+	}
+
+	private int indexOf(Object[] arr, Object key) {
+		for (int i = 0; i < arr.length; i += 2) {
+			if ((arr[i] == key) || arr[i].equals(key)) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+}
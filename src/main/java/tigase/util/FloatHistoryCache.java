@@ -22,7 +22,13 @@
 
 package tigase.util;
 
+import java.util.Arrays;
+
 /**
+ * Ring buffer of float values. There must be a single thread adding items,
+ * readers do not take any locks and skip items which could have been
+ * overwritten while they were copied.
+ *
  * Created: Sep 8, 2009 7:32:09 PM
  *
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
@@ -31,31 +37,34 @@ package tigase.util;
 public class FloatHistoryCache {
 
 	private float[] buffer = null;
-	private int start = 0;
-	private int count = 0;
+	private int limit = 0;
+
+	// Number of items added so far, written by the single writer thread only
+	private volatile long written = 0;
 
 	public FloatHistoryCache(int limit) {
-		buffer = new float[limit];
+		this.limit = limit;
+
+		// One spare slot for the item being written while readers copy the rest
+		buffer = new float[limit + 1];
 	}
 
-	public synchronized void addItem(float item) {
-		int ix = (start + count) % buffer.length;
-		buffer[ix] = item;
-		if (count < buffer.length) {
-			count++;
-		} else {
-			start++;
-			start %= buffer.length;
-		}
+	public void addItem(float item) {
+		buffer[(int) (written % buffer.length)] = item;
+		written = written + 1;
 	}
 
-	public synchronized float[] getCurrentHistory() {
+	public float[] getCurrentHistory() {
+		long end = written;
+		int count = (int) Math.min(end, limit);
 		float[] result = new float[count];
 		for (int i = 0; i < count; i++) {
-			int ix = (start + i) % buffer.length;
-			result[i] = buffer[ix];
+			result[i] = buffer[(int) ((end - count + i) % buffer.length)];
 		}
-		return result;
+
+		// Items overwritten by the writer in the meantime are dropped
+		int stale = (int) Math.max(0, Math.min(count, written - end + count - limit));
+		return (stale == 0) ? result : Arrays.copyOfRange(result, stale, count);
 	}
 
 }
@@ -22,7 +22,13 @@
 
 package tigase.util;
 
+import java.util.Arrays;
+
 /**
+ * Ring buffer of int values. There must be a single thread adding items,
+ * readers do not take any locks and skip items which could have been
+ * overwritten while they were copied.
+ *
  * Created: Sep 8, 2009 7:39:27 PM
  *
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
@@ -31,31 +37,34 @@ package tigase.util;
 public class IntHistoryCache {
 
 	private int[] buffer = null;
-	private int start = 0;
-	private int count = 0;
+	private int limit = 0;
+
+	// Number of items added so far, written by the single writer thread only
+	private volatile long written = 0;
 
 	public IntHistoryCache(int limit) {
-		buffer = new int[limit];
+		this.limit = limit;
+
+		// One spare slot for the item being written while readers copy the rest
+		buffer = new int[limit + 1];
 	}
 
-	public synchronized void addItem(int item) {
-		int ix = (start + count) % buffer.length;
-		buffer[ix] = item;
-		if (count < buffer.length) {
-			count++;
-		} else {
-			start++;
-			start %= buffer.length;
-		}
+	public void addItem(int item) {
+		buffer[(int) (written % buffer.length)] = item;
+		written = written + 1;
 	}
 
-	public synchronized int[] getCurrentHistory() {
+	public int[] getCurrentHistory() {
+		long end = written;
+		int count = (int) Math.min(end, limit);
 		int[] result = new int[count];
 		for (int i = 0; i < count; i++) {
-			int ix = (start + i) % buffer.length;
-			result[i] = buffer[ix];
+			result[i] = buffer[(int) ((end - count + i) % buffer.length)];
 		}
-		return result;
+
+		// Items overwritten by the writer in the meantime are dropped
+		int stale = (int) Math.max(0, Math.min(count, written - end + count - limit));
+		return (stale == 0) ? result : Arrays.copyOfRange(result, stale, count);
 	}
 
 }
@@ -123,13 +123,13 @@ public class ProcessingThreads<E extends WorkerThread> {
 	public boolean addItem(XMPPProcessorIfc processor, Packet packet, XMPPResourceConnection conn) {
 		boolean ret = false;
 		QueueItem item = new QueueItem(processor, packet, conn);
+		Object key = null;
 
 		try {
 			if ((item.getConn() != null) && item.getConn().isAuthorized()) {
 
 				// Queueing packets per user...
-				ret = workerThreads.get(Math.abs(conn.getJID().getBareJID().hashCode())
-						% numWorkerThreads).offer(item);
+				key = conn.getJID().getBareJID();
 
 //      ret = queues.get(Math.abs(conn.getJID().getBareJID().hashCode()
 //          % numQueues)).offer(item, packet.getPriority().ordinal());
@@ -137,20 +137,18 @@ public class ProcessingThreads<E extends WorkerThread> {
 				if (packet.getPacketFrom() != null) {
 
 					// Queueing packets per user's connection...
-					ret = workerThreads.get(Math.abs(packet.getPacketFrom().hashCode())
-							% numWorkerThreads).offer(item);
+					key = packet.getPacketFrom();
 				} else {
 
 					// Otherwise per destination address
 					// If the packet elemTo is set then used it, otherwise just packetTo:
 					if (packet.getStanzaTo() != null) {
-						ret = workerThreads.get(Math.abs(packet.getStanzaTo().getBareJID().hashCode())
-								% numWorkerThreads).offer(item);
+						key = packet.getStanzaTo().getBareJID();
 
 //          ret = queues.get(Math.abs(packet.getStanzaTo().hashCode() % numQueues)).offer(item,
 //              packet.getPriority().ordinal());
 					} else {
-						ret = workerThreads.get(Math.abs(packet.getTo().hashCode())).offer(item);
+						key = packet.getTo();
 
 //          ret = queues.get(Math.abs(packet.getTo().hashCode() % numQueues)).offer(item,
 //              packet.getPriority().ordinal());
@@ -164,15 +162,19 @@ public class ProcessingThreads<E extends WorkerThread> {
 			// Otherwise per destination address
 			// If the packet elemTo is set then used it, otherwise just packetTo:
 			if (packet.getStanzaTo() != null) {
-				ret = workerThreads.get(Math.abs(packet.getStanzaTo().getBareJID().hashCode())
-						% numWorkerThreads).offer(item);
+				key = packet.getStanzaTo().getBareJID();
 			} else {
-				ret = workerThreads.get(Math.abs(packet.getTo().hashCode()) % numWorkerThreads).offer(item);
+				key = packet.getTo();
 			}
 
 			// ret = nullQueue.offer(item, packet.getPriority().ordinal());
 		}
 
+		// The key is also used to keep the order of the user's packets while
+		// processing of one of them is suspended
+		item.setOrderKey(key);
+		ret = workerThreads.get(Math.abs(key.hashCode() % numWorkerThreads)).offer(item);
+
 		if ( !ret) {
 			++droppedPackets;
 
@@ -26,6 +26,7 @@ package tigase.util;
 
 import tigase.server.Packet;
 
+import tigase.xmpp.ResumeHandlerIfc;
 import tigase.xmpp.XMPPProcessorIfc;
 import tigase.xmpp.XMPPResourceConnection;
 
@@ -39,8 +40,11 @@ import tigase.xmpp.XMPPResourceConnection;
  */
 public class QueueItem {
 	private XMPPResourceConnection conn;
+	private Object orderKey = null;
 	private Packet packet;
 	private XMPPProcessorIfc processor;
+	private boolean resumed = false;
+	private ResumeHandlerIfc resumeHandler = null;
 
 	//~--- constructors ---------------------------------------------------------
 
@@ -66,6 +70,21 @@ public class QueueItem {
 		this.conn = conn;
 	}
 
+	/**
+	 * Creates an item resuming processing of a suspended item.
+	 *
+	 *
+	 * @param suspended is the suspended item.
+	 * @param resumeHandler completes processing of the item, <code>null</code>
+	 * if the item is to be processed by its processor again.
+	 */
+	public QueueItem(QueueItem suspended, ResumeHandlerIfc resumeHandler) {
+		this(suspended.processor, suspended.packet, suspended.conn);
+		this.orderKey = suspended.orderKey;
+		this.resumed = true;
+		this.resumeHandler = resumeHandler;
+	}
+
 	//~--- get methods ----------------------------------------------------------
 
 	/**
@@ -91,6 +110,49 @@ public class QueueItem {
 	public XMPPProcessorIfc getProcessor() {
 		return processor;
 	}
+
+	/**
+	 * Returns the key of the queue the item was added to, items with the same key
+	 * are processed in order.
+	 *
+	 *
+	 * @return
+	 */
+	public Object getOrderKey() {
+		return orderKey;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public ResumeHandlerIfc getResumeHandler() {
+		return resumeHandler;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	//~--- set methods ----------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param orderKey
+	 */
+	public void setOrderKey(Object orderKey) {
+		this.orderKey = orderKey;
+	}
 }
 
 
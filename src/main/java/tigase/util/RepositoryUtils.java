@@ -26,7 +26,9 @@ package tigase.util;
 
 import tigase.db.RepositoryFactory;
 import tigase.db.AuthRepository;
+import tigase.db.BulkUserRepositoryIfc;
 import tigase.db.UserExistsException;
+import tigase.db.UserNotFoundException;
 import tigase.db.UserRepository;
 
 import tigase.xmpp.BareJID;
@@ -36,11 +38,26 @@ import tigase.xmpp.impl.roster.RosterAbstract;
 //~--- JDK imports ------------------------------------------------------------
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 //~--- classes ----------------------------------------------------------------
 
@@ -81,6 +98,13 @@ public class RepositoryUtils {
 	private static String value = null;
 	private static String import_file = null;
 	private static String export_file = null;
+	private static boolean dump_data = false;
+	private static boolean load_data = false;
+	private static String dump_file = null;
+	private static String load_file = null;
+	private static int threads = Runtime.getRuntime().availableProcessors();
+	private static int batch_size = 1000;
+	private static boolean resume = false;
 
 	//~--- methods --------------------------------------------------------------
 
@@ -280,6 +304,81 @@ public class RepositoryUtils {
 		}
 	}
 
+	/**
+	 * Exports all user accounts with all their data to the file. Users are read
+	 * in pages of <code>batch</code> accounts and data of the users in a page is
+	 * loaded by <code>threads</code> parallel threads, the records are written
+	 * in the page order. After each page the cursor and the file length are
+	 * saved to the <code>file.cursor</code> file, so an interrupted export can be
+	 * resumed.
+	 * <p/>
+	 * Each user starts with the <code>U jid password</code> line followed by one
+	 * <code>D node key value</code> line per stored value, fields are separated
+	 * by tabs, the root node is an empty string. Backslash, tab and line breaks
+	 * are escaped. The password is written as stored in the repository, possibly
+	 * encoded, and is left out for accounts without a password. The dump file
+	 * contains credentials and must be protected accordingly.
+	 *
+	 *
+	 * @param repo
+	 * @param file
+	 * @param threads
+	 * @param batch
+	 * @param resume continues the export from the saved cursor, records written
+	 * after it was saved are cut off the file first.
+	 *
+	 * @throws Exception
+	 */
+	public static void dumpRepository(final BulkUserRepositoryIfc repo, String file,
+			int threads, int batch, boolean resume)
+			throws Exception {
+		File progress = new File(file + ".cursor");
+		long[] state = resume ? readProgress(progress, 2) : new long[] { 0, 0 };
+		long cursor = state[0];
+		FileOutputStream out = new FileOutputStream(file, resume);
+
+		// Drop the records of a page which was not completed before interruption
+		if (resume && (state[1] >= 0) && (state[1] < out.getChannel().size())) {
+			out.getChannel().truncate(state[1]);
+		}
+
+		Writer w = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Map<BareJID, String> users = new LinkedHashMap<BareJID, String>(batch);
+		long exported = 0;
+
+		try {
+			while (cursor >= 0) {
+				users.clear();
+
+				long next = repo.getUsers(cursor, batch, users);
+				List<Future<String>> records = new ArrayList<Future<String>>(users.size());
+
+				for (final Map.Entry<BareJID, String> usr : users.entrySet()) {
+					records.add(executor.submit(new Callable<String>() {
+						@Override
+						public String call() throws Exception {
+							return dumpUser(usr.getKey(), usr.getValue(), repo);
+						}
+					}));
+				}
+
+				for (Future<String> record : records) {
+					w.write(getResult(record));
+				}
+
+				w.flush();
+				cursor = next;
+				writeProgress(progress, cursor, out.getChannel().size());
+				exported += users.size();
+				System.out.println("Exported users: " + exported);
+			}
+		} finally {
+			executor.shutdown();
+			w.close();
+		}
+	}
+
 	/**
 	 * Method description
 	 *
@@ -382,6 +481,107 @@ public class RepositoryUtils {
 		}
 	}
 
+	/**
+	 * Imports user accounts with their passwords and data from a file created by
+	 * <code>dumpRepository()</code>. Accounts of each batch are added in one
+	 * transaction and their data is stored by <code>threads</code> parallel
+	 * threads. After each batch the number of processed users is saved to the
+	 * <code>file.progress</code> file, an interrupted import skips that many
+	 * users when resumed. Importing a batch again is harmless, existing accounts
+	 * are skipped and stored values are replaced.
+	 *
+	 *
+	 * @param repo
+	 * @param file
+	 * @param threads
+	 * @param batch
+	 * @param resume
+	 *
+	 * @throws Exception
+	 */
+	public static void loadRepository(final BulkUserRepositoryIfc repo, String file,
+			int threads, int batch, boolean resume)
+			throws Exception {
+		File progress = new File(file + ".progress");
+		long skip = resume ? readProgress(progress) : 0;
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+				"UTF-8"));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Map<BareJID, Map<String, Map<String, List<String>>>> users =
+				new LinkedHashMap<BareJID, Map<String, Map<String, List<String>>>>();
+		Map<BareJID, String> passwords = new LinkedHashMap<BareJID, String>();
+		Map<String, Map<String, List<String>>> user_data = null;
+		long processed = 0;
+		String line = null;
+
+		try {
+			while ((line = br.readLine()) != null) {
+				if (line.startsWith("U\t")) {
+					if (users.size() >= batch) {
+						loadBatch(users, passwords, repo, executor);
+						processed += users.size();
+						writeProgress(progress, processed);
+						users.clear();
+						passwords.clear();
+						System.out.println("Imported users: " + processed);
+					}
+
+					user_data = null;
+
+					if (processed + users.size() < skip) {
+						++processed;
+					} else {
+						String[] fields = line.split("\t", -1);
+
+						if ((fields.length < 2) || (fields.length > 3)) {
+							throw new IllegalArgumentException("Incorrect user line: " + line);
+						}
+
+						BareJID user = BareJID.bareJIDInstance(unescape(fields[1]));
+
+						user_data = new HashMap<String, Map<String, List<String>>>();
+						users.put(user, user_data);
+						passwords.put(user, (fields.length == 3) ? unescape(fields[2]) : null);
+					}
+				} else if (line.startsWith("D\t") && (user_data != null)) {
+					String[] fields = line.split("\t", -1);
+
+					if (fields.length != 4) {
+						throw new IllegalArgumentException("Incorrect data line: " + line);
+					}
+
+					String subnode = unescape(fields[1]);
+					Map<String, List<String>> node_data = user_data.get(subnode);
+
+					if (node_data == null) {
+						node_data = new HashMap<String, List<String>>();
+						user_data.put(subnode, node_data);
+					}
+
+					String key = unescape(fields[2]);
+					List<String> values = node_data.get(key);
+
+					if (values == null) {
+						values = new ArrayList<String>(1);
+						node_data.put(key, values);
+					}
+
+					values.add(unescape(fields[3]));
+				}
+			}
+
+			if (users.size() > 0) {
+				loadBatch(users, passwords, repo, executor);
+				processed += users.size();
+				writeProgress(progress, processed);
+				System.out.println("Imported users: " + processed);
+			}
+		} finally {
+			executor.shutdown();
+			br.close();
+		}
+	}
+
 	/**
 	 * Method description
 	 *
@@ -605,6 +805,23 @@ public class RepositoryUtils {
 			fr.close();
 		}
 
+		if ((dump_data || load_data) && (src_repo != null)) {
+			if (src_repo instanceof BulkUserRepositoryIfc) {
+				if (dump_data) {
+					dumpRepository((BulkUserRepositoryIfc) src_repo, dump_file, threads, batch_size,
+							resume);
+				}
+
+				if (load_data) {
+					loadRepository((BulkUserRepositoryIfc) src_repo, load_file, threads, batch_size,
+							resume);
+				}
+			} else {
+				System.out.println("Repository " + src_repo.getClass().getName()
+						+ " does not support bulk operations.");
+			}
+		}
+
 		if (print_repo && (src_repo != null)) {
 			System.out.println("Printing repository:");
 
@@ -718,6 +935,28 @@ public class RepositoryUtils {
 					export_file = args[++i];
 				}    // end of if (args[i].equals("-h"))
 
+				if (args[i].equals("-dump")) {
+					dump_data = true;
+					dump_file = args[++i];
+				}
+
+				if (args[i].equals("-load")) {
+					load_data = true;
+					load_file = args[++i];
+				}
+
+				if (args[i].equals("-threads")) {
+					threads = Integer.parseInt(args[++i]);
+				}
+
+				if (args[i].equals("-batch")) {
+					batch_size = Integer.parseInt(args[++i]);
+				}
+
+				if (args[i].equals("-resume")) {
+					resume = true;
+				}
+
 				if (args[i].equals("-aeg")) {
 					allowed_empty_groups = args[++i].equals("true");
 				}    // end of if (args[i].equals("-h"))
@@ -919,6 +1158,218 @@ public class RepositoryUtils {
 		printRepoContent(re);
 	}
 
+	private static String dumpUser(BareJID user, String password,
+			BulkUserRepositoryIfc repo)
+			throws Exception {
+		Map<String, Map<String, String[]>> data = null;
+
+		try {
+			data = repo.getAllData(user, null);
+		} catch (UserNotFoundException e) {
+
+			// Removed after the page has been loaded
+			return "";
+		}
+
+		StringBuilder sb = new StringBuilder(256);
+
+		sb.append("U\t").append(escape(user.toString()));
+
+		if (password != null) {
+			sb.append('\t').append(escape(password));
+		}
+
+		sb.append('\n');
+
+		if (data != null) {
+			for (Map.Entry<String, Map<String, String[]>> node : data.entrySet()) {
+				for (Map.Entry<String, String[]> pair : node.getValue().entrySet()) {
+					for (String val : pair.getValue()) {
+						sb.append("D\t").append(escape(node.getKey())).append('\t');
+						sb.append(escape(pair.getKey())).append('\t');
+						sb.append(escape(val)).append('\n');
+					}
+				}
+			}
+		}
+
+		return sb.toString();
+	}
+
+	private static String escape(String str) {
+		StringBuilder sb = new StringBuilder(str.length());
+
+		for (int i = 0; i < str.length(); i++) {
+			char ch = str.charAt(i);
+
+			switch (ch) {
+				case '\\' :
+					sb.append("\\\\");
+
+					break;
+
+				case '\t' :
+					sb.append("\\t");
+
+					break;
+
+				case '\n' :
+					sb.append("\\n");
+
+					break;
+
+				case '\r' :
+					sb.append("\\r");
+
+					break;
+
+				default :
+					sb.append(ch);
+			}
+		}
+
+		return sb.toString();
+	}
+
+	private static <T> T getResult(Future<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+
+			throw e;
+		}
+	}
+
+	private static void loadBatch(Map<BareJID, Map<String, Map<String, List<String>>>> users,
+			Map<BareJID, String> passwords, final BulkUserRepositoryIfc repo,
+			ExecutorService executor)
+			throws Exception {
+		repo.addUsers(passwords);
+
+		List<Future<Object>> results = new ArrayList<Future<Object>>(users.size());
+
+		for (Map.Entry<BareJID, Map<String, Map<String, List<String>>>> entry :
+				users.entrySet()) {
+			if (entry.getValue().isEmpty()) {
+				continue;
+			}
+
+			final BareJID user = entry.getKey();
+			final Map<String, Map<String, String[]>> data = new HashMap<String, Map<String,
+				String[]>>();
+
+			for (Map.Entry<String, Map<String, List<String>>> node : entry.getValue().entrySet()) {
+				Map<String, String[]> node_data = new HashMap<String, String[]>();
+
+				for (Map.Entry<String, List<String>> pair : node.getValue().entrySet()) {
+					node_data.put(pair.getKey(), pair.getValue().toArray(new String[pair.getValue()
+							.size()]));
+				}
+
+				data.put(node.getKey(), node_data);
+			}
+
+			results.add(executor.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					repo.setDataBulk(user, data);
+
+					return null;
+				}
+			}));
+		}
+
+		for (Future<Object> result : results) {
+			getResult(result);
+		}
+	}
+
+	private static long readProgress(File progress) throws Exception {
+		return readProgress(progress, 1)[0];
+	}
+
+	// The first value defaults to 0, values missing in the file are -1
+	private static long[] readProgress(File progress, int count) throws Exception {
+		long[] result = new long[count];
+
+		for (int i = 0; i < count; i++) {
+			result[i] = (i == 0) ? 0 : -1;
+		}
+
+		if ( !progress.exists()) {
+			return result;
+		}
+
+		BufferedReader br = new BufferedReader(new FileReader(progress));
+
+		try {
+			String line = null;
+
+			for (int i = 0; (i < count) && ((line = br.readLine()) != null); i++) {
+				result[i] = Long.parseLong(line.trim());
+			}
+
+			return result;
+		} finally {
+			br.close();
+		}
+	}
+
+	private static String unescape(String str) {
+		if (str.indexOf('\\') < 0) {
+			return str;
+		}
+
+		StringBuilder sb = new StringBuilder(str.length());
+
+		for (int i = 0; i < str.length(); i++) {
+			char ch = str.charAt(i);
+
+			if ((ch == '\\') && (i + 1 < str.length())) {
+				ch = str.charAt(++i);
+
+				switch (ch) {
+					case 't' :
+						ch = '\t';
+
+						break;
+
+					case 'n' :
+						ch = '\n';
+
+						break;
+
+					case 'r' :
+						ch = '\r';
+
+						break;
+
+					default :
+				}
+			}
+
+			sb.append(ch);
+		}
+
+		return sb.toString();
+	}
+
+	private static void writeProgress(File progress, long... values) throws Exception {
+		FileWriter fw = new FileWriter(progress);
+
+		try {
+			for (long value : values) {
+				fw.write(Long.toString(value));
+				fw.write('\n');
+			}
+		} finally {
+			fw.close();
+		}
+	}
+
 	private static String help() {
 		return "\n" + "Parameters:\n" + " -h          this help message\n"
 				+ " -sc class   source repository class name\n"
@@ -943,7 +1394,15 @@ public class RepositoryUtils {
 				+ "         user_jid, password, roser_jid, roster_nick, subscription, group\n"
 				+ " -export file  export user roster data to the specified file in the following\n"
 				+ "              format: user_jid, password, roser_jid, roster_nick, subscription,\n"
-				+ "               group\n" + "\n" + "\n"
+				+ "               group\n"
+				+ " -dump file  export all users with all their data to the file\n"
+				+ " -load file  import users with their data from a file created by -dump\n"
+				+ " -threads n  number of threads loading or storing user data for -dump\n"
+				+ "             and -load, the number of CPUs by default\n"
+				+ " -batch n    number of users read or added at once by -dump and -load,\n"
+				+ "             1000 by default\n"
+				+ " -resume     continue interrupted -dump or -load from the saved progress\n"
+				+ "\n" + "\n"
 				+ "Note! If you put UserAuthRepository implementation as a class name\n"
 				+ "      some operation are not allowed and will be silently skipped.\n"
 				+ "      Have a look at UserAuthRepository to see what operations are\n"
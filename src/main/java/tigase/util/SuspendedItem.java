@@ -0,0 +1,89 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.util;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.xmpp.ResumeHandlerIfc;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Item whose processing has been suspended by
+ * <code>WorkerThread.suspendCurrentItem()</code>. It can be resumed from any
+ * thread, processing continues on the worker thread which suspended it.
+ *
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class SuspendedItem {
+	private final QueueItem item;
+	private final AtomicBoolean resumed = new AtomicBoolean(false);
+	private final WorkerThread worker;
+
+	//~--- constructors ---------------------------------------------------------
+
+	SuspendedItem(WorkerThread worker, QueueItem item) {
+		this.worker = worker;
+		this.item = item;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Resumes the item by processing it with its processor again. The processor
+	 * can not suspend the item for the second time, so it has to complete
+	 * processing synchronously.
+	 *
+	 */
+	public void resume() {
+		resume(null);
+	}
+
+	/**
+	 * Resumes the item by calling the handler on the worker thread.
+	 *
+	 *
+	 * @param handler completes processing of the item, <code>null</code> if the
+	 * item is to be processed by its processor again.
+	 */
+	public void resume(ResumeHandlerIfc handler) {
+		if (resumed.compareAndSet(false, true)) {
+			worker.resume(new QueueItem(item, handler));
+		} else {
+			throw new IllegalStateException("Item has been resumed already: "
+					+ item.getPacket());
+		}
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
@@ -24,6 +24,9 @@ package tigase.util;
 
 //~--- JDK imports ------------------------------------------------------------
 
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -31,6 +34,15 @@ import java.util.logging.Logger;
 //~--- classes ----------------------------------------------------------------
 
 /**
+ * Worker thread processing items from its own queue in order.
+ * <p/>
+ * Processing of an item can be suspended with <code>suspendCurrentItem()</code>
+ * while the processor waits for data, for example from the asynchronous
+ * repository, so the thread can continue with other items. Until the suspended
+ * item is resumed, items with the same order key, which are the items of the
+ * same user, are set aside and they are processed after the resumed item in
+ * the order they arrived.
+ *
  * Created: Apr 21, 2009 9:02:57 PM
  *
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
@@ -46,11 +58,20 @@ public abstract class WorkerThread extends Thread {
 	//~--- fields ---------------------------------------------------------------
 
 	private long averageProcessingTime = 0;
+	private QueueItem current = null;
+	private boolean currentSuspended = false;
+	private int maxQueueSize = Integer.MAX_VALUE;
+
+	// Items set aside until the suspended item with the same order key is resumed
+	private volatile int pendingSize = 0;
 
 //private PriorityQueueAbstract<QueueItem> queue = null;
-	private LinkedBlockingQueue<QueueItem> queue = null;
+	// The capacity is checked in offer(), resumed items must always be accepted
+	private LinkedBlockingQueue<QueueItem> queue = new LinkedBlockingQueue<QueueItem>();
 	private long runsCnt = 0;
 	private boolean stopped = false;
+	private Map<Object, ArrayDeque<QueueItem>> suspended =
+		new HashMap<Object, ArrayDeque<QueueItem>>();
 
 	//~--- get methods ----------------------------------------------------------
 
@@ -79,6 +100,36 @@ public abstract class WorkerThread extends Thread {
 	 */
 	public abstract void process(QueueItem item);
 
+	/**
+	 * Suspends processing of the item the calling worker thread is processing
+	 * now. The processor must return from processing right after the call and
+	 * the returned object must be resumed exactly once, otherwise items of the
+	 * same user are never processed.
+	 *
+	 *
+	 * @return the suspended item or <code>null</code> if the item can not be
+	 * suspended, the caller must continue synchronously then. This is the case
+	 * when the caller is not a worker thread or the item is being resumed
+	 * already.
+	 */
+	public static SuspendedItem suspendCurrentItem() {
+		Thread thread = Thread.currentThread();
+
+		if ( !(thread instanceof WorkerThread)) {
+			return null;
+		}
+
+		WorkerThread worker = (WorkerThread) thread;
+
+		if ((worker.current == null) || worker.current.isResumed() || worker.currentSuspended) {
+			return null;
+		}
+
+		worker.currentSuspended = true;
+
+		return new SuspendedItem(worker, worker.current);
+	}
+
 	//~--- get methods ----------------------------------------------------------
 
 	/**
@@ -112,6 +163,10 @@ public abstract class WorkerThread extends Thread {
 	 * @return
 	 */
 	public boolean offer(QueueItem item) {
+		if (queue.size() + pendingSize >= maxQueueSize) {
+			return false;
+		}
+
 		return queue.offer(item);
 	}
 
@@ -128,8 +183,19 @@ public abstract class WorkerThread extends Thread {
 				item = queue.take();
 
 				long start = System.currentTimeMillis();
-
-				process(item);
+				ArrayDeque<QueueItem> waiting = (item.isResumed() || (item.getOrderKey() == null))
+					? null : suspended.get(item.getOrderKey());
+
+				if (waiting != null) {
+					waiting.offer(item);
+					++pendingSize;
+				} else {
+					processItem(item);
+
+					if (item.isResumed()) {
+						processPending(item.getOrderKey());
+					}
+				}
 
 				long end = System.currentTimeMillis() - start;
 
@@ -155,13 +221,7 @@ public abstract class WorkerThread extends Thread {
 	 * @param maxSize
 	 */
 	public void setQueueMaxSize(int maxSize) {
-		LinkedBlockingQueue<QueueItem> oldQueue = queue;
-
-		queue = new LinkedBlockingQueue<QueueItem>(maxSize);
-
-		if (oldQueue != null) {
-			queue.addAll(oldQueue);
-		}
+		maxQueueSize = maxSize;
 	}
 
 	//~--- methods --------------------------------------------------------------
@@ -173,7 +233,54 @@ public abstract class WorkerThread extends Thread {
 	 * @return
 	 */
 	public int size() {
-		return queue.size();
+		return queue.size() + pendingSize;
+	}
+
+	void resume(QueueItem item) {
+		queue.offer(item);
+	}
+
+	private void processItem(QueueItem item) {
+		current = item;
+		currentSuspended = false;
+
+		try {
+			process(item);
+		} catch (Exception e) {
+			log.log(Level.SEVERE,
+					this.getClass().getName() + ",(" + getName() + ") Exception during packet processing: "
+						+ item.getPacket(), e);
+		} finally {
+			current = null;
+		}
+
+		if (currentSuspended && (item.getOrderKey() != null)
+				&& !suspended.containsKey(item.getOrderKey())) {
+			suspended.put(item.getOrderKey(), new ArrayDeque<QueueItem>());
+		}
+	}
+
+	private void processPending(Object orderKey) {
+		ArrayDeque<QueueItem> waiting = (orderKey == null) ? null : suspended.get(orderKey);
+
+		if (waiting == null) {
+			return;
+		}
+
+		QueueItem item = null;
+
+		while ((item = waiting.poll()) != null) {
+			--pendingSize;
+			processItem(item);
+
+			if (currentSuspended) {
+
+				// The rest waits for this item to be resumed
+				return;
+			}
+		}
+
+		suspended.remove(orderKey);
 	}
 }
 
@@ -27,6 +27,7 @@ package tigase.xmpp;
 import tigase.db.AuthRepository;
 import tigase.db.AuthorizationException;
 import tigase.db.TigaseDBException;
+import tigase.db.UserDataPrefetchIfc;
 import tigase.db.UserExistsException;
 import tigase.db.UserNotFoundException;
 import tigase.db.UserRepository;
@@ -39,8 +40,10 @@ import static tigase.db.NonAuthUserRepository.*;
 
 //~--- JDK imports ------------------------------------------------------------
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.logging.Level;
@@ -152,6 +155,12 @@ public abstract class RepositoryAccess {
 
 		try {
 			repo.addDataList(getBareJID(), subnode, key, list);
+
+			UserDataCache cache = getUserDataCache();
+
+			if (cache != null) {
+				cache.addDataList(subnode, key, list);
+			}
 		} catch (UserNotFoundException e) {
 			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
 
@@ -262,6 +271,14 @@ public abstract class RepositoryAccess {
 			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
 		}
 
+		UserDataCache cache = getUserDataCache();
+
+		if ((cache != null) && cache.isCached(subnode)) {
+			String[] values = cache.getDataList(subnode, key);
+
+			return (values == null) ? def : values[0];
+		}
+
 		try {
 			return repo.getData(getBareJID(), subnode, key, def);
 		} catch (UserNotFoundException e) {
@@ -386,6 +403,12 @@ public abstract class RepositoryAccess {
 			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
 		}
 
+		UserDataCache cache = getUserDataCache();
+
+		if ((cache != null) && cache.isCached(subnode)) {
+			return cache.getDataList(subnode, key);
+		}
+
 		try {
 			return repo.getDataList(getBareJID(), subnode, key);
 		} catch (UserNotFoundException e) {
@@ -500,6 +523,35 @@ public abstract class RepositoryAccess {
 		return is_anonymous;
 	}
 
+	/**
+	 * Checks whether data of the node is in the user data cache, so reading it
+	 * does not access the repository.
+	 * 
+	 * 
+	 * @param subnode
+	 * 
+	 * @return
+	 */
+	public boolean isDataCached(String subnode) {
+		UserDataCache cache = getUserDataCache();
+
+		return (cache != null) && cache.isCached(subnode);
+	}
+
+	/**
+	 * Checks whether <code>prefetchData()</code> can load data of the session
+	 * user into the user data cache.
+	 * 
+	 * 
+	 * @return
+	 * 
+	 * @throws NotAuthorizedException
+	 */
+	public boolean isPrefetchSupported() throws NotAuthorizedException {
+		return !is_anonymous && (repo instanceof UserDataPrefetchIfc)
+				&& ((UserDataPrefetchIfc) repo).isPrefetchSupported(getBareJID());
+	}
+
 	// /**
 	// * Sets the value of authState
 	// *
@@ -837,6 +889,72 @@ public abstract class RepositoryAccess {
 		} // end of try-catch
 	}
 
+	/**
+	 * Loads data of the given nodes from the repository in one go, so the
+	 * plugins initializing the user session do not have to query the
+	 * repository for each key. Nothing is done if the repository does not
+	 * support loading data in bulk, see <code>isPrefetchSupported()</code>, or
+	 * the data is already cached. Nodes which are
+	 * not cached yet are added to a valid cache, which keeps its expiration time.
+	 * 
+	 * 
+	 * @param subnodes
+	 *          normalized paths of nodes to load, see
+	 *          <code>UserDataCache.normalizeNode()</code>.
+	 * @param ttl
+	 *          time in milliseconds for which the loaded data is used.
+	 * 
+	 * @throws NotAuthorizedException
+	 * @throws TigaseDBException
+	 */
+	public void prefetchData(String[] subnodes, long ttl) throws NotAuthorizedException,
+			TigaseDBException {
+		if (is_anonymous || !(repo instanceof UserDataPrefetchIfc)) {
+			return;
+		}
+
+		if (!isAuthorized()) {
+			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
+		}
+
+		UserDataCache cache = getUserDataCache();
+
+		if ((cache != null) && !cache.isExpired()) {
+			List<String> missing = new ArrayList<String>(subnodes.length);
+
+			for (String subnode : subnodes) {
+				if ( !cache.isCached(subnode)) {
+					missing.add(subnode);
+				}
+			}
+
+			if (missing.isEmpty()) {
+				return;
+			}
+
+			subnodes = missing.toArray(new String[missing.size()]);
+		} else {
+			cache = null;
+		}
+
+		try {
+			Map<String, Map<String, String[]>> data =
+					((UserDataPrefetchIfc) repo).getAllData(getBareJID(), subnodes);
+
+			if (data != null) {
+				if (cache != null) {
+					cache.addNodes(subnodes, data);
+				} else {
+					setUserDataCache(new UserDataCache(subnodes, data, ttl));
+				}
+			}
+		} catch (UserNotFoundException e) {
+			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
+
+			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG, e);
+		} // end of try-catch
+	}
+
 	/**
 	 * Method description
 	 * 
@@ -851,6 +969,12 @@ public abstract class RepositoryAccess {
 			TigaseDBException {
 		try {
 			repo.removeData(getBareJID(), subnode, key);
+
+			UserDataCache cache = getUserDataCache();
+
+			if (cache != null) {
+				cache.removeData(subnode, key);
+			}
 		} catch (UserNotFoundException e) {
 			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
 
@@ -889,6 +1013,12 @@ public abstract class RepositoryAccess {
 
 		try {
 			repo.removeSubnode(getBareJID(), subnode);
+
+			UserDataCache cache = getUserDataCache();
+
+			if (cache != null) {
+				cache.removeDataGroup(subnode);
+			}
 		} catch (UserNotFoundException e) {
 			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
 
@@ -1016,6 +1146,12 @@ public abstract class RepositoryAccess {
 			throws NotAuthorizedException, TigaseDBException {
 		try {
 			repo.setData(getBareJID(), subnode, key, value);
+
+			UserDataCache cache = getUserDataCache();
+
+			if (cache != null) {
+				cache.setDataList(subnode, key, new String[] { value });
+			}
 		} catch (UserNotFoundException e) {
 			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
 
@@ -1059,6 +1195,12 @@ public abstract class RepositoryAccess {
 
 		try {
 			repo.setDataList(getBareJID(), subnode, key, list);
+
+			UserDataCache cache = getUserDataCache();
+
+			if (cache != null) {
+				cache.setDataList(subnode, key, list);
+			}
 		} catch (UserNotFoundException e) {
 			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
 
@@ -1206,6 +1348,26 @@ public abstract class RepositoryAccess {
 		}
 	}
 
+	/**
+	 * Returns the cache of prefetched user data, the default implementation
+	 * does not keep any.
+	 * 
+	 * 
+	 * @return
+	 */
+	protected UserDataCache getUserDataCache() {
+		return null;
+	}
+
+	/**
+	 * Keeps the cache of prefetched user data, the default implementation
+	 * ignores it.
+	 * 
+	 * 
+	 * @param cache
+	 */
+	protected void setUserDataCache(UserDataCache cache) {}
+
 	private String calcNode(String base, String subnode) {
 		if (subnode == null) {
 			return base;
@@ -0,0 +1,63 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.xmpp;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.server.Packet;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.Queue;
+
+//~--- interfaces -------------------------------------------------------------
+
+/**
+ * Completes processing of a packet which has been suspended by a plugin while
+ * waiting for data from the repository. It is called on the worker thread of
+ * the queue the packet was in, before any later packet from that queue is
+ * processed.
+ *
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public interface ResumeHandlerIfc {
+
+	/**
+	 * Completes processing of the suspended packet.
+	 *
+	 *
+	 * @param results is the queue for result packets, in the same way as for
+	 * <code>XMPPProcessorIfc.process()</code>.
+	 *
+	 * @throws XMPPException
+	 */
+	void resume(Queue<Packet> results) throws XMPPException;
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
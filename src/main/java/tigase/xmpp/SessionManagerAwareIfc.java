@@ -0,0 +1,54 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.xmpp;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.server.xmppsession.SessionManagerHandler;
+
+//~--- interfaces -------------------------------------------------------------
+
+/**
+ * Implemented by plugins which need the session manager, for example to check
+ * local domains for packets processed without a user session. The handler is
+ * set before the plugin is initialized.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public interface SessionManagerAwareIfc extends XMPPImplIfc {
+
+	/**
+	 * Sets the session manager the plugin is loaded by.
+	 *
+	 *
+	 * @param handler is the session manager.
+	 */
+	void setSessionManagerHandler(SessionManagerHandler handler);
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
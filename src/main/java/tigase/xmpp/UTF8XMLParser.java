@@ -0,0 +1,704 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+
+package tigase.xmpp;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import java.util.Arrays;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Incremental XML parser reading UTF-8 data straight from the bytes received
+ * from the network, so the data is neither decoded to characters first nor
+ * copied to a character array. The parser keeps its state between calls, a
+ * buffer may end anywhere, also inside a multi-byte character, and parsing
+ * continues with the next buffer.
+ * <p/>
+ * Parsing results are passed to <code>XMPPDomBuilderHandler</code> the same
+ * way <code>SimpleParser</code> does it: attribute values and character data
+ * are left escaped, leading white characters of character data are skipped.
+ * Element and attribute names are resolved to interned strings without
+ * decoding, from a table of names used in XMPP and a small cache of other
+ * names seen on the connection. Contents of <code>CDATA</code> sections are
+ * escaped and added to the character data.
+ * <p/>
+ * An instance parses a single stream and is not thread safe.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class UTF8XMLParser {
+
+	/** Field description */
+	public static final int MAX_ATTRIBS_NUMBER = 50;
+
+	/** Field description */
+	public static final int MAX_ATTRIBUTE_VALUE_SIZE = 10 * 1024;
+
+	/** Field description */
+	public static final int MAX_CDATA_SIZE = 1024 * 1024;
+
+	/** Field description */
+	public static final int MAX_NAME_SIZE = 1024;
+	private static final int CACHE_SIZE = 64;
+	private static final String CDATA_START = "<![CDATA[";
+	private static final String[] COMMON_NAMES = {
+
+		// Elements
+		"stream:stream", "stream:features", "stream:error", "message", "presence", "iq",
+		"body", "subject", "thread", "html", "show", "status", "priority", "error", "text",
+		"query", "item", "group", "bind", "session", "resource", "jid", "auth", "response",
+		"challenge", "success", "failure", "mechanisms", "mechanism", "starttls",
+		"proceed", "compress", "compression", "method", "register", "username",
+		"password", "digest", "x", "c", "delay", "composing", "active", "paused",
+		"inactive", "gone", "request", "received", "ping", "vCard", "photo", "nick",
+		"feature", "identity", "field", "value", "option", "list", "default", "blocklist",
+		"block", "unblock", "pubsub", "event", "items", "publish", "retract", "r", "a",
+		"enable", "enabled", "resume", "resumed", "ack", "req", "policy-file-request",
+
+		// Attributes
+		"xmlns", "xmlns:stream", "xml:lang", "to", "from", "id", "type", "version", "name",
+		"subscription", "ask", "node", "hash", "ver", "ext", "stamp", "code", "var",
+		"category", "action", "order", "label", "h", "previd", "max", "xmlns:xml"
+	};
+	private static final int TABLE_SIZE = 512;
+	private static final byte[][] TABLE_KEYS = new byte[TABLE_SIZE][];
+	private static final String[] TABLE_NAMES = new String[TABLE_SIZE];
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final boolean[] NAME_START_CHARS = new boolean[128];
+	private static final boolean[] NAME_CHARS = new boolean[128];
+
+	//~--- static initializers --------------------------------------------------
+
+	static {
+		for (int c = 'a'; c <= 'z'; c++) {
+			NAME_START_CHARS[c] = true;
+			NAME_START_CHARS[c - 'a' + 'A'] = true;
+		}
+
+		NAME_START_CHARS['_'] = true;
+		NAME_START_CHARS[':'] = true;
+		System.arraycopy(NAME_START_CHARS, 0, NAME_CHARS, 0, NAME_CHARS.length);
+
+		for (int c = '0'; c <= '9'; c++) {
+			NAME_CHARS[c] = true;
+		}
+
+		NAME_CHARS['-'] = true;
+		NAME_CHARS['.'] = true;
+
+		for (String name : COMMON_NAMES) {
+			byte[] key = name.getBytes(UTF8);
+			int idx = hash(key, key.length) & (TABLE_SIZE - 1);
+
+			while (TABLE_KEYS[idx] != null) {
+				idx = (idx + 1) & (TABLE_SIZE - 1);
+			}
+
+			TABLE_KEYS[idx] = key;
+			TABLE_NAMES[idx] = name.intern();
+		}
+	}
+
+	//~--- constant enums -------------------------------------------------------
+
+	private enum State {
+		TEXT, TAG_OPEN, START_NAME, ATTR_WAIT, ATTR_NAME, ATTR_EQ, ATTR_QUOTE, ATTR_VALUE,
+		EMPTY_END, END_NAME, END_WAIT, DECLARATION, CDATA_SECTION, OTHER_XML, ERROR
+	}
+
+	//~--- fields ---------------------------------------------------------------
+
+	private int attrCount = 0;
+	private String[] attrNames = new String[8];
+	private String[] attrValues = new String[8];
+	private final byte[][] cacheKeys = new byte[CACHE_SIZE][];
+	private final String[] cacheNames = new String[CACHE_SIZE];
+	private final StringBuilder cdata = new StringBuilder(64);
+
+	// Number of ']' characters seen at the end of a CDATA section
+	private int cdataBrackets = 0;
+
+	// Code point of the multi-byte character being decoded
+	private int codePoint = 0;
+	private int codePointMin = 0;
+	private String elemName = null;
+	private byte[] name = new byte[32];
+	private int nameLen = 0;
+	private final StringBuilder other = new StringBuilder(64);
+
+	// Continuation bytes missing in the multi-byte character being decoded
+	private int pending = 0;
+	private byte quote = 0;
+	private State state = State.TEXT;
+	private final StringBuilder value = new StringBuilder(64);
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Parses all the data from the buffer position to its limit, the buffer
+	 * position is moved to the limit.
+	 *
+	 *
+	 * @param handler
+	 * @param buf is a buffer with received data, in read mode.
+	 */
+	public void parse(XMPPDomBuilderHandler<?> handler, ByteBuffer buf) {
+		if (buf.hasArray()) {
+			int off = buf.arrayOffset();
+
+			parse(handler, buf.array(), off + buf.position(), off + buf.limit());
+			buf.position(buf.limit());
+		} else {
+			byte[] data = new byte[buf.remaining()];
+
+			buf.get(data);
+			parse(handler, data, 0, data.length);
+		}
+	}
+
+	/**
+	 * Parses the data between the given indexes of the array.
+	 *
+	 *
+	 * @param handler
+	 * @param data
+	 * @param start is the index of the first byte to parse.
+	 * @param end is the index after the last byte to parse.
+	 */
+	public void parse(XMPPDomBuilderHandler<?> handler, byte[] data, int start, int end) {
+		for (int i = start; (i < end) && (state != State.ERROR); i++) {
+			int b = data[i] & 0xFF;
+
+			if ((b >= 0x80) || (pending > 0)) {
+				parseMultiByte(handler, b);
+			} else {
+				parseChar(handler, (char) b);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the parser has found an error in the data, no more data
+	 * is parsed then.
+	 *
+	 *
+	 * @return
+	 */
+	public boolean isError() {
+		return state == State.ERROR;
+	}
+
+	private static void appendEscaped(StringBuilder sb, char c) {
+		switch (c) {
+			case '&' :
+				sb.append("&amp;");
+
+				break;
+
+			case '<' :
+				sb.append("&lt;");
+
+				break;
+
+			case '>' :
+				sb.append("&gt;");
+
+				break;
+
+			default :
+				sb.append(c);
+		}
+	}
+
+	private static int hash(byte[] key, int len) {
+		int h = 0;
+
+		for (int i = 0; i < len; i++) {
+			h = 31 * h + key[i];
+		}
+
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean isWhite(char c) {
+		return (c == ' ') || (c == '\n') || (c == '\r') || (c == '\t');
+	}
+
+	private static boolean matches(byte[] key, byte[] name, int len) {
+		if (key.length != len) {
+			return false;
+		}
+
+		for (int i = 0; i < len; i++) {
+			if (key[i] != name[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private boolean addNameByte(XMPPDomBuilderHandler<?> handler, int b) {
+		if (nameLen == name.length) {
+			if (nameLen == MAX_NAME_SIZE) {
+				error(handler, "Name too long");
+
+				return false;
+			}
+
+			name = Arrays.copyOf(name, Math.min(nameLen * 2, MAX_NAME_SIZE));
+		}
+
+		name[nameLen++] = (byte) b;
+
+		return true;
+	}
+
+	private void addText(XMPPDomBuilderHandler<?> handler, StringBuilder sb, int max,
+			char c) {
+		if (sb.length() >= max) {
+			error(handler, "Data too long");
+		} else {
+			sb.append(c);
+		}
+	}
+
+	private void addBrackets(XMPPDomBuilderHandler<?> handler) {
+
+		// Brackets not followed by the section end are character data
+		for (; cdataBrackets > 0; --cdataBrackets) {
+			addText(handler, cdata, MAX_CDATA_SIZE, ']');
+		}
+	}
+
+	private void addEscaped(XMPPDomBuilderHandler<?> handler, char c) {
+		if (cdata.length() >= MAX_CDATA_SIZE) {
+			error(handler, "Data too long");
+		} else {
+			appendEscaped(cdata, c);
+		}
+	}
+
+	private void error(XMPPDomBuilderHandler<?> handler, String msg) {
+		state = State.ERROR;
+		handler.error(msg);
+	}
+
+	private void flushCData(XMPPDomBuilderHandler<?> handler) {
+		if (cdata.length() > 0) {
+			handler.elementCData(cdata);
+			cdata.setLength(0);
+		}
+	}
+
+	private void flushOther(XMPPDomBuilderHandler<?> handler) {
+		flushCData(handler);
+		handler.otherXML(other);
+		other.setLength(0);
+		state = State.TEXT;
+	}
+
+	private void parseChar(XMPPDomBuilderHandler<?> handler, char c) {
+		switch (state) {
+			case TEXT :
+				if (c == '<') {
+					state = State.TAG_OPEN;
+				} else if ((cdata.length() > 0) ||!isWhite(c)) {
+					addText(handler, cdata, MAX_CDATA_SIZE, c);
+				}
+
+				break;
+
+			case TAG_OPEN :
+				if (c == '/') {
+					flushCData(handler);
+					nameLen = 0;
+					state = State.END_NAME;
+				} else if (c == '!') {
+					other.append("<!");
+					state = State.DECLARATION;
+				} else if (c == '?') {
+					flushCData(handler);
+					other.append("<?");
+					state = State.OTHER_XML;
+				} else if (NAME_START_CHARS[c]) {
+					flushCData(handler);
+					nameLen = 0;
+					addNameByte(handler, c);
+					state = State.START_NAME;
+				} else {
+					error(handler, "Invalid element name");
+				}
+
+				break;
+
+			case START_NAME :
+				if (NAME_CHARS[c]) {
+					addNameByte(handler, c);
+				} else {
+					elemName = resolveName();
+					attrCount = 0;
+					parseInTag(handler, c);
+				}
+
+				break;
+
+			case ATTR_WAIT :
+				parseInTag(handler, c);
+
+				break;
+
+			case ATTR_NAME :
+				if (NAME_CHARS[c]) {
+					addNameByte(handler, c);
+				} else if (isWhite(c)) {
+					attrNames[attrCount] = resolveName();
+					state = State.ATTR_EQ;
+				} else if (c == '=') {
+					attrNames[attrCount] = resolveName();
+					state = State.ATTR_QUOTE;
+				} else {
+					error(handler, "Invalid attribute name");
+				}
+
+				break;
+
+			case ATTR_EQ :
+				if (c == '=') {
+					state = State.ATTR_QUOTE;
+				} else if ( !isWhite(c)) {
+					error(handler, "Missing attribute value");
+				}
+
+				break;
+
+			case ATTR_QUOTE :
+				if ((c == '\'') || (c == '"')) {
+					quote = (byte) c;
+					value.setLength(0);
+					state = State.ATTR_VALUE;
+				} else if ( !isWhite(c)) {
+					error(handler, "Attribute value not quoted");
+				}
+
+				break;
+
+			case ATTR_VALUE :
+				if (c == quote) {
+					attrValues[attrCount++] = value.toString();
+					state = State.ATTR_WAIT;
+				} else if (c == '<') {
+					error(handler, "Invalid character in attribute value");
+				} else {
+					addText(handler, value, MAX_ATTRIBUTE_VALUE_SIZE, c);
+				}
+
+				break;
+
+			case EMPTY_END :
+				if (c == '>') {
+					startElement(handler);
+					handler.endElement(elemName);
+				} else {
+					error(handler, "Invalid empty element end");
+				}
+
+				break;
+
+			case END_NAME :
+				if (NAME_CHARS[c]) {
+					addNameByte(handler, c);
+				} else if (isWhite(c) && (nameLen > 0)) {
+					state = State.END_WAIT;
+				} else if ((c == '>') && (nameLen > 0)) {
+					state = State.TEXT;
+					handler.endElement(resolveName());
+				} else {
+					error(handler, "Invalid element end");
+				}
+
+				break;
+
+			case END_WAIT :
+				if (c == '>') {
+					state = State.TEXT;
+					handler.endElement(resolveName());
+				} else if ( !isWhite(c)) {
+					error(handler, "Invalid element end");
+				}
+
+				break;
+
+			case DECLARATION :
+				addText(handler, other, MAX_ATTRIBUTE_VALUE_SIZE, c);
+
+				int len = other.length();
+
+				// Prefix of the CDATA section start matched so far
+				if ((len <= CDATA_START.length()) && (c == CDATA_START.charAt(len - 1))) {
+					if (len == CDATA_START.length()) {
+						other.setLength(0);
+						cdataBrackets = 0;
+						state = State.CDATA_SECTION;
+					}
+				} else {
+					state = State.OTHER_XML;
+
+					if ((c == '>') && isOtherEnd()) {
+						flushOther(handler);
+					}
+				}
+
+				break;
+
+			case OTHER_XML :
+				addText(handler, other, MAX_ATTRIBUTE_VALUE_SIZE, c);
+
+				if ((c == '>') && isOtherEnd()) {
+					flushOther(handler);
+				}
+
+				break;
+
+			case CDATA_SECTION :
+				if (c == ']') {
+					++cdataBrackets;
+				} else if ((c == '>') && (cdataBrackets >= 2)) {
+					cdataBrackets -= 2;
+					addBrackets(handler);
+					state = State.TEXT;
+				} else {
+					addBrackets(handler);
+					addEscaped(handler, c);
+				}
+
+				break;
+
+			default :
+				break;
+		}
+	}
+
+	private boolean isOtherEnd() {
+
+		// Comments may contain '>', they end with "-->"
+		if ((other.length() >= 4) && (other.charAt(2) == '-') && (other.charAt(3) == '-')) {
+			int len = other.length();
+
+			return (len >= 7) && (other.charAt(len - 2) == '-') && (other.charAt(len - 3) == '-');
+		}
+
+		return true;
+	}
+
+	private void parseInTag(XMPPDomBuilderHandler<?> handler, char c) {
+		if (isWhite(c)) {
+			state = State.ATTR_WAIT;
+		} else if (c == '>') {
+			startElement(handler);
+		} else if (c == '/') {
+			state = State.EMPTY_END;
+		} else if (NAME_START_CHARS[c] && (state == State.ATTR_WAIT)) {
+			startAttribute(handler, c);
+		} else {
+			error(handler, "Invalid character in element");
+		}
+	}
+
+	private void startAttribute(XMPPDomBuilderHandler<?> handler, int b) {
+		if (attrCount == MAX_ATTRIBS_NUMBER) {
+			error(handler, "Too many attributes");
+
+			return;
+		}
+
+		if (attrCount == attrNames.length) {
+			attrNames = Arrays.copyOf(attrNames, attrCount * 2);
+			attrValues = Arrays.copyOf(attrValues, attrCount * 2);
+		}
+
+		nameLen = 0;
+		addNameByte(handler, b);
+		state = State.ATTR_NAME;
+	}
+
+	private void parseMultiByte(XMPPDomBuilderHandler<?> handler, int b) {
+		if ( !decode(b)) {
+			error(handler, "Malformed UTF-8 data");
+
+			return;
+		}
+
+		switch (state) {
+			case TAG_OPEN :
+				flushCData(handler);
+				nameLen = 0;
+				state = State.START_NAME;
+				addNameByte(handler, b);
+
+				break;
+
+			// Non-ASCII characters are name characters, as in the element name
+			case ATTR_WAIT :
+				startAttribute(handler, b);
+
+				break;
+
+			case START_NAME :
+			case ATTR_NAME :
+			case END_NAME :
+				addNameByte(handler, b);
+
+				break;
+
+			case TEXT :
+				if (pending == 0) {
+					appendCodePoint(handler, cdata, MAX_CDATA_SIZE);
+				}
+
+				break;
+
+			case CDATA_SECTION :
+				if (pending == 0) {
+					addBrackets(handler);
+					appendCodePoint(handler, cdata, MAX_CDATA_SIZE);
+				}
+
+				break;
+
+			case ATTR_VALUE :
+				if (pending == 0) {
+					appendCodePoint(handler, value, MAX_ATTRIBUTE_VALUE_SIZE);
+				}
+
+				break;
+
+			case DECLARATION :
+				state = State.OTHER_XML;
+
+			// Fall through
+			case OTHER_XML :
+				if (pending == 0) {
+					appendCodePoint(handler, other, MAX_ATTRIBUTE_VALUE_SIZE);
+				}
+
+				break;
+
+			default :
+				error(handler, "Invalid character in element");
+		}
+	}
+
+	private void appendCodePoint(XMPPDomBuilderHandler<?> handler, StringBuilder sb,
+			int max) {
+		if (sb.length() >= max) {
+			error(handler, "Data too long");
+		} else {
+			sb.appendCodePoint(codePoint);
+		}
+	}
+
+	private boolean decode(int b) {
+		if (pending == 0) {
+			if ((b >= 0xC2) && (b <= 0xDF)) {
+				codePoint = b & 0x1F;
+				codePointMin = 0x80;
+				pending = 1;
+			} else if ((b >= 0xE0) && (b <= 0xEF)) {
+				codePoint = b & 0x0F;
+				codePointMin = 0x800;
+				pending = 2;
+			} else if ((b >= 0xF0) && (b <= 0xF4)) {
+				codePoint = b & 0x07;
+				codePointMin = 0x10000;
+				pending = 3;
+			} else {
+				return false;
+			}
+
+			return true;
+		}
+
+		if ((b & 0xC0) != 0x80) {
+			return false;
+		}
+
+		codePoint = (codePoint << 6) | (b & 0x3F);
+
+		if (--pending > 0) {
+			return true;
+		}
+
+		return (codePoint >= codePointMin) && (codePoint <= 0x10FFFF)
+				&& ((codePoint < 0xD800) || (codePoint > 0xDFFF));
+	}
+
+	private String resolveName() {
+		int h = hash(name, nameLen);
+		int idx = h & (TABLE_SIZE - 1);
+
+		while (TABLE_KEYS[idx] != null) {
+			if (matches(TABLE_KEYS[idx], name, nameLen)) {
+				return TABLE_NAMES[idx];
+			}
+
+			idx = (idx + 1) & (TABLE_SIZE - 1);
+		}
+
+		int slot = h & (CACHE_SIZE - 1);
+
+		if ((cacheKeys[slot] != null) && matches(cacheKeys[slot], name, nameLen)) {
+			return cacheNames[slot];
+		}
+
+		String result = new String(name, 0, nameLen, UTF8).intern();
+
+		cacheKeys[slot] = Arrays.copyOf(name, nameLen);
+		cacheNames[slot] = result;
+
+		return result;
+	}
+
+	private void startElement(XMPPDomBuilderHandler<?> handler) {
+		state = State.TEXT;
+
+		if (attrCount == 0) {
+			handler.startElement(elemName, null, null);
+		} else {
+			handler.startElement(elemName, Arrays.copyOf(attrNames, attrCount),
+					Arrays.copyOf(attrValues, attrCount));
+		}
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
@@ -0,0 +1,274 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.xmpp;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * User data loaded from the repository in bulk when the user logs in. It is
+ * shared by all resources of the user and <code>RepositoryAccess</code> reads
+ * data of the prefetched nodes from it instead of querying the repository for
+ * each key. Data written through the session is updated in the cache as well.
+ * <p/>
+ * The cache covers only the nodes it was loaded for: a data root node covers
+ * just its own keys, any other node covers all of its subnodes. Data stored by
+ * other means, for example on another cluster node, is not seen, so the cache
+ * expires after a short time and from then on the repository is used directly.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class UserDataCache {
+	private final Map<String, Map<String, String[]>> data;
+	private final long expires;
+	private volatile String[] subnodes;
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Constructs ...
+	 *
+	 *
+	 * @param subnodes are normalized paths of the prefetched nodes.
+	 * @param data is the data loaded from the repository, the map is modified
+	 * by the cache.
+	 * @param ttl is the time in milliseconds for which the cache is used.
+	 */
+	public UserDataCache(String[] subnodes, Map<String, Map<String, String[]>> data,
+			long ttl) {
+		this.subnodes = subnodes;
+		this.data = data;
+		this.expires = System.currentTimeMillis() + ttl;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Returns the node path in the form used by the cache: without leading,
+	 * trailing and repeated slashes, the root node is an empty string.
+	 *
+	 *
+	 * @param subnode
+	 *
+	 * @return
+	 */
+	public static String normalizeNode(String subnode) {
+		if ((subnode == null) || subnode.isEmpty()) {
+			return "";
+		}
+
+		StringBuilder sb = new StringBuilder(subnode.length());
+
+		for (String token : subnode.split("/")) {
+			if ( !token.isEmpty()) {
+				if (sb.length() > 0) {
+					sb.append('/');
+				}
+
+				sb.append(token);
+			}
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Adds data of more nodes to the cache.
+	 *
+	 *
+	 * @param nodes are normalized paths of the loaded nodes.
+	 * @param nodes_data is the data loaded from the repository for the nodes.
+	 */
+	public synchronized void addNodes(String[] nodes, Map<String, Map<String,
+			String[]>> nodes_data) {
+		data.putAll(nodes_data);
+
+		String[] result = Arrays.copyOf(subnodes, subnodes.length + nodes.length);
+
+		System.arraycopy(nodes, 0, result, subnodes.length, nodes.length);
+		subnodes = result;
+	}
+
+	/**
+	 * Adds values to the list stored with the key.
+	 *
+	 *
+	 * @param subnode
+	 * @param key
+	 * @param list
+	 */
+	public synchronized void addDataList(String subnode, String key, String[] list) {
+		String node = normalizeNode(subnode);
+
+		if ( !covers(node)) {
+			return;
+		}
+
+		String[] old = getNodeData(node).get(key);
+
+		if (old == null) {
+			setDataList(node, key, list);
+		} else {
+			String[] result = Arrays.copyOf(old, old.length + list.length);
+
+			System.arraycopy(list, 0, result, old.length, list.length);
+			data.get(node).put(key, result);
+		}
+	}
+
+	/**
+	 * Removes the key from the node.
+	 *
+	 *
+	 * @param subnode
+	 * @param key
+	 */
+	public synchronized void removeData(String subnode, String key) {
+		Map<String, String[]> node_data = data.get(normalizeNode(subnode));
+
+		if (node_data != null) {
+			node_data.remove(key);
+		}
+	}
+
+	/**
+	 * Removes the node with all its subnodes.
+	 *
+	 *
+	 * @param subnode
+	 */
+	public synchronized void removeDataGroup(String subnode) {
+		String node = normalizeNode(subnode);
+
+		for (Iterator<String> it = data.keySet().iterator(); it.hasNext(); ) {
+			String path = it.next();
+
+			if (node.isEmpty() || isSubnode(path, node)) {
+				it.remove();
+			}
+		}
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Returns values stored with the key.
+	 *
+	 *
+	 * @param subnode
+	 * @param key
+	 *
+	 * @return a copy of the values or <code>null</code> if there is no data
+	 * stored with the key.
+	 */
+	public synchronized String[] getDataList(String subnode, String key) {
+		Map<String, String[]> node_data = data.get(normalizeNode(subnode));
+		String[] result = (node_data == null) ? null : node_data.get(key);
+
+		return (result == null) ? null : result.clone();
+	}
+
+	/**
+	 * Checks whether the data of the node is in the cache, which is when the
+	 * node has been prefetched and the cache has not expired yet.
+	 *
+	 *
+	 * @param subnode
+	 *
+	 * @return
+	 */
+	public boolean isCached(String subnode) {
+		return !isExpired() && covers(normalizeNode(subnode));
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public boolean isExpired() {
+		return System.currentTimeMillis() > expires;
+	}
+
+	//~--- set methods ----------------------------------------------------------
+
+	/**
+	 * Replaces values stored with the key.
+	 *
+	 *
+	 * @param subnode
+	 * @param key
+	 * @param list
+	 */
+	public synchronized void setDataList(String subnode, String key, String[] list) {
+		String node = normalizeNode(subnode);
+
+		if (covers(node)) {
+			getNodeData(node).put(key, list.clone());
+		}
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	private static boolean isSubnode(String path, String node) {
+		return path.startsWith(node)
+				&& ((path.length() == node.length()) || (path.charAt(node.length()) == '/'));
+	}
+
+	private boolean covers(String node) {
+		for (String subnode : subnodes) {
+			if (subnode.isEmpty() ? node.isEmpty() : isSubnode(node, subnode)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	private Map<String, String[]> getNodeData(String node) {
+		Map<String, String[]> node_data = data.get(node);
+
+		if (node_data == null) {
+			node_data = new HashMap<String, String[]>();
+			data.put(node, node_data);
+		}
+
+		return node_data;
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
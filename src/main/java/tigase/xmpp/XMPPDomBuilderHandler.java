@@ -137,12 +137,20 @@ public class XMPPDomBuilderHandler<RefObject> implements SimpleHandler {
 	 */
 	@Override
 	public void endElement(StringBuilder name) {
+		endElement(name.toString());
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param tmp_name
+	 */
+	public void endElement(String tmp_name) {
 		if (log.isLoggable(Level.FINEST)) {
-			log.finest("End element name: " + name);
+			log.finest("End element name: " + tmp_name);
 		}
 
-		String tmp_name = name.toString();
-
 		if (tmp_name.equals(ELEM_STREAM_STREAM)) {
 			service.xmppStreamClosed();
 
@@ -255,8 +263,44 @@ public class XMPPDomBuilderHandler<RefObject> implements SimpleHandler {
 	@Override
 	public void startElement(StringBuilder name, StringBuilder[] attr_names,
 			StringBuilder[] attr_values) {
+		String[] names = null;
+		String[] values = null;
+
+		if (attr_names != null) {
+			int cnt = 0;
+
+			// Attributes are followed by null if the arrays are not full
+			while ((cnt < attr_names.length) && (attr_names[cnt] != null)
+					&& (attr_values[cnt] != null)) {
+				++cnt;
+			}
+
+			if (cnt > 0) {
+				names = new String[cnt];
+				values = new String[cnt];
+
+				for (int i = 0; i < cnt; i++) {
+					names[i] = attr_names[i].toString();
+					values[i] = attr_values[i].toString();
+				}
+			}
+		}
+
+		startElement(name.toString(), names, values);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param tmp_name
+	 * @param attr_names are names of the element attributes or <code>null</code>
+	 * if the element has no attributes.
+	 * @param attr_values
+	 */
+	public void startElement(String tmp_name, String[] attr_names, String[] attr_values) {
 		if (log.isLoggable(Level.FINEST)) {
-			log.finest("Start element name: " + name);
+			log.finest("Start element name: " + tmp_name);
 			log.finest("Element attributes names: " + Arrays.toString(attr_names));
 			log.finest("Element attributes values: " + Arrays.toString(attr_values));
 		}
@@ -264,38 +308,26 @@ public class XMPPDomBuilderHandler<RefObject> implements SimpleHandler {
 		// Look for 'xmlns:' declarations:
 		if (attr_names != null) {
 			for (int i = 0; i < attr_names.length; ++i) {
-
-				// Exit the loop as soon as we reach end of attributes set
-				if (attr_names[i] == null) {
-					break;
-				}
-
-				if (attr_names[i].toString().startsWith("xmlns:")) {
+				if (attr_names[i].startsWith("xmlns:")) {
 
 					// TODO should use a StringCache instead of intern() to avoid potential
 					// DOS by exhausting permgen
-					namespaces.put(attr_names[i].substring("xmlns:".length(),
-							attr_names[i].length()).intern(), attr_values[i].toString());
+					namespaces.put(attr_names[i].substring("xmlns:".length()).intern(),
+							attr_values[i]);
 
 					if (log.isLoggable(Level.FINEST)) {
-						log.finest("Namespace found: " + attr_values[i].toString());
+						log.finest("Namespace found: " + attr_values[i]);
 					}
 				}    // end of if (att_name.startsWith("xmlns:"))
 			}      // end of for (String att_name : attnames)
 		}        // end of if (attr_names != null)
 
-		String tmp_name = name.toString();
-
 		if (tmp_name.equals(ELEM_STREAM_STREAM)) {
 			Map<String, String> attribs = new HashMap<String, String>();
 
 			if (attr_names != null) {
 				for (int i = 0; i < attr_names.length; i++) {
-					if ((attr_names[i] != null) && (attr_values[i] != null)) {
-						attribs.put(attr_names[i].toString(), attr_values[i].toString());
-					} else {
-						break;
-					}    // end of else
+					attribs.put(attr_names[i], attr_values[i]);
 				}      // end of for (int i = 0; i < attr_names.length; i++)
 			}        // end of if (attr_name != null)
 
@@ -359,9 +391,26 @@ public class XMPPDomBuilderHandler<RefObject> implements SimpleHandler {
 		el_stack.push(elem);
 	}
 
-	private Element newElement(String name, String cdata, StringBuilder[] attnames,
-			StringBuilder[] attvals) {
-		return customFactory.elementInstance(name, cdata, attnames, attvals);
+	private Element newElement(String name, String cdata, String[] attnames,
+			String[] attvals) {
+		if (customFactory == defaultFactory) {
+			return new Element(name, cdata, attnames, attvals);
+		}
+
+		StringBuilder[] names = null;
+		StringBuilder[] values = null;
+
+		if (attnames != null) {
+			names = new StringBuilder[attnames.length];
+			values = new StringBuilder[attnames.length];
+
+			for (int i = 0; i < attnames.length; i++) {
+				names[i] = new StringBuilder(attnames[i]);
+				values[i] = new StringBuilder(attvals[i]);
+			}
+		}
+
+		return customFactory.elementInstance(name, cdata, names, values);
 	}
 }    // XMPPDomBuilderHandler
 
@@ -24,6 +24,8 @@ package tigase.xmpp;
 
 //~--- non-JDK imports --------------------------------------------------------
 
+import tigase.io.BufferPool;
+
 import tigase.net.IOService;
 import tigase.net.IOServiceListener;
 
@@ -41,6 +43,11 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -70,6 +77,7 @@ public class XMPPIOService<RefObject> extends IOService<RefObject> {
 	 * Variable <code>log</code> is a class logger.
 	 */
 	private static final Logger log = Logger.getLogger(XMPPIOService.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 
 	public static final String CROSS_DOMAIN_POLICY_FILE_PROP_KEY =
 			"cross-domain-policy-file";
@@ -80,7 +88,14 @@ public class XMPPIOService<RefObject> extends IOService<RefObject> {
 	public static final String ID_ATT = "id";
 	public static final String ACK_NAME = "ack";
 
+	/**
+	 * Maximum number of bytes of coalesced packets written to the socket in a
+	 * single call.
+	 */
+	private static final int MAX_WRITE_BYTES = 64 * 1024;
+
 	private XMPPDomBuilderHandler<RefObject> domHandler = null;
+	private UTF8XMLParser xmlParser = null;
 	protected SimpleParser parser = SingletonFactory.getParserInstance();
 	@SuppressWarnings("rawtypes")
 	private XMPPIOServiceListener serviceListener = null;
@@ -214,23 +229,97 @@ public class XMPPIOService<RefObject> extends IOService<RefObject> {
 	public void processWaitingPackets() throws IOException {
 		Packet packet = null;
 
-		// int cnt = 0;
-		// while ((packet = waitingPackets.poll()) != null && (cnt < 1000)) {
-		while ((packet = waitingPackets.poll()) != null) {
+		// All waiting packets are copied to pooled buffers and written to the
+		// socket in a single gathering write, up to MAX_WRITE_BYTES at once.
+		List<ByteBuffer> data = null;
+		ByteBuffer out = null;
+		int size = 0;
+		int cnt = 0;
 
-			// ++cnt;
+		while ((packet = waitingPackets.poll()) != null) {
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "{0}, Sending packet: {1}", new Object[] { toString(),
 						packet });
 			}
 
-			writeRawData(packet.getElement().toString());
+			byte[] elem = packet.getElementBytes();
 
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "{0}, SENT: {1}", new Object[] { toString(),
-						packet.getElement().toString() });
+			if (data == null) {
+				data = new ArrayList<ByteBuffer>();
+			}
+
+			if ((out != null) && (out.remaining() < elem.length)) {
+				out.flip();
+				data.add(out);
+				out = null;
+			}
+
+			if (elem.length > BufferPool.BUFFER_SIZE) {
+
+				// Stanzas which do not fit a pooled buffer are written from their data
+				data.add(ByteBuffer.wrap(elem));
+			} else {
+				if (out == null) {
+					out = BufferPool.allocate(elem.length);
+				}
+
+				out.put(elem);
+			}
+
+			size += elem.length;
+			++cnt;
+
+			if (size >= MAX_WRITE_BYTES) {
+				if (out != null) {
+					out.flip();
+					data.add(out);
+					out = null;
+				}
+
+				writeWaitingData(data, cnt, size);
+				data.clear();
+				size = 0;
+				cnt = 0;
 			}
 		} // end of while (packet = waitingPackets.poll() != null)
+
+		if (out != null) {
+			out.flip();
+			data.add(out);
+		}
+
+		if ((data != null) && (cnt > 0)) {
+			writeWaitingData(data, cnt, size);
+		}
+	}
+
+	/**
+	 * Removes and returns the next packet waiting to be sent, for services which
+	 * write packets in their own way.
+	 * 
+	 * @return the packet or <code>null</code> if there are no waiting packets.
+	 */
+	protected Packet pollWaitingPacket() {
+		return waitingPackets.poll();
+	}
+
+	private void writeWaitingData(List<ByteBuffer> data, int cnt, int size) {
+		ByteBuffer[] buffs = data.toArray(new ByteBuffer[data.size()]);
+
+		writeBytes(buffs);
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "{0}, SENT {1} packets, {2} bytes", new Object[] { toString(),
+					cnt, size });
+		}
+
+		// The socket keeps the buffers if it could not write all of them, buffers
+		// wrapping stanza data are bigger than pooled ones and are not pooled
+		if ( !waitingToSend()) {
+			for (ByteBuffer buff : buffs) {
+				BufferPool.release(buff);
+			}
+		}
 	}
 
 	// ~--- set methods ----------------------------------------------------------
@@ -370,7 +459,9 @@ public class XMPPIOService<RefObject> extends IOService<RefObject> {
 		// implemented instead.
 		// readLock.lock();
 		// try {
-		if (isConnected()) {
+		if (isConnected() && parsesBytes()) {
+			processSocketBytes();
+		} else if (isConnected()) {
 			char[] data = readData();
 
 			while (isConnected() && (data != null) && (data.length > 0)) {
@@ -399,8 +490,6 @@ public class XMPPIOService<RefObject> extends IOService<RefObject> {
 				// in normal mode don't even call below code
 				assert debug(new String(data), "--RECEIVED:");
 
-				Element elem = null;
-
 				try {
 					parser.parse(domHandler, data, 0, data.length);
 
@@ -419,29 +508,7 @@ public class XMPPIOService<RefObject> extends IOService<RefObject> {
 						// domHandler = new XMPPDomBuilderHandler<RefObject>(this);
 					}
 
-					Queue<Element> elems = domHandler.getParsedElements();
-
-					if (elems.size() > 0) {
-						readCompleted();
-					}
-
-					while ((elem = elems.poll()) != null) {
-
-						// assert debug(elem.toString() + "\n");
-						// log.finer("Read element: " + elem.getName());
-						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST, "{0}, Read packet: {1}", new Object[] { toString(),
-									elem });
-						}
-
-						// System.out.print(elem.toString());
-						Packet pack = Packet.packetInstance(elem);
-						addReceivedPacket(pack);
-						sendAck(pack);
-					} // end of while ((elem = elems.poll()) != null)
-				} catch (TigaseStringprepException ex) {
-					log.log(Level.INFO, toString() + ", Incorrect to/from JID format for stanza: "
-							+ elem.toString(), ex);
+					addParsedElements();
 				} catch (Exception ex) {
 					log.log(Level.INFO, toString() + ", Incorrect XML data: " + new String(data)
 							+ ", stopping connection: " + getConnectionId() + ", exception: ", ex);
@@ -465,6 +532,84 @@ public class XMPPIOService<RefObject> extends IOService<RefObject> {
 		// }
 	}
 
+	/**
+	 * Returns whether received data is parsed straight from the bytes read from
+	 * the socket. Services which read or check the data in their own way, by
+	 * overriding <code>readData()</code> or <code>checkData()</code>, have to
+	 * return <code>false</code>, the data is decoded to characters for them.
+	 * 
+	 * @return
+	 */
+	protected boolean parsesBytes() {
+		return true;
+	}
+
+	private void addParsedElements() {
+		Queue<Element> elems = domHandler.getParsedElements();
+		Element elem = null;
+
+		if (elems.size() > 0) {
+			readCompleted();
+		}
+
+		try {
+			while ((elem = elems.poll()) != null) {
+
+				// assert debug(elem.toString() + "\n");
+				// log.finer("Read element: " + elem.getName());
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "{0}, Read packet: {1}", new Object[] { toString(),
+							elem });
+				}
+
+				// System.out.print(elem.toString());
+				Packet pack = Packet.packetInstance(elem);
+				addReceivedPacket(pack);
+				sendAck(pack);
+			} // end of while ((elem = elems.poll()) != null)
+		} catch (TigaseStringprepException ex) {
+			log.log(Level.INFO, toString() + ", Incorrect to/from JID format for stanza: "
+					+ elem.toString(), ex);
+		}
+	}
+
+	private void processSocketBytes() throws IOException {
+		if (xmlParser == null) {
+			xmlParser = new UTF8XMLParser();
+		}
+
+		ByteBuffer data = readBytes();
+
+		while (isConnected() && (data != null) && data.hasRemaining()) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0}, READ:\n{1}", new Object[] { toString(),
+						UTF8.decode(data.duplicate()) });
+			}
+
+			try {
+				xmlParser.parse(domHandler, data);
+
+				if (domHandler.parseError()) {
+					log.log(Level.WARNING, "{0}, data parsing error, stopping connection",
+							toString());
+					forceStop();
+
+					return;
+				}
+
+				addParsedElements();
+			} catch (Exception ex) {
+				log.log(Level.INFO, toString() + ", Incorrect XML data, stopping connection: "
+						+ getConnectionId() + ", exception: ", ex);
+				forceStop();
+			} finally {
+				data.clear();
+			}
+
+			data = readBytes();
+		}
+	}
+
 	private void sendAck(Packet packet) {
 		// If stanza receiving confirmation is configured, try to send confirmation
 		// back
@@ -22,12 +22,17 @@
 
 package tigase.xmpp;
 
+import tigase.db.AsyncRepository;
+import tigase.db.RepositoryCallback;
 import tigase.db.TigaseDBException;
 
 import tigase.stats.StatisticsList;
+import tigase.util.SuspendedItem;
+import tigase.util.WorkerThread;
 import tigase.xml.Element;
 
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * <code>XMPPProcessor</code> abstract class contains basic definition for
@@ -200,4 +205,69 @@ public abstract class XMPPProcessor implements XMPPImplIfc {
 	public Element[] supStreamFeatures(final XMPPResourceConnection session) {
 		return null;
 	}
+
+	/**
+	 * Returns the asynchronous repository passed to the plugin in its settings.
+	 *
+	 *
+	 * @param settings
+	 *
+	 * @return the repository or <code>null</code> if it is not available.
+	 */
+	protected AsyncRepository getAsyncRepository(Map<String, Object> settings) {
+		return (settings == null)
+				? null : (AsyncRepository) settings.get(AsyncRepository.ASYNC_REPO_KEY);
+	}
+
+	/**
+	 * Executes the task on the asynchronous repository and suspends processing of
+	 * the current packet until the task completes, then the packet is processed
+	 * by the plugin again. The task usually loads data into the user session, so
+	 * the second run finds it there and does not access the repository. Packets
+	 * of the same user wait for the suspended packet, so their order is kept.
+	 * <p/>
+	 * If the task fails the packet is processed again as well, the plugin then
+	 * accesses the repository synchronously and handles errors as usual.
+	 *
+	 *
+	 * @param settings are the plugin settings passed to <code>process()</code>.
+	 * @param task loads the data needed to process the packet.
+	 *
+	 * @return <code>true</code> if processing has been suspended and the plugin
+	 * must return, <code>false</code> if the packet can not be suspended and the
+	 * plugin has to continue synchronously.
+	 */
+	protected boolean suspendUntilDone(Map<String, Object> settings,
+			final Callable<?> task) {
+		AsyncRepository async_repo = getAsyncRepository(settings);
+
+		if (async_repo == null) {
+			return false;
+		}
+
+		final SuspendedItem suspended = WorkerThread.suspendCurrentItem();
+
+		if (suspended == null) {
+			return false;
+		}
+
+		async_repo.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return task.call();
+			}
+		}, new RepositoryCallback<Object>() {
+			@Override
+			public void done(Object result) {
+				suspended.resume();
+			}
+
+			@Override
+			public void failed(Exception e) {
+				suspended.resume();
+			}
+		});
+
+		return true;
+	}
 }    // XMPPProcessor
@@ -29,13 +29,13 @@ import tigase.db.UserRepository;
 
 import tigase.server.xmppsession.SessionManagerHandler;
 
+import tigase.util.CompactMap;
 import tigase.util.TigaseStringprepException;
 
 import tigase.xml.Element;
 
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -66,6 +66,20 @@ public class XMPPResourceConnection extends RepositoryAccess {
 	public static final String AUTHENTICATION_TIMEOUT_KEY = "authentication-timeout";
 	public static final String ERROR_KEY = "error-key";
 
+	/**
+	 * Key in common session data where the user data prefetched at login is
+	 * kept, so it is shared by all resources of the user.
+	 */
+	public static final String USER_DATA_CACHE_KEY = "user-data-cache";
+
+	/**
+	 * Key in temporary session data, and the field of the stream opened command,
+	 * naming the transport of a connection which is not a plain TCP socket, for
+	 * example <code>websocket</code>. Stream features provided by the transport
+	 * itself, like TLS or compression, are not offered on such connections.
+	 */
+	public static final String TRANSPORT_KEY = "transport";
+
 	private long authenticationTime = 0;
 
 	/**
@@ -95,7 +109,7 @@ public class XMPPResourceConnection extends RepositoryAccess {
 	 * Session temporary data. All data stored in this <code>Map</code> disappear
 	 * when session finishes.
 	 */
-	private Map<String, Object> sessionData = null;
+	private final CompactMap<String, Object> sessionData = new CompactMap<String, Object>();
 
 	/**
 	 * <code>sessionId</code> keeps XMPP stream session ID given at connection
@@ -132,7 +146,6 @@ public class XMPPResourceConnection extends RepositoryAccess {
 		this.loginHandler = loginHandler;
 		this.creationTime = currTime;
 		this.lastAccessed = currTime;
-		sessionData = new ConcurrentHashMap<String, Object>(4, 0.9f);
 	}
 
 	/**
@@ -871,10 +884,28 @@ public class XMPPResourceConnection extends RepositoryAccess {
 		return auth_res;
 	}
 
+	@Override
+	protected UserDataCache getUserDataCache() {
+		UserDataCache cache = (UserDataCache) getCommonSessionData(USER_DATA_CACHE_KEY);
+
+		// Expired data is released, it would only take memory for the session time
+		if ((cache != null) && cache.isExpired()) {
+			removeCommonSessionData(USER_DATA_CACHE_KEY);
+			cache = null;
+		}
+
+		return cache;
+	}
+
 	@Override
 	protected void login() {
 		authenticationTime = System.currentTimeMillis();
 	}
+
+	@Override
+	protected void setUserDataCache(UserDataCache cache) {
+		putCommonSessionData(USER_DATA_CACHE_KEY, cache);
+	}
 } // XMPPResourceConnection
 
 // ~ Formatted in Sun Code Convention
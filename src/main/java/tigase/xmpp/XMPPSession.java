@@ -22,14 +22,14 @@
 
 package tigase.xmpp;
 
+import tigase.util.CompactMap;
 import tigase.util.TigaseStringprepException;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -51,8 +51,14 @@ public class XMPPSession {
 	private static Logger log = Logger.getLogger(XMPPSession.class.getName());
 
 	private CopyOnWriteArrayList<XMPPResourceConnection> activeResources = null;
+
+	/**
+	 * Index of sessions by connection IDs of their resources, shared by all
+	 * sessions of the session manager.
+	 */
+	private ConcurrentMap<JID, XMPPSession> connectionIndex = null;
 	private long creationTime = 0;
-	private Map<String, Object> sessionData = null;
+	private final CompactMap<String, Object> sessionData = new CompactMap<String, Object>();
 
 	/**
 	 * User name - part of user's JID
@@ -68,12 +74,26 @@ public class XMPPSession {
 	 * @param username
 	 */
 	public XMPPSession(final String username) {
-		sessionData = new ConcurrentHashMap<String, Object>();
 		activeResources = new CopyOnWriteArrayList<XMPPResourceConnection>();
 		this.username = username;
 		this.creationTime = System.currentTimeMillis();
 	}
 
+	/**
+	 * Creates a new <code>XMPPSession</code> instance which keeps connection IDs
+	 * of its resources in the given index.
+	 *
+	 *
+	 * @param username
+	 * @param connectionIndex is the map of connection IDs to sessions owning
+	 * them, shared by all sessions.
+	 */
+	public XMPPSession(final String username,
+			ConcurrentMap<JID, XMPPSession> connectionIndex) {
+		this(username);
+		this.connectionIndex = connectionIndex;
+	}
+
 	/**
 	 * This method is called each time the resource is set for connection.
 	 *
@@ -140,6 +160,15 @@ public class XMPPSession {
 		if (old_res == null) {
 			activeResources.add(conn);
 			conn.setParentSession(this);
+
+			if (connectionIndex != null) {
+				try {
+					connectionIndex.put(conn.getConnectionId(), this);
+				} catch (NoConnectionIdException ex) {
+
+					// Nothing to index for a connection without connectionId
+				}
+			}
 		}
 
 		if (log.isLoggable(Level.FINEST)) {
@@ -403,7 +432,16 @@ public class XMPPSession {
 	 * @param conn
 	 */
 	public void removeResourceConnection(XMPPResourceConnection conn) {
-		activeResources.remove(conn);
+		if (activeResources.remove(conn) && (connectionIndex != null)) {
+			try {
+				// The connection ID might have been taken by another session already
+				connectionIndex.remove(conn.getConnectionId(), this);
+			} catch (NoConnectionIdException ex) {
+
+				// Nothing to remove for a connection without connectionId
+			}
+		}
+
 		conn.removeParentSession(null);
 	}
 
@@ -56,6 +56,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -90,6 +91,9 @@ public class JabberIqPrivacy extends XMPPProcessor
 	private static final String PRESENCE_IN_EL_NAME = "presence-in";
 	private static final String PRESENCE_OUT_EL_NAME = "presence-out";
 	private static final String PRESENCE_EL_NAME = "presence";
+	private static final String[] PRIVACY_NODES = { PRIVACY };
+	private static final String PREFETCH_TTL_KEY = "user-data-prefetch-ttl";
+	private static final long PREFETCH_TTL_VAL = 120000;
 	private static RosterAbstract roster_util = RosterFactory.getRosterImplementation(true);
 	private static final Comparator<Element> compar = new Comparator<Element>() {
 		@Override
@@ -206,6 +210,24 @@ public class JabberIqPrivacy extends XMPPProcessor
 			return;
 		}    // end of if (session == null)
 
+		if (session.isAuthorized() && !session.isDataCached(PRIVACY)
+				&& session.isPrefetchSupported()) {
+			final long ttl = (settings.get(PREFETCH_TTL_KEY) != null)
+					? Long.parseLong(settings.get(PREFETCH_TTL_KEY).toString()) : PREFETCH_TTL_VAL;
+
+			// The request is processed again once the privacy lists are loaded
+			if (suspendUntilDone(settings, new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					session.prefetchData(PRIVACY_NODES, ttl);
+
+					return null;
+				}
+			})) {
+				return;
+			}
+		}
+
 		try {
 			StanzaType type = packet.getType();
 
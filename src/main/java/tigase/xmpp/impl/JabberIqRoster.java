@@ -58,6 +58,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -267,6 +268,22 @@ public class JabberIqRoster extends XMPPProcessor implements XMPPProcessorIfc,
 
 			// &&
 			// !session.getUserId().equals(JIDUtils.getNodeID(packet.getElemFrom())))
+			if ( !roster_util.isRosterLoaded(session)) {
+				final XMPPResourceConnection conn = session;
+
+				// The request is processed again once the roster is loaded
+				if (suspendUntilDone(settings, new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						roster_util.loadRoster(conn);
+
+						return null;
+					}
+				})) {
+					return;
+				}
+			}
+
 			StanzaType type = packet.getType();
 			String xmlns = packet.getElement().getXMLNS("/iq/query");
 
@@ -525,6 +542,39 @@ public class JabberIqRoster extends XMPPProcessor implements XMPPProcessorIfc,
 
 				return;
 			}
+
+			// Without a dynamic roster the client may only need the changes made
+			// since its roster version, they are sent as roster pushes
+			if ((its == null) || (its.size() == 0)) {
+				List<Element> changes = roster_util.getRosterChanges(session, incomingHash);
+
+				if (changes != null) {
+					results.offer(packet.okResult((String) null, 0));
+
+					try {
+						for (Element query : changes) {
+							Element iq =
+									new Element("iq", new String[] { "type", "id", "to" }, new String[] {
+											"set", session.nextStanzaId(), session.getJID().toString() });
+
+							iq.setXMLNS(CLIENT_XMLNS);
+							iq.addChild(query);
+
+							Packet rost_res = Packet.packetInstance(iq, null, session.getJID());
+
+							rost_res.setPacketTo(session.getConnectionId());
+							rost_res.setPacketFrom(packet.getTo());
+							results.offer(rost_res);
+						}
+					} catch (NoConnectionIdException ex) {
+						log.log(Level.WARNING,
+								"Problem with roster request, no connection ID for session: {0}, request: {1}",
+								new Object[] { session, packet });
+					}
+
+					return;
+				}
+			}
 		}
 
 		// Retrieve standard roster items.
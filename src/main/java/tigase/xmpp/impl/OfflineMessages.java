@@ -22,15 +22,19 @@
 
 package tigase.xmpp.impl;
 
+import tigase.db.AsyncRepository;
 import tigase.db.MsgRepositoryIfc;
 import tigase.db.NonAuthUserRepository;
+import tigase.db.RepositoryCallback;
 import tigase.db.TigaseDBException;
 import tigase.db.UserNotFoundException;
 
 import tigase.server.Packet;
 
 import tigase.util.DNSResolver;
+import tigase.util.SuspendedItem;
 import tigase.util.TigaseStringprepException;
+import tigase.util.WorkerThread;
 
 import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
@@ -39,6 +43,7 @@ import tigase.xml.SingletonFactory;
 
 import tigase.xmpp.JID;
 import tigase.xmpp.NotAuthorizedException;
+import tigase.xmpp.ResumeHandlerIfc;
 import tigase.xmpp.StanzaType;
 import tigase.xmpp.XMPPPostprocessorIfc;
 import tigase.xmpp.XMPPProcessor;
@@ -53,6 +58,7 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -156,8 +162,13 @@ public class OfflineMessages extends XMPPProcessor implements XMPPPostprocessorI
 			final NonAuthUserRepository repo, final Queue<Packet> results,
 			final Map<String, Object> settings) throws NotAuthorizedException {
 		if (loadOfflineMessages(packet, conn)) {
+			MsgRepositoryIfc msg_repo = getMsgRepoImpl(repo, conn);
+
+			if (restoreAsync(conn, msg_repo, settings)) {
+				return;
+			}
+
 			try {
-				MsgRepositoryIfc msg_repo = getMsgRepoImpl(repo, conn);
 				Queue<Packet> packets = restorePacketForOffLineUser(conn, msg_repo);
 
 				if (packets != null) {
@@ -352,6 +363,60 @@ public class OfflineMessages extends XMPPProcessor implements XMPPPostprocessorI
 		return false;
 	}
 
+	/**
+	 * Loads the messages on the asynchronous repository, the presence packet is
+	 * suspended meanwhile so later packets of the user are not processed before
+	 * the messages are sent.
+	 */
+	private boolean restoreAsync(final XMPPResourceConnection conn,
+			final MsgRepositoryIfc msg_repo, Map<String, Object> settings) {
+		AsyncRepository async_repo = getAsyncRepository(settings);
+
+		if (async_repo == null) {
+			return false;
+		}
+
+		final SuspendedItem suspended = WorkerThread.suspendCurrentItem();
+
+		if (suspended == null) {
+			return false;
+		}
+
+		async_repo.submit(new Callable<Queue<Packet>>() {
+			@Override
+			public Queue<Packet> call() throws Exception {
+				return restorePacketForOffLineUser(conn, msg_repo);
+			}
+		}, new RepositoryCallback<Queue<Packet>>() {
+			@Override
+			public void done(final Queue<Packet> packets) {
+				suspended.resume(new ResumeHandlerIfc() {
+					@Override
+					public void resume(Queue<Packet> results) {
+						if (packets != null) {
+							if (log.isLoggable(Level.FINER)) {
+								log.finer("Sending off-line messages: " + packets.size());
+							}
+
+							results.addAll(packets);
+						}
+					}
+				});
+			}
+
+			@Override
+			public void failed(Exception e) {
+				log.info("Something wrong, DB problem, cannot load offline messages. " + e);
+
+				// Messages are loaded only once per session, processing it again does
+				// nothing
+				suspended.resume();
+			}
+		});
+
+		return true;
+	}
+
 	// ~--- inner classes --------------------------------------------------------
 
 	private class MsgRepositoryImpl implements MsgRepositoryIfc {
@@ -103,6 +103,9 @@ public class Presence extends XMPPProcessor implements XMPPProcessorIfc,
 	public static final String OFFLINE_ROSTER_LAST_SEEN_PROP_KEY =
 			"offline-roster-last-seen";
 	public static final String PRESENCE_GLOBAL_FORWARD = "presence-global-forward";
+
+	/** Field description */
+	public static final String VCARD_PHOTO_HASH_PROP_KEY = "vcard-photo-hash";
 	protected static final String XMLNS = CLIENT_XMLNS;
 	public static final String USERS_STATUS_CHANGES = "Users status changes";
 
@@ -132,6 +135,7 @@ public class Presence extends XMPPProcessor implements XMPPProcessorIfc,
 	private long usersStatusChanges = 0;
 	private String[] offlineRosterLastSeen = null;
 	private JID presenceGLobalForward = null;
+	private boolean vcardPhotoHash = true;
 
 	// ~--- methods --------------------------------------------------------------
 
@@ -784,6 +788,10 @@ public class Presence extends XMPPProcessor implements XMPPProcessorIfc,
 				log.warning("Presence global forward misconfiguration, cannot parse JID " + tmp);
 			}
 		}
+		tmp = (String) settings.get(VCARD_PHOTO_HASH_PROP_KEY);
+		if (tmp != null) {
+			vcardPhotoHash = Boolean.parseBoolean(tmp);
+		}
 	}
 
 	/**
@@ -1501,6 +1509,12 @@ public class Presence extends XMPPProcessor implements XMPPProcessorIfc,
 			// packet.getElement().setAttribute("from", jid.toString());
 			packet.initVars(session.getJID(), packet.getStanzaTo());
 
+			// Let contacts know the avatar hash, XEP-0153
+			if (vcardPhotoHash
+					&& ((packet.getType() == null) || (packet.getType() == StanzaType.available))) {
+				VCardTemp.addPhotoHash(session, packet.getElement());
+			}
+
 			// Store user presence for later time...
 			// To send response to presence probes for example.
 			session.setPresence(packet.getElement());
@@ -174,8 +174,9 @@ public class StartTLS extends XMPPProcessor implements XMPPProcessorIfc {
 	public Element[] supStreamFeatures(final XMPPResourceConnection session) {
 
 		// If session does not exist, just return null, we don't provide features
-		// for non-existen stream
-		if ((session != null) && (session.getSessionData(ID) == null)) {
+		// for non-existen stream. Transports like WebSocket handle TLS themselves.
+		if ((session != null) && (session.getSessionData(ID) == null)
+				&& (session.getSessionData(XMPPResourceConnection.TRANSPORT_KEY) == null)) {
 			if ((session.getSessionData(TLS_REQUIRED_KEY) != null)
 					&& session.getSessionData(TLS_REQUIRED_KEY).equals("true")) {
 				return F_REQUIRED;
@@ -170,7 +170,9 @@ public class StartZLib extends XMPPProcessor implements XMPPProcessorIfc {
 		// for non-existen stream
 		// We also do not want to provide compression if it is already started
 		// and the compression has to be available after TLS has been completed.
-		if ((session != null) && (session.getSessionData(ID) == null)) {
+		// Transports like WebSocket handle compression themselves.
+		if ((session != null) && (session.getSessionData(ID) == null)
+				&& (session.getSessionData(XMPPResourceConnection.TRANSPORT_KEY) == null)) {
 
 //    && session.getSessionData(StartTLS.ID) != null) {
 			return FEATURES;
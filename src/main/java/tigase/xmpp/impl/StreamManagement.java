@@ -0,0 +1,318 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.xmpp.impl;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.db.NonAuthUserRepository;
+import tigase.db.TigaseDBException;
+
+import tigase.server.Command;
+import tigase.server.Packet;
+
+import tigase.xml.Element;
+
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+import tigase.xmpp.NoConnectionIdException;
+import tigase.xmpp.NotAuthorizedException;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.XMPPException;
+import tigase.xmpp.XMPPProcessor;
+import tigase.xmpp.XMPPProcessorIfc;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.XMPPStopListenerIfc;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * XEP-0198: Stream Management, session resumption part. The plugin only keeps
+ * track of resumable sessions and validates resumption requests, stanza
+ * counting, acknowledgements and buffering of unacknowledged stanzas are done
+ * by the client connection manager which owns the connection. When a client
+ * resumes, the plugin sends <code>STREAM_MOVED</code> command to the
+ * connection manager which moves the old session state to the new connection.
+ * The old user session stays bound in the session manager all the time, so no
+ * roster, presence or database work is needed to reattach it.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class StreamManagement extends XMPPProcessor implements XMPPProcessorIfc,
+		XMPPStopListenerIfc {
+
+	/** Field description */
+	public static final String XMLNS = "urn:xmpp:sm:3";
+
+	/** Field description */
+	public static final String RESUMPTION_TIMEOUT_PROP_KEY = "resumption-timeout";
+
+	/** Field description */
+	public static final int RESUMPTION_TIMEOUT_PROP_VAL = 60;
+	private static final Logger log = Logger.getLogger(StreamManagement.class.getName());
+	private static final String ID = XMLNS;
+	private static final String[] ELEMENTS = { "enable", "resume" };
+	private static final String[] XMLNSS = { XMLNS, XMLNS };
+	private static final Element[] FEATURES = { new Element("sm", new String[] { "xmlns" },
+			new String[] { XMLNS }) };
+	private static final String STANZAS_XMLNS = "urn:ietf:params:xml:ns:xmpp-stanzas";
+
+	//~--- fields ---------------------------------------------------------------
+
+	private int resumptionTimeout = RESUMPTION_TIMEOUT_PROP_VAL;
+	private final Map<String, Resumable> resumables = new ConcurrentHashMap<String,
+			Resumable>();
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	@Override
+	public String id() {
+		return ID;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param settings
+	 *
+	 * @throws TigaseDBException
+	 */
+	@Override
+	public void init(Map<String, Object> settings) throws TigaseDBException {
+		if (settings.get(RESUMPTION_TIMEOUT_PROP_KEY) != null) {
+			resumptionTimeout = Integer.parseInt(settings.get(RESUMPTION_TIMEOUT_PROP_KEY)
+					.toString());
+		}
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param packet
+	 * @param session
+	 * @param repo
+	 * @param results
+	 * @param settings
+	 *
+	 * @throws XMPPException
+	 */
+	@Override
+	public void process(Packet packet, XMPPResourceConnection session,
+			NonAuthUserRepository repo, Queue<Packet> results, Map<String, Object> settings)
+			throws XMPPException {
+		if (session == null) {
+			return;
+		}
+
+		if (packet.isElement("enable", XMLNS)) {
+			processEnable(packet, session, results);
+		} else if (packet.isElement("resume", XMLNS)) {
+			processResume(packet, session, results);
+		}
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param session
+	 * @param results
+	 * @param settings
+	 */
+	@Override
+	public void stopped(XMPPResourceConnection session, Queue<Packet> results,
+			Map<String, Object> settings) {
+		if (session == null) {
+			return;
+		}
+
+		String id = (String) session.getSessionData(ID);
+
+		if (id != null) {
+			Resumable resumable = resumables.get(id);
+
+			try {
+				if ((resumable != null)
+						&& resumable.connectionId.equals(session.getConnectionId())) {
+					resumables.remove(id);
+				}
+			} catch (NoConnectionIdException e) {
+				resumables.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	@Override
+	public String[] supElements() {
+		return ELEMENTS;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	@Override
+	public String[] supNamespaces() {
+		return XMLNSS;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param session
+	 *
+	 * @return
+	 */
+	@Override
+	public Element[] supStreamFeatures(final XMPPResourceConnection session) {
+
+		// Stream management may be enabled or resumed only after authentication
+		if ((session != null) && session.isAuthorized()) {
+			return FEATURES;
+		} else {
+			return null;
+		}
+	}
+
+	private Element failed(String condition) {
+		Element failed = new Element("failed", new String[] { "xmlns" }, new String[] {
+				XMLNS });
+
+		failed.addChild(new Element(condition, new String[] { "xmlns" }, new String[] {
+				STANZAS_XMLNS }));
+
+		return failed;
+	}
+
+	private void processEnable(Packet packet, XMPPResourceConnection session,
+			Queue<Packet> results)
+			throws NoConnectionIdException, NotAuthorizedException {
+
+		// Stanzas may be counted only after the resource has been bound and only
+		// once for the stream
+		if ( !session.isResourceSet() || (session.getSessionData(ID) != null)) {
+			results.offer(packet.swapFromTo(failed("unexpected-request"), null, null));
+
+			return;
+		}
+
+		Element enabled = new Element("enabled", new String[] { "xmlns" }, new String[] {
+				XMLNS });
+
+		if ("true".equals(packet.getElement().getAttribute("resume"))
+				&& (resumptionTimeout > 0)) {
+			String id = UUID.randomUUID().toString();
+
+			resumables.put(id, new Resumable(session.getBareJID(), session.getConnectionId()));
+			session.putSessionData(ID, id);
+			enabled.setAttribute("id", id);
+			enabled.setAttribute("resume", "true");
+			enabled.setAttribute("max", String.valueOf(resumptionTimeout));
+		} else {
+			session.putSessionData(ID, "");
+		}
+
+		results.offer(packet.swapFromTo(enabled, null, null));
+	}
+
+	private void processResume(Packet packet, XMPPResourceConnection session,
+			Queue<Packet> results)
+			throws NotAuthorizedException {
+
+		// The session is resumed instead of binding a new resource
+		if ( !session.isAuthorized() || session.isResourceSet()) {
+			results.offer(packet.swapFromTo(failed("unexpected-request"), null, null));
+
+			return;
+		}
+
+		String previd = packet.getElement().getAttribute("previd");
+		String h = packet.getElement().getAttribute("h");
+		Resumable resumable = (previd == null) ? null : resumables.get(previd);
+
+		if ((resumable == null) ||!resumable.user.equals(session.getBareJID())) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Session to resume not found: {0}, for: {1}", new Object[] {
+						previd,
+						session });
+			}
+
+			results.offer(packet.swapFromTo(failed("item-not-found"), null, null));
+
+			return;
+		}
+
+		Packet command = Command.STREAM_MOVED.getPacket(packet.getTo(), packet.getFrom(),
+				StanzaType.set, session.nextStanzaId());
+
+		Command.addFieldValue(command, "old-conn-id", resumable.connectionId.toString());
+		Command.addFieldValue(command, "h", (h == null) ? "0" : h);
+		results.offer(command);
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	private static class Resumable {
+		private JID connectionId = null;
+		private BareJID user = null;
+
+		//~--- constructors -------------------------------------------------------
+
+		private Resumable(BareJID user, JID connectionId) {
+			this.user = user;
+			this.connectionId = connectionId;
+		}
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
@@ -0,0 +1,245 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.xmpp.impl;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.xml.Element;
+
+import tigase.xmpp.BareJID;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Cache of parsed vCards of local users, so a vCard request does not have to
+ * read the vCard from the repository and parse it again. Users without a vCard
+ * are cached as well. The cache is bounded by the approximate memory used by
+ * the cached vCards, the least recently used ones are evicted first. Entries
+ * expire after a configured time, which limits how long a vCard changed on
+ * another cluster node may be served from the cache.
+ * <p/>
+ * Cached elements are shared and must not be modified, they have to be cloned
+ * before they are put into a packet.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class VCardCache {
+
+	// Approximate memory of an entry apart from the vCard itself
+	private static final int ENTRY_OVERHEAD = 128;
+
+	//~--- fields ---------------------------------------------------------------
+
+	private final LinkedHashMap<BareJID, Entry> entries = new LinkedHashMap<BareJID,
+			Entry>(1000, 0.75f, true);
+	private long evictions = 0;
+	private long hits = 0;
+	private long maxSize = 0;
+	private long misses = 0;
+	private long size = 0;
+	private long ttl = 0;
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Constructs ...
+	 *
+	 *
+	 * @param maxSize is the maximum memory in bytes used by cached vCards.
+	 * @param ttl is the time in milliseconds after which an entry expires.
+	 */
+	public VCardCache(long maxSize, long ttl) {
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Returns the cache entry for the user.
+	 *
+	 *
+	 * @param jid
+	 *
+	 * @return the entry or <code>null</code> if the vCard of the user is not
+	 * cached.
+	 */
+	public synchronized Entry get(BareJID jid) {
+		Entry entry = entries.get(jid);
+
+		if ((entry != null) && (System.currentTimeMillis() - entry.created > ttl)) {
+			remove(jid);
+			entry = null;
+		}
+
+		if (entry == null) {
+			++misses;
+		} else {
+			++hits;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the approximate memory in bytes used by cached vCards.
+	 *
+	 *
+	 * @return
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	//~--- methods --------------------------------------------------------------
+
+	/**
+	 * Caches the vCard of the user.
+	 *
+	 *
+	 * @param jid
+	 * @param vcard is the parsed vCard, <code>null</code> if the user has no
+	 * vCard.
+	 * @param length is the length of the serialized vCard.
+	 *
+	 * @return the new cache entry.
+	 */
+	public synchronized Entry put(BareJID jid, Element vcard, int length) {
+
+		// Characters take 2 bytes and the DOM roughly doubles it again
+		Entry entry = new Entry(vcard, ENTRY_OVERHEAD + length * 4L);
+
+		if (entry.size > maxSize) {
+			remove(jid);
+
+			return entry;
+		}
+
+		Entry old = entries.put(jid, entry);
+
+		if (old != null) {
+			size -= old.size;
+		}
+
+		size += entry.size;
+
+		Iterator<Map.Entry<BareJID, Entry>> it = entries.entrySet().iterator();
+
+		while ((size > maxSize) && it.hasNext()) {
+			Entry eldest = it.next().getValue();
+
+			it.remove();
+			size -= eldest.size;
+			++evictions;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Removes the vCard of the user from the cache.
+	 *
+	 *
+	 * @param jid
+	 */
+	public synchronized void remove(BareJID jid) {
+		Entry old = entries.remove(jid);
+
+		if (old != null) {
+			size -= old.size;
+		}
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	/**
+	 * Cached vCard of a user.
+	 */
+	public static class Entry {
+		private long created = System.currentTimeMillis();
+		private long size = 0;
+		private Element vcard = null;
+
+		//~--- constructors -------------------------------------------------------
+
+		private Entry(Element vcard, long size) {
+			this.vcard = vcard;
+			this.size = size;
+		}
+
+		//~--- get methods --------------------------------------------------------
+
+		/**
+		 * Returns the cached vCard, which must not be modified.
+		 *
+		 *
+		 * @return the vCard or <code>null</code> if the user has no vCard.
+		 */
+		public Element getVCard() {
+			return vcard;
+		}
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
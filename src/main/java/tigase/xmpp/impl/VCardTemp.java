@@ -30,12 +30,17 @@ import tigase.db.UserNotFoundException;
 
 import tigase.server.Packet;
 
+import tigase.stats.StatisticsList;
+
+import tigase.util.Base64;
+
 import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
 import tigase.xml.SimpleParser;
 import tigase.xml.SingletonFactory;
 
 import tigase.xmpp.Authorization;
+import tigase.xmpp.BareJID;
 import tigase.xmpp.JID;
 import tigase.xmpp.NoConnectionIdException;
 import tigase.xmpp.NotAuthorizedException;
@@ -46,6 +51,9 @@ import tigase.xmpp.XMPPResourceConnection;
 
 //~--- JDK imports ------------------------------------------------------------
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import java.util.Map;
 import java.util.Queue;
 import java.util.logging.Level;
@@ -55,6 +63,11 @@ import java.util.logging.Logger;
 
 /**
  * Describe class VCardTemp here.
+ * <p/>
+ * vCards of local users are served from <code>VCardCache</code>. When a vCard
+ * is stored SHA-1 hash of its photo is stored too and added to presences sent
+ * by the user as <code>vcard-temp:x:update</code> (XEP-0153), so contacts know
+ * when the avatar has changed and do not have to request the vCard again.
  * 
  * 
  * Created: Thu Oct 19 23:37:23 2006
@@ -67,6 +80,21 @@ public class VCardTemp extends XMPPProcessorAbstract {
 	/** Field description */
 	public static final String VCARD_KEY = "vCard";
 
+	/** Field description */
+	public static final String PHOTO_HASH_KEY = "photo-hash";
+
+	/** Field description */
+	public static final String CACHE_SIZE_PROP_KEY = "cache-size";
+
+	/** Field description */
+	public static final long CACHE_SIZE_PROP_VAL = 10 * 1024 * 1024;
+
+	/** Field description */
+	public static final String CACHE_TTL_PROP_KEY = "cache-ttl";
+
+	/** Field description */
+	public static final long CACHE_TTL_PROP_VAL = 10 * 60;
+
 	/**
 	 * Private logger for class instances.
 	 */
@@ -81,6 +109,13 @@ public class VCardTemp extends XMPPProcessorAbstract {
 	private static final Element[] DISCO_FEATURES = { new Element("feature",
 			new String[] { "var" }, new String[] { XMLNS }) };
 	private static final SimpleParser parser = SingletonFactory.getParserInstance();
+	private static final String UPDATE_XMLNS = "vcard-temp:x:update";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	// ~--- fields ---------------------------------------------------------------
+
+	private VCardCache cache = new VCardCache(CACHE_SIZE_PROP_VAL, CACHE_TTL_PROP_VAL
+			* 1000);
 
 	// ~--- methods --------------------------------------------------------------
 
@@ -97,6 +132,89 @@ public class VCardTemp extends XMPPProcessorAbstract {
 		return ID;
 	}
 
+	/**
+	 * Method description
+	 * 
+	 * 
+	 * @param settings
+	 * 
+	 * @throws TigaseDBException
+	 */
+	@Override
+	public void init(Map<String, Object> settings) throws TigaseDBException {
+		long cacheSize = CACHE_SIZE_PROP_VAL;
+		long cacheTtl = CACHE_TTL_PROP_VAL;
+
+		if (settings.get(CACHE_SIZE_PROP_KEY) != null) {
+			cacheSize = Long.parseLong(settings.get(CACHE_SIZE_PROP_KEY).toString());
+		}
+
+		if (settings.get(CACHE_TTL_PROP_KEY) != null) {
+			cacheTtl = Long.parseLong(settings.get(CACHE_TTL_PROP_KEY).toString());
+		}
+
+		cache = new VCardCache(cacheSize, cacheTtl * 1000);
+	}
+
+	/**
+	 * Method description
+	 * 
+	 * 
+	 * @param list
+	 */
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+		list.add(id(), "vCard cache size", cache.getSize(), Level.FINE);
+		list.add(id(), "vCard cache hits", cache.getHits(), Level.FINE);
+		list.add(id(), "vCard cache misses", cache.getMisses(), Level.FINE);
+		list.add(id(), "vCard cache evictions", cache.getEvictions(), Level.FINER);
+	}
+
+	/**
+	 * Adds XEP-0153 photo hash of the user avatar to the presence, unless the
+	 * presence contains it already.
+	 * 
+	 * 
+	 * @param session
+	 * @param presence
+	 * 
+	 * @throws NotAuthorizedException
+	 * @throws TigaseDBException
+	 */
+	public static void addPhotoHash(XMPPResourceConnection session, Element presence)
+			throws NotAuthorizedException, TigaseDBException {
+		if (session.isAnonymous() || (presence.getChild("x", UPDATE_XMLNS) != null)) {
+			return;
+		}
+
+		String hash = (String) session.getCommonSessionData(PHOTO_HASH_KEY);
+
+		if (hash == null) {
+			hash = session.getPublicData(ID, PHOTO_HASH_KEY, null);
+
+			if (hash == null) {
+
+				// vCard stored before photo hashes were introduced
+				String strvCard = session.getPublicData(ID, VCARD_KEY, null);
+				Element vcard = (strvCard == null) ? null : parseVCard(strvCard);
+
+				hash = (vcard == null) ? "" : calculatePhotoHash(vcard);
+				session.setPublicData(ID, PHOTO_HASH_KEY, hash);
+			}
+
+			session.putCommonSessionData(PHOTO_HASH_KEY, hash);
+		}
+
+		Element x = new Element("x");
+
+		x.setXMLNS(UPDATE_XMLNS);
+
+		// Empty photo element means the user has no avatar
+		x.addChild((hash.length() == 0) ? new Element("photo") : new Element("photo", hash));
+		presence.addChild(x);
+	}
+
 	/**
 	 * Method description
 	 * 
@@ -120,13 +238,28 @@ public class VCardTemp extends XMPPProcessorAbstract {
 
 				switch (packet.getType()) {
 					case get:
-						String strvCard = session.getPublicData(ID, VCARD_KEY, null);
+						VCardCache.Entry entry = null;
 
-						if (strvCard != null) {
-							result = parseXMLData(strvCard, packet);
+						if ( !session.isAnonymous()) {
+							entry = cache.get(session.getBareJID());
+						}
+
+						Element vcard = null;
+
+						if (entry != null) {
+							vcard = entry.getVCard();
 						} else {
-							result = packet.okResult((String) null, 1);
-						} // end of if (vcard != null) else
+							String strvCard = session.getPublicData(ID, VCARD_KEY, null);
+
+							vcard = (strvCard == null) ? null : parseVCard(strvCard);
+
+							if ( !session.isAnonymous()) {
+								cache.put(session.getBareJID(), vcard, (strvCard == null) ? 0 : strvCard
+										.length());
+							}
+						}
+
+						result = vCardResult(vcard, packet);
 
 						break;
 
@@ -154,6 +287,12 @@ public class VCardTemp extends XMPPProcessorAbstract {
 							session.removePublicData(ID, VCARD_KEY);
 						} // end of else
 
+						String hash = (elvCard == null) ? "" : calculatePhotoHash(elvCard);
+
+						session.setPublicData(ID, PHOTO_HASH_KEY, hash);
+						session.putCommonSessionData(PHOTO_HASH_KEY, hash);
+						cache.remove(session.getBareJID());
+
 						result = packet.okResult((String) null, 0);
 
 						break;
@@ -209,14 +348,8 @@ public class VCardTemp extends XMPPProcessorAbstract {
 			throws PacketErrorTypeException {
 		if (packet.getType() == StanzaType.get) {
 			try {
-				String strvCard =
-						repo.getPublicData(packet.getStanzaTo().getBareJID(), ID, VCARD_KEY, null);
-
-				if (strvCard != null) {
-					results.offer(parseXMLData(strvCard, packet));
-				} else {
-					results.offer(packet.okResult((String) null, 1));
-				} // end of if (vcard != null)
+				results.offer(vCardResult(getVCard(packet.getStanzaTo().getBareJID(), repo),
+						packet));
 			} catch (UserNotFoundException e) {
 				results.offer(Authorization.ITEM_NOT_FOUND.getResponseMessage(packet,
 						"User not found", true));
@@ -236,15 +369,9 @@ public class VCardTemp extends XMPPProcessorAbstract {
 		if (session.isLocalDomain(packet.getStanzaTo().getDomain(), false)) {
 			// This is a local user so we can quickly get his vCard from the database
 			try {
-				String strvCard =
-						repo.getPublicData(packet.getStanzaTo().getBareJID(), ID, VCARD_KEY, null);
+				Packet result = vCardResult(getVCard(packet.getStanzaTo().getBareJID(), repo),
+						packet);
 
-				Packet result = null;
-				if (strvCard != null) {
-					result = parseXMLData(strvCard, packet);
-				} else {
-					result = packet.okResult((String) null, 1);
-				} // end of if (vcard != null)
 				result.setPacketTo(connectionId);
 				results.offer(result);
 			} catch (UserNotFoundException e) {
@@ -345,20 +472,72 @@ public class VCardTemp extends XMPPProcessorAbstract {
 		return XMLNSS;
 	}
 
-	private Packet parseXMLData(String data, Packet packet) {
+	private static String calculatePhotoHash(Element vcard) {
+		Element photo = vcard.getChild("PHOTO");
+
+		if (photo == null) {
+			photo = vcard.getChild("photo");
+		}
+
+		Element elem = (photo == null) ? null : photo.getChild("BINVAL");
+		String binval = (elem == null) ? null : elem.getCData();
+
+		if ((binval == null) || (binval.trim().length() == 0)) {
+			return "";
+		}
+
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] digest = md.digest(Base64.decode(binval.replaceAll("\\s", "")));
+			char[] result = new char[digest.length * 2];
+
+			for (int i = 0; i < digest.length; i++) {
+				result[i * 2] = HEX[(digest[i] >> 4) & 0x0F];
+				result[i * 2 + 1] = HEX[digest[i] & 0x0F];
+			}
+
+			return new String(result);
+		} catch (NoSuchAlgorithmException e) {
+			log.log(Level.WARNING, "SHA-1 is not available, photo hash is not calculated", e);
+
+			return "";
+		}
+	}
+
+	private static Element parseVCard(String data) {
 		DomBuilderHandler domHandler = new DomBuilderHandler();
 
 		parser.parse(domHandler, data.toCharArray(), 0, data.length());
 
-		Queue<Element> elems = domHandler.getParsedElements();
+		return domHandler.getParsedElements().poll();
+	}
+
+	private Element getVCard(BareJID jid, NonAuthUserRepository repo)
+			throws UserNotFoundException {
+		VCardCache.Entry entry = cache.get(jid);
+
+		if (entry == null) {
+			String strvCard = repo.getPublicData(jid, ID, VCARD_KEY, null);
+
+			entry = cache.put(jid, (strvCard == null) ? null : parseVCard(strvCard),
+					(strvCard == null) ? 0 : strvCard.length());
+		}
+
+		return entry.getVCard();
+	}
+
+	private Packet vCardResult(Element vcard, Packet packet) {
+		if (vcard == null) {
+			return packet.okResult((String) null, 1);
+		}
+
 		Packet result = packet.okResult((Element) null, 0);
 
 		result.setPacketFrom(null);
 		result.setPacketTo(null);
 
-		for (Element el : elems) {
-			result.getElement().addChild(el);
-		} // end of for (Element el: elems)
+		// The cached vCard is shared, packets get their own copy
+		result.getElement().addChild(vcard.clone());
 
 		return result;
 	}
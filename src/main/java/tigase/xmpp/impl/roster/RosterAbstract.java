@@ -735,6 +735,27 @@ public abstract class RosterAbstract {
 		return (hash != null ? hash : "");
 	}
 
+	/**
+	 * Returns roster changes made since the given roster version, as
+	 * <code>query</code> elements of roster pushes, each of them with a single
+	 * item and the roster version after the change. Removed items have
+	 * <code>remove</code> subscription.
+	 * 
+	 * 
+	 * @param session
+	 * @param ver is the roster version known to the client.
+	 * 
+	 * @return the changes ordered by version or <code>null</code> if changes
+	 *         since the version are not known and the full roster has to be sent.
+	 * 
+	 * @throws NotAuthorizedException
+	 * @throws TigaseDBException
+	 */
+	public List<Element> getRosterChanges(final XMPPResourceConnection session, String ver)
+			throws NotAuthorizedException, TigaseDBException {
+		return null;
+	}
+
 	/**
 	 * Method description
 	 * 
@@ -946,8 +967,37 @@ public abstract class RosterAbstract {
 	public void init(UserRepository repo) throws TigaseDBException, TigaseDBException {
 	}
 
+	/**
+	 * Loads the user roster into the session, so later roster operations do not
+	 * access the repository. It is safe to call it from any thread.
+	 * Implementations which do not keep the roster in the session do nothing.
+	 * 
+	 * 
+	 * @param session
+	 * 
+	 * @throws NotAuthorizedException
+	 * @throws TigaseDBException
+	 */
+	public void loadRoster(XMPPResourceConnection session) throws NotAuthorizedException,
+			TigaseDBException {
+	}
+
 	// ~--- get methods ----------------------------------------------------------
 
+	/**
+	 * Checks whether the user roster is loaded in the session, see
+	 * <code>loadRoster()</code>.
+	 * 
+	 * 
+	 * @param session
+	 * 
+	 * @return <code>true</code> also for implementations which do not keep the
+	 * roster in the session.
+	 */
+	public boolean isRosterLoaded(XMPPResourceConnection session) {
+		return true;
+	}
+
 	/**
 	 * Method description
 	 * 
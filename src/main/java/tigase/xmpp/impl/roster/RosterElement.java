@@ -66,6 +66,7 @@ public class RosterElement implements RosterElementIfc {
 	private static final String ACTIVITY_ATT = "activity";
 	private static final String WEIGHT_ATT = "weight";
 	private static final String LAST_SEEN_ATT = "last-seen";
+	private static final String VERSION_ATT = "ver";
 
 	private static final double INITIAL_ACTIVITY_VAL = 1d;
 	private static final double INITIAL_WEIGHT_VAL = 1d;
@@ -80,6 +81,7 @@ public class RosterElement implements RosterElementIfc {
 	private long lastSeen = INITIAL_LAST_SEEN_VAL;
 	private double activity = INITIAL_ACTIVITY_VAL;
 	private double weight = INITIAL_WEIGHT_VAL;
+	private long version = 0;
 	private XMPPResourceConnection session = null;
 	private String stringpreped = null;
 	private SubscriptionType subscription = null;
@@ -158,6 +160,16 @@ public class RosterElement implements RosterElementIfc {
 				}
 			}
 
+			num_str = roster_el.getAttribute(VERSION_ATT);
+			if (num_str != null) {
+				try {
+					version = Long.parseLong(num_str);
+				} catch (NumberFormatException nfe) {
+					log.warning("Incorrect version field: " + num_str);
+					version = 0;
+				}
+			}
+
 		} else {
 			log.warning("Incorrect roster data: " + roster_el.toString());
 		}
@@ -287,6 +299,10 @@ public class RosterElement implements RosterElementIfc {
 		elem.setAttribute(WEIGHT_ATT, Double.toString(weight));
 		elem.setAttribute(LAST_SEEN_ATT, Long.toString(lastSeen));
 
+		if (version > 0) {
+			elem.setAttribute(VERSION_ATT, Long.toString(version));
+		}
+
 		modified = false;
 
 		return elem;
@@ -537,4 +553,20 @@ public class RosterElement implements RosterElementIfc {
 		modified = true;
 	}
 
+	/**
+	 * @return the roster version in which the element was last changed
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param version
+	 *          the roster version in which the element was changed
+	 */
+	public void setVersion(long version) {
+		this.version = version;
+		modified = true;
+	}
+
 }
@@ -38,14 +38,16 @@ import tigase.xmpp.XMPPResourceConnection;
 
 //~--- JDK imports ------------------------------------------------------------
 
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -70,6 +72,15 @@ public class RosterFlat extends RosterAbstract {
 	private static int maxRosterSize = new Long(Runtime.getRuntime().maxMemory() / 250000L)
 			.intValue();
 
+	/** Field description */
+	public static final String ROSTER_SNAPSHOT = "roster-snapshot";
+
+	/** Field description */
+	public static final String ROSTER_REMOVED = "roster-removed";
+
+	// Number of removed items remembered for roster versioning
+	private static final int MAX_REMOVED_ITEMS = 100;
+
 	// ~--- methods --------------------------------------------------------------
 
 	/**
@@ -96,6 +107,7 @@ public class RosterFlat extends RosterAbstract {
 		RosterElement relem = getRosterElementInstance(buddy, null, null, session);
 		relem.setPersistent(false);
 		addBuddy(relem, getUserRoster(session));
+		rosterModified(session);
 		return relem;
 	}
 
@@ -164,6 +176,7 @@ public class RosterFlat extends RosterAbstract {
 			relem.setOtherData(otherData);
 
 			if (addBuddy(relem, roster)) {
+				itemChanged(session, relem);
 				saveUserRoster(session);
 			} else {
 				throw new TigaseDBException("Too many elements in the user roster.");
@@ -185,6 +198,7 @@ public class RosterFlat extends RosterAbstract {
 			relem.setGroups(groups);
 
 			// }
+			itemChanged(session, relem);
 			saveUserRoster(session);
 
 			if (log.isLoggable(Level.FINEST)) {
@@ -214,11 +228,15 @@ public class RosterFlat extends RosterAbstract {
 
 		if (relem != null) {
 			relem.addGroups(groups);
+			rosterModified(session);
 
 			// Intentionally not saving the roster here.
 			// At the moment it is only used to combine dynamic roster with the
 			// static roster in case a contact exist in both but in a different
 			// group.
+			// For the same reason the roster version is not changed, it must be
+			// derived from the stored roster on the next load. Sessions with a
+			// dynamic roster use the roster content hash instead.
 			return true;
 		} else {
 			return false;
@@ -263,22 +281,9 @@ public class RosterFlat extends RosterAbstract {
 			public
 			JID[] getBuddies(XMPPResourceConnection session) throws NotAuthorizedException,
 					TigaseDBException {
-		Map<BareJID, RosterElement> roster = getUserRoster(session);
-		
-		if (roster.size() == 0) {
-			return null;
-		}
-		
-		JID[] result = new JID[roster.size()];
-		int idx = 0;
-
-		for (RosterElement rosterElement : roster.values()) {
-			result[idx++] = rosterElement.getJid();
-		}
-		// TODO: this sorting should be optional as it may impact performance
-		Arrays.sort(result, new RosterElemComparator(roster));
+		JID[] result = getRosterSnapshot(session).getBuddies();
 
-		return result;
+		return (result.length == 0) ? null : result;
 
 		// if (onlineOnly) {
 		// ArrayList<String> online = new ArrayList<String>();
@@ -292,6 +297,31 @@ public class RosterFlat extends RosterAbstract {
 		// }
 	}
 
+	/**
+	 * Method description
+	 * 
+	 * 
+	 * @param session
+	 * @param subscrs
+	 * 
+	 * @return
+	 * 
+	 * @throws NotAuthorizedException
+	 * @throws TigaseDBException
+	 */
+	@Override
+	public JID[] getBuddies(XMPPResourceConnection session,
+			EnumSet<SubscriptionType> subscrs) throws NotAuthorizedException,
+			TigaseDBException {
+		RosterSnapshot snapshot = getRosterSnapshot(session);
+
+		if (snapshot.getBuddies().length == 0) {
+			return null;
+		}
+
+		return snapshot.getBuddies(subscrs);
+	}
+
 	/**
 	 * Method description
 	 * 
@@ -423,6 +453,7 @@ public class RosterFlat extends RosterAbstract {
 	 * 
 	 * 
 	 * @param session
+	 * @param ver
 	 * 
 	 * @return
 	 * 
@@ -430,22 +461,125 @@ public class RosterFlat extends RosterAbstract {
 	 * @throws TigaseDBException
 	 */
 	@Override
-	public List<Element> getRosterItems(XMPPResourceConnection session)
+	public List<Element> getRosterChanges(XMPPResourceConnection session, String ver)
 			throws NotAuthorizedException, TigaseDBException {
-		LinkedList<Element> items = new LinkedList<Element>();
 		Map<BareJID, RosterElement> roster = getUserRoster(session);
+		RosterState state = (RosterState) session.getCommonSessionData(ROSTER_SNAPSHOT);
 
-		for (RosterElement relem : roster.values()) {
+		if ((roster == null) || (state == null)) {
+			return null;
+		}
+
+		long since;
+
+		try {
+			since = Long.parseLong(ver);
+		} catch (NumberFormatException e) {
+
+			// Hash based roster version from older server versions
+			return null;
+		}
 
-			// Skip temporary roster elements added only for online presence tracking
-			// from dynamic roster
+		long current = state.rosterVersion.get();
+
+		if ((since > current) || (since < state.floor)) {
+			return null;
+		}
+
+		TreeMap<Long, Element> changes = new TreeMap<Long, Element>();
+		int items = 0;
+
+		for (RosterElement relem : roster.values()) {
 			if (relem.isPersistent()) {
-				items.add(getBuddyItem(relem));
+				++items;
+
+				if (relem.getVersion() > since) {
+					changes.put(relem.getVersion(), relem.getRosterItem());
+				}
 			}
+		}
+
+		synchronized (state) {
+			for (RemovedItem item : state.removed) {
+				if ((item.version > since) && !roster.containsKey(item.jid.getBareJID())) {
+					changes.put(item.version, new Element("item", new String[] { "jid",
+							"subscription" }, new String[] { item.jid.toString(), "remove" }));
+				}
+			}
+		}
+
+		// Sending the whole roster is cheaper than pushing most of its items
+		if ((items > 0) && (changes.size() >= items)) {
+			return null;
+		}
 
+		List<Element> result = new ArrayList<Element>(changes.size());
+
+		for (Map.Entry<Long, Element> change : changes.entrySet()) {
+			Element query = new Element("query");
+
+			query.setXMLNS(XMLNS);
+			query.setAttribute(VER_ATT, String.valueOf(change.getKey()));
+			query.addChild(change.getValue());
+			result.add(query);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Method description
+	 * 
+	 * 
+	 * @param session
+	 * 
+	 * @return
+	 * 
+	 * @throws NotAuthorizedException
+	 * @throws TigaseDBException
+	 */
+	@Override
+	public List<Element> getRosterItems(XMPPResourceConnection session)
+			throws NotAuthorizedException, TigaseDBException {
+		return getRosterSnapshot(session).getRosterItems();
+	}
+
+	/**
+	 * Returns the current snapshot of the user roster, creating it if the roster
+	 * has been modified since the last snapshot was taken. Readers do not lock,
+	 * a snapshot created concurrently with a roster modification is returned to
+	 * the caller only and is not kept.
+	 * 
+	 * 
+	 * @param session
+	 * 
+	 * @return
+	 * 
+	 * @throws NotAuthorizedException
+	 * @throws TigaseDBException
+	 */
+	public RosterSnapshot getRosterSnapshot(XMPPResourceConnection session)
+			throws NotAuthorizedException, TigaseDBException {
+		Map<BareJID, RosterElement> roster = getUserRoster(session);
+		RosterState ref = (RosterState) session.getCommonSessionData(ROSTER_SNAPSHOT);
+
+		if (ref == null) {
+			return new RosterSnapshot(0, roster.values());
 		}
 
-		return items;
+		RosterSnapshot snapshot = ref.snapshot.get();
+
+		if (snapshot == null) {
+			long version = ref.version.get();
+
+			snapshot = new RosterSnapshot(version, roster.values());
+
+			if (ref.snapshot.compareAndSet(null, snapshot) && (ref.version.get() != version)) {
+				ref.snapshot.compareAndSet(snapshot, null);
+			}
+		}
+
+		return snapshot;
 	}
 
 	/**
@@ -526,7 +660,11 @@ public class RosterFlat extends RosterAbstract {
 			log.log(Level.FINEST, "Removing roster buddy: {0}, before removal: {1}",
 					new Object[] { jid, roster });
 		}
-		roster.remove(jid.getBareJID());
+		RosterElement relem = roster.remove(jid.getBareJID());
+
+		if ((relem != null) && relem.isPersistent()) {
+			itemRemoved(session, relem.getJid());
+		}
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Removing roster buddy: {0}, after removal: {1}",
 					new Object[] { jid, roster });
@@ -562,6 +700,7 @@ public class RosterFlat extends RosterAbstract {
 
 			if ((name != null) && !name.isEmpty()) {
 				relem.setName(name);
+				itemChanged(session, relem);
 			}
 
 			saveUserRoster(session);
@@ -589,6 +728,7 @@ public class RosterFlat extends RosterAbstract {
 
 		if (relem != null) {
 			relem.setSubscription(subscription);
+			itemChanged(session, relem);
 			saveUserRoster(session);
 		} else {
 			log.log(Level.WARNING, "Missing roster contact for subscription set: {0}", buddy);
@@ -652,7 +792,12 @@ public class RosterFlat extends RosterAbstract {
 	@SuppressWarnings({ "unchecked" })
 	protected Map<BareJID, RosterElement> getUserRoster(XMPPResourceConnection session)
 			throws NotAuthorizedException, TigaseDBException {
-		Map<BareJID, RosterElement> roster = null;
+		Map<BareJID, RosterElement> roster =
+				(Map<BareJID, RosterElement>) session.getCommonSessionData(ROSTER);
+
+		if (roster != null) {
+			return roster;
+		}
 
 		// The method can be called from different plugins concurrently.
 		// If the roster is not yet loaded from DB this causes concurent
@@ -670,9 +815,27 @@ public class RosterFlat extends RosterAbstract {
 
 	// ~--- methods --------------------------------------------------------------
 
+	/**
+	 * Invalidates the roster snapshot, must be called after every change of the
+	 * roster which is visible in <code>RosterSnapshot</code>.
+	 * 
+	 * 
+	 * @param session
+	 */
+	protected void rosterModified(XMPPResourceConnection session) {
+		RosterState ref = (RosterState) session.getCommonSessionData(ROSTER_SNAPSHOT);
+
+		if (ref != null) {
+			ref.version.incrementAndGet();
+			ref.snapshot.set(null);
+		}
+	}
+
 	protected void saveUserRoster(XMPPResourceConnection session)
 			throws NotAuthorizedException, TigaseDBException {
 		Map<BareJID, RosterElement> roster = getUserRoster(session);
+
+		rosterModified(session);
 		StringBuilder sb = new StringBuilder(5000);
 
 		for (RosterElement relem : roster.values()) {
@@ -697,21 +860,29 @@ public class RosterFlat extends RosterAbstract {
 		Map<BareJID, RosterElement> roster =
 				new ConcurrentHashMap<BareJID, RosterElement>(100, 0.25f, 1);
 
-		session.putCommonSessionData(ROSTER, roster);
-
 		String roster_str = session.getData(null, ROSTER, null);
 
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Loaded user roster: {0}", roster_str);
 		}
 
-		if ((roster_str != null) && !roster_str.isEmpty()) {
-			updateRosterHash(roster_str, session);
+		RosterState state = new RosterState();
 
-			boolean modified = parseRoster(roster_str, roster, session);
+		loadRemovedItems(session, state);
 
-			if (modified) {
-				saveUserRoster(session);
+		// The state must be available whenever the roster is, the roster is
+		// published only when fully loaded, as readers do not lock the session
+		session.putCommonSessionData(ROSTER_SNAPSHOT, state);
+
+		boolean modified = false;
+
+		if ((roster_str != null) && !roster_str.isEmpty()) {
+			modified = parseRoster(roster_str, roster, session);
+
+			for (RosterElement relem : roster.values()) {
+				if (relem.getVersion() > state.rosterVersion.get()) {
+					state.rosterVersion.set(relem.getVersion());
+				}
 			}
 		} else {
 
@@ -732,12 +903,20 @@ public class RosterFlat extends RosterAbstract {
 					if (!addBuddy(relem, roster)) {
 						break;
 					}
-				}
 
-				saveUserRoster(session);
+					itemChanged(session, relem);
+					modified = true;
+				}
 			}
 		}
 
+		session.putCommonSessionData(ROSTERHASH, String.valueOf(state.rosterVersion.get()));
+		session.putCommonSessionData(ROSTER, roster);
+
+		if (modified) {
+			saveUserRoster(session);
+		}
+
 		return roster;
 	}
 
@@ -761,26 +940,139 @@ public class RosterFlat extends RosterAbstract {
 	// return false;
 	// }
 
-	private class RosterElemComparator implements Comparator<JID> {
+	private void loadRemovedItems(XMPPResourceConnection session, RosterState state)
+			throws NotAuthorizedException, TigaseDBException {
+		String removed_str = session.getData(null, ROSTER_REMOVED, null);
+
+		if ((removed_str == null) || removed_str.isEmpty()) {
+			return;
+		}
+
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+
+		parser.parse(domHandler, removed_str.toCharArray(), 0, removed_str.length());
 
-		private Map<BareJID, RosterElement> roster = null;
+		Queue<Element> elems = domHandler.getParsedElements();
+		Element removed = ((elems != null) && (elems.size() > 0)) ? elems.poll() : null;
+
+		if (removed == null) {
+			return;
+		}
+
+		try {
+			state.floor = Long.parseLong(removed.getAttribute(VER_ATT));
+
+			List<Element> items = removed.getChildren();
+
+			if (items != null) {
+				for (Element item : items) {
+					state.removed.add(new RemovedItem(JID.jidInstance(item.getAttribute("jid")),
+							Long.parseLong(item.getAttribute(VER_ATT))));
+				}
+			}
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Can't load removed roster items: {0}", removed_str);
 
-		private RosterElemComparator(Map<BareJID, RosterElement> roster) {
-			this.roster = roster;
+			// Versions older than the newest one known can not be trusted anymore
+			state.removed.clear();
 		}
 
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see java.util.Comparator#compare(java.lang.Object, java.lang.Object)
-		 */
-		@Override
-		public int compare(JID arg0, JID arg1) {
-			double w0 = roster.get(arg0.getBareJID()).getWeight();
-			double w1 = roster.get(arg1.getBareJID()).getWeight();
-			return Double.compare(w0, w1);
+		state.rosterVersion.set(state.floor);
+
+		for (RemovedItem item : state.removed) {
+			state.floor = Math.min(state.floor, item.version);
+
+			if (item.version > state.rosterVersion.get()) {
+				state.rosterVersion.set(item.version);
+			}
 		}
 
+		if (state.removed.isEmpty()) {
+			state.floor = state.rosterVersion.get();
+		}
+	}
+
+	/**
+	 * Assigns a new roster version to a changed roster item. The roster must be
+	 * saved afterwards, the roster version is restored from the stored items on
+	 * load.
+	 * 
+	 * 
+	 * @param session
+	 * @param relem
+	 */
+	protected void itemChanged(XMPPResourceConnection session, RosterElement relem) {
+		RosterState state = (RosterState) session.getCommonSessionData(ROSTER_SNAPSHOT);
+
+		if ((state != null) && relem.isPersistent()) {
+			long ver = state.rosterVersion.incrementAndGet();
+
+			relem.setVersion(ver);
+			session.putCommonSessionData(ROSTERHASH, String.valueOf(ver));
+		}
+	}
+
+	/**
+	 * Remembers the removed roster item with a new roster version, so the removal
+	 * can be sent to clients which know an older roster version.
+	 * 
+	 * 
+	 * @param session
+	 * @param jid
+	 * 
+	 * @throws NotAuthorizedException
+	 * @throws TigaseDBException
+	 */
+	protected void itemRemoved(XMPPResourceConnection session, JID jid)
+			throws NotAuthorizedException, TigaseDBException {
+		RosterState state = (RosterState) session.getCommonSessionData(ROSTER_SNAPSHOT);
+
+		if (state == null) {
+			return;
+		}
+
+		Element removed = new Element(ROSTER_REMOVED);
+
+		synchronized (state) {
+			long ver = state.rosterVersion.incrementAndGet();
+
+			state.removed.add(new RemovedItem(jid, ver));
+
+			while (state.removed.size() > MAX_REMOVED_ITEMS) {
+				state.floor = state.removed.remove(0).version;
+			}
+
+			removed.setAttribute(VER_ATT, String.valueOf(state.floor));
+
+			for (RemovedItem item : state.removed) {
+				removed.addChild(new Element("item", new String[] { "jid", VER_ATT },
+						new String[] { item.jid.toString(), String.valueOf(item.version) }));
+			}
+
+			session.putCommonSessionData(ROSTERHASH, String.valueOf(ver));
+		}
+
+		session.setData(null, ROSTER_REMOVED, removed.toString());
+	}
+
+	private static class RemovedItem {
+		private JID jid = null;
+		private long version = 0;
+
+		private RemovedItem(JID jid, long version) {
+			this.jid = jid;
+			this.version = version;
+		}
+	}
+
+
+	private static class RosterState {
+		private long floor = 0;
+		private final ArrayList<RemovedItem> removed = new ArrayList<RemovedItem>();
+		private final AtomicLong rosterVersion = new AtomicLong();
+		private final AtomicReference<RosterSnapshot> snapshot =
+				new AtomicReference<RosterSnapshot>();
+		private final AtomicLong version = new AtomicLong();
 	}
 
 	public String getCustomStatus(XMPPResourceConnection session, JID buddy)
@@ -819,6 +1111,34 @@ public class RosterFlat extends RosterAbstract {
 		}
 	}
 
+	/**
+	 * Method description
+	 * 
+	 * 
+	 * @param session
+	 * 
+	 * @return
+	 */
+	@Override
+	public boolean isRosterLoaded(XMPPResourceConnection session) {
+		return session.getCommonSessionData(ROSTER) != null;
+	}
+
+	/**
+	 * Method description
+	 * 
+	 * 
+	 * @param session
+	 * 
+	 * @throws NotAuthorizedException
+	 * @throws TigaseDBException
+	 */
+	@Override
+	public void loadRoster(XMPPResourceConnection session) throws NotAuthorizedException,
+			TigaseDBException {
+		getUserRoster(session);
+	}
+
 	/**
 	 * @param session
 	 * @return
@@ -0,0 +1,234 @@
+/*
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2012 "Artur Hefczyc" <artur.hefczyc@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ * $Rev$
+ * Last modified by $Author$
+ * $Date$
+ */
+
+package tigase.xmpp.impl.roster;
+
+//~--- non-JDK imports --------------------------------------------------------
+
+import tigase.xml.Element;
+
+import tigase.xmpp.JID;
+import tigase.xmpp.impl.roster.RosterAbstract.SubscriptionType;
+
+//~--- JDK imports ------------------------------------------------------------
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+//~--- classes ----------------------------------------------------------------
+
+/**
+ * Immutable view of a user roster taken at some version of the roster. It
+ * keeps the buddies sorted by weight, buddies grouped by subscription type and
+ * roster items of the <code>jabber:iq:roster</code> query result, so they are
+ * not rebuilt from roster elements on every presence broadcast or roster
+ * request. Arrays, lists and elements returned by the snapshot are shared
+ * between all readers and must not be modified.
+ * <p/>
+ * A snapshot is created on first read after the roster has been modified and
+ * is used by all readers until the next modification.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Rev$
+ */
+public class RosterSnapshot {
+	private static final JID[] EMPTY = new JID[0];
+
+	//~--- fields ---------------------------------------------------------------
+
+	private JID[] buddies = null;
+	private final EnumMap<SubscriptionType, JID[]> bySubscription =
+			new EnumMap<SubscriptionType, JID[]>(SubscriptionType.class);
+	private List<Element> items = null;
+
+	// Buddies for sets of subscription types, filled on first use
+	private final ConcurrentHashMap<EnumSet<SubscriptionType>, JID[]> bySubscriptions =
+			new ConcurrentHashMap<EnumSet<SubscriptionType>, JID[]>(8, 0.75f, 2);
+	private SubscriptionType[] subscriptions = null;
+	private long version = 0;
+
+	//~--- constructors ---------------------------------------------------------
+
+	/**
+	 * Constructs ...
+	 *
+	 *
+	 * @param version
+	 * @param roster are elements of the user roster.
+	 */
+	public RosterSnapshot(long version, Collection<RosterElement> roster) {
+		this.version = version;
+
+		RosterElement[] elems = roster.toArray(new RosterElement[roster.size()]);
+
+		// The weight is read once so the comparator is consistent while the
+		// elements may be updated concurrently
+		final double[] weights = new double[elems.length];
+		Integer[] order = new Integer[elems.length];
+
+		for (int i = 0; i < elems.length; i++) {
+			weights[i] = elems[i].getWeight();
+			order[i] = i;
+		}
+
+		// TODO: this sorting should be optional as it may impact performance
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Double.compare(weights[o1], weights[o2]);
+			}
+		});
+
+		buddies = new JID[elems.length];
+		subscriptions = new SubscriptionType[elems.length];
+
+		ArrayList<Element> persistent = new ArrayList<Element>(elems.length);
+		EnumMap<SubscriptionType, ArrayList<JID>> buckets =
+				new EnumMap<SubscriptionType, ArrayList<JID>>(SubscriptionType.class);
+
+		for (int i = 0; i < elems.length; i++) {
+			RosterElement relem = elems[order[i]];
+			SubscriptionType subscr = relem.getSubscription();
+
+			if (subscr == null) {
+				subscr = SubscriptionType.none;
+			}
+
+			buddies[i] = relem.getJid();
+			subscriptions[i] = subscr;
+
+			ArrayList<JID> bucket = buckets.get(subscr);
+
+			if (bucket == null) {
+				bucket = new ArrayList<JID>();
+				buckets.put(subscr, bucket);
+			}
+
+			bucket.add(relem.getJid());
+
+			// Skip temporary roster elements added only for online presence tracking
+			// from dynamic roster
+			if (relem.isPersistent()) {
+				persistent.add(relem.getRosterItem());
+			}
+		}
+
+		for (SubscriptionType subscr : SubscriptionType.values()) {
+			ArrayList<JID> bucket = buckets.get(subscr);
+
+			bySubscription.put(subscr, (bucket == null) ? EMPTY : bucket.toArray(
+					new JID[bucket.size()]));
+		}
+
+		items = Collections.unmodifiableList(persistent);
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Returns all buddies sorted by weight.
+	 *
+	 *
+	 * @return
+	 */
+	public JID[] getBuddies() {
+		return buddies;
+	}
+
+	/**
+	 * Returns buddies with the given subscription type.
+	 *
+	 *
+	 * @param subscr
+	 *
+	 * @return
+	 */
+	public JID[] getBuddies(SubscriptionType subscr) {
+		return bySubscription.get(subscr);
+	}
+
+	/**
+	 * Returns buddies with any of the given subscription types, sorted by weight.
+	 *
+	 *
+	 * @param subscrs
+	 *
+	 * @return
+	 */
+	public JID[] getBuddies(EnumSet<SubscriptionType> subscrs) {
+		JID[] result = bySubscriptions.get(subscrs);
+
+		if (result == null) {
+			if (subscrs.size() == 1) {
+				result = bySubscription.get(subscrs.iterator().next());
+			} else {
+				ArrayList<JID> list = new ArrayList<JID>();
+
+				for (int i = 0; i < buddies.length; i++) {
+					if (subscrs.contains(subscriptions[i])) {
+						list.add(buddies[i]);
+					}
+				}
+
+				result = list.toArray(new JID[list.size()]);
+			}
+
+			// The key is copied as the caller may modify its set later
+			bySubscriptions.put(subscrs.clone(), result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns items of the roster query result, without temporary buddies.
+	 *
+	 *
+	 * @return
+	 */
+	public List<Element> getRosterItems() {
+		return items;
+	}
+
+	/**
+	 * Returns the roster version the snapshot was created for.
+	 *
+	 *
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+}
+
+
+//~ Formatted in Sun Code Convention
+
+
+//~ Formatted by Jindent --- http://www.jindent.com
@@ -20,37 +20,67 @@
  */
 package tigase.xmpp.impl.xep0136;
 
+import java.sql.SQLException;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Queue;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import tigase.conf.Configurable;
+
 import tigase.db.NonAuthUserRepository;
+import tigase.db.TigaseDBException;
 
+import tigase.xmpp.JID;
+import tigase.xmpp.NoConnectionIdException;
+import tigase.xmpp.NotAuthorizedException;
+import tigase.xmpp.SessionManagerAwareIfc;
+import tigase.xmpp.StanzaType;
 import tigase.xmpp.XMPPException;
+import tigase.xmpp.XMPPPostprocessorIfc;
 import tigase.xmpp.XMPPProcessor;
 import tigase.xmpp.XMPPProcessorIfc;
 import tigase.xmpp.XMPPResourceConnection;
 
 import tigase.server.Packet;
+import tigase.server.xmppsession.SessionManagerHandler;
 
 import tigase.xml.Element;
 
 /**
  * Describe class MessageArchive here.
  *
+ * Every message of a user session is put in the archive queue of
+ * <code>MessageArchiveDB</code>. Messages between local users are archived
+ * once, by the sender session, messages from remote users by the receiver
+ * session.
  *
  * Created: Fri Feb 29 22:44:30 2008
  *
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
  * @version $Rev$
  */
-public class MessageArchive extends XMPPProcessor	implements XMPPProcessorIfc {
+public class MessageArchive extends XMPPProcessor	implements XMPPProcessorIfc,
+		XMPPPostprocessorIfc, SessionManagerAwareIfc {
 
   /**
    * Private logger for class instancess.
    */
   private static Logger log =
-		Logger.getLogger("tigase.xmpp.impl.OfflineMessage");
+		Logger.getLogger(MessageArchive.class.getName());
+
+	/** Field description */
+	public static final String ARCHIVE_REPO_URI_PROP_KEY = "archive-repo-uri";
+
+	/** Field description */
+	public static final String ARCHIVE_FULL_CONTENT_PROP_KEY = "archive-full-content";
+
+	/** Field description */
+	public static final String ARCHIVE_QUEUE_SIZE_PROP_KEY = "archive-queue-size";
+
+	/** Field description */
+	public static final String ARCHIVE_BATCH_SIZE_PROP_KEY = "archive-batch-size";
 
 	private static final String ID = "message-archive";
 	private static final String[] ELEMENTS =
@@ -102,8 +132,63 @@ public class MessageArchive extends XMPPProcessor	implements XMPPProcessorIfc {
 			new String[] {"http://www.xmpp.org/extensions/xep-0136.html#ns-pref"})
 	};
 
+	private MessageArchiveDB archive = null;
+	private boolean fullContent = false;
+	private SessionManagerHandler handler = null;
+
 	public String id() { return ID; }
 
+	public void init(Map<String, Object> settings) throws TigaseDBException {
+		String repo_uri = (String) settings.get(ARCHIVE_REPO_URI_PROP_KEY);
+
+		if (repo_uri == null) {
+			repo_uri = System.getProperty(Configurable.GEN_USER_DB_URI_PROP_KEY);
+		}
+
+		if (repo_uri == null) {
+			log.log(Level.WARNING, "No database configured for message archive: {0}",
+					ARCHIVE_REPO_URI_PROP_KEY);
+
+			return;
+		}
+
+		fullContent = Boolean.parseBoolean(String.valueOf(settings.get(
+				ARCHIVE_FULL_CONTENT_PROP_KEY)));
+
+		int queueSize = MessageArchiveDB.QUEUE_SIZE_PROP_VAL;
+		int batchSize = MessageArchiveDB.BATCH_SIZE_PROP_VAL;
+
+		if (settings.get(ARCHIVE_QUEUE_SIZE_PROP_KEY) != null) {
+			queueSize = Integer.parseInt(settings.get(ARCHIVE_QUEUE_SIZE_PROP_KEY).toString());
+		}
+
+		if (settings.get(ARCHIVE_BATCH_SIZE_PROP_KEY) != null) {
+			batchSize = Integer.parseInt(settings.get(ARCHIVE_BATCH_SIZE_PROP_KEY).toString());
+		}
+
+		Map<String, String> db_props = new HashMap<String, String>(4);
+
+		// Plugin settings may hold other objects, like the async repository
+		for (Map.Entry<String, Object> entry : settings.entrySet()) {
+			if (entry.getValue() instanceof String) {
+				db_props.put(entry.getKey(), (String) entry.getValue());
+			}
+		}
+
+		archive = MessageArchiveDB.getInstance(repo_uri);
+
+		try {
+			archive.initRepository(repo_uri, db_props, queueSize, batchSize);
+		} catch (SQLException ex) {
+			archive = null;
+			log.log(Level.WARNING, "Problem initializing connection to DB: ", ex);
+		}
+	}
+
+	public void setSessionManagerHandler(SessionManagerHandler handler) {
+		this.handler = handler;
+	}
+
 	public String[] supElements()
 	{ return ELEMENTS; }
 
@@ -120,5 +205,44 @@ public class MessageArchive extends XMPPProcessor	implements XMPPProcessorIfc {
 
 	}
 
+	public void postProcess(final Packet packet, final XMPPResourceConnection session,
+		final NonAuthUserRepository repo, final Queue<Packet> results,
+		final Map<String, Object> settings) {
+		if ((archive == null) || (packet.getElemName() != "message")
+				|| (packet.getStanzaFrom() == null) || (packet.getStanzaTo() == null)
+				|| (packet.getType() == StanzaType.error)) {
+			return;
+		}
+
+		if (session == null) {
+
+			// The receiver is offline, messages from local users are archived
+			// already by the sender session
+			if ((handler != null) && handler.isLocalDomain(packet.getStanzaTo().getDomain(), false)
+					&&!handler.isLocalDomain(packet.getStanzaFrom().getDomain(), false)) {
+				archive.saveMessage(packet, fullContent, null);
+			}
+
+			return;
+		}
+
+		try {
+			JID from = packet.getStanzaFrom();
+			boolean outgoing = session.isUserId(from.getBareJID())
+				&& session.getConnectionId().equals(packet.getFrom());
+			boolean incoming = !outgoing && session.isUserId(packet.getStanzaTo().getBareJID())
+				&& !session.isLocalDomain(from.getDomain(), false);
+
+			if (outgoing || incoming) {
+				archive.saveMessage(packet, fullContent, null);
+			}
+		} catch (NotAuthorizedException ex) {
+
+			// Nothing to archive for a session which is not authorized yet
+		} catch (NoConnectionIdException ex) {
+
+			// Nothing to archive for a session without a connection
+		}
+	}
 
 }
@@ -38,18 +38,42 @@ import tigase.xmpp.BareJID;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.sql.Timestamp;
+import java.sql.Types;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 //~--- classes ----------------------------------------------------------------
 
 /**
- * Describe class MessageArchiveDB here.
+ * Message archive database. Messages are archived asynchronously: the caller
+ * only puts the message in a bounded queue and a single writer thread stores
+ * queued messages in batches, with one multi-row insert for each full batch.
+ * JID, thread and subject IDs are kept in in-memory dictionaries, so the
+ * database is queried for them only for values not seen recently.
  *
+ * Messages are not dropped: if the queue is full the caller waits until the
+ * writer makes room and if the database is not available the writer retries
+ * the batch until it succeeds. A message which can not be stored in the
+ * archive tables, because one of its indexed values does not fit the column
+ * or the database rejects it, is stored unchanged in the
+ * <code>tig_ma_failed</code> dead-letter table instead.
+ *
+ * Archived messages are retrieved by the archive owner, the other party and
+ * a time range, in pages ordered by the message ID.
  *
  * Created: Fri Feb 29 22:34:29 2008
  *
@@ -65,31 +89,60 @@ public class MessageArchiveDB {
 	private static final long LONG_NULL = 0;
 	private static final String ADD_JID_QUERY = "insert into tig_ma_jid (jid) values (?)";
 	private static final String GET_JID_ID_QUERY = "select ma_j_id from tig_ma_jid where jid = ?";
-	private static final String GET_JID_IDS_QUERY =
-		"select * from tig_ma_jid where (jid = ?) or (jid = ?)";
 	private static final String ADD_THREAD_QUERY = "insert into tig_ma_thread (thread) values (?)";
 	private static final String GET_THREAD_ID_QUERY =
 		"select ma_t_id from tig_ma_thread where (thread = ?)";
 	private static final String ADD_SUBJECT_QUERY = "insert into tig_ma_subject (subject) values (?)";
 	private static final String GET_SUBJECT_ID_QUERY =
 		"select ma_s_id from tig_ma_subject where (subject = ?)";
+	private static final String ADD_MESSAGE_COLUMNS =
+		"insert into tig_ma_message (utc, from_jid, to_jid, thread_id, subject_id, body_lang, "
+		+ "body, msg) values ";
+	private static final String ADD_MESSAGE_ROW = "(?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String ADD_MESSAGE_QUERY = ADD_MESSAGE_COLUMNS + ADD_MESSAGE_ROW;
+	private static final String ADD_FAILED_QUERY =
+		"insert into tig_ma_failed (utc, from_jid, to_jid, thread, subject, body_lang, body, "
+		+ "msg, error) values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String GET_MESSAGES_QUERY =
+		"select m.ma_m_id, m.utc, m.from_jid, t.thread, s.subject, m.body_lang, m.body, m.msg"
+		+ " from tig_ma_message m"
+		+ " left join tig_ma_thread t on m.thread_id = t.ma_t_id"
+		+ " left join tig_ma_subject s on m.subject_id = s.ma_s_id"
+		+ " where ((m.from_jid = ? and m.to_jid = ?) or (m.from_jid = ? and m.to_jid = ?))"
+		+ " and m.utc >= ? and m.utc < ? and m.ma_m_id > ? order by m.ma_m_id";
+	// Sizes of the indexed database columns, body and msg are not bounded
+	private static final int MAX_ERROR_SIZE = 255;
+	private static final int MAX_JID_SIZE = 255;
+	private static final int MAX_LANG_SIZE = 35;
+	private static final int MAX_SUBJECT_SIZE = 255;
+	private static final int MAX_THREAD_SIZE = 128;
+	private static final long QUEUE_WAIT_TIME = 100;
+	private static final long RETRY_TIME = 10 * 1000;
+	private static final Map<String, MessageArchiveDB> repos =
+		new ConcurrentSkipListMap<String, MessageArchiveDB>();
+
+	/** Field description */
+	public static final int BATCH_SIZE_PROP_VAL = 100;
+
+	/** Field description */
+	public static final int QUEUE_SIZE_PROP_VAL = 10000;
 
 	//~--- fields ---------------------------------------------------------------
 
-	private Map<String, Object> cache = null;
-
-//private PreparedStatement save_message_st = null;
-//private PreparedStatement get_msg_for_jid_st = null;
-//private PreparedStatement get_jid_id_st = null;
-//private PreparedStatement get_jids_id_st = null;
-//private PreparedStatement add_jid_st = null;
-//private PreparedStatement add_thread_st = null;
-//private PreparedStatement get_thread_id_st = null;
-//private PreparedStatement add_subject_st = null;
-//private PreparedStatement get_subject_id_st = null;
+	private String add_messages_query = null;
+	private long archived = 0;
+	private int batchSize = BATCH_SIZE_PROP_VAL;
 	private int cacheSize = 10000;
 	private long cacheTime = 60 * 60 * 1000;
 	private DataRepository data_repo = null;
+	private final AtomicLong failed = new AtomicLong();
+	private boolean initialized = false;
+	private Map<String, Long> jids = null;
+	private BlockingQueue<Item> queue = null;
+	private volatile boolean stopped = false;
+	private Map<String, Long> subjects = null;
+	private Map<String, Long> threads = null;
+	private Thread writer = null;
 
 	//~--- get methods ----------------------------------------------------------
 
@@ -97,12 +150,114 @@ public class MessageArchiveDB {
 	 * Method description
 	 *
 	 *
-	 * @param jid
-	 * @param with_jid
-	 * @param timestamp
-	 * @param limit
+	 * @param id_string
+	 *
+	 * @return
+	 */
+	public static MessageArchiveDB getInstance(String id_string) {
+		MessageArchiveDB result = repos.get(id_string);
+
+		if (result == null) {
+			synchronized (repos) {
+				result = repos.get(id_string);
+
+				if (result == null) {
+					result = new MessageArchiveDB();
+					repos.put(id_string, result);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Loads a page of messages exchanged between the archive owner and the other
+	 * party in the given time range.
+	 *
+	 *
+	 * @param owner is the archive owner.
+	 * @param with is the other party.
+	 * @param start is the start of the time range, inclusive.
+	 * @param end is the end of the time range, exclusive.
+	 * @param after is the ID of the last message from the previous page or 0
+	 * for the first page.
+	 * @param limit is the maximum number of messages returned.
+	 *
+	 * @return
+	 *
+	 * @throws SQLException
+	 */
+	public List<Item> getMessages(BareJID owner, BareJID with, Date start, Date end,
+			long after, int limit)
+			throws SQLException {
+		List<Item> result = new ArrayList<Item>();
+		long owner_id = getID(jids, owner.toString(), GET_JID_ID_QUERY, null);
+		long with_id = getID(jids, with.toString(), GET_JID_ID_QUERY, null);
+
+		if ((owner_id == LONG_NULL) || (with_id == LONG_NULL)) {
+			return result;
+		}
+
+		ResultSet rs = null;
+
+		try {
+			PreparedStatement get_messages_st = data_repo.getPreparedStatement(owner,
+				GET_MESSAGES_QUERY);
+
+			synchronized (get_messages_st) {
+				get_messages_st.setLong(1, owner_id);
+				get_messages_st.setLong(2, with_id);
+				get_messages_st.setLong(3, with_id);
+				get_messages_st.setLong(4, owner_id);
+				get_messages_st.setTimestamp(5, new Timestamp(start.getTime()));
+				get_messages_st.setTimestamp(6, new Timestamp(end.getTime()));
+				get_messages_st.setLong(7, after);
+				get_messages_st.setMaxRows(limit);
+				rs = get_messages_st.executeQuery();
+
+				while (rs.next()) {
+					Item item = new Item();
+
+					item.id = rs.getLong("ma_m_id");
+					item.utc = rs.getTimestamp("utc").getTime();
+					item.incoming = rs.getLong("from_jid") != owner_id;
+					item.thread = rs.getString("thread");
+					item.subject = rs.getString("subject");
+					item.lang = rs.getString("body_lang");
+					item.body = rs.getString("body");
+					item.msg = rs.getString("msg");
+					result.add(item);
+				}
+			}
+		} finally {
+			data_repo.release(null, rs);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the number of messages which could not be stored in the archive
+	 * tables and were put in the <code>tig_ma_failed</code> table or, if even that
+	 * was not possible, only logged.
+	 *
+	 *
+	 * @return
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @return
 	 */
-	public void getMessages(String jid, String with_jid, Date timestamp, int limit) {}
+	public int getQueueSize() {
+		return queue.size();
+	}
 
 	//~--- methods --------------------------------------------------------------
 
@@ -115,217 +270,461 @@ public class MessageArchiveDB {
 	 * The string must also contain database user name and password if required
 	 * for connection.
 	 * @param params
+	 * @param queueSize is the maximum number of messages waiting for archiving.
+	 * @param batchSize is the maximum number of messages stored at once.
 	 * @exception SQLException if an error occurs during access database. It won't
 	 * happen however as in this method we do simple variable assigment.
 	 */
-	public void initRepository(String conn_str, Map<String, String> params) throws SQLException {
+	public synchronized void initRepository(String conn_str, Map<String, String> params,
+			int queueSize, int batchSize)
+			throws SQLException {
+		if (initialized) {
+			return;
+		}
+
+		initialized = true;
+		this.batchSize = Math.max(1, batchSize);
+
+		StringBuilder sb = new StringBuilder(ADD_MESSAGE_COLUMNS);
+
+		for (int i = 0; i < this.batchSize; i++) {
+			sb.append((i == 0) ? "" : ", ").append(ADD_MESSAGE_ROW);
+		}
+
+		add_messages_query = sb.toString();
+
 		try {
 			data_repo = RepositoryFactory.getDataRepository(null, conn_str, params);
 			data_repo.initPreparedStatement(ADD_JID_QUERY, ADD_JID_QUERY);
 			data_repo.initPreparedStatement(GET_JID_ID_QUERY, GET_JID_ID_QUERY);
-			data_repo.initPreparedStatement(GET_JID_IDS_QUERY, GET_JID_IDS_QUERY);
 			data_repo.initPreparedStatement(ADD_THREAD_QUERY, ADD_THREAD_QUERY);
 			data_repo.initPreparedStatement(GET_THREAD_ID_QUERY, GET_THREAD_ID_QUERY);
 			data_repo.initPreparedStatement(ADD_SUBJECT_QUERY, ADD_SUBJECT_QUERY);
 			data_repo.initPreparedStatement(GET_SUBJECT_ID_QUERY, GET_SUBJECT_ID_QUERY);
-		} catch (Exception ex) {}
+			data_repo.initPreparedStatement(ADD_MESSAGE_QUERY, ADD_MESSAGE_QUERY);
+			data_repo.initPreparedStatement(add_messages_query, add_messages_query);
+			data_repo.initPreparedStatement(ADD_FAILED_QUERY, ADD_FAILED_QUERY);
+			data_repo.initPreparedStatement(GET_MESSAGES_QUERY, GET_MESSAGES_QUERY);
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Message archive not initialized due to exception", ex);
+		}
 
-		cache = Collections.synchronizedMap(new SimpleCache<String, Object>(10000, 60 * 1000));
+		jids = Collections.synchronizedMap(new SimpleCache<String, Long>(cacheSize,
+				cacheTime));
+		threads = Collections.synchronizedMap(new SimpleCache<String, Long>(cacheSize,
+				cacheTime));
+		subjects = Collections.synchronizedMap(new SimpleCache<String, Long>(cacheSize,
+				cacheTime));
+		queue = new ArrayBlockingQueue<Item>(Math.max(1, queueSize));
+		writer = new Thread("message-archive-writer") {
+			@Override
+			public void run() {
+				writeMessages();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
 	}
 
 	/**
-	 * Method description
+	 * Puts the message in the archive queue. If the queue is full the method
+	 * waits until the writer makes room, so a slow database slows down the
+	 * callers instead of losing messages. Values are never truncated, a message
+	 * with a value longer than its indexed column is stored in the dead-letter
+	 * table by the writer.
 	 *
 	 *
 	 * @param message
-	 * @param full_content
-	 * @param defLang
-	 *
-	 * @throws SQLException
+	 * @param full_content if <code>true</code> the whole stanza is archived,
+	 * otherwise only the body.
+	 * @param defLang is the message language used if the message does not
+	 * specify one.
 	 */
-	public void saveMessage(Packet message, boolean full_content, String defLang)
-			throws SQLException {
-		BareJID from_str = message.getStanzaFrom().getBareJID();
-		BareJID to_str = message.getStanzaTo().getBareJID();
-		long[] ids = getJidsIds(from_str.toString(), to_str.toString());
-		long from_id = ((ids[0] != LONG_NULL) ? ids[0] : addJidID(from_str.toString()));
-		long to_id = ((ids[1] != LONG_NULL) ? ids[1] : addJidID(to_str.toString()));
-		String thread = message.getElemCData("/message/thread");
-		long thread_id = LONG_NULL;
-		String subject = message.getElemCData("/message/subject");
-		long subject_id = LONG_NULL;
-
-		if ((thread != null) &&!thread.trim().isEmpty()) {
-			thread_id = addThreadID(thread);
+	public void saveMessage(Packet message, boolean full_content, String defLang) {
+		Item item = new Item();
+		String lang = message.getElement().getAttribute("xml:lang");
+
+		item.utc = System.currentTimeMillis();
+		item.from = message.getStanzaFrom().getBareJID().toString();
+		item.to = message.getStanzaTo().getBareJID().toString();
+		item.thread = message.getElemCData("/message/thread");
+		item.subject = message.getElemCData("/message/subject");
+		item.lang = (lang != null) ? lang : defLang;
+		item.body = message.getElemCData("/message/body");
+
+		if (full_content) {
+			item.msg = message.getElement().toString();
 		}
 
-		if ((subject != null) &&!subject.trim().isEmpty()) {
-			subject_id = addSubjectID(subject);
+		item.overflow = checkSizes(item);
+
+		boolean interrupted = false;
+
+		try {
+			while ( !queue.offer(item, QUEUE_WAIT_TIME, TimeUnit.MILLISECONDS)) {
+
+				// Nobody takes messages from the queue anymore, do not wait forever
+				if ( !writer.isAlive()) {
+					failed.incrementAndGet();
+					log.log(Level.SEVERE, "Message archive stopped, message not archived: {0}",
+							message);
+
+					break;
+				}
+			}
+		} catch (InterruptedException ex) {
+			interrupted = true;
+
+			// The message must not be lost, the interrupt is restored afterwards
+			try {
+				queue.put(item);
+			} catch (InterruptedException e) {
+				failed.incrementAndGet();
+				log.log(Level.SEVERE, "Message archive interrupted, message not archived: {0}",
+						message);
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
 		}
 	}
 
-	private long addJidID(String jid) throws SQLException {
-		PreparedStatement add_jid_st = data_repo.getPreparedStatement(null, ADD_JID_QUERY);
+	/**
+	 * Stops the writer thread after all queued messages are stored.
+	 *
+	 */
+	public void stop() {
+		stopped = true;
 
-		synchronized (add_jid_st) {
-			add_jid_st.setString(1, jid);
-			add_jid_st.executeUpdate();
+		if (writer != null) {
+			try {
+				writer.join(RETRY_TIME);
+			} catch (InterruptedException ex) {}
 		}
+	}
+
+	private void addMessages(List<Item> batch) throws SQLException {
+		int idx = 0;
 
-		// This is not the most effective solution but this method shouldn't be
-		// called very often so the perfrmance impact should be insignificant.
-		long[] jid_ids = getJidsIds(jid);
+		// Full batches go with a single multi-row insert, the rest as JDBC batch
+		if (batch.size() == batchSize) {
+			PreparedStatement add_messages_st = data_repo.getPreparedStatement(null,
+				add_messages_query);
+
+			synchronized (add_messages_st) {
+				for (Item item : batch) {
+					idx = setMessage(add_messages_st, idx, item);
+				}
 
-		if (jid_ids != null) {
-			return jid_ids[0];
+				add_messages_st.executeUpdate();
+			}
 		} else {
+			PreparedStatement add_message_st = data_repo.getPreparedStatement(null,
+				ADD_MESSAGE_QUERY);
+
+			synchronized (add_message_st) {
 
-			// That should never happen here, but just in case....
-			log.log(Level.WARNING, "I have just added new jid but it was not found.... {0}", jid);
+				// Leftovers of a failed batch must not be stored again
+				add_message_st.clearBatch();
 
-			return LONG_NULL;
+				for (Item item : batch) {
+					setMessage(add_message_st, 0, item);
+					add_message_st.addBatch();
+				}
+
+				add_message_st.executeBatch();
+			}
 		}
 	}
 
-	private long addSubjectID(String subject) throws SQLException {
-		long result = getSubjectID(subject);
-
-		if (result != LONG_NULL) {
-			return result;
+	private void addFailed(Item item, String error) throws SQLException {
+		PreparedStatement add_failed_st = data_repo.getPreparedStatement(null,
+			ADD_FAILED_QUERY);
+
+		synchronized (add_failed_st) {
+			add_failed_st.setTimestamp(1, new Timestamp(item.utc));
+			setString(add_failed_st, 2, item.from);
+			setString(add_failed_st, 3, item.to);
+			setString(add_failed_st, 4, item.thread);
+			setString(add_failed_st, 5, item.subject);
+			setString(add_failed_st, 6, item.lang);
+			setString(add_failed_st, 7, item.body);
+			setString(add_failed_st, 8, item.msg);
+			setString(add_failed_st, 9, ((error != null) && (error.length() > MAX_ERROR_SIZE))
+					? error.substring(0, MAX_ERROR_SIZE) : error);
+			add_failed_st.executeUpdate();
 		}
+	}
 
-		PreparedStatement add_subject_st = data_repo.getPreparedStatement(null, ADD_SUBJECT_QUERY);
+	private void addID(String value, String add_query) throws SQLException {
+		PreparedStatement add_st = data_repo.getPreparedStatement(null, add_query);
 
-		synchronized (add_subject_st) {
-			add_subject_st.setString(1, subject);
-			add_subject_st.executeUpdate();
+		synchronized (add_st) {
+			add_st.setString(1, value);
+			add_st.executeUpdate();
 		}
+	}
 
-		// This is not the most effective solution but this method shouldn't be
-		// called very often so the perfrmance impact should be insignificant.
-		result = getSubjectID(subject);
+	private int setMessage(PreparedStatement st, int idx, Item item) throws SQLException {
+		String body = (item.body != null) ? item.body : "";
 
-		return result;
+		st.setTimestamp(++idx, new Timestamp(item.utc));
+		st.setLong(++idx, item.from_id);
+		st.setLong(++idx, item.to_id);
+		setID(st, ++idx, item.thread_id);
+		setID(st, ++idx, item.subject_id);
+
+		setString(st, ++idx, item.lang);
+		st.setString(++idx, body);
+		setString(st, ++idx, item.msg);
+
+		return idx;
 	}
 
-	private long addThreadID(String thread) throws SQLException {
-		long result = getThreadID(thread);
+	private void writeBatch(List<Item> batch) throws SQLException {
+		List<Item> rows = new ArrayList<Item>(batch.size());
 
-		if (result != LONG_NULL) {
-			return result;
-		}
+		for (Item item : batch) {
+
+			// Oversized messages only go to the dead-letter table, once
+			if (item.overflow != null) {
+				if ( !item.dead) {
+					addFailed(item, item.overflow);
+					item.dead = true;
+					failed.incrementAndGet();
+					log.log(Level.WARNING, "Message from {0} to {1} does not fit the archive: {2}",
+							new Object[] { item.from,
+							item.to, item.overflow });
+				}
+
+				continue;
+			}
+
+			item.from_id = getID(jids, item.from, GET_JID_ID_QUERY, ADD_JID_QUERY);
+			item.to_id = getID(jids, item.to, GET_JID_ID_QUERY, ADD_JID_QUERY);
 
-		PreparedStatement add_thread_st = data_repo.getPreparedStatement(null, ADD_THREAD_QUERY);
+			if ((item.thread != null) &&!item.thread.trim().isEmpty()) {
+				item.thread_id = getID(threads, item.thread, GET_THREAD_ID_QUERY, ADD_THREAD_QUERY);
+			}
+
+			if ((item.subject != null) &&!item.subject.trim().isEmpty()) {
+				item.subject_id = getID(subjects, item.subject, GET_SUBJECT_ID_QUERY,
+						ADD_SUBJECT_QUERY);
+			}
 
-		synchronized (add_thread_st) {
-			add_thread_st.setString(1, thread);
-			add_thread_st.executeUpdate();
+			rows.add(item);
 		}
 
-		// This is not the most effective solution but this method shouldn't be
-		// called very often so the perfrmance impact should be insignificant.
-		result = getThreadID(thread);
+		if ( !rows.isEmpty()) {
+			addMessages(rows);
+			archived += rows.size();
+		}
 
-		return result;
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Archived {0} messages, total: {1}, waiting: {2}",
+					new Object[] { rows.size(),
+					archived, queue.size() });
+		}
 	}
 
-	//~--- get methods ----------------------------------------------------------
+	private void writeMessages() {
+		List<Item> batch = new ArrayList<Item>(batchSize);
 
-	private long[] getJidsIds(String... jids) throws SQLException {
-		ResultSet rs = null;
+		while ( !stopped ||!queue.isEmpty()) {
+			Item item = null;
 
-		try {
-			long[] results = new long[jids.length];
+			try {
+				item = queue.poll(1, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {}
 
-			for (int i = 0; i < results.length; i++) {
-				results[i] = LONG_NULL;
+			if (item == null) {
+				continue;
 			}
 
-			if (jids.length == 1) {
-				PreparedStatement get_jid_id_st = data_repo.getPreparedStatement(null, GET_JID_ID_QUERY);
-
-				synchronized (get_jid_id_st) {
-					get_jid_id_st.setString(1, jids[0]);
-					rs = get_jid_id_st.executeQuery();
+			batch.add(item);
+			queue.drainTo(batch, batchSize - 1);
 
-					if (rs.next()) {
-						results[0] = rs.getLong("ma_j_id");
+			try {
+				writeBatch(batch);
+			} catch (Exception ex) {
+				log.log(Level.WARNING, "Problem archiving " + batch.size()
+						+ " messages, storing them one by one", ex);
 
-						return results;
-					}
+				if ( !writeItems(batch)) {
+					return;
 				}
+			}
 
-				return null;
-			} else {
-				PreparedStatement get_jids_id_st = data_repo.getPreparedStatement(null, GET_JID_IDS_QUERY);
+			batch.clear();
+		}
+	}
 
-				synchronized (get_jids_id_st) {
-					for (int i = 0; i < jids.length; i++) {
-						get_jids_id_st.setString(i + 1, jids[i]);
+	/**
+	 * Stores the messages one by one, so a message which can not be stored does
+	 * not stop the others. Such a message is stored in the dead-letter table, on
+	 * database connection problems storing is retried until it succeeds.
+	 *
+	 * @return <code>false</code> if the archive has been stopped before all
+	 * messages were stored.
+	 */
+	private boolean writeItems(List<Item> batch) {
+		int idx = 0;
+
+		while (idx < batch.size()) {
+			Item item = batch.get(idx);
+
+			try {
+				writeBatch(Collections.singletonList(item));
+				++idx;
+			} catch (Exception ex) {
+				if ((ex instanceof SQLException) && isTransient((SQLException) ex)) {
+					if ( !waitRetry(batch.size() - idx, ex)) {
+						return false;
 					}
-
-					rs = get_jids_id_st.executeQuery();
-
-					int cnt = 0;
-
-					while (rs.next()) {
-						String db_jid = rs.getString("jid");
-
-						for (int i = 0; i < jids.length; i++) {
-							if (db_jid.equals(jids[i])) {
-								results[i] = rs.getLong("ma_j_id");
-								++cnt;
+				} else {
+					try {
+						addFailed(item, ex.toString());
+						failed.incrementAndGet();
+						++idx;
+						log.log(Level.WARNING, "Message from " + item.from + " to " + item.to
+								+ " sent at " + new Date(item.utc)
+								+ " can not be archived, stored in tig_ma_failed", ex);
+					} catch (SQLException e) {
+						if (isTransient(e)) {
+							if ( !waitRetry(batch.size() - idx, e)) {
+								return false;
 							}
+						} else {
+
+							// Nothing else can be done, the log keeps the message at least
+							failed.incrementAndGet();
+							++idx;
+							log.log(Level.SEVERE, "Message from " + item.from + " to " + item.to
+									+ " sent at " + new Date(item.utc) + " not archived, body: "
+									+ item.body + ", stanza: " + item.msg, e);
 						}
 					}
-
-					if (cnt > 0) {
-						return results;
-					} else {
-						return null;
-					}
 				}
 			}
-		} finally {
-			data_repo.release(null, rs);
 		}
 
-		// return results;
+		return true;
 	}
 
-	private long getSubjectID(String subject) throws SQLException {
-		ResultSet rs = null;
+	/**
+	 * Waits before the next attempt to store messages.
+	 *
+	 * @return <code>false</code> if the archive has been stopped and storing
+	 * should not be retried.
+	 */
+	private boolean waitRetry(int waiting, Exception ex) {
+		log.log(Level.WARNING, "Problem archiving messages, retrying in " + (RETRY_TIME / 1000)
+				+ " seconds", ex);
+
+		if (stopped) {
+			log.log(Level.SEVERE, "Message archive stopped, {0} messages not archived",
+					waiting + queue.size());
+
+			return false;
+		}
 
 		try {
-			PreparedStatement get_subject_id_st = data_repo.getPreparedStatement(null, GET_SUBJECT_ID_QUERY);
+			Thread.sleep(RETRY_TIME);
+		} catch (InterruptedException e) {}
 
-			synchronized (get_subject_id_st) {
-				get_subject_id_st.setString(1, subject);
-				rs = get_subject_id_st.executeQuery();
+		return true;
+	}
 
-				if (rs.next()) {
-					return rs.getLong("ma_s_id");
+	/**
+	 * Returns the reason why the message does not fit the archive tables or
+	 * <code>null</code> if it does.
+	 */
+	private static String checkSizes(Item item) {
+		if ((item.from.length() > MAX_JID_SIZE) || (item.to.length() > MAX_JID_SIZE)) {
+			return "Address longer than " + MAX_JID_SIZE;
+		}
+
+		if ((item.thread != null) && (item.thread.length() > MAX_THREAD_SIZE)) {
+			return "Thread longer than " + MAX_THREAD_SIZE;
+		}
+
+		if ((item.subject != null) && (item.subject.length() > MAX_SUBJECT_SIZE)) {
+			return "Subject longer than " + MAX_SUBJECT_SIZE;
+		}
+
+		if ((item.lang != null) && (item.lang.length() > MAX_LANG_SIZE)) {
+			return "Language longer than " + MAX_LANG_SIZE;
+		}
+
+		return null;
+	}
+
+	private static boolean isTransient(SQLException ex) {
+		String state = ex.getSQLState();
+
+		// Connection exceptions and transaction rollbacks, like deadlocks
+		return (ex instanceof SQLTransientException) || (ex instanceof SQLRecoverableException)
+				|| ((state != null) && (state.startsWith("08") || state.startsWith("40")));
+	}
+
+	//~--- get methods ----------------------------------------------------------
+
+	/**
+	 * Returns the ID of the value from the dictionary, the database or, if
+	 * <code>add_query</code> is given, adds the value to the database.
+	 */
+	private long getID(Map<String, Long> dict, String value, String get_query,
+			String add_query)
+			throws SQLException {
+		Long cached = dict.get(value);
+
+		if (cached != null) {
+			return cached.longValue();
+		}
+
+		long result = getDBID(value, get_query);
+
+		if ((result == LONG_NULL) && (add_query != null)) {
+			try {
+				addID(value, add_query);
+			} catch (SQLException e) {
+
+				// Most likely added by another cluster node in the meantime, the
+				// following select tells
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "Problem adding archive ID for: " + value, e);
 				}
 			}
-		} finally {
-			data_repo.release(null, rs);
+
+			result = getDBID(value, get_query);
+
+			if (result == LONG_NULL) {
+
+				// That should never happen here, but just in case....
+				throw new SQLException("Archive ID not found after adding: " + value);
+			}
 		}
 
-		return LONG_NULL;
+		if (result != LONG_NULL) {
+			dict.put(value, result);
+		}
+
+		return result;
 	}
 
-	private long getThreadID(String thread) throws SQLException {
+	private long getDBID(String value, String get_query) throws SQLException {
 		ResultSet rs = null;
 
 		try {
-			PreparedStatement get_thread_id_st = data_repo.getPreparedStatement(null, GET_THREAD_ID_QUERY);
+			PreparedStatement get_id_st = data_repo.getPreparedStatement(null, get_query);
 
-			synchronized (get_thread_id_st) {
-				get_thread_id_st.setString(1, thread);
-				rs = get_thread_id_st.executeQuery();
+			synchronized (get_id_st) {
+				get_id_st.setString(1, value);
+				rs = get_id_st.executeQuery();
 
 				if (rs.next()) {
-					return rs.getLong("ma_t_id");
+					return rs.getLong(1);
 				}
 			}
 		} finally {
@@ -334,6 +733,129 @@ public class MessageArchiveDB {
 
 		return LONG_NULL;
 	}
+
+	//~--- set methods ----------------------------------------------------------
+
+	private void setID(PreparedStatement st, int idx, long id) throws SQLException {
+		if (id != LONG_NULL) {
+			st.setLong(idx, id);
+		} else {
+			st.setNull(idx, Types.BIGINT);
+		}
+	}
+
+	private static void setString(PreparedStatement st, int idx, String value)
+			throws SQLException {
+		if (value != null) {
+			st.setString(idx, value);
+		} else {
+			st.setNull(idx, Types.VARCHAR);
+		}
+	}
+
+	//~--- inner classes --------------------------------------------------------
+
+	/**
+	 * Archived message.
+	 */
+	public static class Item {
+		private String body = null;
+		private boolean dead = false;
+		private String from = null;
+		private long from_id = LONG_NULL;
+		private long id = LONG_NULL;
+		private boolean incoming = false;
+		private String lang = null;
+		private String msg = null;
+		private String overflow = null;
+		private String subject = null;
+		private long subject_id = LONG_NULL;
+		private String thread = null;
+		private long thread_id = LONG_NULL;
+		private String to = null;
+		private long to_id = LONG_NULL;
+		private long utc = 0;
+
+		//~--- get methods --------------------------------------------------------
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		public String getBody() {
+			return body;
+		}
+
+		/**
+		 * Returns the message ID used for paging.
+		 *
+		 * @return
+		 */
+		public long getId() {
+			return id;
+		}
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		public String getLang() {
+			return lang;
+		}
+
+		/**
+		 * Returns the whole archived stanza or <code>null</code> if only the body
+		 * was archived.
+		 *
+		 * @return
+		 */
+		public String getMessage() {
+			return msg;
+		}
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		public String getSubject() {
+			return subject;
+		}
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		public String getThread() {
+			return thread;
+		}
+
+		/**
+		 * Method description
+		 *
+		 *
+		 * @return
+		 */
+		public Date getTimestamp() {
+			return new Date(utc);
+		}
+
+		/**
+		 * Returns <code>true</code> if the message was sent to the archive owner.
+		 *
+		 * @return
+		 */
+		public boolean isIncoming() {
+			return incoming;
+		}
+	}
 }
 
 